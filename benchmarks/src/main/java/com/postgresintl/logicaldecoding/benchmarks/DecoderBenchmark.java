@@ -0,0 +1,229 @@
+package com.postgresintl.logicaldecoding.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.postgresintl.logicaldecoding.NumericValue;
+import com.postgresintl.logicaldecoding.PgOutput;
+import com.postgresintl.logicaldecoding.PgOutputMessage;
+import com.postgresintl.logicaldecoding.PgOutputTuple;
+import com.postgresintl.logicaldecoding.PgType;
+import com.postgresintl.logicaldecoding.ProtoBuf;
+import com.postgresintl.logicaldecoding.ProtoBufDecoder;
+import com.postgresintl.logicaldecoding.RelationCache;
+import com.postgresintl.logicaldecoding.RowView;
+import com.postgresintl.logicaldecoding.Wal2JSON;
+import com.postgresintl.logicaldecoding.Wal2JsonChange;
+import com.postgresintl.logicaldecoding.Wal2JsonParser;
+import com.postgresintl.logicaldecoding.Wal2JsonRowDecoder;
+import com.postgresintl.logicaldecoding.synthetic.MessageGenerator;
+import com.postgresintl.logicaldecoding.synthetic.RowShape;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Decode cost per message of the three decoders over synthetic messages.
+ * Run with <code>-prof gc</code> to get the bytes allocated per message
+ * (<code>gc.alloc.rate.norm</code>).
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+    private static final int MESSAGES = 1024;
+    private static final int OID = 16384;
+
+    @Param({"narrow", "wide", "longText", "manyNulls", "unchangedToast"})
+    public String shape;
+
+    private ByteBuffer[] pgoutput;
+    private ByteBuffer[] pgoutputBinary;
+    private ByteBuffer[] wal2json;
+    private ByteBuffer[] wal2jsonV2;
+    private ByteBuffer[] protobuf;
+    private final RelationCache relations = new RelationCache();
+    private final PgOutputMessage message = new PgOutputMessage();
+    private final RowView rowView = new RowView();
+    private final Wal2JsonParser wal2JsonParser = new Wal2JsonParser();
+    private final Wal2JsonRowDecoder wal2JsonRowDecoder = new Wal2JsonRowDecoder();
+    private final Wal2JsonRowDecoder wal2JsonProjected = new Wal2JsonRowDecoder(
+            Wal2JsonRowDecoder.Projection.all().withColumns("id", MessageGenerator.columnName(1)).withoutTypes());
+    private final NumericValue numeric = new NumericValue();
+    private final ProtoBufDecoder protoBufDecoder = new ProtoBufDecoder(true);
+    private int next;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        MessageGenerator generator = new MessageGenerator(RowShape.named(shape));
+        new PgOutput(generator.pgoutputRelation(OID, "public", "bench"), relations).toString();
+        pgoutput = new ByteBuffer[MESSAGES];
+        pgoutputBinary = new ByteBuffer[MESSAGES];
+        wal2json = new ByteBuffer[MESSAGES];
+        wal2jsonV2 = new ByteBuffer[MESSAGES];
+        protobuf = new ByteBuffer[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            // the unchanged TOAST shape only shows up in updates
+            pgoutput[i] = "unchangedToast".equals(shape) ? generator.pgoutputUpdate(OID) : generator.pgoutputInsert(OID);
+            pgoutputBinary[i] = generator.pgoutputInsertBinary(OID);
+            wal2json[i] = generator.wal2json("public", "bench", 1);
+            wal2jsonV2[i] = generator.wal2jsonV2Insert("public", "bench");
+            protobuf[i] = generator.protobufInsert("public.bench");
+        }
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = (i + 1) & (MESSAGES - 1);
+        return i;
+    }
+
+    @Benchmark
+    public String pgOutput() {
+        ByteBuffer buffer = pgoutput[nextIndex()];
+        buffer.rewind();
+        return new PgOutput(buffer, relations).toString();
+    }
+
+    /**
+     * Frames the message and touches every column without materialising values.
+     */
+    @Benchmark
+    public void pgOutputFlyweight(Blackhole blackhole) {
+        message.wrap(pgoutput[nextIndex()]);
+        PgOutputTuple tuple = message.newTuple();
+        for (int i = 0; i < tuple.columnCount(); i++) {
+            blackhole.consume(tuple.length(i));
+        }
+    }
+
+    /**
+     * Converts every column to its native type through {@link RowView}.
+     */
+    @Benchmark
+    public void pgOutputTyped(Blackhole blackhole) {
+        consumeTyped(pgoutput[nextIndex()], blackhole);
+    }
+
+    /**
+     * Same as {@link #pgOutputTyped(Blackhole)} over rows sent with the <code>binary</code> option.
+     */
+    @Benchmark
+    public void pgOutputTypedBinary(Blackhole blackhole) {
+        consumeTyped(pgoutputBinary[nextIndex()], blackhole);
+    }
+
+    private void consumeTyped(ByteBuffer buffer, Blackhole blackhole) {
+        message.wrap(buffer);
+        RowView row = rowView.wrap(message.newTuple(), relations.get(message.relationOid()));
+        for (int i = 0; i < row.columnCount(); i++) {
+            if (row.isNull(i) || row.isUnchangedToast(i)) {
+                continue;
+            }
+            switch (row.typeOid(i)) {
+                case PgType.INT4:
+                case PgType.INT8:
+                    blackhole.consume(row.getLong(i));
+                    break;
+                case PgType.FLOAT8:
+                    blackhole.consume(row.getDouble(i));
+                    break;
+                case PgType.BOOL:
+                    blackhole.consume(row.getBoolean(i));
+                    break;
+                case PgType.TIMESTAMPTZ:
+                    blackhole.consume(row.getTimestampMicros(i));
+                    break;
+                case PgType.NUMERIC:
+                    blackhole.consume(row.getNumeric(i, numeric).unscaledValue());
+                    break;
+                default:
+                    blackhole.consume(row.tuple().length(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public String wal2Json() {
+        ByteBuffer buffer = wal2json[nextIndex()];
+        buffer.rewind();
+        return new Wal2JSON(buffer).toString();
+    }
+
+    @Benchmark
+    public void wal2JsonStreaming(Blackhole blackhole) {
+        ByteBuffer buffer = wal2json[nextIndex()];
+        buffer.rewind();
+        wal2JsonParser.feed(buffer);
+        int event;
+        while ((event = wal2JsonParser.next()) != Wal2JsonParser.NEED_INPUT) {
+            if (event == Wal2JsonParser.CHANGE) {
+                Wal2JsonChange.Fields columns = wal2JsonParser.change().columns();
+                blackhole.consume(columns.getLong(0));
+                for (int i = 1; i < columns.count(); i++) {
+                    blackhole.consume(columns.length(i));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void wal2JsonV2(Blackhole blackhole) {
+        consume(wal2JsonRowDecoder.decode(wal2jsonV2[nextIndex()]).columns(), blackhole);
+    }
+
+    /**
+     * Only the key and one more column, as a sink maintaining a narrow projection would ask.
+     */
+    @Benchmark
+    public void wal2JsonV2Projected(Blackhole blackhole) {
+        consume(wal2JsonProjected.decode(wal2jsonV2[nextIndex()]).columns(), blackhole);
+    }
+
+    private static void consume(Wal2JsonChange.Fields columns, Blackhole blackhole) {
+        blackhole.consume(columns.getLong(0));
+        for (int i = 1; i < columns.count(); i++) {
+            blackhole.consume(columns.length(i));
+        }
+    }
+
+    @Benchmark
+    public String protoBuf() {
+        ByteBuffer buffer = protobuf[nextIndex()];
+        buffer.rewind();
+        return new ProtoBuf(buffer).toString();
+    }
+
+    @Benchmark
+    public int protoBufDecoder() throws InvalidProtocolBufferException {
+        return protoBufDecoder.decode(protobuf[nextIndex()]).getNewTupleCount();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(DecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
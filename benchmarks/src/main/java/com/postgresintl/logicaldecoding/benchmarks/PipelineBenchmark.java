@@ -0,0 +1,135 @@
+package com.postgresintl.logicaldecoding.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import com.postgresintl.logicaldecoding.PgOutputMessage;
+import com.postgresintl.logicaldecoding.RelationCache;
+import com.postgresintl.logicaldecoding.RowView;
+import com.postgresintl.logicaldecoding.SlotConfig;
+import com.postgresintl.logicaldecoding.nio.NioReplicationStream;
+import com.postgresintl.logicaldecoding.synthetic.FakeWalSender;
+import com.postgresintl.logicaldecoding.synthetic.RowShape;
+import com.postgresintl.logicaldecoding.synthetic.SyntheticStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.postgresql.PGConnection;
+import org.postgresql.PGProperty;
+import org.postgresql.replication.PGReplicationStream;
+
+/**
+ * Receive and decode cost per message over a socket, from a {@link FakeWalSender} serving
+ * generated pgoutput transactions as fast as the client takes them. The client confirms
+ * what it decoded every {@value #ACK_EVERY} messages and the server holds back once it is
+ * 64MB ahead, as a slot would fill up behind a slow consumer.
+ *
+ * The sample time mode gives the distribution of the wait for each message, the throughput
+ * mode messages per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+    private static final int ACK_EVERY = 4096;
+
+    @Param({"pgjdbc", "nio"})
+    public String client;
+
+    @Param({"narrow", "wide"})
+    public String shape;
+
+    private FakeWalSender walSender;
+    private Connection connection;
+    private PGReplicationStream stream;
+    private final RelationCache relations = new RelationCache();
+    private final PgOutputMessage message = new PgOutputMessage();
+    private final RowView rowView = new RowView();
+    private int received;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        SyntheticStream source = new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.named(shape))
+                .withRowsPerTransaction(100);
+        walSender = new FakeWalSender(source).withMaxLag(64L * 1024 * 1024).start();
+        SlotConfig config = new SlotConfig("bench", walSender.url()).user("bench");
+        if ("nio".equals(client)) {
+            stream = NioReplicationStream.open(config, null);
+            return;
+        }
+        Properties properties = config.getConnectionProperties();
+        PGProperty.ASSUME_MIN_SERVER_VERSION.set(properties, "9.4");
+        PGProperty.REPLICATION.set(properties, "database");
+        PGProperty.PREFER_QUERY_MODE.set(properties, "simple");
+        connection = DriverManager.getConnection(config.getUrl(), properties);
+        stream = connection.unwrap(PGConnection.class)
+                .getReplicationAPI()
+                .replicationStream()
+                .logical()
+                .withSlotName(config.getSlotName())
+                .withSlotOptions(config.getSlotOptions())
+                .withStatusInterval(10, TimeUnit.SECONDS)
+                .start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        stream.close();
+        if (connection != null) {
+            connection.close();
+        }
+        walSender.close();
+    }
+
+    @Benchmark
+    public void readAndDecode(Blackhole blackhole) throws SQLException {
+        ByteBuffer buffer = stream.read();
+        message.wrap(buffer);
+        switch (message.type()) {
+            case 'R':
+                relations.update(message);
+                break;
+            case 'I':
+                RowView row = rowView.wrap(message.newTuple(), relations.get(message.relationOid()));
+                for (int i = 0; i < row.columnCount(); i++) {
+                    blackhole.consume(row.tuple().length(i));
+                }
+                break;
+            default:
+                blackhole.consume(message.type());
+        }
+        if (++received % ACK_EVERY == 0) {
+            stream.setFlushedLSN(stream.getLastReceiveLSN());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PipelineBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,105 @@
+package com.postgresintl.logicaldecoding.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.TimeUnit;
+
+import com.postgresintl.logicaldecoding.ConsumerHost;
+import com.postgresintl.logicaldecoding.SlotConfig;
+import com.postgresintl.logicaldecoding.synthetic.RowShape;
+import com.postgresintl.logicaldecoding.synthetic.SyntheticStream;
+
+/**
+ * Heap and CPU a {@link ConsumerHost} needs per idle slot. Adds N slots reading
+ * {@link SyntheticStream}s that send one transaction and then nothing for days, and reports
+ * the heap in use after the slots caught up, divided by N, and the CPU of the process while
+ * they wait. Not a JMH benchmark, it measures a steady state rather than an operation
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.postgresintl.logicaldecoding.benchmarks.SlotFootprint 1000 10
+ * </pre>
+ *
+ * The heap figure leaves out the stacks of platform threads, which are native memory; on a
+ * JDK with virtual threads the stacks of the parked slots are on the heap and included.
+ */
+public final class SlotFootprint {
+
+    private SlotFootprint() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int slots = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int idleSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        ConsumerHost host = new ConsumerHost((slot, message, ticket) -> slot.complete(ticket), 1)
+                .withStreamOpener((config, start) -> new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.narrow())
+                        .withRowsPerTransaction(1)
+                        .withRate(1e-6));
+        // classes and shared state of the host are not counted against the slots
+        host.add(new SlotConfig("warmup", "jdbc:postgresql://localhost/footprint"));
+        awaitMessages(host, 1);
+        long before = usedHeap(memory);
+
+        for (int i = 0; i < slots; i++) {
+            host.add(new SlotConfig("slot_" + i, "jdbc:postgresql://localhost/footprint"));
+        }
+        awaitMessages(host, slots + 1);
+        long after = usedHeap(memory);
+
+        long cpuBefore = processCpuNanos();
+        long wallBefore = System.nanoTime();
+        TimeUnit.SECONDS.sleep(idleSeconds);
+        long cpu = processCpuNanos() - cpuBefore;
+        long wall = System.nanoTime() - wallBefore;
+
+        System.out.printf("%d idle slots on %s threads, Java %s%n", slots,
+                host.usesVirtualThreads() ? "virtual" : "platform", System.getProperty("java.version"));
+        System.out.printf("heap per slot: %.1f KB%n", (after - before) / 1024.0 / slots);
+        if (cpuBefore >= 0) {
+            System.out.printf("CPU while idle: %.1f%% of one core%n", 100.0 * cpu / wall);
+        }
+        host.close();
+    }
+
+    /**
+     * Wait until every slot has read its first transaction.
+     */
+    private static void awaitMessages(ConsumerHost host, int slots) throws InterruptedException {
+        while (true) {
+            int ready = 0;
+            for (ConsumerHost.Slot slot : host.slots()) {
+                if (slot.getMessages() >= 3) {
+                    ready++;
+                }
+            }
+            if (ready >= slots) {
+                return;
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        // a few rounds until nothing more is collected
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(100);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    /**
+     * @return CPU time of the process, -1 if the JVM does not tell
+     */
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
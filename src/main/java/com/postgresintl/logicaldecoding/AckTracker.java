@@ -0,0 +1,162 @@
+package com.postgresintl.logicaldecoding;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+/**
+ * Tracks messages handed to sinks and works out how far the server may be told the data
+ * is durable.
+ *
+ * The reading thread calls {@link #track(LogSequenceNumber)} for every message in receive
+ * order and hands the returned ticket along with the message. Sinks call
+ * {@link #complete(long)} from any thread, in any order, once the message is stored.
+ * The durable watermark is the LSN of the newest message for which it and every message
+ * before it have completed, so the flushed LSN reported back can never pass data that a
+ * slow sink still holds.
+ *
+ * Feedback is only pushed to the stream by the reading thread, in
+ * {@link #maybeSendFeedback(PGReplicationStream)}, when the watermark has moved by more than
+ * the byte threshold or the interval has elapsed since the last push.
+ */
+public class AckTracker {
+    private final long intervalNanos;
+    private final long byteThreshold;
+
+    // ring of in flight messages indexed by ticket & mask
+    private long[] lsns;
+    private boolean[] completed;
+    private int mask;
+    private long head;
+    private long tail;
+    private long durableLsn;
+
+    // owned by the reading thread
+    private long sentLsn;
+    private long sentNanos = System.nanoTime();
+    private long feedbackCount;
+
+    /**
+     * @param interval      push feedback at least this often while the watermark moves
+     * @param unit          unit of <code>interval</code>
+     * @param byteThreshold push feedback as soon as the watermark moved this many bytes of WAL
+     */
+    public AckTracker(long interval, TimeUnit unit, long byteThreshold) {
+        this(interval, unit, byteThreshold, 1024);
+    }
+
+    /**
+     * @param capacity messages in flight before the ring grows, rounded up to a power of two;
+     *                 small for hosts running many mostly idle streams
+     */
+    public AckTracker(long interval, TimeUnit unit, long byteThreshold, int capacity) {
+        this.intervalNanos = unit.toNanos(interval);
+        this.byteThreshold = byteThreshold;
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.lsns = new long[size];
+        this.completed = new boolean[size];
+        this.mask = lsns.length - 1;
+    }
+
+    public AckTracker() {
+        this(1, TimeUnit.SECONDS, 16 * 1024 * 1024);
+    }
+
+    /**
+     * Register a message that was just received.
+     *
+     * @return the ticket to pass to {@link #complete(long)}
+     */
+    public synchronized long track(LogSequenceNumber lsn) {
+        if (tail - head == lsns.length) {
+            grow();
+        }
+        int index = (int) (tail & mask);
+        lsns[index] = lsn.asLong();
+        completed[index] = false;
+        return tail++;
+    }
+
+    /**
+     * Mark a message as durably handled, may be called out of order and from any thread.
+     */
+    public synchronized void complete(long ticket) {
+        if (ticket < head || ticket >= tail) {
+            throw new IllegalArgumentException("unknown ticket " + ticket);
+        }
+        completed[(int) (ticket & mask)] = true;
+        while (head < tail && completed[(int) (head & mask)]) {
+            durableLsn = Math.max(durableLsn, lsns[(int) (head & mask)]);
+            head++;
+        }
+    }
+
+    private void grow() {
+        int size = lsns.length * 2;
+        long[] newLsns = new long[size];
+        boolean[] newCompleted = new boolean[size];
+        int newMask = size - 1;
+        for (long t = head; t < tail; t++) {
+            newLsns[(int) (t & newMask)] = lsns[(int) (t & mask)];
+            newCompleted[(int) (t & newMask)] = completed[(int) (t & mask)];
+        }
+        lsns = newLsns;
+        completed = newCompleted;
+        mask = newMask;
+    }
+
+    /**
+     * @return the LSN up to which every tracked message has completed
+     */
+    public synchronized LogSequenceNumber durableLsn() {
+        return LogSequenceNumber.valueOf(durableLsn);
+    }
+
+    /**
+     * @return number of messages handed out but not completed yet
+     */
+    public synchronized long inFlight() {
+        return tail - head;
+    }
+
+    /**
+     * Report the durable watermark to the server if it moved far enough or long enough ago.
+     * Must be called from the thread that reads the stream.
+     *
+     * @return true if a status update was sent
+     */
+    public boolean maybeSendFeedback(PGReplicationStream stream) throws SQLException {
+        long durable;
+        synchronized (this) {
+            durable = durableLsn;
+        }
+        if (durable <= sentLsn) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (durable - sentLsn < byteThreshold && now - sentNanos < intervalNanos) {
+            return false;
+        }
+        LogSequenceNumber lsn = LogSequenceNumber.valueOf(durable);
+        stream.setAppliedLSN(lsn);
+        stream.setFlushedLSN(lsn);
+        stream.forceUpdateStatus();
+        sentLsn = durable;
+        sentNanos = now;
+        feedbackCount++;
+        return true;
+    }
+
+    /**
+     * @return the last LSN reported to the server
+     */
+    public LogSequenceNumber sentLsn() {
+        return LogSequenceNumber.valueOf(sentLsn);
+    }
+
+    public long getFeedbackCount() {
+        return feedbackCount;
+    }
+}
@@ -1,17 +1,34 @@
 package com.postgresintl.logicaldecoding;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import com.postgresintl.logicaldecoding.capture.CaptureWriter;
+import com.postgresintl.logicaldecoding.capture.CapturingReplicationStream;
+import com.postgresintl.logicaldecoding.capture.ReplaySource;
+import com.postgresintl.logicaldecoding.metrics.ReplicationMetrics;
+import com.postgresintl.logicaldecoding.nio.NioReplicationStream;
+import com.postgresintl.logicaldecoding.pipeline.Pipeline;
+import com.postgresintl.logicaldecoding.synthetic.FakeWalSender;
+import com.postgresintl.logicaldecoding.synthetic.RowShape;
+import com.postgresintl.logicaldecoding.synthetic.SyntheticStream;
+
 import org.postgresql.PGConnection;
 import org.postgresql.PGProperty;
 import org.postgresql.core.BaseConnection;
 import org.postgresql.core.ServerVersion;
 import org.postgresql.replication.LogSequenceNumber;
 import org.postgresql.replication.PGReplicationStream;
+import org.postgresql.replication.fluent.logical.ChainedLogicalStreamBuilder;
 
 
 
@@ -28,6 +45,18 @@ public class App
 
     Connection connection;
     Connection replicationConnection;
+    final RelationCache relations = new RelationCache();
+    WaitStrategy waitStrategy = WaitStrategy.backoff();
+    final AckTracker ackTracker = new AckTracker();
+    final ReplicationMetrics metrics = new ReplicationMetrics();
+    final StreamedTransactionBuffer streamedTransactions = new StreamedTransactionBuffer(
+            () -> new TransactionBuffer(8 * 1024 * 1024, 64 * 1024 * 1024, Paths.get(System.getProperty("java.io.tmpdir")), metrics));
+    boolean streaming;
+    boolean binary;
+    boolean nio;
+    Path captureDirectory;
+    TransactionBuffer transactionBuffer;
+    TableFilter tableFilter;
 
 
     private static String toString(ByteBuffer buffer) {
@@ -41,6 +70,13 @@ public class App
     private String createUrl(){
         return "jdbc:postgresql://"+HOST+':'+PORT+'/'+DATABASE;
     }
+    /**
+     * How {@link ConsumerHost} reaches a slot of this database.
+     */
+    public SlotConfig slotConfig(String slotName) {
+        return new SlotConfig(slotName, createUrl()).user("davec").password("");
+    }
+
     public void createConnection() throws SQLException
     {
         try
@@ -73,6 +109,85 @@ public class App
         }
     }
 
+    /**
+     * Publish only the tables <code>filter</code> wants, so the server does not decode and
+     * send the others at all. From PostgreSQL 15 the column masks become column lists too,
+     * tables created later have to be added to the publication by hand.
+     */
+    public void createPublication(String publication, TableFilter filter) throws SQLException {
+        boolean columnLists = ((BaseConnection)connection).haveMinimumServerVersion(ServerVersion.v15);
+        StringBuilder sql = new StringBuilder("CREATE PUBLICATION ").append(publication);
+        String separator = " FOR TABLE ";
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(
+                     "SELECT schemaname, tablename FROM pg_tables"
+                             + " WHERE schemaname NOT IN ('pg_catalog', 'information_schema')"
+                             + " ORDER BY schemaname, tablename"))
+        {
+            while (rs.next()) {
+                String schema = rs.getString(1);
+                String table = rs.getString(2);
+                if (!filter.matches(schema, table)) {
+                    continue;
+                }
+                sql.append(separator).append(quoteIdentifier(schema)).append('.').append(quoteIdentifier(table));
+                separator = ", ";
+                Set<String> columns = columnLists ? filter.mask(schema, table) : null;
+                List<String> published = columns != null ? publishedColumns(schema, table, columns) : null;
+                // without any column the whole table is published, the filter still masks it
+                if (published != null && !published.isEmpty()) {
+                    sql.append(" (").append(String.join(", ", published)).append(')');
+                }
+            }
+        }
+        if (separator.equals(" FOR TABLE ")) {
+            throw new SQLException("no table matches the filter for publication " + publication);
+        }
+        try (Statement statement = connection.createStatement())
+        {
+            statement.execute(sql.toString());
+        }
+        filter.publication(publication);
+    }
+
+    /**
+     * The masked columns that exist in the table plus its replica identity, quoted: the
+     * primary key by default, the index of <code>REPLICA IDENTITY USING INDEX</code> or every
+     * column with <code>FULL</code>. The server rejects updates and deletes when the column
+     * list leaves out a replica identity column.
+     */
+    private List<String> publishedColumns(String schema, String table, Set<String> columns) throws SQLException {
+        List<String> published = new ArrayList<>();
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT a.attname, CASE c.relreplident"
+                        + " WHEN 'f' THEN true"
+                        + " WHEN 'd' THEN a.attnum = ANY (coalesce(pk.indkey, '{}'::int2vector)::int2[])"
+                        + " WHEN 'i' THEN a.attnum = ANY (coalesce(ri.indkey, '{}'::int2vector)::int2[])"
+                        + " ELSE false END"
+                        + " FROM pg_attribute a"
+                        + " JOIN pg_class c ON c.oid = a.attrelid"
+                        + " LEFT JOIN pg_index pk ON pk.indrelid = a.attrelid AND pk.indisprimary"
+                        + " LEFT JOIN pg_index ri ON ri.indrelid = a.attrelid AND ri.indisreplident"
+                        + " WHERE a.attrelid = (quote_ident(?) || '.' || quote_ident(?))::regclass"
+                        + " AND a.attnum > 0 AND NOT a.attisdropped ORDER BY a.attnum"))
+        {
+            ps.setString(1, schema);
+            ps.setString(2, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getBoolean(2) || columns.contains(rs.getString(1))) {
+                        published.add(quoteIdentifier(rs.getString(1)));
+                    }
+                }
+            }
+        }
+        return published;
+    }
+
+    private static String quoteIdentifier(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
 
     public void createLogicalReplicationSlot(String slotName, String outputPlugin ) throws InterruptedException, SQLException, TimeoutException
     {
@@ -148,7 +263,230 @@ public class App
             throw new TimeoutException("Wait stop replication slot " + timeInWait + " timeout occurs");
         }
     }
+    /**
+     * Select how the replication loop waits for messages, see {@link WaitStrategy}
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Ask for pgoutput protocol version 2 and have the server stream large transactions while
+     * they are in progress, requires PostgreSQL 14
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Hold every transaction back until its COMMIT arrived and print it as a whole. The
+     * buffer keeps memory bounded by spilling large transactions to disk.
+     */
+    public void setTransactionBuffer(TransactionBuffer transactionBuffer) {
+        this.transactionBuffer = transactionBuffer;
+    }
+
+    /**
+     * Only decode the tables and columns <code>filter</code> wants. Its publication, if set,
+     * replaces the default one when the stream is started.
+     */
+    public void setTableFilter(TableFilter tableFilter) {
+        this.tableFilter = tableFilter;
+    }
+
+    /**
+     * Hand a message from the stream to <code>handler</code>, through the streaming and
+     * transaction buffers where they apply.
+     */
+    private void deliver(ByteBuffer buffer, MessageHandler handler) throws Exception {
+        // streamed transactions come out of their buffer complete, no need to assemble them again
+        if (streamedTransactions.accept(buffer, handler)) {
+            return;
+        }
+        if (transactionBuffer != null && transactionBuffer.accept(buffer, handler)) {
+            return;
+        }
+        handler.onMessage(buffer);
+    }
+
+    /**
+     * Have the server send column values in their binary send format instead of text,
+     * cheaper to produce and to parse for numeric and timestamp columns. Requires
+     * PostgreSQL 14.
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Read the stream with {@link NioReplicationStream} instead of pgjdbc, which receives into
+     * one direct buffer and hands out the messages without copying them.
+     */
+    public void setNio(boolean nio) {
+        this.nio = nio;
+    }
+
+    /**
+     * Write every message received to a capture in <code>directory</code>, to be played
+     * back later with {@link #replay(Path, ReplaySource.Pacing)}.
+     */
+    public void setCaptureDirectory(Path captureDirectory) {
+        this.captureDirectory = captureDirectory;
+    }
+
+    /**
+     * Decode and print a capture instead of a live stream.
+     */
+    public void replay(Path directory, ReplaySource.Pacing pacing) throws Exception {
+        receiveChanges(new ReplaySource(directory, pacing));
+    }
+
+    /**
+     * Decode and print a capture from the first transaction committed at or after
+     * <code>from</code>.
+     */
+    public void replay(Path directory, ReplaySource.Pacing pacing, LogSequenceNumber from) throws Exception {
+        ReplaySource source = new ReplaySource(directory, pacing);
+        source.seek(from);
+        receiveChanges(source);
+    }
+
+    /**
+     * {@link #bootstrap(int, SnapshotBootstrap.CopySink)} printing the copied rows as the
+     * INSERTs of the stream are printed.
+     */
+    public void bootstrap(int workers) throws Exception {
+        bootstrap(workers, BinaryCopyParser.sink((relation, insert) ->
+                System.out.println(PgOutput.insert(relation, insert.newTuple()))));
+    }
+
+    /**
+     * Create the slot with an exported snapshot, copy the tables of pub1 through
+     * <code>sink</code> on <code>workers</code> connections and print the changes made since.
+     */
+    public void bootstrap(int workers, SnapshotBootstrap.CopySink sink) throws Exception {
+        SlotConfig config = streamConfig();
+        try (SnapshotBootstrap bootstrap = new SnapshotBootstrap(config, workers)) {
+            receiveChanges(bootstrap.run(sink));
+        }
+    }
+
+    /**
+     * Decode and print the stream of a slot without the SQL connection the other modes need,
+     * for instance from a {@link FakeWalSender}. Starts where the slot is unless the config
+     * says otherwise.
+     */
+    public void receiveChanges(SlotConfig config) throws Exception {
+        if (nio) {
+            try (PGReplicationStream stream = NioReplicationStream.open(config, null)) {
+                receiveChanges(stream);
+            }
+            return;
+        }
+        try (Connection replication = DriverManager.getConnection(config.getUrl(), config.getReplicationProperties())) {
+            ChainedLogicalStreamBuilder builder = replication.unwrap(PGConnection.class)
+                    .getReplicationAPI()
+                    .replicationStream()
+                    .logical()
+                    .withSlotName(config.getSlotName())
+                    .withSlotOptions(config.getSlotOptions())
+                    .withStatusInterval(10, TimeUnit.SECONDS);
+            if (config.getStartLsn() != null) {
+                builder.withStartPosition(config.getStartLsn());
+            }
+            receiveChanges(builder.start());
+        }
+    }
+
     public void receiveChangesOccursBeforStartReplication() throws Exception {
+        // closing writes the tail of a capture
+        try (PGReplicationStream stream = startStream()) {
+            receiveChanges(stream);
+        }
+    }
+
+    private void receiveChanges(PGReplicationStream stream) throws Exception {
+        ByteBuffer buffer;
+        while(true)
+        {
+            buffer = waitStrategy.next(stream, ackTracker::maybeSendFeedback);
+            if (buffer == null) {
+                // stream closed
+                break;
+            }
+            long ticket = ackTracker.track(stream.getLastReceiveLSN());
+
+            deliver(buffer, m -> {
+                String change = new PgOutput(m, relations, metrics, tableFilter).toString();
+                if (!change.isEmpty()) {
+                    System.out.println(change);
+                }
+            });
+            // printing is synchronous, an asynchronous sink would complete the ticket once stored
+            ackTracker.complete(ticket);
+            //feedback
+            ackTracker.maybeSendFeedback(stream);
+        }
+
+    }
+
+    /**
+     * Same as {@link #receiveChangesOccursBeforStartReplication()} but decoding and printing
+     * run on their own threads so the reading thread only drains the socket.
+     */
+    public void receiveChangesPipelined() throws Exception {
+        Pipeline pipeline = new Pipeline(4096, 512, WaitStrategy::backoff)
+                .addDecoder("decode", slot -> {
+                    StringBuilder sb = new StringBuilder();
+                    deliver(slot.buffer(), m -> {
+                        String change = new PgOutput(m, relations, metrics, tableFilter).toString();
+                        if (!change.isEmpty()) {
+                            sb.append(change).append('\n');
+                        }
+                    });
+                    slot.setEvent(sb);
+                })
+                .addSink("print", slot -> System.out.println(slot.event()))
+                .withAckTracker(ackTracker);
+        pipeline.start();
+        WaitStrategy.IdleTask idleTask = s -> {
+            pipeline.completeReleased();
+            ackTracker.maybeSendFeedback(s);
+        };
+        // the stages are stopped if the stream cannot be started
+        try (Pipeline running = pipeline; PGReplicationStream stream = startStream()) {
+            ByteBuffer buffer;
+            while ((buffer = waitStrategy.next(stream, idleTask)) != null) {
+                running.publish(buffer, stream.getLastReceiveLSN());
+                ackTracker.maybeSendFeedback(stream);
+            }
+        } finally {
+            System.out.println(pipeline);
+        }
+    }
+
+    /**
+     * The slot and the options {@link #startStream()} uses.
+     */
+    private SlotConfig streamConfig() {
+        SlotConfig config = slotConfig(SLOT_NAME)
+                .option("proto_version", streaming ? 2 : 1);
+        if (tableFilter == null || tableFilter.getPublication() == null) {
+            config.option("publication_names", "pub1");
+        }
+        if (streaming) {
+            config.option("streaming", "on");
+        }
+        if (binary) {
+            config.option("binary", "true");
+        }
+        if (tableFilter != null) {
+            config.tableFilter(tableFilter);
+        }
+        return config;
+    }
+
+    private PGReplicationStream startStream() throws SQLException {
         PGConnection pgConnection = (PGConnection) replicationConnection;
 
         LogSequenceNumber lsn = getCurrentLSN();
@@ -159,46 +497,31 @@ public class App
         st.execute("insert into t(t) values('previous value')");
         st.close();
 */
-        PGReplicationStream stream =
-                pgConnection
-                        .getReplicationAPI()
-                        .replicationStream()
-                        .logical()
-                        .withSlotName(SLOT_NAME)
-                        .withStartPosition(lsn)
-                        .withSlotOption("proto_version",1)
-                        .withSlotOption("publication_names", "pub1")
-                    //   .withSlotOption("include-xids", true)
-                    //    .withSlotOption("skip-empty-xacts", true)
-                    //    .withSlotOption("proto_version",1)
-                     //   .withSlotOption("publication_names", "pub1")
-                    //    .withSlotOption("binary","true")
-                    //    .withSlotOption("sizeof_datum", "8")
-                    //    .withSlotOption("sizeof_int", "4")
-                 //       .withSlotOption("sizeof_long", "8")
-                 //       .withSlotOption("bigendian", "false")
-                 //       .withSlotOption("float4_byval", "true")
-                 //       .withSlotOption("float8_byval", "true")
-                 //       .withSlotOption("integer_datetimes", "true")
-                        // .withSlotOption("include-xids", true)
-                        // .withSlotOption("skip-empty-xacts", true)
-                        .withStatusInterval(10, TimeUnit.SECONDS)
-                        .start();
-        ByteBuffer buffer;
-        while(true)
-        {
-            buffer = stream.readPending();
-            if (buffer == null) {
-                TimeUnit.MILLISECONDS.sleep(10L);
-                continue;
+        // one set of options for both clients
+        SlotConfig config = streamConfig();
+        PGReplicationStream stream;
+        if (nio) {
+            stream = new NioReplicationStream(config).start(lsn);
+        } else {
+            stream = pgConnection
+                    .getReplicationAPI()
+                    .replicationStream()
+                    .logical()
+                    .withSlotName(config.getSlotName())
+                    .withStartPosition(lsn)
+                    .withSlotOptions(config.getSlotOptions())
+                    .withStatusInterval(10, TimeUnit.SECONDS)
+                    .start();
+        }
+        if (captureDirectory != null) {
+            try {
+                stream = new CapturingReplicationStream(stream, new CaptureWriter(captureDirectory));
+            } catch (IOException e) {
+                stream.close();
+                throw new SQLException("could not open the capture in " + captureDirectory, e);
             }
-
-            System.out.println( toString(buffer));
-            //feedback
-            stream.setAppliedLSN(stream.getLastReceiveLSN());
-            stream.setFlushedLSN(stream.getLastReceiveLSN());
         }
-
+        return stream;
     }
 
     private LogSequenceNumber getCurrentLSN() throws SQLException
@@ -266,6 +589,18 @@ public class App
         String pluginName = "pgoutput";
 
         App app = new App();
+        if (args.length > 0 && "--fake".equals(args[0])) {
+            // no server needed, a generated workload from an in-process walsender
+            SyntheticStream workload = new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.narrow())
+                    .withRowsPerTransaction(5)
+                    .withRate(10);
+            try (FakeWalSender walSender = new FakeWalSender(workload).start()) {
+                app.receiveChanges(new SlotConfig(SLOT_NAME, walSender.url()).user("davec"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
         try {
             app.createConnection();
 
@@ -282,6 +617,8 @@ public class App
    //         app.dropPublication("pub1");
    //         app.createPublication("pub1");
             app.openReplicationConnection();
+            app.metrics.register(SLOT_NAME);
+            app.metrics.startSnapshots(1, TimeUnit.MINUTES, System.out::println);
             app.receiveChangesOccursBeforStartReplication();
 
 /*
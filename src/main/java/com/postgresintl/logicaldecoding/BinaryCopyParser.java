@@ -0,0 +1,235 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.postgresintl.logicaldecoding.model.Relation;
+
+/**
+ * Streaming parser for the output of <code>COPY ... TO STDOUT (FORMAT binary)</code> that
+ * hands every row on as an INSERT {@link PgOutputMessage}.
+ *
+ * A binary COPY row is laid out like a pgoutput TupleData whose columns all came with the
+ * <code>binary</code> option: a field count, then the length and the send format of every
+ * value. The row is read into the same {@link PgOutputTuple} a streamed INSERT is, so
+ * {@link RowView}, {@link BinaryDecoding} and the column mask of a {@link TableFilter} apply
+ * unchanged, and a sink cannot tell a copied row from a streamed one. Only the BEGIN and
+ * COMMIT around it are missing.
+ *
+ * Data is fed as it comes from the server, one CopyData message at a time. Rows are sliced
+ * out of the caller's array where they lie, the server sends one row per message; only a row
+ * split over messages is gathered in an internal buffer first. A parser reads one COPY and
+ * is not thread safe.
+ */
+public final class BinaryCopyParser {
+
+    /**
+     * Receives the rows of a COPY.
+     */
+    public interface RowSink {
+        /**
+         * @param relation the table, null if it is not known
+         * @param insert   an INSERT whose new tuple is the row, only valid during the call
+         */
+        void onRow(Relation relation, PgOutputMessage insert) throws Exception;
+    }
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+    /** signature, flags and header extension length */
+    private static final int HEADER_LENGTH = SIGNATURE.length + 8;
+    private static final int FLAG_OIDS = 1 << 16;
+
+    private final Relation relation;
+    private final int relationOid;
+    private final PgOutputMessage message;
+    private final RowSink sink;
+    /** the part of a split row or header seen so far, up to the position */
+    private ByteBuffer carry = ByteBuffer.allocate(256);
+    private boolean headerRead;
+    private boolean finished;
+    private long rows;
+
+    /**
+     * @param relation the table being copied, its columns in the order of the COPY, may be null
+     */
+    public BinaryCopyParser(Relation relation, RowSink sink) {
+        this(relation, new PgOutputMessage(), sink);
+    }
+
+    /**
+     * @param message reused for every row, give it a filter to drop rows and mask columns
+     *                as in the stream
+     */
+    public BinaryCopyParser(Relation relation, PgOutputMessage message, RowSink sink) {
+        this.relation = relation;
+        this.relationOid = relation == null ? 0 : relation.getOid();
+        this.message = message;
+        this.sink = sink;
+    }
+
+    /**
+     * A {@link SnapshotBootstrap.CopySink} that parses every range and passes the rows to
+     * <code>sink</code>, from the copying threads.
+     */
+    public static SnapshotBootstrap.CopySink sink(RowSink sink) {
+        Map<SnapshotBootstrap.CopyRange, BinaryCopyParser> parsers = new ConcurrentHashMap<>();
+        return new SnapshotBootstrap.CopySink() {
+            @Override
+            public void onData(SnapshotBootstrap.CopyRange range, byte[] data) throws Exception {
+                parsers.computeIfAbsent(range, r -> new BinaryCopyParser(r.relation(), sink)).feed(data);
+            }
+
+            @Override
+            public void onRangeComplete(SnapshotBootstrap.CopyRange range, long bytes) {
+                BinaryCopyParser parser = parsers.remove(range);
+                if (parser == null || !parser.isFinished()) {
+                    throw new IllegalStateException("COPY of " + range + " ended without its trailer");
+                }
+            }
+        };
+    }
+
+    public void feed(byte[] data) throws Exception {
+        feed(data, 0, data.length);
+    }
+
+    /**
+     * Parse the next piece of the COPY output, passing every row completed by it to the sink.
+     */
+    public void feed(byte[] data, int offset, int length) throws Exception {
+        int position = offset;
+        int limit = offset + length;
+        if (carry.position() > 0) {
+            position = completeCarried(data, position, limit);
+            if (position < 0) {
+                return;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (position < limit && !finished) {
+            int end = scan(buffer, position, limit);
+            if (end < 0) {
+                append(data, position, limit - position);
+                return;
+            }
+            consume(buffer, position);
+            position = end;
+        }
+        if (position < limit) {
+            throw new IllegalStateException("data after the end of the COPY");
+        }
+    }
+
+    /**
+     * Add bytes from <code>data</code> to the carried piece until it is complete, and consume it.
+     *
+     * @return the position in <code>data</code> after the piece, -1 if data ran out first
+     */
+    private int completeCarried(byte[] data, int position, int limit) throws Exception {
+        while (true) {
+            int end = scan(carry, 0, carry.position());
+            if (end >= 0) {
+                consume(carry, 0);
+                carry.clear();
+                return position;
+            }
+            if (position == limit) {
+                return -1;
+            }
+            int take = Math.min(-end - carry.position(), limit - position);
+            append(data, position, take);
+            position += take;
+        }
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        if (carry.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(carry.capacity() * 2, carry.position() + length));
+            carry.flip();
+            larger.put(carry);
+            carry = larger;
+        }
+        carry.put(data, offset, length);
+    }
+
+    /**
+     * Find the end of the header, row or trailer starting at <code>position</code>.
+     *
+     * @return the position after it, or if it goes past <code>limit</code> minus the position
+     *         the next length or value read ends at
+     */
+    private int scan(ByteBuffer buffer, int position, int limit) {
+        if (!headerRead) {
+            // fail before waiting for the end of a header of some other format
+            for (int i = 0; i < SIGNATURE.length && position + i < limit; i++) {
+                if (buffer.get(position + i) != SIGNATURE[i]) {
+                    throw new IllegalArgumentException("not binary COPY output");
+                }
+            }
+            if (limit - position < HEADER_LENGTH) {
+                return -(position + HEADER_LENGTH);
+            }
+            int end = position + HEADER_LENGTH + buffer.getInt(position + HEADER_LENGTH - 4);
+            return end <= limit ? end : -end;
+        }
+        if (limit - position < 2) {
+            return -(position + 2);
+        }
+        // -1 in the trailer
+        int fields = buffer.getShort(position);
+        int offset = position + 2;
+        for (int i = 0; i < fields; i++) {
+            if (limit - offset < 4) {
+                return -(offset + 4);
+            }
+            int length = buffer.getInt(offset);
+            offset += 4;
+            if (length > 0) {
+                offset += length;
+                if (offset > limit) {
+                    return -offset;
+                }
+            }
+        }
+        return offset;
+    }
+
+    private void consume(ByteBuffer buffer, int position) throws Exception {
+        if (!headerRead) {
+            if ((buffer.getInt(position + SIGNATURE.length) & FLAG_OIDS) != 0) {
+                throw new IllegalArgumentException("binary COPY output with OIDs is not supported");
+            }
+            headerRead = true;
+            return;
+        }
+        int fields = buffer.getShort(position);
+        if (fields == -1) {
+            finished = true;
+            return;
+        }
+        if (relation != null && fields != relation.getAttributeCount()) {
+            throw new IllegalStateException("COPY row of " + relation.getSchema() + '.' + relation.getName()
+                    + " has " + fields + " fields, the relation " + relation.getAttributeCount() + " columns");
+        }
+        message.wrapCopyRow(buffer, position, relationOid);
+        rows++;
+        if (!message.isFiltered()) {
+            sink.onRow(relation, message);
+        }
+    }
+
+    /**
+     * @return true once the trailer has been read
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the rows read, including those a filter dropped
+     */
+    public long getRows() {
+        return rows;
+    }
+}
@@ -0,0 +1,169 @@
+package com.postgresintl.logicaldecoding;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+
+/**
+ * Readers for the binary send format of the common built in types, used for columns of
+ * kind 'b' when the stream was started with the <code>binary</code> option.
+ *
+ * Like {@link TextDecoding} every method takes the absolute offset and length of the value
+ * and leaves the buffer alone. The binary formats are fixed width big endian values for
+ * the integer, float, bool, date, timestamp and uuid types, so reading them is a single
+ * absolute get; numeric is a base 10000 digit array.
+ */
+public final class BinaryDecoding {
+    private static final int NUMERIC_POS = 0x0000;
+    private static final int NUMERIC_NEG = 0x4000;
+    private static final int NUMERIC_NAN = 0xC000;
+    private static final int NUMERIC_PINF = 0xD000;
+    private static final int NUMERIC_NINF = 0xF000;
+    private static final BigInteger NBASE = BigInteger.valueOf(10000);
+
+    private BinaryDecoding() {
+    }
+
+    public static boolean readBoolean(ByteBuffer buffer, int offset, int length) {
+        checkLength("boolean", length, 1);
+        return buffer.get(offset) != 0;
+    }
+
+    /**
+     * int2, int4, int8 and oid values, told apart by their length
+     */
+    public static long readLong(ByteBuffer buffer, int offset, int length) {
+        switch (length) {
+            case 2:
+                return buffer.getShort(offset);
+            case 4:
+                return buffer.getInt(offset);
+            case 8:
+                return buffer.getLong(offset);
+            default:
+                throw new IllegalArgumentException("invalid length for an integer: " + length);
+        }
+    }
+
+    /**
+     * @param typeOid tells an oid, which is unsigned, from an int4; 0 if unknown
+     */
+    public static long readLong(ByteBuffer buffer, int offset, int length, int typeOid) {
+        if (typeOid == PgType.OID) {
+            checkLength("oid", length, 4);
+            return buffer.getInt(offset) & 0xFFFFFFFFL;
+        }
+        return readLong(buffer, offset, length);
+    }
+
+    /**
+     * float4 and float8 values, told apart by their length
+     */
+    public static double readDouble(ByteBuffer buffer, int offset, int length) {
+        switch (length) {
+            case 4:
+                return buffer.getFloat(offset);
+            case 8:
+                return buffer.getDouble(offset);
+            default:
+                throw new IllegalArgumentException("invalid length for a float: " + length);
+        }
+    }
+
+    /**
+     * @return microseconds since 2000-01-01, {@link Long#MAX_VALUE} and {@link Long#MIN_VALUE}
+     * for the infinities
+     */
+    public static long readTimestamp(ByteBuffer buffer, int offset, int length) {
+        checkLength("timestamp", length, 8);
+        return buffer.getLong(offset);
+    }
+
+    /**
+     * @return days since 2000-01-01
+     */
+    public static int readDate(ByteBuffer buffer, int offset, int length) {
+        checkLength("date", length, 4);
+        return buffer.getInt(offset);
+    }
+
+    public static long readUuidMostSignificantBits(ByteBuffer buffer, int offset, int length) {
+        checkLength("uuid", length, 16);
+        return buffer.getLong(offset);
+    }
+
+    public static long readUuidLeastSignificantBits(ByteBuffer buffer, int offset, int length) {
+        checkLength("uuid", length, 16);
+        return buffer.getLong(offset + 8);
+    }
+
+    /**
+     * Decode a numeric: int16 digit count, int16 weight, uint16 sign, int16 display scale and
+     * the base 10000 digits, the first one being worth 10000^weight. Values past 18 digits
+     * allocate a {@link BigDecimal}.
+     *
+     * @return <code>into</code>
+     */
+    public static NumericValue readNumeric(ByteBuffer buffer, int offset, int length, NumericValue into) {
+        if (length < 8) {
+            throw new IllegalArgumentException("invalid length for a numeric: " + length);
+        }
+        int ndigits = buffer.getShort(offset);
+        int weight = buffer.getShort(offset + 2);
+        int sign = buffer.getShort(offset + 4) & 0xFFFF;
+        int dscale = buffer.getShort(offset + 6);
+        switch (sign) {
+            case NUMERIC_NAN:
+                into.setSpecial(NumericValue.NAN);
+                return into;
+            case NUMERIC_PINF:
+                into.setSpecial(NumericValue.POSITIVE_INFINITY);
+                return into;
+            case NUMERIC_NINF:
+                into.setSpecial(NumericValue.NEGATIVE_INFINITY);
+                return into;
+            case NUMERIC_POS:
+            case NUMERIC_NEG:
+                break;
+            default:
+                throw new IllegalArgumentException("invalid numeric sign: " + Integer.toHexString(sign));
+        }
+        if (length != 8 + 2 * ndigits) {
+            throw new IllegalArgumentException("invalid length for a numeric of " + ndigits + " digits: " + length);
+        }
+        // every base 10000 position from the weight down to the last one the scale needs
+        int fractionGroups = (dscale + 3) / 4;
+        int digits = offset + 8;
+        try {
+            long value = 0;
+            for (int position = weight, i = 0; position >= -fractionGroups; position--, i++) {
+                int digit = i < ndigits ? buffer.getShort(digits + 2 * i) : 0;
+                value = Math.addExact(Math.multiplyExact(value, 10000L), digit);
+            }
+            // drop the padding from the last group
+            for (int pad = fractionGroups * 4 - dscale; pad > 0; pad--) {
+                value /= 10;
+            }
+            if (value >= 1000000000000000000L) {
+                throw new ArithmeticException();
+            }
+            into.set(sign == NUMERIC_NEG ? -value : value, dscale);
+        } catch (ArithmeticException overflow) {
+            BigInteger value = BigInteger.ZERO;
+            for (int i = 0; i < ndigits; i++) {
+                value = value.multiply(NBASE).add(BigInteger.valueOf(buffer.getShort(digits + 2 * i)));
+            }
+            // value holds the digits with the last one worth 10000^(weight - ndigits + 1)
+            BigDecimal decimal = new BigDecimal(value, -4 * (weight - ndigits + 1)).setScale(dscale, RoundingMode.DOWN);
+            into.set(sign == NUMERIC_NEG ? decimal.negate() : decimal);
+        }
+        return into;
+    }
+
+    private static void checkLength(String type, int length, int expected) {
+        if (length != expected) {
+            throw new IllegalArgumentException("invalid length for a " + type + ": " + length);
+        }
+    }
+}
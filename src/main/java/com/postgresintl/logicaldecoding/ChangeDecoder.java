@@ -0,0 +1,48 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the messages of one output plugin into {@link ChangeEvent}s, so a sink can be
+ * written once and fed by pgoutput, wal2json or decoderbufs.
+ *
+ * Messages without a row change, BEGIN, COMMIT, RELATION and the like, only update the
+ * decoder's state. Not thread safe, use one decoder per stream.
+ */
+public interface ChangeDecoder {
+
+    /**
+     * Receives the changes of a message.
+     */
+    interface Sink {
+        /**
+         * @param event owned by the sink until it calls {@link ChangeEvent#recycle()}
+         */
+        void onChange(ChangeEvent event) throws Exception;
+    }
+
+    /**
+     * Decode the message between <code>position()</code> and <code>limit()</code>, the buffer
+     * is not moved. A wal2json format-version 1 message can carry many changes, the other
+     * plugins send at most one per message.
+     *
+     * @param lsn the LSN the message was received at
+     */
+    void decode(ByteBuffer message, long lsn, Sink sink) throws Exception;
+
+    /**
+     * @param plugin pgoutput, wal2json or decoderbufs
+     */
+    static ChangeDecoder forPlugin(String plugin, ChangeEventPool pool) {
+        switch (plugin) {
+            case "pgoutput":
+                return new PgOutputChangeDecoder(new RelationCache(), pool);
+            case "wal2json":
+                return new Wal2JsonChangeDecoder(pool);
+            case "decoderbufs":
+                return new ProtoBufChangeDecoder(pool);
+            default:
+                throw new IllegalArgumentException("unknown output plugin " + plugin);
+        }
+    }
+}
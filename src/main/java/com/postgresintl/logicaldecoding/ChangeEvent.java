@@ -0,0 +1,293 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.postgresintl.logicaldecoding.model.Relation;
+
+/**
+ * One row change, the same for every output plugin, as a {@link ChangeDecoder} hands it to
+ * a sink.
+ *
+ * Whatever the plugin sent, the old and new rows are kept as pgoutput TupleData in a byte
+ * array the event owns, so {@link #newRow()} and {@link #oldRow()} give the typed,
+ * allocation free access of {@link RowView} for all of them and the event stays valid after
+ * the replication buffer has moved on. Values arrive as text or, from decoderbufs and
+ * pgoutput with the <code>binary</code> option, in binary format; {@link RowView} reads both.
+ *
+ * Events come from a {@link ChangeEventPool}. A sink that is done with one hands it back with
+ * {@link #recycle()}, after which it must not be touched; the array and views are then
+ * reused for a later change. An event that is never recycled is simply collected.
+ */
+public final class ChangeEvent {
+
+    public enum Operation {
+        INSERT,
+        UPDATE,
+        DELETE
+    }
+
+    private final ChangeEventPool pool;
+    private final PgOutputTuple newTuple = new PgOutputTuple();
+    private final PgOutputTuple oldTuple = new PgOutputTuple();
+    private final RowView newRow = new RowView();
+    private final RowView oldRow = new RowView();
+    private byte[] data = new byte[256];
+    private ByteBuffer buffer = ByteBuffer.wrap(data);
+    private int length;
+    private int newStart;
+    private int oldStart;
+
+    private Operation operation;
+    private Relation relation;
+    private long lsn;
+    private long xid;
+    private long commitTime;
+
+    ChangeEvent(ChangeEventPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Start filling the event in, drops the rows of the previous change.
+     */
+    void reset(Operation operation, Relation relation, long lsn, long xid, long commitTime) {
+        this.operation = operation;
+        this.relation = relation;
+        this.lsn = lsn;
+        this.xid = xid;
+        this.commitTime = commitTime;
+        length = 0;
+        newStart = -1;
+        oldStart = -1;
+    }
+
+    /**
+     * Start the new or the old row, followed by exactly <code>columns</code> values.
+     */
+    void beginTuple(boolean old, int columns) {
+        ensure(2);
+        if (old) {
+            oldStart = length;
+        } else {
+            newStart = length;
+        }
+        data[length++] = (byte) (columns >>> 8);
+        data[length++] = (byte) columns;
+    }
+
+    void addNull() {
+        addKind(PgOutputTuple.NULL);
+    }
+
+    void addUnchangedToast() {
+        addKind(PgOutputTuple.UNCHANGED_TOAST);
+    }
+
+    /**
+     * A column dropped by a {@link TableFilter}.
+     */
+    void addFiltered() {
+        addKind(PgOutputTuple.FILTERED);
+    }
+
+    private void addKind(byte kind) {
+        ensure(1);
+        data[length++] = kind;
+    }
+
+    /**
+     * Make room for a value of <code>kind</code>, {@link PgOutputTuple#TEXT} or
+     * {@link PgOutputTuple#BINARY}, to be written by the caller.
+     *
+     * @return the offset in {@link #data()} to write the <code>valueLength</code> bytes at
+     */
+    int reserve(byte kind, int valueLength) {
+        ensure(5 + valueLength);
+        data[length++] = kind;
+        putInt(valueLength);
+        int offset = length;
+        length += valueLength;
+        return offset;
+    }
+
+    /**
+     * Copy a value straight out of a message buffer, without moving it.
+     */
+    void addValue(byte kind, ByteBuffer source, int offset, int valueLength) {
+        int to = reserve(kind, valueLength);
+        if (source.hasArray()) {
+            System.arraycopy(source.array(), source.arrayOffset() + offset, data, to, valueLength);
+        } else {
+            for (int i = 0; i < valueLength; i++) {
+                data[to + i] = source.get(offset + i);
+            }
+        }
+    }
+
+    /**
+     * A binary integer of <code>width</code> bytes, 2 for int2, 4 for int4 and date, 8 for
+     * int8 and timestamp.
+     */
+    void addLong(long value, int width) {
+        int to = reserve(PgOutputTuple.BINARY, width);
+        for (int i = width - 1; i >= 0; i--) {
+            data[to + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    void addDouble(double value) {
+        addLong(Double.doubleToRawLongBits(value), 8);
+    }
+
+    void addFloat(float value) {
+        addLong(Float.floatToRawIntBits(value), 4);
+    }
+
+    void addBoolean(boolean value) {
+        int to = reserve(PgOutputTuple.BINARY, 1);
+        data[to] = (byte) (value ? 1 : 0);
+    }
+
+    /**
+     * A text value held as a String, allocates; for the odd value that is not in the message
+     * as it should be stored.
+     */
+    void addText(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int to = reserve(PgOutputTuple.TEXT, bytes.length);
+        System.arraycopy(bytes, 0, data, to, bytes.length);
+    }
+
+    byte[] data() {
+        return data;
+    }
+
+    /**
+     * Done filling in, parse the rows written for the views.
+     */
+    void complete() {
+        if (newStart >= 0) {
+            newTuple.wrap(buffer, newStart);
+            newRow.wrap(newTuple, relation);
+        }
+        if (oldStart >= 0) {
+            oldTuple.wrap(buffer, oldStart);
+            oldRow.wrap(oldTuple, relation);
+        }
+    }
+
+    private void putInt(int value) {
+        data[length++] = (byte) (value >>> 24);
+        data[length++] = (byte) (value >>> 16);
+        data[length++] = (byte) (value >>> 8);
+        data[length++] = (byte) value;
+    }
+
+    private void ensure(int bytes) {
+        if (length + bytes > data.length) {
+            data = Arrays.copyOf(data, Math.max(length + bytes, data.length * 2));
+            buffer = ByteBuffer.wrap(data);
+        }
+    }
+
+    public Operation operation() {
+        return operation;
+    }
+
+    /**
+     * @return the table, with column names and type OIDs as far as the plugin sends them; the
+     * OID is 0 for plugins that do not send it
+     */
+    public Relation relation() {
+        return relation;
+    }
+
+    /**
+     * @return the LSN of the message the change came in
+     */
+    public long lsn() {
+        return lsn;
+    }
+
+    /**
+     * @return the transaction id, 0 if the plugin does not send it
+     */
+    public long xid() {
+        return xid;
+    }
+
+    /**
+     * @return commit time in microseconds since 2000-01-01, 0 if the plugin does not send it
+     */
+    public long commitTime() {
+        return commitTime;
+    }
+
+    /**
+     * @return the row after an insert or update, null for a delete
+     */
+    public RowView newRow() {
+        return newStart < 0 ? null : newRow;
+    }
+
+    /**
+     * @return the replica identity, or the whole old row with REPLICA IDENTITY FULL, of an
+     * update or delete; null for an insert and for an update that did not change the key
+     */
+    public RowView oldRow() {
+        return oldStart < 0 ? null : oldRow;
+    }
+
+    /**
+     * Hand the event back to its pool, it must not be used afterwards.
+     */
+    public void recycle() {
+        relation = null;
+        pool.release(this);
+    }
+
+    /**
+     * Allocates.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(operation).append(' ');
+        if (relation != null) {
+            sb.append(relation.getSchema()).append('.').append(relation.getName()).append(' ');
+        }
+        sb.append("LSN: ").append(lsn).append(" XID: ").append(xid);
+        if (oldStart >= 0) {
+            sb.append(" OLD: ");
+            append(sb, oldRow);
+        }
+        if (newStart >= 0) {
+            sb.append(" NEW: ");
+            append(sb, newRow);
+        }
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, RowView row) {
+        for (int i = 0; i < row.columnCount(); i++) {
+            PgOutputTuple tuple = row.tuple();
+            if (tuple.isFiltered(i)) {
+                continue;
+            }
+            String name = row.columnName(i);
+            sb.append(name == null ? String.valueOf(i) : name).append('=');
+            if (tuple.isNull(i)) {
+                sb.append("NULL");
+            } else if (tuple.isUnchangedToast(i)) {
+                sb.append("(unchanged)");
+            } else if (tuple.kind(i) == PgOutputTuple.BINARY) {
+                sb.append("(").append(tuple.length(i)).append(" bytes)");
+            } else {
+                sb.append(tuple.getString(i));
+            }
+            sb.append(", ");
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.postgresintl.logicaldecoding;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycled {@link ChangeEvent}s. A decoder takes one per change and the sink gives it back
+ * with {@link ChangeEvent#recycle()}, from any thread, so once as many events are in flight
+ * as the sink holds on to, decoding a change allocates nothing.
+ */
+public final class ChangeEventPool {
+    private final ArrayDeque<ChangeEvent> free = new ArrayDeque<>();
+    private final int capacity;
+    private long created;
+
+    public ChangeEventPool() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity events kept for reuse at most, further recycled events are dropped
+     */
+    public ChangeEventPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized ChangeEvent acquire() {
+        ChangeEvent event = free.poll();
+        if (event == null) {
+            created++;
+            event = new ChangeEvent(this);
+        }
+        return event;
+    }
+
+    synchronized void release(ChangeEvent event) {
+        if (free.size() < capacity) {
+            free.push(event);
+        }
+    }
+
+    /**
+     * @return events allocated since the pool was created
+     */
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    public synchronized int size() {
+        return free.size();
+    }
+}
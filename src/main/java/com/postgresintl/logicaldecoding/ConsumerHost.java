@@ -0,0 +1,532 @@
+package com.postgresintl.logicaldecoding;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.postgresintl.logicaldecoding.metrics.ReplicationMetrics;
+
+import org.postgresql.PGConnection;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+import org.postgresql.replication.fluent.logical.ChainedLogicalStreamBuilder;
+
+/**
+ * Runs many replication slots, possibly in different databases, in one JVM.
+ *
+ * Every slot is read on its own thread: a virtual thread when the JDK has them, otherwise a
+ * pooled platform thread. The reading loop polls the stream and parks in between, so an idle
+ * slot holds no carrier thread and only wakes when its wait strategy says so. What is not
+ * tied to a stream is shared by all slots: the {@link Handler}, which gets the slot with
+ * every message and finds its relation cache and message flyweight there, one
+ * {@link ReplicationMetrics}, and a fixed pool of sink threads for handlers that store
+ * asynchronously through {@link #submit(Slot, long, Callable)}.
+ *
+ * Per slot only the stream, a small {@link AckTracker}, a {@link RelationCache} and a
+ * {@link PgOutputMessage} are kept. A slot whose stream or handler fails is reopened after a
+ * growing delay, from the last LSN every sink had stored.
+ */
+public class ConsumerHost implements AutoCloseable {
+
+    /**
+     * Receives the messages of every slot, from the slots' threads concurrently.
+     */
+    public interface Handler {
+        /**
+         * @param message only valid for the duration of the call
+         * @param ticket  pass to {@link Slot#complete(long)} once the message is stored, or
+         *                let {@link ConsumerHost#submit(Slot, long, Callable)} do it
+         */
+        void onMessage(Slot slot, ByteBuffer message, long ticket) throws Exception;
+    }
+
+    /**
+     * Opens the stream of a slot, replaceable to read from somewhere else than a server.
+     */
+    public interface StreamOpener {
+        /**
+         * @param start where to start, null to continue from the slot
+         */
+        PGReplicationStream open(SlotConfig config, LogSequenceNumber start) throws SQLException;
+    }
+
+    private static final int GENERATION_SHIFT = 48;
+    private static final long TICKET_MASK = (1L << GENERATION_SHIFT) - 1;
+    private static final long MIN_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_RETRY_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final Handler handler;
+    private final ReplicationMetrics metrics = new ReplicationMetrics();
+    private final ExecutorService slotThreads;
+    private final boolean virtualThreads;
+    private final ExecutorService sinks;
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+    private StreamOpener opener;
+    private Supplier<WaitStrategy> waitStrategies = () -> WaitStrategy.backoff(0, 10,
+            TimeUnit.MICROSECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(10));
+
+    public ConsumerHost(Handler handler) {
+        this(handler, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param sinkThreads size of the pool behind {@link #submit(Slot, long, Callable)}
+     */
+    public ConsumerHost(Handler handler, int sinkThreads) {
+        this.handler = handler;
+        ExecutorService virtual = virtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.slotThreads = virtual != null ? virtual : Executors.newCachedThreadPool(daemon("consumer-host-slot-"));
+        this.sinks = Executors.newFixedThreadPool(sinkThreads, daemon("consumer-host-sink-"));
+    }
+
+    /**
+     * <code>Executors.newVirtualThreadPerTaskExecutor()</code>, looked up at runtime so the
+     * code still runs on Java 8.
+     *
+     * @return null if the JDK has no virtual threads
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemon(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Read streams with <code>opener</code> instead of connecting to the server in the
+     * slot's configuration. Must be set before the first slot is added.
+     *
+     * @return this, for chaining
+     */
+    public ConsumerHost withStreamOpener(StreamOpener opener) {
+        this.opener = opener;
+        return this;
+    }
+
+    /**
+     * How slots wait for messages, one strategy per slot. The default parks for up to 10 ms
+     * without spinning, as many slots share few cores.
+     *
+     * @return this, for chaining
+     */
+    public ConsumerHost withWaitStrategy(Supplier<WaitStrategy> waitStrategies) {
+        this.waitStrategies = waitStrategies;
+        return this;
+    }
+
+    /**
+     * Start consuming a slot.
+     *
+     * @throws IllegalStateException if a slot of that name is already running
+     */
+    public Slot add(SlotConfig config) {
+        Slot slot = new Slot(config, waitStrategies.get());
+        if (slots.putIfAbsent(config.getSlotName(), slot) != null) {
+            throw new IllegalStateException("slot " + config.getSlotName() + " is already consumed");
+        }
+        slot.future = slotThreads.submit(slot::run);
+        return slot;
+    }
+
+    /**
+     * Stop consuming a slot and wait for its thread to finish.
+     *
+     * @return the stopped slot, null if there was none of that name
+     */
+    public Slot remove(String slotName) throws InterruptedException {
+        Slot slot = slots.remove(slotName);
+        if (slot != null) {
+            slot.stop();
+            slot.finished.await();
+        }
+        return slot;
+    }
+
+    public Slot slot(String slotName) {
+        return slots.get(slotName);
+    }
+
+    public Collection<Slot> slots() {
+        return new ArrayList<>(slots.values());
+    }
+
+    /**
+     * Histograms and counters of all slots together.
+     */
+    public ReplicationMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return true if slots are read on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Run <code>sink</code> on the shared sink pool and complete <code>ticket</code> once it
+     * returned. A failed sink leaves the ticket open, so the server keeps the WAL and the
+     * change is sent again after the next restart of the slot.
+     */
+    public void submit(Slot slot, long ticket, Callable<?> sink) {
+        sinks.execute(() -> {
+            try {
+                sink.call();
+                slot.complete(ticket);
+            } catch (Exception e) {
+                slot.sinkFailures.increment();
+                slot.lastError = e;
+            }
+        });
+    }
+
+    /**
+     * Stop every slot, then the sinks once their queue is empty. An interrupt ends the wait
+     * for them and is kept for the caller.
+     */
+    @Override
+    public void close() {
+        Collection<Slot> stopped = slots();
+        for (Slot slot : stopped) {
+            slots.remove(slot.name());
+            slot.stop();
+        }
+        slotThreads.shutdown();
+        sinks.shutdown();
+        try {
+            for (Slot slot : stopped) {
+                slot.finished.await();
+            }
+            sinks.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private PGReplicationStream open(Slot slot, LogSequenceNumber start) throws SQLException {
+        SlotConfig config = slot.config;
+        if (opener != null) {
+            return opener.open(config, start);
+        }
+        Connection connection = DriverManager.getConnection(config.getUrl(), config.getReplicationProperties());
+        try {
+            ChainedLogicalStreamBuilder builder = connection.unwrap(PGConnection.class)
+                    .getReplicationAPI()
+                    .replicationStream()
+                    .logical()
+                    .withSlotName(config.getSlotName())
+                    .withSlotOptions(config.getSlotOptions())
+                    .withStatusInterval(10, TimeUnit.SECONDS);
+            if (start != null) {
+                builder.withStartPosition(start);
+            }
+            PGReplicationStream stream = builder.start();
+            slot.connection = connection;
+            return stream;
+        } catch (SQLException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * One consumed slot. The accessors may be called from any thread.
+     */
+    public final class Slot {
+        private final SlotConfig config;
+        private final WaitStrategy waitStrategy;
+        private final RelationCache relations = new RelationCache();
+        private final PgOutputMessage message = new PgOutputMessage();
+        private final boolean pgoutput;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        // replaced as a whole when the slot is reopened, so a ticket is never checked
+        // against one run and completed on the tracker of the next
+        private volatile Acks acks = new Acks(newAckTracker(), 0);
+        private volatile boolean stopped;
+        private volatile Future<?> future;
+        private Connection connection;
+        private PGReplicationStream stream;
+
+        // transaction in progress, reading thread only
+        private long beginNanos;
+        private long rows;
+
+        private volatile long messages;
+        private volatile long restarts;
+        private volatile long failures;
+        private volatile long lastCommitTime;
+        private volatile LogSequenceNumber receivedLsn = LogSequenceNumber.INVALID_LSN;
+        private volatile Exception lastError;
+        // counted by the sink threads
+        private final LongAdder sinkFailures = new LongAdder();
+
+        Slot(SlotConfig config, WaitStrategy waitStrategy) {
+            this.config = config;
+            this.waitStrategy = waitStrategy;
+            this.pgoutput = "pgoutput".equals(config.getPlugin());
+            if (config.getTableFilter() != null) {
+                message.setFilter(config.getTableFilter(), relations);
+            }
+        }
+
+        private AckTracker newAckTracker() {
+            // most slots are idle most of the time, let the ring grow when one is not
+            return new AckTracker(1, TimeUnit.SECONDS, 16 * 1024 * 1024, 64);
+        }
+
+        private void run() {
+            Thread.currentThread().setName("slot-" + config.getSlotName());
+            long retryNanos = MIN_RETRY_NANOS;
+            LogSequenceNumber start = config.getStartLsn();
+            try {
+                while (!stopped) {
+                    try {
+                        stream = open(this, start);
+                        consume();
+                        // the stream ended
+                        return;
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        failures++;
+                        lastError = e;
+                    } finally {
+                        closeStream();
+                    }
+                    if (stopped) {
+                        return;
+                    }
+                    // continue after the last change every sink stored, tickets of this run are void
+                    Acks previous = acks;
+                    LogSequenceNumber durable = previous.tracker.durableLsn();
+                    if (durable.asLong() != 0) {
+                        start = durable;
+                    }
+                    acks = new Acks(newAckTracker(), (previous.generation + 1) & 0xFFFF);
+                    restarts++;
+                    TimeUnit.NANOSECONDS.sleep(retryNanos);
+                    retryNanos = Math.min(MAX_RETRY_NANOS, retryNanos * 2);
+                }
+            } catch (InterruptedException e) {
+                // stopped while waiting to retry
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Read until the stream ends or the slot is stopped.
+         */
+        private void consume() throws Exception {
+            Acks run = acks;
+            AckTracker tracker = run.tracker;
+            long generation = (long) run.generation << GENERATION_SHIFT;
+            WaitStrategy.IdleTask idle = tracker::maybeSendFeedback;
+            ByteBuffer buffer;
+            while (!stopped && (buffer = waitStrategy.next(stream, idle)) != null) {
+                LogSequenceNumber lsn = stream.getLastReceiveLSN();
+                receivedLsn = lsn;
+                long ticket = tracker.track(lsn) | generation;
+                account(buffer);
+                handler.onMessage(this, buffer, ticket);
+                tracker.maybeSendFeedback(stream);
+            }
+        }
+
+        /**
+         * Feed the shared metrics, the transaction in progress is kept here.
+         */
+        private void account(ByteBuffer buffer) {
+            metrics.message(buffer.remaining());
+            messages++;
+            if (!pgoutput || !buffer.hasRemaining()) {
+                return;
+            }
+            switch (buffer.get(buffer.position())) {
+                case PgOutputMessage.BEGIN:
+                    beginNanos = System.nanoTime();
+                    rows = 0;
+                    break;
+                case PgOutputMessage.INSERT:
+                case PgOutputMessage.UPDATE:
+                case PgOutputMessage.DELETE:
+                    rows++;
+                    break;
+                case PgOutputMessage.COMMIT:
+                    long commitTime = buffer.getLong(buffer.position() + 18);
+                    lastCommitTime = commitTime;
+                    metrics.commit(commitTime, beginNanos, rows);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void closeStream() {
+            try {
+                if (stream != null) {
+                    stream.close();
+                }
+            } catch (SQLException e) {
+                // the connection is closed next
+            }
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                // nothing left to do with it
+            }
+            stream = null;
+            connection = null;
+        }
+
+        private void stop() {
+            stopped = true;
+            Future<?> running = future;
+            if (running != null) {
+                // wakes the reading thread from parking
+                running.cancel(true);
+            }
+        }
+
+        /**
+         * Mark the message of <code>ticket</code> as stored, from any thread. Tickets handed
+         * out before the slot was reopened are ignored, their messages are sent again.
+         */
+        public void complete(long ticket) {
+            Acks run = acks;
+            if ((ticket >>> GENERATION_SHIFT) == run.generation) {
+                run.tracker.complete(ticket & TICKET_MASK);
+            }
+        }
+
+        public String name() {
+            return config.getSlotName();
+        }
+
+        public SlotConfig config() {
+            return config;
+        }
+
+        /**
+         * Relations seen on this slot, only to be used from the handler.
+         */
+        public RelationCache relations() {
+            return relations;
+        }
+
+        /**
+         * Flyweight for decoding pgoutput messages of this slot, only to be used from the
+         * handler. Has the slot's table filter set.
+         */
+        public PgOutputMessage message() {
+            return message;
+        }
+
+        public boolean isRunning() {
+            return finished.getCount() != 0;
+        }
+
+        /**
+         * @return the LSN of the last message read
+         */
+        public LogSequenceNumber receivedLsn() {
+            return receivedLsn;
+        }
+
+        /**
+         * @return the LSN up to which every message has been stored
+         */
+        public LogSequenceNumber durableLsn() {
+            return acks.tracker.durableLsn();
+        }
+
+        /**
+         * @return microseconds between now and the commit time of the last transaction read,
+         *         0 before the first COMMIT
+         */
+        public long commitLagMicros() {
+            long commitTime = lastCommitTime;
+            return commitTime == 0 ? 0 : Math.max(0, PgEpoch.now() - commitTime);
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return times the stream was reopened after a failure
+         */
+        public long getRestarts() {
+            return restarts;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getSinkFailures() {
+            return sinkFailures.sum();
+        }
+
+        /**
+         * @return the last failure of the stream, handler or a sink, null if there was none
+         */
+        public Exception getLastError() {
+            return lastError;
+        }
+
+        public WaitStrategy waitStrategy() {
+            return waitStrategy;
+        }
+
+        @Override
+        public String toString() {
+            return config + " received " + receivedLsn + " durable " + durableLsn()
+                    + " messages " + messages + " restarts " + restarts;
+        }
+    }
+
+    /**
+     * The tracker of one run of a slot and the generation its tickets carry.
+     */
+    private static final class Acks {
+        final AckTracker tracker;
+        final int generation;
+
+        Acks(AckTracker tracker, int generation) {
+            this.tracker = tracker;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pull tokenizer for the UTF-8 JSON wal2json writes, reading straight from the message
+ * buffer.
+ *
+ * Tokens are reported as absolute offsets into the buffer, a string token covers the bytes
+ * between the quotes and is unescaped only when asked for with {@link #unescape}. The
+ * <code>:</code> and <code>,</code> separators are skipped, so the caller tracks keys and
+ * values by position; this is not a validating parser. A token cut off by the end of the
+ * input is reported as {@link #INCOMPLETE} with the position left at its start, so it can be
+ * read again once more input has arrived.
+ */
+public final class JsonLexer {
+    /** nothing left before the limit */
+    public static final int END = 0;
+    /** the next token runs past the limit */
+    public static final int INCOMPLETE = 1;
+    public static final int BEGIN_OBJECT = 2;
+    public static final int END_OBJECT = 3;
+    public static final int BEGIN_ARRAY = 4;
+    public static final int END_ARRAY = 5;
+    public static final int STRING = 6;
+    public static final int NUMBER = 7;
+    public static final int TRUE = 8;
+    public static final int FALSE = 9;
+    public static final int NULL = 10;
+
+    private ByteBuffer buffer;
+    // the backing array of a heap buffer, read directly to save the bounds checks
+    private byte[] array;
+    private int arrayOffset;
+    private int position;
+    private int limit;
+    private int tokenOffset;
+    private int tokenLength;
+    private boolean escaped;
+
+    /**
+     * Tokenize <code>buffer</code> from <code>position</code> up to <code>limit</code>.
+     *
+     * @return this, for chaining
+     */
+    public JsonLexer reset(ByteBuffer buffer, int position, int limit) {
+        this.buffer = buffer;
+        this.array = buffer.hasArray() ? buffer.array() : null;
+        this.arrayOffset = buffer.hasArray() ? buffer.arrayOffset() : 0;
+        this.position = position;
+        this.limit = limit;
+        return this;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return where the next token is looked for
+     */
+    public int position() {
+        return position;
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * @return the first byte of the last token, after the opening quote of a string
+     */
+    public int tokenOffset() {
+        return tokenOffset;
+    }
+
+    public int tokenLength() {
+        return tokenLength;
+    }
+
+    /**
+     * @return true if the last string token contains backslash escapes
+     */
+    public boolean escaped() {
+        return escaped;
+    }
+
+    public int next() {
+        int i = position;
+        while (i < limit) {
+            byte b = byteAt(i);
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == ',' || b == ':') {
+                i++;
+                continue;
+            }
+            switch (b) {
+                case '{':
+                    return single(i, BEGIN_OBJECT);
+                case '}':
+                    return single(i, END_OBJECT);
+                case '[':
+                    return single(i, BEGIN_ARRAY);
+                case ']':
+                    return single(i, END_ARRAY);
+                case '"':
+                    return string(i);
+                case 't':
+                    return literal(i, "true", TRUE);
+                case 'f':
+                    return literal(i, "false", FALSE);
+                case 'n':
+                    return literal(i, "null", NULL);
+                default:
+                    return number(i);
+            }
+        }
+        position = limit;
+        return END;
+    }
+
+    private byte byteAt(int i) {
+        return array != null ? array[arrayOffset + i] : buffer.get(i);
+    }
+
+    private int single(int i, int token) {
+        tokenOffset = i;
+        tokenLength = 1;
+        position = i + 1;
+        return token;
+    }
+
+    private int string(int quote) {
+        escaped = false;
+        int end = closingQuote(quote + 1);
+        if (end < 0) {
+            return incomplete(quote);
+        }
+        tokenOffset = quote + 1;
+        tokenLength = end - quote - 1;
+        position = end + 1;
+        return STRING;
+    }
+
+    /**
+     * Find the quote ending the string that starts at <code>i</code>, eight bytes at a time
+     * while there is neither a quote nor a backslash in them. Sets {@link #escaped} when a
+     * backslash is passed.
+     *
+     * @return the offset of the quote, -1 if it is not before the limit
+     */
+    private int closingQuote(int i) {
+        while (i < limit) {
+            if (i + 8 <= limit && !hasQuoteOrBackslash(buffer.getLong(i))) {
+                i += 8;
+                continue;
+            }
+            byte b = byteAt(i);
+            if (b == '"') {
+                return i;
+            }
+            if (b == '\\') {
+                escaped = true;
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasQuoteOrBackslash(long word) {
+        return hasZeroByte(word ^ 0x2222222222222222L) || hasZeroByte(word ^ 0x5C5C5C5C5C5C5C5CL);
+    }
+
+    private static boolean hasZeroByte(long v) {
+        return ((v - 0x0101010101010101L) & ~v & 0x8080808080808080L) != 0;
+    }
+
+    private int literal(int i, String text, int token) {
+        if (i + text.length() > limit) {
+            return incomplete(i);
+        }
+        for (int j = 1; j < text.length(); j++) {
+            if (byteAt(i + j) != text.charAt(j)) {
+                throw malformed(i);
+            }
+        }
+        tokenOffset = i;
+        tokenLength = text.length();
+        position = i + text.length();
+        return token;
+    }
+
+    private int number(int start) {
+        int i = start;
+        while (i < limit) {
+            byte b = byteAt(i);
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+                i++;
+            } else {
+                break;
+            }
+        }
+        if (i == start) {
+            throw malformed(start);
+        }
+        if (i == limit) {
+            // may continue in the next chunk
+            return incomplete(start);
+        }
+        tokenOffset = start;
+        tokenLength = i - start;
+        position = i;
+        return NUMBER;
+    }
+
+    private int incomplete(int start) {
+        position = start;
+        return INCOMPLETE;
+    }
+
+    /**
+     * Skip the value that starts with <code>token</code>, with everything nested in it, by
+     * scanning for the matching bracket without tokenizing. The token offset and length are
+     * left covering the whole value.
+     *
+     * @return <code>token</code>, or {@link #INCOMPLETE} with the position back at the start
+     *         of the value
+     */
+    public int skipValue(int token) {
+        if (token != BEGIN_OBJECT && token != BEGIN_ARRAY) {
+            return token;
+        }
+        int start = tokenOffset;
+        int end = scanToClose(position);
+        if (end < 0) {
+            position = start;
+            return INCOMPLETE;
+        }
+        position = end;
+        tokenOffset = start;
+        tokenLength = end - start;
+        return token;
+    }
+
+    /**
+     * Skip the rest of the object or array the position is in.
+     *
+     * @return {@link #END_OBJECT} or {@link #END_ARRAY}, or {@link #INCOMPLETE} with the
+     *         position unchanged
+     */
+    public int skipRest() {
+        int end = scanToClose(position);
+        if (end < 0) {
+            return INCOMPLETE;
+        }
+        position = end;
+        tokenOffset = end - 1;
+        tokenLength = 1;
+        return byteAt(end - 1) == '}' ? END_OBJECT : END_ARRAY;
+    }
+
+    /**
+     * @return the position after the bracket closing the one open at <code>from</code>, -1
+     *         if it is not before the limit
+     */
+    private int scanToClose(int from) {
+        int depth = 1;
+        for (int i = from; i < limit; i++) {
+            byte b = byteAt(i);
+            if (b == '"') {
+                i = closingQuote(i + 1);
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the last token is exactly the ASCII <code>text</code>, as written
+     */
+    public boolean tokenEquals(String text) {
+        return equalsAscii(buffer, tokenOffset, tokenLength, text);
+    }
+
+    public IllegalArgumentException malformed(int offset) {
+        return new IllegalArgumentException("malformed JSON at offset " + offset + " near "
+                + TextDecoding.toString(buffer, offset, Math.min(32, limit - offset)));
+    }
+
+    /**
+     * @return true if the bytes are exactly <code>bytes</code>
+     */
+    static boolean equalsBytes(ByteBuffer buffer, int offset, int length, byte[] bytes) {
+        if (length != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean equalsAscii(ByteBuffer buffer, int offset, int length, String text) {
+        if (length != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode the string between <code>offset</code> and <code>offset + length</code>,
+     * resolving escapes if there are any. Allocates.
+     */
+    public static String unescape(ByteBuffer buffer, int offset, int length, boolean escaped) {
+        String raw = TextDecoding.toString(buffer, offset, length);
+        if (!escaped) {
+            return raw;
+        }
+        // escapes are ASCII, so they survive the UTF-8 decoding unchanged
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\' || i + 1 == raw.length()) {
+                sb.append(c);
+                continue;
+            }
+            char e = raw.charAt(++i);
+            switch (e) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= raw.length()) {
+                        throw new IllegalArgumentException("truncated escape in " + raw);
+                    }
+                    sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default:
+                    // \" \\ \/
+                    sb.append(e);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,13 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives raw pgoutput messages replayed by one of the transaction buffers.
+ */
+public interface MessageHandler {
+    /**
+     * @param message only valid for the duration of the call
+     */
+    void onMessage(ByteBuffer message) throws Exception;
+}
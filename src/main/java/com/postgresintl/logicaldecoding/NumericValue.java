@@ -0,0 +1,115 @@
+package com.postgresintl.logicaldecoding;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Reusable holder for a numeric column.
+ *
+ * Values with up to 18 significant digits, which covers most money and quantity columns,
+ * are kept as an unscaled long and a scale so decoding them allocates nothing. Wider values
+ * fall back to a {@link BigDecimal}. NaN and the infinities of PostgreSQL 14 are flagged.
+ */
+public final class NumericValue {
+    public static final byte FINITE = 0;
+    public static final byte NAN = 1;
+    public static final byte POSITIVE_INFINITY = 2;
+    public static final byte NEGATIVE_INFINITY = 3;
+
+    private long unscaled;
+    private int scale;
+    private byte special;
+    private BigDecimal big;
+
+    void set(long unscaled, int scale) {
+        this.unscaled = unscaled;
+        this.scale = scale;
+        this.special = FINITE;
+        this.big = null;
+    }
+
+    void set(BigDecimal big) {
+        this.big = big;
+        this.special = FINITE;
+    }
+
+    void setSpecial(byte special) {
+        this.special = special;
+        this.big = null;
+    }
+
+    /**
+     * @return one of {@link #FINITE}, {@link #NAN}, {@link #POSITIVE_INFINITY}, {@link #NEGATIVE_INFINITY}
+     */
+    public byte special() {
+        return special;
+    }
+
+    public boolean isFinite() {
+        return special == FINITE;
+    }
+
+    /**
+     * @return true if the value is available as {@link #unscaledValue()} and {@link #scale()}
+     */
+    public boolean fitsInLong() {
+        return special == FINITE && big == null;
+    }
+
+    public long unscaledValue() {
+        if (!fitsInLong()) {
+            throw new ArithmeticException("numeric does not fit in a long: " + this);
+        }
+        return unscaled;
+    }
+
+    public int scale() {
+        return big != null ? big.scale() : scale;
+    }
+
+    /**
+     * Allocating conversion for the cold path.
+     */
+    public BigDecimal toBigDecimal() {
+        if (special != FINITE) {
+            throw new ArithmeticException("numeric is not finite: " + this);
+        }
+        return big != null ? big : BigDecimal.valueOf(unscaled, scale);
+    }
+
+    public double doubleValue() {
+        switch (special) {
+            case NAN:
+                return Double.NaN;
+            case POSITIVE_INFINITY:
+                return Double.POSITIVE_INFINITY;
+            case NEGATIVE_INFINITY:
+                return Double.NEGATIVE_INFINITY;
+            default:
+                if (big != null) {
+                    return big.doubleValue();
+                }
+                if (scale == 0) {
+                    return unscaled;
+                }
+                // exact when both parts are exactly representable, otherwise one rounding step more
+                return scale < TextDecoding.POWERS_OF_TEN.length && Math.abs(unscaled) < (1L << 53)
+                        ? unscaled / TextDecoding.POWERS_OF_TEN[scale]
+                        : BigDecimal.valueOf(unscaled, scale).doubleValue();
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (special) {
+            case NAN:
+                return "NaN";
+            case POSITIVE_INFINITY:
+                return "Infinity";
+            case NEGATIVE_INFINITY:
+                return "-Infinity";
+            default:
+                return big != null ? big.toPlainString() : new BigDecimal(BigInteger.valueOf(unscaled), scale).toPlainString();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.postgresintl.logicaldecoding;
+
+import java.sql.Timestamp;
+
+/**
+ * Timestamps in the replication protocol are microseconds since 2000-01-01 00:00:00 UTC,
+ * the PostgreSQL epoch, rather than since 1970.
+ */
+public final class PgEpoch {
+    /* 2000-01-01 00:00:00 UTC in microseconds since 1970-01-01 */
+    public static final long OFFSET_MICROS = 946684800000000L;
+
+    private PgEpoch() {
+    }
+
+    public static long toUnixMicros(long pgMicros) {
+        return pgMicros + OFFSET_MICROS;
+    }
+
+    public static long fromUnixMicros(long unixMicros) {
+        return unixMicros - OFFSET_MICROS;
+    }
+
+    public static long toUnixMillis(long pgMicros) {
+        return Math.floorDiv(toUnixMicros(pgMicros), 1000L);
+    }
+
+    public static Timestamp toTimestamp(long pgMicros) {
+        long unixMicros = toUnixMicros(pgMicros);
+        Timestamp timestamp = new Timestamp(Math.floorDiv(unixMicros, 1000L));
+        timestamp.setNanos((int) Math.floorMod(unixMicros, 1000000L) * 1000);
+        return timestamp;
+    }
+
+    /**
+     * @return the current time in microseconds since the PostgreSQL epoch
+     */
+    public static long now() {
+        return fromUnixMicros(System.currentTimeMillis() * 1000L);
+    }
+}
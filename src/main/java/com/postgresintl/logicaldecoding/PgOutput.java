@@ -2,19 +2,43 @@ package com.postgresintl.logicaldecoding;
 
 import com.postgresintl.logicaldecoding.model.Attribute;
 import com.postgresintl.logicaldecoding.model.Relation;
+import com.postgresintl.logicaldecoding.metrics.ReplicationMetrics;
 import org.postgresql.replication.LogSequenceNumber;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.util.UUID;
 
 public class PgOutput {
     ByteBuffer buffer;
-    long nanoTime = 0L;
+    RelationCache relations;
+    ReplicationMetrics metrics;
+    TableFilter filter;
     public PgOutput(ByteBuffer b){
+      this(b, null);
+    }
+    public PgOutput(ByteBuffer b, RelationCache relations){
+      this(b, relations, null);
+    }
+    public PgOutput(ByteBuffer b, RelationCache relations, ReplicationMetrics metrics){
       buffer = b;
+      this.relations = relations;
+      this.metrics = metrics;
+    }
+    /**
+     * Rows of relations the filter does not want come out as an empty string without their
+     * tuples being read, masked columns are left out. Needs the relation cache.
+     */
+    public PgOutput(ByteBuffer b, RelationCache relations, ReplicationMetrics metrics, TableFilter filter){
+      this(b, relations, metrics);
+      this.filter = relations == null ? null : filter;
     }
      public String toString() {
 
+        if (metrics != null) {
+            metrics.message(buffer.remaining());
+        }
         byte cmd = buffer.get();
         switch (cmd) {
             case 'R':
@@ -23,39 +47,55 @@ public class PgOutput {
 
                 relation.setSchema(getString(buffer));
                 relation.setName(getString(buffer));
-                byte replicaIdent = buffer.get();
+                relation.setReplicaIdentity(buffer.get());
                 short numAttrs = buffer.getShort();
                 for (int i = 0; i < numAttrs;i++){
-                    byte replicaIdentityFull = buffer.get();
+                    byte flags = buffer.get();
                     String attrName=getString(buffer);
-                    int attrId = buffer.getInt();
-                    int attrMode = buffer.getInt();
-                    relation.addAttribute(new Attribute(attrId, attrName, attrMode, replicaIdentityFull));
+                    int typeOid = buffer.getInt();
+                    int typeModifier = buffer.getInt();
+                    relation.addAttribute(new Attribute(typeOid, attrName, typeModifier, flags));
+                }
+                if (relations != null) {
+                    relation = relations.update(relation);
+                }
+                if (filter != null && !filter.accept(relation.getOid(), relations)) {
+                    return "";
                 }
 
                 return "SCHEMA: " + relation.toString();
 
             case 'B':
-                nanoTime = System.nanoTime();
-                System.out.println("Begin Issued: " + nanoTime);
                 LogSequenceNumber finalLSN = LogSequenceNumber.valueOf(buffer.getLong());
-                Timestamp commitTime = new Timestamp(buffer.getLong());
+                Timestamp commitTime = PgEpoch.toTimestamp(buffer.getLong());
                 int transactionId = buffer.getInt();
+                if (metrics != null) {
+                    metrics.begin();
+                }
                 return "BEGIN final LSN: " + finalLSN.toString() + " Commit Time: " + commitTime + " XID: " + transactionId;
 
             case 'C':
                 // COMMIT
-                System.out.println("Commit Issued: " + (System.nanoTime() -  nanoTime));
                 byte unusedFlag = buffer.get();
                 LogSequenceNumber commitLSN = LogSequenceNumber.valueOf( buffer.getLong() );
                 LogSequenceNumber endLSN = LogSequenceNumber.valueOf( buffer.getLong() );
-                commitTime = new Timestamp(buffer.getLong());
+                long commitMicros = buffer.getLong();
+                if (metrics != null) {
+                    metrics.commit(commitMicros);
+                }
+                commitTime = PgEpoch.toTimestamp(commitMicros);
                 return "COMMIT commit LSN:" + commitLSN.toString() + " end LSN:" + endLSN.toString() + " commitTime: " + commitTime;
 
             case 'U': // UPDATE
             case 'D': // DELETE
-                StringBuffer sb = new StringBuffer(cmd=='U'?"UPDATE: ":"DELETE: ");
+                if (metrics != null) {
+                    metrics.row();
+                }
                 int oid = buffer.getInt();
+                if (skip(oid)) {
+                    return "";
+                }
+                StringBuffer sb = new StringBuffer(cmd=='U'?"UPDATE: ":"DELETE: ");
                 /*
                  this can be O or K if Delete or possibly N if UPDATE
                  K means key
@@ -63,26 +103,91 @@ public class PgOutput {
                  N means new data
                  */
                 char keyOrTuple = (char)buffer.get();
-                getTuple(buffer, sb);
+                Relation rel = lookup(oid, sb);
+                boolean[] mask = filter == null ? null : filter.columnMask(oid, relations);
+                getTuple(buffer, sb, rel, mask);
+                if (keyOrTuple != 'N' && buffer.hasRemaining()) {
+                    // UPDATE with an old tuple, the new one follows
+                    buffer.get();
+                    sb.append("NEW: ");
+                    getTuple(buffer, sb, rel, mask);
+                }
                 return sb.toString();
 
             case 'I':
-                sb = new StringBuffer("INSERT: ");
+                if (metrics != null) {
+                    metrics.row();
+                }
                 // oid of relation that is being inserted
                 oid = buffer.getInt();
+                if (skip(oid)) {
+                    return "";
+                }
+                sb = new StringBuffer("INSERT: ");
                 // should be an N
                 char isNew = (char)buffer.get();
-                getTuple(buffer, sb);
+                getTuple(buffer, sb, lookup(oid, sb), filter == null ? null : filter.columnMask(oid, relations));
                 return sb.toString();
+            case 'S':
+                // protocol version 2, the changes that follow carry the XID, see StreamedTransactionBuffer
+                int streamXid = buffer.getInt();
+                byte firstSegment = buffer.get();
+                return "STREAM START XID: " + streamXid + (firstSegment == 1 ? " first segment" : "");
+
+            case 'E':
+                return "STREAM STOP";
+
+            case 'c':
+                streamXid = buffer.getInt();
+                byte streamFlags = buffer.get();
+                commitLSN = LogSequenceNumber.valueOf( buffer.getLong() );
+                endLSN = LogSequenceNumber.valueOf( buffer.getLong() );
+                commitTime = PgEpoch.toTimestamp(buffer.getLong());
+                return "STREAM COMMIT XID: " + streamXid + " commit LSN:" + commitLSN.toString() + " end LSN:" + endLSN.toString() + " commitTime: " + commitTime;
+
+            case 'A':
+                streamXid = buffer.getInt();
+                int subXid = buffer.getInt();
+                return "STREAM ABORT XID: " + streamXid + (subXid == streamXid ? "" : " subtransaction: " + subXid);
         }
         return "";
     }
 
-    private void getTuple(ByteBuffer buffer, StringBuffer sb) {
+    /**
+     * @return true if the row is filtered out, the buffer is then moved past it unread
+     */
+    private boolean skip(int oid) {
+        if (filter == null || filter.accept(oid, relations)) {
+            return false;
+        }
+        buffer.position(buffer.limit());
+        return true;
+    }
+
+    private Relation lookup(int oid, StringBuffer sb) {
+        Relation relation = relations == null ? null : relations.get(oid);
+        if (relation != null) {
+            sb.append(relation.getSchema()).append('.').append(relation.getName()).append(' ');
+        }
+        return relation;
+    }
+
+    private void getTuple(ByteBuffer buffer, StringBuffer sb, Relation relation, boolean[] mask) {
         short numAttrs;
         numAttrs = buffer.getShort();
         for (int i = 0; i < numAttrs; i++) {
             byte c = buffer.get();
+            if (mask != null && i < mask.length && !mask[i]) {
+                // masked column, step over the value
+                if (c == 't' || c == 'b') {
+                    int len = buffer.getInt();
+                    buffer.position(buffer.position() + len);
+                }
+                continue;
+            }
+            if (relation != null && i < relation.getAttributeCount()) {
+                sb.append(relation.getAttribute(i).getName()).append('=');
+            }
             switch (c) {
                 case 'n': // null
                     sb.append("NULL, ");
@@ -93,15 +198,89 @@ public class PgOutput {
                     int strLen = buffer.getInt();
                     byte[] bytes = new byte[strLen];
                     buffer.get(bytes, 0, strLen);
-                    String value = new String(bytes);
+                    String value = new String(bytes, StandardCharsets.UTF_8);
                     sb.append(value).append(", ");
                     break;
+                case 'b': // binary data, only with the binary option
+                    int binLen = buffer.getInt();
+                    int typeOid = relation != null && i < relation.getAttributeCount() ? relation.getAttribute(i).getTypeOid() : 0;
+                    sb.append(binaryValue(buffer, buffer.position(), binLen, typeOid)).append(", ");
+                    buffer.position(buffer.position() + binLen);
+                    break;
                 default:
                     sb.append("command: ").append((char) c);
 
             }
         }
     }
+    /**
+     * The text {@link #toString()} gives for an INSERT, for a row that did not come as a
+     * pgoutput message, such as one read by a {@link BinaryCopyParser}.
+     */
+    static String insert(Relation relation, PgOutputTuple tuple) {
+        StringBuilder sb = new StringBuilder("INSERT: ");
+        if (relation != null) {
+            sb.append(relation.getSchema()).append('.').append(relation.getName()).append(' ');
+        }
+        for (int i = 0; i < tuple.columnCount(); i++) {
+            if (tuple.isFiltered(i)) {
+                continue;
+            }
+            boolean known = relation != null && i < relation.getAttributeCount();
+            if (known) {
+                sb.append(relation.getAttribute(i).getName()).append('=');
+            }
+            switch (tuple.kind(i)) {
+                case PgOutputTuple.NULL:
+                    sb.append("NULL, ");
+                    break;
+                case PgOutputTuple.UNCHANGED_TOAST:
+                    break;
+                case PgOutputTuple.BINARY:
+                    sb.append(binaryValue(tuple.buffer(), tuple.offset(i), tuple.length(i),
+                            known ? relation.getAttribute(i).getTypeOid() : 0)).append(", ");
+                    break;
+                default:
+                    sb.append(tuple.getString(i)).append(", ");
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String binaryValue(ByteBuffer buffer, int offset, int length, int typeOid) {
+        switch (typeOid) {
+            case PgType.BOOL:
+                return BinaryDecoding.readBoolean(buffer, offset, length) ? "t" : "f";
+            case PgType.INT2:
+            case PgType.INT4:
+            case PgType.INT8:
+            case PgType.OID:
+                return Long.toString(BinaryDecoding.readLong(buffer, offset, length, typeOid));
+            case PgType.FLOAT4:
+            case PgType.FLOAT8:
+                return Double.toString(BinaryDecoding.readDouble(buffer, offset, length));
+            case PgType.NUMERIC:
+                return BinaryDecoding.readNumeric(buffer, offset, length, new NumericValue()).toString();
+            case PgType.TIMESTAMP:
+            case PgType.TIMESTAMPTZ:
+                return PgEpoch.toTimestamp(BinaryDecoding.readTimestamp(buffer, offset, length)).toString();
+            case PgType.UUID:
+                return new UUID(BinaryDecoding.readUuidMostSignificantBits(buffer, offset, length),
+                        BinaryDecoding.readUuidLeastSignificantBits(buffer, offset, length)).toString();
+            case PgType.TEXT:
+            case PgType.VARCHAR:
+                return TextDecoding.toString(buffer, offset, length);
+            default:
+                StringBuilder hex = new StringBuilder(2 + 2 * length).append("\\x");
+                for (int i = 0; i < length; i++) {
+                    hex.append(Character.forDigit((buffer.get(offset + i) >> 4) & 0xF, 16))
+                            .append(Character.forDigit(buffer.get(offset + i) & 0xF, 16));
+                }
+                return hex.toString();
+        }
+    }
+
     private  String getString(ByteBuffer buffer){
         StringBuffer sb = new StringBuffer();
         while ( true ){
@@ -0,0 +1,103 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+
+import com.postgresintl.logicaldecoding.model.Relation;
+
+/**
+ * {@link ChangeDecoder} for pgoutput. RELATION messages go into the relation cache, BEGIN
+ * gives the xid and commit time of the changes that follow, and the tuples of INSERT, UPDATE
+ * and DELETE are copied into the event as they are.
+ *
+ * Streamed transactions, protocol version 2, are not decoded; replay them through a
+ * {@link StreamedTransactionBuffer} first.
+ */
+public final class PgOutputChangeDecoder implements ChangeDecoder {
+    private final PgOutputMessage message = new PgOutputMessage();
+    private final RelationCache relations;
+    private final ChangeEventPool pool;
+    private long xid;
+    private long commitTime;
+
+    public PgOutputChangeDecoder(RelationCache relations, ChangeEventPool pool) {
+        this.relations = relations;
+        this.pool = pool;
+    }
+
+    /**
+     * Drop the rows and columns <code>filter</code> does not want, see
+     * {@link PgOutputMessage#setFilter(TableFilter, RelationCache)}. Dropped columns are
+     * {@link PgOutputTuple#FILTERED} in the event.
+     *
+     * @return this, for chaining
+     */
+    public PgOutputChangeDecoder withFilter(TableFilter filter) {
+        message.setFilter(filter, relations);
+        return this;
+    }
+
+    public RelationCache getRelations() {
+        return relations;
+    }
+
+    @Override
+    public void decode(ByteBuffer buffer, long lsn, Sink sink) throws Exception {
+        message.wrap(buffer);
+        ChangeEvent.Operation operation;
+        switch (message.type()) {
+            case PgOutputMessage.RELATION:
+                relations.update(message);
+                return;
+            case PgOutputMessage.BEGIN:
+                xid = message.xid() & 0xFFFFFFFFL;
+                commitTime = message.commitTime();
+                return;
+            case PgOutputMessage.INSERT:
+                operation = ChangeEvent.Operation.INSERT;
+                break;
+            case PgOutputMessage.UPDATE:
+                operation = ChangeEvent.Operation.UPDATE;
+                break;
+            case PgOutputMessage.DELETE:
+                operation = ChangeEvent.Operation.DELETE;
+                break;
+            default:
+                return;
+        }
+        if (message.isFiltered()) {
+            return;
+        }
+        Relation relation = relations.get(message.relationOid());
+        ChangeEvent event = pool.acquire();
+        event.reset(operation, relation, lsn, xid, commitTime);
+        if (message.hasOldTuple()) {
+            copy(message.oldTuple(), event, true);
+        }
+        if (message.hasNewTuple()) {
+            copy(message.newTuple(), event, false);
+        }
+        event.complete();
+        sink.onChange(event);
+    }
+
+    private static void copy(PgOutputTuple tuple, ChangeEvent event, boolean old) {
+        event.beginTuple(old, tuple.columnCount());
+        for (int i = 0; i < tuple.columnCount(); i++) {
+            byte kind = tuple.kind(i);
+            switch (kind) {
+                case PgOutputTuple.TEXT:
+                case PgOutputTuple.BINARY:
+                    event.addValue(kind, tuple.buffer(), tuple.offset(i), tuple.length(i));
+                    break;
+                case PgOutputTuple.UNCHANGED_TOAST:
+                    event.addUnchangedToast();
+                    break;
+                case PgOutputTuple.FILTERED:
+                    event.addFiltered();
+                    break;
+                default:
+                    event.addNull();
+            }
+        }
+    }
+}
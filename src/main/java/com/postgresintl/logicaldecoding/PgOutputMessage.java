@@ -0,0 +1,429 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Allocation free flyweight decoder for pgoutput messages.
+ *
+ * A single instance is meant to be reused for every message read from the stream:
+ * {@link #wrap(ByteBuffer)} records the message type and the absolute offsets of the
+ * fields, the accessors then read straight out of the buffer. Nothing is copied and the
+ * position of the buffer is left untouched, so the views are only valid until the buffer
+ * is reused by the driver.
+ *
+ * Changes inside a protocol version 2 stream block carry an extra XID and are not decoded
+ * here, pass the stream through a {@link StreamedTransactionBuffer} first.
+ */
+public final class PgOutputMessage {
+    public static final byte RELATION = 'R';
+    public static final byte BEGIN = 'B';
+    public static final byte COMMIT = 'C';
+    public static final byte INSERT = 'I';
+    public static final byte UPDATE = 'U';
+    public static final byte DELETE = 'D';
+
+    /* protocol version 2 streaming of in progress transactions */
+    public static final byte STREAM_START = 'S';
+    public static final byte STREAM_STOP = 'E';
+    public static final byte STREAM_COMMIT = 'c';
+    public static final byte STREAM_ABORT = 'A';
+
+    /* tuple markers used by UPDATE and DELETE */
+    public static final byte KEY = 'K';
+    public static final byte OLD = 'O';
+    public static final byte NEW = 'N';
+
+    private ByteBuffer buffer;
+    private int start;
+    private byte type;
+    private int relationOid;
+    private TableFilter filter;
+    private RelationCache relations;
+    private boolean filtered;
+    private boolean[] columnMask;
+
+    // RELATION
+    private int schemaOffset;
+    private int schemaLength;
+    private int nameOffset;
+    private int nameLength;
+    private byte replicaIdentity;
+    private int attributeCount;
+    private int[] attributeOffsets = new int[16];
+    private int[] attributeNameLengths = new int[16];
+
+    // UPDATE, DELETE, INSERT
+    private byte oldTupleKind;
+    private boolean hasNewTuple;
+    private final PgOutputTuple oldTuple = new PgOutputTuple();
+    private final PgOutputTuple newTuple = new PgOutputTuple();
+
+    /**
+     * Skip the rows of relations <code>filter</code> does not want, and the columns it masks,
+     * as part of {@link #wrap(ByteBuffer)}. The relations must be kept up to date with the
+     * RELATION messages of the stream.
+     *
+     * @return this, for chaining
+     */
+    public PgOutputMessage setFilter(TableFilter filter, RelationCache relations) {
+        this.filter = filter;
+        this.relations = relations;
+        return this;
+    }
+
+    /**
+     * Decode the header of the message between <code>position()</code> and <code>limit()</code>
+     * of the buffer.
+     *
+     * @return this, for chaining
+     */
+    public PgOutputMessage wrap(ByteBuffer buffer) {
+        reset(buffer, buffer.position(), buffer.get(buffer.position()));
+
+        int offset = start + 1;
+        switch (type) {
+            case RELATION:
+                relationOid = buffer.getInt(offset);
+                offset += 4;
+                schemaOffset = offset;
+                schemaLength = stringLength(offset);
+                offset += schemaLength + 1;
+                nameOffset = offset;
+                nameLength = stringLength(offset);
+                offset += nameLength + 1;
+                replicaIdentity = buffer.get(offset++);
+                int numAttrs = buffer.getShort(offset) & 0xFFFF;
+                offset += 2;
+                ensureAttributeCapacity(numAttrs);
+                for (int i = 0; i < numAttrs; i++) {
+                    attributeOffsets[i] = offset;
+                    int len = stringLength(offset + 1);
+                    attributeNameLengths[i] = len;
+                    // flags, name, NUL, type oid, type modifier
+                    offset += 1 + len + 1 + 4 + 4;
+                }
+                attributeCount = numAttrs;
+                break;
+
+            case INSERT:
+                relationOid = buffer.getInt(offset);
+                if (skipRelation()) {
+                    break;
+                }
+                // skip the 'N'
+                newTuple.wrap(buffer, offset + 5, columnMask);
+                hasNewTuple = true;
+                break;
+
+            case UPDATE:
+                relationOid = buffer.getInt(offset);
+                offset += 4;
+                if (skipRelation()) {
+                    break;
+                }
+                byte marker = buffer.get(offset++);
+                if (marker == KEY || marker == OLD) {
+                    oldTupleKind = marker;
+                    offset = oldTuple.wrap(buffer, offset, columnMask);
+                    marker = buffer.get(offset++);
+                }
+                if (marker != NEW) {
+                    throw new IllegalArgumentException("expected new tuple in UPDATE, got: " + (char) marker);
+                }
+                newTuple.wrap(buffer, offset, columnMask);
+                hasNewTuple = true;
+                break;
+
+            case DELETE:
+                relationOid = buffer.getInt(offset);
+                offset += 4;
+                if (skipRelation()) {
+                    break;
+                }
+                oldTupleKind = buffer.get(offset++);
+                oldTuple.wrap(buffer, offset, columnMask);
+                break;
+
+            case BEGIN:
+            case COMMIT:
+            case STREAM_START:
+            case STREAM_STOP:
+            case STREAM_COMMIT:
+            case STREAM_ABORT:
+            default:
+                // fixed layout, read lazily by the accessors
+                break;
+        }
+        return this;
+    }
+
+    /**
+     * Present a row of binary COPY output at the absolute position <code>offset</code> as an
+     * INSERT into <code>relationOid</code>, see {@link BinaryCopyParser}. The filter applies as
+     * for a streamed INSERT.
+     *
+     * @return this, for chaining
+     */
+    PgOutputMessage wrapCopyRow(ByteBuffer buffer, int offset, int relationOid) {
+        reset(buffer, offset, INSERT);
+        this.relationOid = relationOid;
+        if (!skipRelation()) {
+            newTuple.wrapCopy(buffer, offset, columnMask);
+            hasNewTuple = true;
+        }
+        return this;
+    }
+
+    private void reset(ByteBuffer buffer, int start, byte type) {
+        this.buffer = buffer;
+        this.start = start;
+        this.type = type;
+        this.relationOid = 0;
+        this.oldTupleKind = 0;
+        this.hasNewTuple = false;
+        this.filtered = false;
+        this.attributeCount = 0;
+        oldTuple.clear();
+        newTuple.clear();
+    }
+
+    /**
+     * Consult the filter for the relation of a row message.
+     *
+     * @return true if the row is not wanted
+     */
+    private boolean skipRelation() {
+        if (filter == null) {
+            columnMask = null;
+            return false;
+        }
+        TableFilter.Decision decision = filter.decide(relationOid, relations);
+        columnMask = decision.mask;
+        filtered = !decision.accept;
+        return filtered;
+    }
+
+    private int stringLength(int offset) {
+        int end = offset;
+        while (buffer.get(end) != 0) {
+            end++;
+        }
+        return end - offset;
+    }
+
+    private void ensureAttributeCapacity(int n) {
+        if (attributeOffsets.length < n) {
+            int size = Math.max(n, attributeOffsets.length * 2);
+            attributeOffsets = new int[size];
+            attributeNameLengths = new int[size];
+        }
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    /**
+     * @return true if the row belongs to a relation the filter does not want, its tuples
+     * were not looked at
+     */
+    public boolean isFiltered() {
+        return filtered;
+    }
+
+    /**
+     * @return the relation OID for RELATION, INSERT, UPDATE and DELETE messages, 0 otherwise
+     */
+    public int relationOid() {
+        return relationOid;
+    }
+
+    /* BEGIN */
+
+    public long finalLsn() {
+        checkType(BEGIN);
+        return buffer.getLong(start + 1);
+    }
+
+    /**
+     * @return commit time of a BEGIN, COMMIT or STREAM COMMIT message in microseconds since 2000-01-01
+     */
+    public long commitTime() {
+        switch (type) {
+            case BEGIN:
+                return buffer.getLong(start + 9);
+            case STREAM_COMMIT:
+                return buffer.getLong(start + 22);
+            default:
+                checkType(COMMIT);
+                return buffer.getLong(start + 18);
+        }
+    }
+
+    /**
+     * @return the transaction id of a BEGIN, STREAM START, STREAM COMMIT or STREAM ABORT message
+     */
+    public int xid() {
+        switch (type) {
+            case STREAM_START:
+            case STREAM_COMMIT:
+            case STREAM_ABORT:
+                return buffer.getInt(start + 1);
+            default:
+                checkType(BEGIN);
+                return buffer.getInt(start + 17);
+        }
+    }
+
+    /* COMMIT, STREAM COMMIT */
+
+    public byte commitFlags() {
+        if (type == STREAM_COMMIT) {
+            return buffer.get(start + 5);
+        }
+        checkType(COMMIT);
+        return buffer.get(start + 1);
+    }
+
+    public long commitLsn() {
+        if (type == STREAM_COMMIT) {
+            return buffer.getLong(start + 6);
+        }
+        checkType(COMMIT);
+        return buffer.getLong(start + 2);
+    }
+
+    public long endLsn() {
+        if (type == STREAM_COMMIT) {
+            return buffer.getLong(start + 14);
+        }
+        checkType(COMMIT);
+        return buffer.getLong(start + 10);
+    }
+
+    /* STREAM START, STREAM ABORT */
+
+    /**
+     * @return true if a STREAM START opens the first block of the transaction
+     */
+    public boolean firstSegment() {
+        checkType(STREAM_START);
+        return buffer.get(start + 5) == 1;
+    }
+
+    /**
+     * @return the aborted subtransaction, equal to {@link #xid()} if the whole transaction aborted
+     */
+    public int subXid() {
+        checkType(STREAM_ABORT);
+        return buffer.getInt(start + 5);
+    }
+
+    /* RELATION */
+
+    public int schemaOffset() {
+        return schemaOffset;
+    }
+
+    public int schemaLength() {
+        return schemaLength;
+    }
+
+    public int nameOffset() {
+        return nameOffset;
+    }
+
+    public int nameLength() {
+        return nameLength;
+    }
+
+    public byte replicaIdentity() {
+        return replicaIdentity;
+    }
+
+    public int attributeCount() {
+        return attributeCount;
+    }
+
+    /**
+     * @return attribute flags, 1 marks the column as part of the key
+     */
+    public byte attributeFlags(int i) {
+        return buffer.get(attributeOffsets[i]);
+    }
+
+    public int attributeNameOffset(int i) {
+        return attributeOffsets[i] + 1;
+    }
+
+    public int attributeNameLength(int i) {
+        return attributeNameLengths[i];
+    }
+
+    public int attributeTypeOid(int i) {
+        return buffer.getInt(attributeOffsets[i] + 1 + attributeNameLengths[i] + 1);
+    }
+
+    public int attributeTypeModifier(int i) {
+        return buffer.getInt(attributeOffsets[i] + 1 + attributeNameLengths[i] + 1 + 4);
+    }
+
+    /* allocating helpers for the cold RELATION path */
+
+    public String schema() {
+        return string(schemaOffset, schemaLength);
+    }
+
+    public String name() {
+        return string(nameOffset, nameLength);
+    }
+
+    public String attributeName(int i) {
+        return string(attributeNameOffset(i), attributeNameLengths[i]);
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* INSERT, UPDATE, DELETE */
+
+    /**
+     * @return 'K' if the old tuple only contains the key columns, 'O' for the full old row,
+     * 0 if there is no old tuple
+     */
+    public byte oldTupleKind() {
+        return oldTupleKind;
+    }
+
+    public boolean hasOldTuple() {
+        return oldTupleKind != 0;
+    }
+
+    public PgOutputTuple oldTuple() {
+        return oldTuple;
+    }
+
+    public boolean hasNewTuple() {
+        return hasNewTuple;
+    }
+
+    public PgOutputTuple newTuple() {
+        return newTuple;
+    }
+
+    private void checkType(byte expected) {
+        if (type != expected) {
+            throw new IllegalStateException("not a " + (char) expected + " message: " + (char) type);
+        }
+    }
+}
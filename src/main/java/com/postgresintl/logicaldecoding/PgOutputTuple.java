@@ -0,0 +1,193 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Flyweight view over a pgoutput TupleData block, or a row of binary COPY output.
+ * Only the offsets and lengths of the columns are recorded, the values stay in the buffer
+ * until a consumer asks for them. The arrays are grown on demand and reused afterwards.
+ */
+public final class PgOutputTuple {
+    public static final byte NULL = 'n';
+    public static final byte UNCHANGED_TOAST = 'u';
+    public static final byte TEXT = 't';
+    public static final byte BINARY = 'b';
+    /**
+     * not sent by the server, marks a column dropped by a {@link TableFilter}; only found
+     * in the tuples a {@link ChangeEvent} copies
+     */
+    public static final byte FILTERED = 'x';
+
+    private ByteBuffer buffer;
+    private int columnCount;
+    private byte[] kinds = new byte[16];
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+
+    /**
+     * Parse the TupleData starting at the absolute position <code>offset</code>.
+     *
+     * @return the absolute position just past the tuple
+     */
+    int wrap(ByteBuffer buffer, int offset) {
+        return wrap(buffer, offset, null);
+    }
+
+    /**
+     * Parse the TupleData starting at <code>offset</code>, stepping over the columns that are
+     * false in <code>mask</code> without recording them. Their kind is {@link #FILTERED}.
+     *
+     * @param mask columns to keep by position, null for all of them
+     * @return the absolute position just past the tuple
+     */
+    int wrap(ByteBuffer buffer, int offset, boolean[] mask) {
+        this.buffer = buffer;
+        int numAttrs = buffer.getShort(offset) & 0xFFFF;
+        offset += 2;
+        ensureCapacity(numAttrs);
+        for (int i = 0; i < numAttrs; i++) {
+            byte kind = buffer.get(offset++);
+            if (mask != null && i < mask.length && !mask[i]) {
+                kinds[i] = FILTERED;
+                offsets[i] = offset;
+                lengths[i] = 0;
+                if (kind == TEXT || kind == BINARY) {
+                    offset += 4 + buffer.getInt(offset);
+                }
+                continue;
+            }
+            kinds[i] = kind;
+            switch (kind) {
+                case NULL:
+                case UNCHANGED_TOAST:
+                case FILTERED:
+                    offsets[i] = offset;
+                    lengths[i] = 0;
+                    break;
+                case TEXT:
+                case BINARY:
+                    int len = buffer.getInt(offset);
+                    offsets[i] = offset + 4;
+                    lengths[i] = len;
+                    offset += 4 + len;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown tuple data kind: " + (char) kind);
+            }
+        }
+        columnCount = numAttrs;
+        return offset;
+    }
+
+    /**
+     * Parse a binary COPY row starting at <code>offset</code>: a field count, then every field
+     * as a length, -1 for NULL, followed by the value in binary format. The columns are
+     * recorded as {@link #BINARY} or {@link #NULL}, as if the row had come in an INSERT of a
+     * stream with the binary option.
+     *
+     * @param mask columns to keep by position, null for all of them
+     * @return the absolute position just past the row
+     */
+    int wrapCopy(ByteBuffer buffer, int offset, boolean[] mask) {
+        this.buffer = buffer;
+        int numAttrs = buffer.getShort(offset);
+        offset += 2;
+        ensureCapacity(numAttrs);
+        for (int i = 0; i < numAttrs; i++) {
+            int len = buffer.getInt(offset);
+            offset += 4;
+            if (mask != null && i < mask.length && !mask[i]) {
+                kinds[i] = FILTERED;
+                lengths[i] = 0;
+            } else if (len < 0) {
+                kinds[i] = NULL;
+                lengths[i] = 0;
+            } else {
+                kinds[i] = BINARY;
+                lengths[i] = len;
+            }
+            offsets[i] = offset;
+            if (len > 0) {
+                offset += len;
+            }
+        }
+        columnCount = numAttrs;
+        return offset;
+    }
+
+    void clear() {
+        columnCount = 0;
+    }
+
+    private void ensureCapacity(int n) {
+        if (kinds.length < n) {
+            int size = Math.max(n, kinds.length * 2);
+            kinds = new byte[size];
+            offsets = new int[size];
+            lengths = new int[size];
+        }
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int columnCount() {
+        return columnCount;
+    }
+
+    public byte kind(int column) {
+        return kinds[column];
+    }
+
+    public boolean isNull(int column) {
+        return kinds[column] == NULL;
+    }
+
+    public boolean isUnchangedToast(int column) {
+        return kinds[column] == UNCHANGED_TOAST;
+    }
+
+    public boolean isFiltered(int column) {
+        return kinds[column] == FILTERED;
+    }
+
+    /**
+     * @return absolute position of the first byte of the column value in {@link #buffer()}
+     */
+    public int offset(int column) {
+        return offsets[column];
+    }
+
+    public int length(int column) {
+        return lengths[column];
+    }
+
+    /**
+     * Copy the raw value of a column into <code>dst</code> without allocating.
+     *
+     * @return the number of bytes copied
+     */
+    public int copy(int column, byte[] dst, int dstOffset) {
+        int len = lengths[column];
+        int off = offsets[column];
+        for (int i = 0; i < len; i++) {
+            dst[dstOffset + i] = buffer.get(off + i);
+        }
+        return len;
+    }
+
+    /**
+     * Convenience accessor for the cold path; allocates a String for the column value.
+     */
+    public String getString(int column) {
+        byte kind = kinds[column];
+        if (kind == NULL || kind == UNCHANGED_TOAST || kind == FILTERED) {
+            return null;
+        }
+        byte[] bytes = new byte[lengths[column]];
+        copy(column, bytes, 0);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
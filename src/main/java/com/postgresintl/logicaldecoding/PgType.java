@@ -0,0 +1,83 @@
+package com.postgresintl.logicaldecoding;
+
+/**
+ * OIDs of the built in types the typed accessors know how to decode, from pg_type.
+ */
+public final class PgType {
+    public static final int BOOL = 16;
+    public static final int BYTEA = 17;
+    public static final int INT8 = 20;
+    public static final int INT2 = 21;
+    public static final int INT4 = 23;
+    public static final int TEXT = 25;
+    public static final int OID = 26;
+    public static final int FLOAT4 = 700;
+    public static final int FLOAT8 = 701;
+    public static final int VARCHAR = 1043;
+    public static final int DATE = 1082;
+    public static final int TIMESTAMP = 1114;
+    public static final int TIMESTAMPTZ = 1184;
+    public static final int NUMERIC = 1700;
+    public static final int UUID = 2950;
+
+    private PgType() {
+    }
+
+    /**
+     * Map a type name as <code>format_type</code> writes it, which is what wal2json sends, to
+     * its OID. A type modifier such as the length in <code>character varying(20)</code> is
+     * ignored.
+     *
+     * @return the OID, 0 for a type not listed here
+     */
+    public static int forName(String name) {
+        int open = name.indexOf('(');
+        if (open >= 0) {
+            int close = name.indexOf(')', open);
+            name = (name.substring(0, open) + (close < 0 ? "" : name.substring(close + 1))).trim();
+        }
+        switch (name) {
+            case "boolean":
+            case "bool":
+                return BOOL;
+            case "bytea":
+                return BYTEA;
+            case "bigint":
+            case "int8":
+                return INT8;
+            case "smallint":
+            case "int2":
+                return INT2;
+            case "integer":
+            case "int4":
+                return INT4;
+            case "text":
+                return TEXT;
+            case "oid":
+                return OID;
+            case "real":
+            case "float4":
+                return FLOAT4;
+            case "double precision":
+            case "float8":
+                return FLOAT8;
+            case "character varying":
+            case "varchar":
+                return VARCHAR;
+            case "date":
+                return DATE;
+            case "timestamp without time zone":
+            case "timestamp":
+                return TIMESTAMP;
+            case "timestamp with time zone":
+            case "timestamptz":
+                return TIMESTAMPTZ;
+            case "numeric":
+                return NUMERIC;
+            case "uuid":
+                return UUID;
+            default:
+                return 0;
+        }
+    }
+}
@@ -1,10 +1,8 @@
 package com.postgresintl.logicaldecoding;
 
-import com.google.protobuf.Message;
 import com.postgresintl.logicaldecoding.proto.PgProto;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 public class ProtoBuf {
     ByteBuffer byteBuffer;
@@ -13,12 +11,9 @@ public class ProtoBuf {
         byteBuffer = b;
     }
     public String toString() {
-        int offset = byteBuffer.arrayOffset();
-        byte[] source = byteBuffer.array();
-        int length = source.length - offset;
-        final byte[] content = Arrays.copyOfRange(source, offset, length);
         try {
-            final PgProto.RowMessage message = PgProto.RowMessage.parseFrom(content);
+            // parses the remaining bytes in place, see ProtoBufDecoder to also reuse the builder
+            final PgProto.RowMessage message = PgProto.RowMessage.parseFrom(byteBuffer.duplicate());
             return message.toString();
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -0,0 +1,163 @@
+package com.postgresintl.logicaldecoding;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.protobuf.ByteString;
+import com.postgresintl.logicaldecoding.model.Attribute;
+import com.postgresintl.logicaldecoding.model.Relation;
+import com.postgresintl.logicaldecoding.proto.PgProto;
+
+/**
+ * {@link ChangeDecoder} for decoderbufs, one RowMessage per change, parsed by a
+ * {@link ProtoBufDecoder}.
+ *
+ * A relation is built from the column names and type OIDs of the first row of a table and
+ * built again when a later row has other column types. Values are stored in binary format:
+ * integers, floats and booleans as PostgreSQL sends them, int64 timestamps and int32 dates,
+ * which decoderbufs counts from 1970, moved to the 2000 epoch. Strings are stored as text
+ * and bytes as binary without being turned into Java objects. Points, and floats of a
+ * numeric column, are written out as text, which allocates.
+ */
+public final class ProtoBufChangeDecoder implements ChangeDecoder {
+    // days from 1970-01-01 to 2000-01-01
+    private static final int EPOCH_DAYS = 10957;
+
+    private final ProtoBufDecoder decoder = new ProtoBufDecoder();
+    private final Map<ByteString, Relation> relations = new HashMap<>();
+    private final ChangeEventPool pool;
+
+    public ProtoBufChangeDecoder(ChangeEventPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void decode(ByteBuffer message, long lsn, Sink sink) throws Exception {
+        PgProto.RowMessageOrBuilder row = decoder.decode(message);
+        ChangeEvent.Operation operation;
+        switch (row.getOp()) {
+            case UPDATE:
+                operation = ChangeEvent.Operation.UPDATE;
+                break;
+            case DELETE:
+                operation = ChangeEvent.Operation.DELETE;
+                break;
+            case INSERT:
+            default:
+                operation = ChangeEvent.Operation.INSERT;
+        }
+        List<PgProto.DatumMessage> newTuple = row.getNewTupleList();
+        List<PgProto.DatumMessage> oldTuple = row.getOldTupleList();
+        Relation relation = relation(row.getTableBytes(), newTuple.isEmpty() ? oldTuple : newTuple);
+        ChangeEvent event = pool.acquire();
+        event.reset(operation, relation, lsn, row.getTransactionId() & 0xFFFFFFFFL,
+                row.hasCommitTime() ? PgEpoch.fromUnixMicros(row.getCommitTime()) : 0);
+        if (!oldTuple.isEmpty()) {
+            copy(oldTuple, event, true);
+        }
+        if (!newTuple.isEmpty()) {
+            copy(newTuple, event, false);
+        }
+        event.complete();
+        sink.onChange(event);
+    }
+
+    private static void copy(List<PgProto.DatumMessage> tuple, ChangeEvent event, boolean old) {
+        event.beginTuple(old, tuple.size());
+        for (int i = 0; i < tuple.size(); i++) {
+            PgProto.DatumMessage datum = tuple.get(i);
+            int type = (int) datum.getColumnType();
+            switch (datum.getDatumCase()) {
+                case DATUM_INT32:
+                    if (type == PgType.DATE) {
+                        event.addLong(datum.getDatumInt32() - EPOCH_DAYS, 4);
+                    } else {
+                        event.addLong(datum.getDatumInt32(), type == PgType.INT2 ? 2 : 4);
+                    }
+                    break;
+                case DATUM_INT64:
+                    if (type == PgType.TIMESTAMP || type == PgType.TIMESTAMPTZ) {
+                        event.addLong(PgEpoch.fromUnixMicros(datum.getDatumInt64()), 8);
+                    } else {
+                        event.addLong(datum.getDatumInt64(), 8);
+                    }
+                    break;
+                case DATUM_FLOAT:
+                    if (type == PgType.NUMERIC) {
+                        event.addText(BigDecimal.valueOf(datum.getDatumFloat()).toPlainString());
+                    } else {
+                        event.addFloat(datum.getDatumFloat());
+                    }
+                    break;
+                case DATUM_DOUBLE:
+                    if (type == PgType.NUMERIC) {
+                        event.addText(BigDecimal.valueOf(datum.getDatumDouble()).toPlainString());
+                    } else {
+                        event.addDouble(datum.getDatumDouble());
+                    }
+                    break;
+                case DATUM_BOOL:
+                    event.addBoolean(datum.getDatumBool());
+                    break;
+                case DATUM_STRING:
+                    ByteString text = datum.getDatumStringBytes();
+                    text.copyTo(event.data(), event.reserve(PgOutputTuple.TEXT, text.size()));
+                    break;
+                case DATUM_BYTES:
+                    ByteString bytes = datum.getDatumBytes();
+                    bytes.copyTo(event.data(), event.reserve(PgOutputTuple.BINARY, bytes.size()));
+                    break;
+                case DATUM_POINT:
+                    event.addText("(" + datum.getDatumPoint().getX() + "," + datum.getDatumPoint().getY() + ")");
+                    break;
+                case DATUM_MISSING:
+                    event.addUnchangedToast();
+                    break;
+                case DATUM_NOT_SET:
+                default:
+                    event.addNull();
+            }
+        }
+    }
+
+    private Relation relation(ByteString table, List<PgProto.DatumMessage> tuple) {
+        Relation previous = relations.get(table);
+        if (previous != null && sameColumns(previous, tuple)) {
+            return previous;
+        }
+        Relation relation = new Relation();
+        String name = table.toStringUtf8();
+        int dot = name.lastIndexOf('.');
+        relation.setSchema(dot < 0 ? null : unquote(name.substring(0, dot)));
+        relation.setName(unquote(name.substring(dot + 1)));
+        for (PgProto.DatumMessage datum : tuple) {
+            relation.addAttribute(new Attribute((int) datum.getColumnType(), datum.getColumnName(), -1, (byte) 0));
+        }
+        if (previous != null) {
+            relation.setVersion(previous.getVersion() + 1);
+        }
+        relations.put(table, relation);
+        return relation;
+    }
+
+    private static boolean sameColumns(Relation relation, List<PgProto.DatumMessage> tuple) {
+        if (relation.getAttributeCount() != tuple.size()) {
+            return false;
+        }
+        for (int i = 0; i < tuple.size(); i++) {
+            if (relation.getAttribute(i).getTypeOid() != (int) tuple.get(i).getColumnType()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String unquote(String identifier) {
+        return identifier.length() > 1 && identifier.charAt(0) == '"' && identifier.charAt(identifier.length() - 1) == '"'
+                ? identifier.substring(1, identifier.length() - 1).replace("\"\"", "\"")
+                : identifier;
+    }
+}
@@ -0,0 +1,69 @@
+package com.postgresintl.logicaldecoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import com.postgresintl.logicaldecoding.proto.PgProto;
+
+/**
+ * Parses decoderbufs RowMessages straight out of the replication buffer.
+ *
+ * The message is read from the region between <code>position()</code> and
+ * <code>limit()</code> without copying it into an intermediate array, heap and direct
+ * buffers alike. The RowMessage builder is cleared and refilled for every message instead
+ * of allocating a new one. With aliasing enabled <code>bytes</code> datums share the
+ * replication buffer rather than being copied, they must then not be used after the buffer
+ * is handed back to the driver.
+ *
+ * Not thread safe, use one decoder per stream.
+ */
+public class ProtoBufDecoder {
+    private final PgProto.RowMessage.Builder builder = PgProto.RowMessage.newBuilder();
+    private final ExtensionRegistryLite registry = ExtensionRegistryLite.getEmptyRegistry();
+    private final boolean aliasing;
+
+    public ProtoBufDecoder() {
+        this(false);
+    }
+
+    public ProtoBufDecoder(boolean aliasing) {
+        this.aliasing = aliasing;
+    }
+
+    /**
+     * Decode into the reused builder. The returned view is overwritten by the next call.
+     */
+    public PgProto.RowMessageOrBuilder decode(ByteBuffer buffer) throws InvalidProtocolBufferException {
+        CodedInputStream input;
+        if (aliasing) {
+            // aliasing is only honoured for input protobuf considers immutable
+            input = UnsafeByteOperations.unsafeWrap(buffer.duplicate()).newCodedInput();
+            input.enableAliasing(true);
+        } else {
+            // reads heap buffers in place and direct buffers through Unsafe where available
+            input = CodedInputStream.newInstance(buffer.duplicate());
+        }
+        builder.clear();
+        try {
+            builder.mergeFrom(input, registry);
+            input.checkLastTagWas(0);
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new InvalidProtocolBufferException(e);
+        }
+        return builder;
+    }
+
+    /**
+     * Decode into a new immutable message, for consumers that keep rows around.
+     */
+    public PgProto.RowMessage decodeMessage(ByteBuffer buffer) throws InvalidProtocolBufferException {
+        decode(buffer);
+        return builder.build();
+    }
+}
@@ -0,0 +1,99 @@
+package com.postgresintl.logicaldecoding;
+
+import com.postgresintl.logicaldecoding.model.Attribute;
+import com.postgresintl.logicaldecoding.model.Relation;
+
+/**
+ * Keeps the last RELATION message seen for every OID so row messages, which only carry
+ * the OID, can be matched up with column names and types.
+ *
+ * The server sends a RELATION message before the first change to a table in a session and
+ * again whenever the table's layout changes, so the cache is the only place this
+ * information is available without querying the catalog.
+ */
+public class RelationCache {
+    private final IntObjectMap<Relation> relations = new IntObjectMap<>(64);
+    private long version;
+
+    /**
+     * Decode a RELATION message and store it.
+     *
+     * @return the cached relation
+     */
+    public Relation update(PgOutputMessage message) {
+        Relation relation = new Relation();
+        relation.setOid(message.relationOid());
+        relation.setSchema(message.schema());
+        relation.setName(message.name());
+        relation.setReplicaIdentity(message.replicaIdentity());
+        for (int i = 0; i < message.attributeCount(); i++) {
+            relation.addAttribute(new Attribute(message.attributeTypeOid(i), message.attributeName(i),
+                    message.attributeTypeModifier(i), message.attributeFlags(i)));
+        }
+        return update(relation);
+    }
+
+    /**
+     * Store a relation. If the layout is unchanged the cached instance is kept, otherwise the
+     * relation version and the cache version are bumped.
+     *
+     * @return the cached relation
+     */
+    public Relation update(Relation relation) {
+        Relation previous = relations.get(relation.getOid());
+        if (previous != null) {
+            if (previous.sameLayout(relation)) {
+                return previous;
+            }
+            relation.setVersion(previous.getVersion() + 1);
+        }
+        relations.put(relation.getOid(), relation);
+        version++;
+        return relation;
+    }
+
+    /**
+     * @return the relation or null if no RELATION message has been seen for it
+     */
+    public Relation get(int oid) {
+        return relations.get(oid);
+    }
+
+    public Relation remove(int oid) {
+        Relation relation = relations.remove(oid);
+        if (relation != null) {
+            version++;
+        }
+        return relation;
+    }
+
+    public String columnName(int oid, int column) {
+        Relation relation = relations.get(oid);
+        return relation == null ? null : relation.getAttribute(column).getName();
+    }
+
+    /**
+     * @return the type OID of the column or 0 (InvalidOid) if the relation is unknown
+     */
+    public int columnType(int oid, int column) {
+        Relation relation = relations.get(oid);
+        return relation == null ? 0 : relation.getAttribute(column).getTypeOid();
+    }
+
+    /**
+     * @return a counter incremented on every layout change of any relation, cheap to poll
+     * for consumers that derive their own structures from the cache
+     */
+    public long version() {
+        return version;
+    }
+
+    public int size() {
+        return relations.size();
+    }
+
+    public void clear() {
+        relations.clear();
+        version++;
+    }
+}
@@ -0,0 +1,260 @@
+package com.postgresintl.logicaldecoding;
+
+import com.postgresintl.logicaldecoding.model.Relation;
+
+/**
+ * Typed, allocation free access to the columns of a row.
+ *
+ * Wraps a {@link PgOutputTuple} together with the {@link Relation} from the cache, the
+ * type OIDs of the relation decide which conversions a column allows. Values are parsed
+ * straight out of the message buffer into primitives or into caller supplied holders, so a
+ * sink converting every column to a native type never builds a String. Text columns go
+ * through {@link TextDecoding}, binary ones, sent when the stream runs with the
+ * <code>binary</code> option, through {@link BinaryDecoding}.
+ *
+ * The accessors throw {@link IllegalStateException} for NULL and unchanged TOAST columns,
+ * check {@link #isNull(int)} first, and {@link IllegalArgumentException} when the column
+ * type does not convert. Columns of a relation that has not been seen are parsed as asked.
+ */
+public final class RowView {
+    private final NumericValue numeric = new NumericValue();
+    private PgOutputTuple tuple;
+    private Relation relation;
+
+    /**
+     * @param relation the relation of the row, may be null
+     * @return this, for chaining
+     */
+    public RowView wrap(PgOutputTuple tuple, Relation relation) {
+        this.tuple = tuple;
+        this.relation = relation;
+        return this;
+    }
+
+    public PgOutputTuple tuple() {
+        return tuple;
+    }
+
+    public Relation relation() {
+        return relation;
+    }
+
+    public int columnCount() {
+        return tuple.columnCount();
+    }
+
+    /**
+     * @return the type OID from the RELATION message, 0 if unknown
+     */
+    public int typeOid(int column) {
+        return relation != null && column < relation.getAttributeCount()
+                ? relation.getAttribute(column).getTypeOid() : 0;
+    }
+
+    public String columnName(int column) {
+        return relation != null && column < relation.getAttributeCount()
+                ? relation.getAttribute(column).getName() : null;
+    }
+
+    public boolean isNull(int column) {
+        return tuple.isNull(column);
+    }
+
+    public boolean isUnchangedToast(int column) {
+        return tuple.isUnchangedToast(column);
+    }
+
+    public boolean getBoolean(int column) {
+        int type = check(column);
+        if (type != 0 && type != PgType.BOOL) {
+            throw mismatch(column, "boolean");
+        }
+        return binary(column)
+                ? BinaryDecoding.readBoolean(tuple.buffer(), tuple.offset(column), tuple.length(column))
+                : TextDecoding.parseBoolean(tuple.buffer(), tuple.offset(column), tuple.length(column));
+    }
+
+    /**
+     * int2 and int4 columns
+     */
+    public int getInt(int column) {
+        int type = check(column);
+        if (type != 0 && type != PgType.INT2 && type != PgType.INT4) {
+            throw mismatch(column, "int");
+        }
+        return binary(column)
+                ? (int) BinaryDecoding.readLong(tuple.buffer(), tuple.offset(column), tuple.length(column))
+                : TextDecoding.parseInt(tuple.buffer(), tuple.offset(column), tuple.length(column));
+    }
+
+    /**
+     * int2, int4, int8 and oid columns
+     */
+    public long getLong(int column) {
+        int type = check(column);
+        switch (type) {
+            case 0:
+            case PgType.INT2:
+            case PgType.INT4:
+            case PgType.INT8:
+            case PgType.OID:
+                return binary(column)
+                        ? BinaryDecoding.readLong(tuple.buffer(), tuple.offset(column), tuple.length(column), type)
+                        : TextDecoding.parseLong(tuple.buffer(), tuple.offset(column), tuple.length(column));
+            default:
+                throw mismatch(column, "long");
+        }
+    }
+
+    /**
+     * float4, float8, numeric and integer columns
+     */
+    public double getDouble(int column) {
+        int type = check(column);
+        switch (type) {
+            case 0:
+            case PgType.FLOAT4:
+            case PgType.FLOAT8:
+                return binary(column)
+                        ? BinaryDecoding.readDouble(tuple.buffer(), tuple.offset(column), tuple.length(column))
+                        : TextDecoding.parseDouble(tuple.buffer(), tuple.offset(column), tuple.length(column));
+            case PgType.NUMERIC:
+                return getNumeric(column, numeric).doubleValue();
+            case PgType.INT2:
+            case PgType.INT4:
+            case PgType.INT8:
+                return getLong(column);
+            default:
+                throw mismatch(column, "double");
+        }
+    }
+
+    /**
+     * numeric and integer columns
+     *
+     * @return <code>into</code>
+     */
+    public NumericValue getNumeric(int column, NumericValue into) {
+        int type = check(column);
+        switch (type) {
+            case PgType.INT2:
+            case PgType.INT4:
+            case PgType.INT8:
+                if (binary(column)) {
+                    into.set(BinaryDecoding.readLong(tuple.buffer(), tuple.offset(column), tuple.length(column)), 0);
+                    return into;
+                }
+                return TextDecoding.parseNumeric(tuple.buffer(), tuple.offset(column), tuple.length(column), into);
+            case 0:
+            case PgType.NUMERIC:
+                return binary(column)
+                        ? BinaryDecoding.readNumeric(tuple.buffer(), tuple.offset(column), tuple.length(column), into)
+                        : TextDecoding.parseNumeric(tuple.buffer(), tuple.offset(column), tuple.length(column), into);
+            default:
+                throw mismatch(column, "numeric");
+        }
+    }
+
+    /**
+     * timestamp and timestamptz columns
+     *
+     * @return microseconds since 2000-01-01, see {@link TextDecoding#parseTimestamp}. A binary
+     * timestamp without time zone is the wall clock as if it were UTC as well.
+     */
+    public long getTimestampMicros(int column) {
+        int type = check(column);
+        if (type != 0 && type != PgType.TIMESTAMP && type != PgType.TIMESTAMPTZ) {
+            throw mismatch(column, "timestamp");
+        }
+        return binary(column)
+                ? BinaryDecoding.readTimestamp(tuple.buffer(), tuple.offset(column), tuple.length(column))
+                : TextDecoding.parseTimestamp(tuple.buffer(), tuple.offset(column), tuple.length(column));
+    }
+
+    /**
+     * @return days since 2000-01-01
+     */
+    public int getDate(int column) {
+        int type = check(column);
+        if (type != 0 && type != PgType.DATE) {
+            throw mismatch(column, "date");
+        }
+        return binary(column)
+                ? BinaryDecoding.readDate(tuple.buffer(), tuple.offset(column), tuple.length(column))
+                : TextDecoding.parseDate(tuple.buffer(), tuple.offset(column), tuple.length(column));
+    }
+
+    public long getUuidMostSignificantBits(int column) {
+        checkUuid(column);
+        return binary(column)
+                ? BinaryDecoding.readUuidMostSignificantBits(tuple.buffer(), tuple.offset(column), tuple.length(column))
+                : TextDecoding.parseUuidMostSignificantBits(tuple.buffer(), tuple.offset(column), tuple.length(column));
+    }
+
+    public long getUuidLeastSignificantBits(int column) {
+        checkUuid(column);
+        return binary(column)
+                ? BinaryDecoding.readUuidLeastSignificantBits(tuple.buffer(), tuple.offset(column), tuple.length(column))
+                : TextDecoding.parseUuidLeastSignificantBits(tuple.buffer(), tuple.offset(column), tuple.length(column));
+    }
+
+    private void checkUuid(int column) {
+        int type = check(column);
+        if (type != 0 && type != PgType.UUID) {
+            throw mismatch(column, "uuid");
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #getBytes(int, byte[], int)} writes
+     */
+    public int getByteaLength(int column) {
+        checkBytea(column);
+        return binary(column)
+                ? tuple.length(column)
+                : TextDecoding.byteaLength(tuple.buffer(), tuple.offset(column), tuple.length(column));
+    }
+
+    /**
+     * Decode a bytea column into <code>dst</code>.
+     *
+     * @return the number of bytes written
+     */
+    public int getBytes(int column, byte[] dst, int dstOffset) {
+        checkBytea(column);
+        return binary(column)
+                ? tuple.copy(column, dst, dstOffset)
+                : TextDecoding.decodeBytea(tuple.buffer(), tuple.offset(column), tuple.length(column), dst, dstOffset);
+    }
+
+    private void checkBytea(int column) {
+        int type = check(column);
+        if (type != 0 && type != PgType.BYTEA) {
+            throw mismatch(column, "bytea");
+        }
+    }
+
+    /**
+     * The value of a text column, or of a binary text or varchar column, allocates.
+     */
+    public String getString(int column) {
+        return tuple.getString(column);
+    }
+
+    private int check(int column) {
+        byte kind = tuple.kind(column);
+        if (kind != PgOutputTuple.TEXT && kind != PgOutputTuple.BINARY) {
+            throw new IllegalStateException("column " + column + " has no value: " + (char) kind);
+        }
+        return typeOid(column);
+    }
+
+    private boolean binary(int column) {
+        return tuple.kind(column) == PgOutputTuple.BINARY;
+    }
+
+    private IllegalArgumentException mismatch(int column, String wanted) {
+        return new IllegalArgumentException("column " + column + " of type " + typeOid(column)
+                + " can not be read as " + wanted);
+    }
+}
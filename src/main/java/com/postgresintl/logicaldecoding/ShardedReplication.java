@@ -0,0 +1,358 @@
+package com.postgresintl.logicaldecoding;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+import com.postgresintl.logicaldecoding.model.Relation;
+
+/**
+ * Spreads the tables of a database over several publications and slots, so that several
+ * walsender processes decode in parallel instead of one.
+ *
+ * Every table goes to exactly one shard, either by a hash of its name, which is stable as
+ * tables come and go, or by size, which keeps the largest tables apart. Each shard gets a
+ * publication and a slot through the slot management of {@link App} and is consumed on its
+ * own thread of a {@link ConsumerHost}. All shards feed one {@link ChangeSink}; the changes
+ * of a table come from a single shard and so arrive in commit order, changes of tables in
+ * different shards are not ordered with respect to each other. A transaction touching tables
+ * of several shards arrives as one part per shard, each with its own COMMIT.
+ */
+public class ShardedReplication implements AutoCloseable {
+
+    public enum Assignment {
+        /** by a hash of the qualified table name */
+        HASH,
+        /** largest table first onto the shard with the least data */
+        SIZE
+    }
+
+    /**
+     * Receives the changes of every shard. Calls for one shard come from one thread, calls for
+     * different shards concurrently.
+     */
+    public interface ChangeSink {
+        /**
+         * @param relation the table, null if no RELATION message was seen for it
+         * @param message  an INSERT, UPDATE or DELETE, only valid during the call
+         */
+        void onChange(Shard shard, Relation relation, PgOutputMessage message) throws Exception;
+
+        /**
+         * The end of a shard's part of a transaction.
+         */
+        default void onCommit(Shard shard, long commitLsn, long commitTime) throws Exception {
+        }
+    }
+
+    /**
+     * A table and what it weighs for {@link Assignment#SIZE}.
+     */
+    static final class Table {
+        final String schema;
+        final String name;
+        final long bytes;
+
+        Table(String schema, String name, long bytes) {
+            this.schema = schema;
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * One publication and the slot reading it.
+     */
+    public static final class Shard {
+        private final int index;
+        private final String publication;
+        private final String slotName;
+        private final List<String> tables = new ArrayList<>();
+        private final TableFilter filter = new TableFilter();
+        private long bytes;
+        private volatile long lagBytes = -1;
+        private volatile ConsumerHost.Slot slot;
+
+        Shard(int index, String name) {
+            this.index = index;
+            this.publication = name + "_pub_" + index;
+            this.slotName = name + "_slot_" + index;
+        }
+
+        void add(Table table) {
+            tables.add(table.schema + '.' + table.name);
+            filter.include(TableFilter.pattern(table.schema, table.name));
+            bytes += table.bytes;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public String publication() {
+            return publication;
+        }
+
+        public String slotName() {
+            return slotName;
+        }
+
+        /**
+         * @return the tables as <code>schema.table</code>
+         */
+        public List<String> tables() {
+            return Collections.unmodifiableList(tables);
+        }
+
+        /**
+         * @return the size of the tables when they were assigned, 0 for {@link Assignment#HASH}
+         */
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return WAL bytes between the server's current position and what the slot has
+         *         confirmed, as of the last {@link ShardedReplication#refreshLag()}, -1 before
+         */
+        public long lagBytes() {
+            return lagBytes;
+        }
+
+        /**
+         * @return microseconds since the commit of the last transaction the shard read, 0 if
+         *         it is not consumed or has not seen a COMMIT yet
+         */
+        public long commitLagMicros() {
+            ConsumerHost.Slot consumer = slot;
+            return consumer == null ? 0 : consumer.commitLagMicros();
+        }
+
+        /**
+         * @return the consumer of the shard, null before it is started
+         */
+        public ConsumerHost.Slot slot() {
+            return slot;
+        }
+
+        @Override
+        public String toString() {
+            return slotName + ' ' + tables.size() + " tables lag " + lagBytes + " bytes " + commitLagMicros() + " us";
+        }
+    }
+
+    private final App app;
+    private final String name;
+    private final int shardCount;
+    private final Assignment assignment;
+    private TableFilter tableFilter = new TableFilter();
+    private List<Shard> shards = Collections.emptyList();
+    private final Map<String, Shard> bySlot = new ConcurrentHashMap<>();
+    private ConsumerHost host;
+
+    /**
+     * @param app        connected with {@link App#createConnection()}, used for the catalog
+     *                   queries and slot management
+     * @param name       prefix of the publication and slot names
+     * @param shardCount number of publications and slots
+     */
+    public ShardedReplication(App app, String name, int shardCount, Assignment assignment) {
+        this.app = app;
+        this.name = name;
+        this.shardCount = shardCount;
+        this.assignment = assignment;
+    }
+
+    /**
+     * Only shard the tables <code>filter</code> matches, all user tables by default.
+     *
+     * @return this, for chaining
+     */
+    public ShardedReplication withTableFilter(TableFilter filter) {
+        this.tableFilter = filter;
+        return this;
+    }
+
+    /**
+     * Read the tables from the catalog and assign them to shards.
+     *
+     * @return the shards that got at least one table
+     */
+    public List<Shard> plan() throws SQLException {
+        List<Table> tables = new ArrayList<>();
+        try (PreparedStatement ps = app.connection.prepareStatement(
+                "SELECT schemaname, tablename,"
+                        + " pg_total_relation_size(format('%I.%I', schemaname, tablename)::regclass)"
+                        + " FROM pg_tables WHERE schemaname NOT IN ('pg_catalog', 'information_schema')");
+             ResultSet rs = ps.executeQuery())
+        {
+            while (rs.next()) {
+                if (tableFilter.matches(rs.getString(1), rs.getString(2))) {
+                    tables.add(new Table(rs.getString(1), rs.getString(2), rs.getLong(3)));
+                }
+            }
+        }
+        return assign(tables);
+    }
+
+    /**
+     * Assign <code>tables</code> to shards, replacing the current plan.
+     *
+     * @return the shards that got at least one table
+     */
+    List<Shard> assign(List<Table> tables) {
+        List<Shard> all = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            all.add(new Shard(i, name));
+        }
+        List<Table> sorted = new ArrayList<>(tables);
+        if (assignment == Assignment.SIZE) {
+            sorted.sort((a, b) -> Long.compare(b.bytes, a.bytes));
+            for (Table table : sorted) {
+                Shard lightest = all.get(0);
+                for (Shard shard : all) {
+                    if (shard.bytes < lightest.bytes) {
+                        lightest = shard;
+                    }
+                }
+                lightest.add(table);
+            }
+        } else {
+            for (Table table : sorted) {
+                String qualified = table.schema + '.' + table.name;
+                all.get(Math.floorMod(qualified.hashCode(), shardCount)).add(table);
+            }
+        }
+        List<Shard> used = new ArrayList<>();
+        for (Shard shard : all) {
+            if (!shard.tables.isEmpty()) {
+                used.add(shard);
+            }
+        }
+        shards = used;
+        return shards;
+    }
+
+    public List<Shard> shards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Create the publication and slot of every shard, dropping publications and slots of the
+     * same name first, so the tables of a new plan replace those of an earlier run. Plans
+     * first if that has not been done.
+     */
+    public void create() throws SQLException, InterruptedException, TimeoutException {
+        if (shards.isEmpty()) {
+            plan();
+        }
+        for (Shard shard : shards) {
+            try (Statement statement = app.connection.createStatement()) {
+                statement.execute("DROP PUBLICATION IF EXISTS " + shard.publication);
+            }
+            app.createPublication(shard.publication, shard.filter);
+            app.createLogicalReplicationSlot(shard.slotName, "pgoutput");
+        }
+    }
+
+    /**
+     * Drop the slot and publication of every shard of the current plan.
+     */
+    public void drop() throws SQLException, InterruptedException, TimeoutException {
+        for (Shard shard : shards) {
+            app.dropReplicationSlot(app.connection, shard.slotName);
+            app.dropPublication(shard.publication);
+        }
+    }
+
+    /**
+     * Consume every shard on a new {@link ConsumerHost}, stopped by {@link #close()}.
+     */
+    public ConsumerHost start(ChangeSink sink) {
+        host = new ConsumerHost(handler(sink));
+        start(host);
+        return host;
+    }
+
+    /**
+     * Consume every shard on <code>host</code>, which must have been created with
+     * {@link #handler(ChangeSink)}.
+     */
+    public void start(ConsumerHost host) {
+        for (Shard shard : shards) {
+            bySlot.put(shard.slotName, shard);
+            shard.slot = host.add(app.slotConfig(shard.slotName)
+                    .option("publication_names", shard.publication));
+        }
+    }
+
+    /**
+     * Decodes the messages of every shard for <code>sink</code>, storing synchronously.
+     */
+    public ConsumerHost.Handler handler(ChangeSink sink) {
+        return (slot, buffer, ticket) -> {
+            Shard shard = bySlot.get(slot.name());
+            PgOutputMessage message = slot.message().wrap(buffer);
+            switch (message.type()) {
+                case PgOutputMessage.RELATION:
+                    slot.relations().update(message);
+                    break;
+                case PgOutputMessage.INSERT:
+                case PgOutputMessage.UPDATE:
+                case PgOutputMessage.DELETE:
+                    sink.onChange(shard, slot.relations().get(message.relationOid()), message);
+                    break;
+                case PgOutputMessage.COMMIT:
+                    sink.onCommit(shard, message.commitLsn(), message.commitTime());
+                    break;
+                default:
+                    break;
+            }
+            slot.complete(ticket);
+        };
+    }
+
+    /**
+     * Ask the server how far every shard's slot is behind the current WAL position.
+     */
+    public void refreshLag() throws SQLException {
+        try (PreparedStatement ps = app.connection.prepareStatement(
+                "SELECT slot_name, pg_wal_lsn_diff(pg_current_wal_lsn(), confirmed_flush_lsn)"
+                        + " FROM pg_replication_slots WHERE slot_name LIKE ?"))
+        {
+            ps.setString(1, name.replace("_", "\\_") + "\\_slot\\_%");
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    for (Shard shard : shards) {
+                        if (shard.slotName.equals(rs.getString(1))) {
+                            shard.lagBytes = rs.getLong(2);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop consuming, the slots and publications are kept.
+     */
+    @Override
+    public void close() {
+        if (host != null) {
+            host.close();
+            host = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + ' ' + shards;
+    }
+}
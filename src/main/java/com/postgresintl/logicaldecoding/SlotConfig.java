@@ -0,0 +1,159 @@
+package com.postgresintl.logicaldecoding;
+
+import java.util.Properties;
+
+import org.postgresql.PGProperty;
+import org.postgresql.replication.LogSequenceNumber;
+
+/**
+ * Where one replication slot of a {@link ConsumerHost} lives and how it is read.
+ *
+ * Every slot may be in a different database or on a different server. Options are passed to
+ * the output plugin as given; for pgoutput <code>proto_version</code> defaults to 1 and the
+ * publication of the {@link TableFilter}, if there is one, is added.
+ */
+public class SlotConfig {
+    private final String slotName;
+    private final String url;
+    private final Properties connectionProperties = new Properties();
+    private final Properties slotOptions = new Properties();
+    private String plugin = "pgoutput";
+    private LogSequenceNumber startLsn;
+    private TableFilter tableFilter;
+
+    /**
+     * @param url JDBC url of the database the slot belongs to
+     */
+    public SlotConfig(String slotName, String url) {
+        this.slotName = slotName;
+        this.url = url;
+    }
+
+    /**
+     * @return this, for chaining
+     */
+    public SlotConfig user(String user) {
+        connectionProperties.setProperty("user", user);
+        return this;
+    }
+
+    /**
+     * @return this, for chaining
+     */
+    public SlotConfig password(String password) {
+        connectionProperties.setProperty("password", password);
+        return this;
+    }
+
+    /**
+     * Any other connection property.
+     *
+     * @return this, for chaining
+     */
+    public SlotConfig property(String name, String value) {
+        connectionProperties.setProperty(name, value);
+        return this;
+    }
+
+    /**
+     * The output plugin the slot was created with, pgoutput by default.
+     *
+     * @return this, for chaining
+     */
+    public SlotConfig plugin(String plugin) {
+        this.plugin = plugin;
+        return this;
+    }
+
+    /**
+     * @return this, for chaining
+     */
+    public SlotConfig option(String name, Object value) {
+        slotOptions.setProperty(name, String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * Start at <code>lsn</code> instead of where the slot was last confirmed.
+     *
+     * @return this, for chaining
+     */
+    public SlotConfig startFrom(LogSequenceNumber lsn) {
+        this.startLsn = lsn;
+        return this;
+    }
+
+    /**
+     * Filter rows before they are decoded, and on the server through the slot options.
+     * A filter keeps per stream state, give every slot its own.
+     *
+     * @return this, for chaining
+     */
+    public SlotConfig tableFilter(TableFilter tableFilter) {
+        this.tableFilter = tableFilter;
+        return this;
+    }
+
+    public String getSlotName() {
+        return slotName;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return a copy of the connection properties
+     */
+    public Properties getConnectionProperties() {
+        Properties properties = new Properties();
+        properties.putAll(connectionProperties);
+        return properties;
+    }
+
+    /**
+     * @return the connection properties plus what a replication connection needs
+     */
+    Properties getReplicationProperties() {
+        Properties properties = getConnectionProperties();
+        PGProperty.ASSUME_MIN_SERVER_VERSION.set(properties, "9.4");
+        PGProperty.REPLICATION.set(properties, "database");
+        PGProperty.PREFER_QUERY_MODE.set(properties, "simple");
+        return properties;
+    }
+
+    public String getPlugin() {
+        return plugin;
+    }
+
+    /**
+     * @return the options to start the stream with, defaults and the filter's included
+     */
+    public Properties getSlotOptions() {
+        Properties options = new Properties();
+        if ("pgoutput".equals(plugin)) {
+            options.setProperty("proto_version", "1");
+        }
+        if (tableFilter != null) {
+            options.putAll(tableFilter.slotOptions(plugin));
+        }
+        options.putAll(slotOptions);
+        return options;
+    }
+
+    /**
+     * @return the configured start position, null to continue from the slot
+     */
+    public LogSequenceNumber getStartLsn() {
+        return startLsn;
+    }
+
+    public TableFilter getTableFilter() {
+        return tableFilter;
+    }
+
+    @Override
+    public String toString() {
+        return slotName + '@' + url;
+    }
+}
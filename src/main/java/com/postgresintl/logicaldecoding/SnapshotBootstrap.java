@@ -0,0 +1,532 @@
+package com.postgresintl.logicaldecoding;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyOut;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.ServerVersion;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+import com.postgresintl.logicaldecoding.model.Attribute;
+import com.postgresintl.logicaldecoding.model.Relation;
+
+/**
+ * Gives a new consumer a consistent initial copy of the published tables followed by the
+ * changes made after it, without a gap or an overlap.
+ *
+ * The slot is created over the replication protocol with an exported snapshot, which is the
+ * state of the database exactly at the slot's consistent point. Worker connections import
+ * that snapshot with <code>SET TRANSACTION SNAPSHOT</code> and copy the tables in binary COPY
+ * format, split into ranges: block ranges of the ctid from PostgreSQL 14, which scans only the
+ * blocks of the range, otherwise ranges of a single column integer primary key, otherwise
+ * whole tables. Ranges are handed out largest first, so the copy keeps every worker busy and
+ * its throughput grows with the number of workers until the server's disk or CPU is the
+ * limit. Afterwards streaming starts at the consistent point on the connection that created
+ * the slot.
+ *
+ * The replication connection must stay idle until every worker has imported the snapshot,
+ * so the steps have to be run in order: {@link #createSlot()}, {@link #plan()},
+ * {@link #copy(List, CopySink)}, {@link #startStreaming()}.
+ */
+public class SnapshotBootstrap implements AutoCloseable {
+
+    /**
+     * Receives the binary COPY data of every range, from the worker threads concurrently. The
+     * data of one range arrives in order on one thread. {@link BinaryCopyParser#sink} turns it
+     * into rows.
+     */
+    public interface CopySink {
+        /**
+         * @param data one CopyData message, rows may be split across messages
+         */
+        void onData(CopyRange range, byte[] data) throws Exception;
+
+        /**
+         * All data of the range has been passed to {@link #onData(CopyRange, byte[])}.
+         */
+        default void onRangeComplete(CopyRange range, long bytes) throws Exception {
+        }
+    }
+
+    /**
+     * A part of a table copied by one COPY command.
+     */
+    public static final class CopyRange {
+        private final String schema;
+        private final String table;
+        private final String condition;
+        private final long estimatedBytes;
+        private Relation relation;
+
+        CopyRange(String schema, String table, String condition, long estimatedBytes) {
+            this.schema = schema;
+            this.table = table;
+            this.condition = condition;
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        public String schema() {
+            return schema;
+        }
+
+        public String table() {
+            return table;
+        }
+
+        /**
+         * @return the WHERE clause selecting the range, null for the whole table
+         */
+        public String condition() {
+            return condition;
+        }
+
+        public long estimatedBytes() {
+            return estimatedBytes;
+        }
+
+        /**
+         * @return the table as of the snapshot, with the columns pgoutput sends in the same
+         *         order, null before {@link SnapshotBootstrap#plan()}
+         */
+        public Relation relation() {
+            return relation;
+        }
+
+        CopyRange withRelation(Relation relation) {
+            this.relation = relation;
+            return this;
+        }
+
+        /**
+         * @return the COPY command for the range, listing the columns of the relation if known
+         */
+        public String sql() {
+            String name = quote(schema) + '.' + quote(table);
+            String columns = null;
+            if (relation != null) {
+                StringBuilder sb = new StringBuilder();
+                for (Attribute attribute : relation.getAttributes()) {
+                    sb.append(sb.length() == 0 ? "" : ", ").append(quote(attribute.getName()));
+                }
+                columns = sb.toString();
+            }
+            if (condition == null) {
+                return "COPY " + name + (columns == null ? "" : " (" + columns + ")") + " TO STDOUT (FORMAT binary)";
+            }
+            return "COPY (SELECT " + (columns == null ? "*" : columns) + " FROM " + name
+                    + " WHERE " + condition + ") TO STDOUT (FORMAT binary)";
+        }
+
+        @Override
+        public String toString() {
+            return schema + '.' + table + (condition == null ? "" : " WHERE " + condition);
+        }
+    }
+
+    private static final AtomicInteger WORKER_IDS = new AtomicInteger();
+
+    private final SlotConfig config;
+    private final int workers;
+    private long rangeBytes = 64L * 1024 * 1024;
+    private Connection replicationConnection;
+    private String snapshotName;
+    private LogSequenceNumber consistentPoint;
+    private final AtomicLong copiedBytes = new AtomicLong();
+    private final AtomicInteger copiedRanges = new AtomicInteger();
+
+    /**
+     * @param config  the slot to create, its <code>publication_names</code> option names the
+     *                tables to copy
+     * @param workers number of connections copying in parallel
+     */
+    public SnapshotBootstrap(SlotConfig config, int workers) {
+        this.config = config;
+        this.workers = workers;
+    }
+
+    /**
+     * Split tables into ranges of about <code>bytes</code>, 64 MB by default.
+     *
+     * @return this, for chaining
+     */
+    public SnapshotBootstrap withRangeBytes(long bytes) {
+        this.rangeBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Create the slot and export its snapshot.
+     *
+     * @return the consistent point, where streaming continues after the copy
+     */
+    public LogSequenceNumber createSlot() throws SQLException {
+        replicationConnection = DriverManager.getConnection(config.getUrl(), config.getReplicationProperties());
+        try (Statement statement = replicationConnection.createStatement();
+             ResultSet rs = statement.executeQuery("CREATE_REPLICATION_SLOT " + quote(config.getSlotName())
+                     + " LOGICAL " + config.getPlugin() + " EXPORT_SNAPSHOT"))
+        {
+            if (!rs.next()) {
+                throw new SQLException("CREATE_REPLICATION_SLOT returned nothing");
+            }
+            consistentPoint = LogSequenceNumber.valueOf(rs.getString("consistent_point"));
+            snapshotName = rs.getString("snapshot_name");
+        }
+        return consistentPoint;
+    }
+
+    /**
+     * Find the published tables as of the snapshot and split them into ranges.
+     *
+     * @return the ranges, largest first
+     */
+    public List<CopyRange> plan() throws SQLException {
+        List<CopyRange> ranges = new ArrayList<>();
+        try (Connection connection = snapshotConnection()) {
+            boolean tidRangeScan = ((BaseConnection) connection).haveMinimumServerVersion(ServerVersion.v14);
+            boolean generatedColumns = ((BaseConnection) connection).haveMinimumServerVersion(ServerVersion.v12);
+            List<String[]> tables = new ArrayList<>();
+            try (PreparedStatement ps = connection.prepareStatement(
+                    "SELECT DISTINCT schemaname, tablename FROM pg_publication_tables"
+                            + " WHERE pubname = ANY (string_to_array(?, ','))"))
+            {
+                ps.setString(1, publications());
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        tables.add(new String[]{rs.getString(1), rs.getString(2)});
+                    }
+                }
+            }
+            for (String[] table : tables) {
+                Relation relation = relation(connection, table[0], table[1], generatedColumns);
+                for (CopyRange range : split(connection, table[0], table[1], tidRangeScan)) {
+                    ranges.add(range.withRelation(relation));
+                }
+            }
+            connection.commit();
+        }
+        ranges.sort((a, b) -> Long.compare(b.estimatedBytes, a.estimatedBytes));
+        return ranges;
+    }
+
+    private String publications() {
+        String publications = config.getSlotOptions().getProperty("publication_names");
+        if (publications == null) {
+            throw new IllegalStateException("slot " + config.getSlotName() + " has no publication_names option");
+        }
+        return publications.replace(" ", "");
+    }
+
+    private List<CopyRange> split(Connection connection, String schema, String table, boolean tidRangeScan)
+            throws SQLException {
+        String relation = quote(schema) + '.' + quote(table);
+        long bytes;
+        long blockSize;
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT pg_relation_size('" + relation.replace("'", "''")
+                     + "'), current_setting('block_size')::int"))
+        {
+            rs.next();
+            bytes = rs.getLong(1);
+            blockSize = rs.getLong(2);
+        }
+        if (bytes <= rangeBytes) {
+            return wholeTable(schema, table, bytes);
+        }
+        if (tidRangeScan) {
+            return ctidRanges(schema, table, bytes / blockSize, Math.max(1, rangeBytes / blockSize), blockSize);
+        }
+        String key = integerKey(connection, relation);
+        if (key == null) {
+            return wholeTable(schema, table, bytes);
+        }
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT min(" + quote(key) + "), max(" + quote(key) + ") FROM " + relation))
+        {
+            rs.next();
+            int count = (int) Math.min(Integer.MAX_VALUE, (bytes + rangeBytes - 1) / rangeBytes);
+            return keyRanges(schema, table, key, rs.getLong(1), rs.getLong(2), count, bytes);
+        }
+    }
+
+    /**
+     * Read the columns of a table the way a RELATION message describes them: without dropped
+     * and generated columns, the replica identity columns flagged as key.
+     */
+    private static Relation relation(Connection connection, String schema, String table, boolean generatedColumns)
+            throws SQLException {
+        Relation relation = new Relation();
+        relation.setSchema(schema);
+        relation.setName(table);
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT c.oid, c.relreplident, a.attname, a.atttypid, a.atttypmod,"
+                        + " c.relreplident = 'f' OR coalesce(a.attnum = ANY (i.indkey), false)"
+                        + " FROM pg_class c JOIN pg_attribute a ON a.attrelid = c.oid"
+                        + " LEFT JOIN pg_index i ON i.indrelid = c.oid"
+                        + " AND (i.indisreplident OR c.relreplident = 'd' AND i.indisprimary)"
+                        + " WHERE c.oid = ?::regclass AND a.attnum > 0 AND NOT a.attisdropped"
+                        + (generatedColumns ? " AND a.attgenerated = ''" : "")
+                        + " ORDER BY a.attnum"))
+        {
+            ps.setString(1, quote(schema) + '.' + quote(table));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    relation.setOid((int) rs.getLong(1));
+                    relation.setReplicaIdentity((byte) rs.getString(2).charAt(0));
+                    relation.addAttribute(new Attribute((int) rs.getLong(4), rs.getString(3), rs.getInt(5),
+                            (byte) (rs.getBoolean(6) ? 1 : 0)));
+                }
+            }
+        }
+        return relation;
+    }
+
+    /**
+     * @return the single column primary key of an integer type, null if there is none
+     */
+    private static String integerKey(Connection connection, String relation) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT a.attname FROM pg_index i"
+                        + " JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = i.indkey[0]"
+                        + " WHERE i.indrelid = ?::regclass AND i.indisprimary AND i.indnatts = 1"
+                        + " AND a.atttypid IN (20, 21, 23)"))
+        {
+            ps.setString(1, relation);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    static List<CopyRange> wholeTable(String schema, String table, long bytes) {
+        List<CopyRange> ranges = new ArrayList<>(1);
+        ranges.add(new CopyRange(schema, table, null, bytes));
+        return ranges;
+    }
+
+    /**
+     * Block ranges of <code>blocksPerRange</code>, the last one open ended so blocks added
+     * since the size was read are covered too.
+     */
+    static List<CopyRange> ctidRanges(String schema, String table, long blocks, long blocksPerRange, long blockSize) {
+        List<CopyRange> ranges = new ArrayList<>();
+        long start = 0;
+        do {
+            long end = start + blocksPerRange;
+            String condition = "ctid >= '(" + start + ",0)'::tid";
+            if (end < blocks) {
+                condition += " AND ctid < '(" + end + ",0)'::tid";
+            }
+            ranges.add(new CopyRange(schema, table, condition, (Math.min(end, blocks) - start) * blockSize));
+            start = end;
+        } while (start < blocks);
+        return ranges;
+    }
+
+    /**
+     * <code>count</code> ranges of an integer key between <code>min</code> and
+     * <code>max</code>, the first and the last open ended.
+     */
+    static List<CopyRange> keyRanges(String schema, String table, String key, long min, long max, int count, long bytes) {
+        List<CopyRange> ranges = new ArrayList<>(count);
+        // max - min does not fit in a long for keys spread over most of its range
+        BigInteger span = BigInteger.valueOf(max).subtract(BigInteger.valueOf(min));
+        long step = Math.max(1, span.divide(BigInteger.valueOf(count)).add(BigInteger.ONE)
+                .min(BigInteger.valueOf(Long.MAX_VALUE)).longValue());
+        String column = quote(key);
+        for (long lower = min; ; lower += step) {
+            long upper = lower + step;
+            boolean first = lower == min;
+            boolean last = upper > max || upper < lower || ranges.size() == count - 1;
+            String condition;
+            if (first && last) {
+                condition = null;
+            } else if (first) {
+                condition = column + " < " + upper;
+            } else if (last) {
+                condition = column + " >= " + lower;
+            } else {
+                condition = column + " >= " + lower + " AND " + column + " < " + upper;
+            }
+            ranges.add(new CopyRange(schema, table, condition, bytes / count));
+            if (last) {
+                return ranges;
+            }
+        }
+    }
+
+    /**
+     * A connection in a repeatable read transaction on the exported snapshot.
+     */
+    private Connection snapshotConnection() throws SQLException {
+        if (snapshotName == null) {
+            throw new IllegalStateException("createSlot() has not been called");
+        }
+        Connection connection = DriverManager.getConnection(config.getUrl(), config.getConnectionProperties());
+        try {
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            connection.setAutoCommit(false);
+            connection.setReadOnly(true);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SET TRANSACTION SNAPSHOT '" + snapshotName + "'");
+            }
+            return connection;
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copy the ranges on the worker connections, every worker takes the next range as soon
+     * as it is done with one.
+     *
+     * @return the number of bytes copied
+     */
+    public long copy(List<CopyRange> ranges, CopySink sink) throws Exception {
+        ConcurrentLinkedQueue<CopyRange> queue = new ConcurrentLinkedQueue<>(ranges);
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "snapshot-copy-" + WORKER_IDS.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                futures.add(pool.submit(() -> {
+                    copyRanges(queue, sink);
+                    return null;
+                }));
+            }
+            Exception failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        return copiedBytes.get();
+    }
+
+    private void copyRanges(ConcurrentLinkedQueue<CopyRange> queue, CopySink sink) throws Exception {
+        try {
+            copyRanges(snapshotConnection(), queue, sink);
+        } catch (Exception e) {
+            // let the other workers stop after their current range
+            queue.clear();
+            throw e;
+        }
+    }
+
+    private void copyRanges(Connection snapshot, ConcurrentLinkedQueue<CopyRange> queue, CopySink sink) throws Exception {
+        try (Connection connection = snapshot) {
+            PGConnection pgConnection = connection.unwrap(PGConnection.class);
+            CopyRange range;
+            while ((range = queue.poll()) != null) {
+                CopyOut copy = pgConnection.getCopyAPI().copyOut(range.sql());
+                long bytes = 0;
+                try {
+                    byte[] data;
+                    while ((data = copy.readFromCopy()) != null) {
+                        bytes += data.length;
+                        sink.onData(range, data);
+                    }
+                } finally {
+                    if (copy.isActive()) {
+                        copy.cancelCopy();
+                    }
+                }
+                sink.onRangeComplete(range, bytes);
+                copiedBytes.addAndGet(bytes);
+                copiedRanges.incrementAndGet();
+            }
+            connection.commit();
+        }
+    }
+
+    /**
+     * Start streaming the slot from its consistent point on the connection that created it.
+     */
+    public PGReplicationStream startStreaming() throws SQLException {
+        if (consistentPoint == null) {
+            throw new IllegalStateException("createSlot() has not been called");
+        }
+        return replicationConnection.unwrap(PGConnection.class)
+                .getReplicationAPI()
+                .replicationStream()
+                .logical()
+                .withSlotName(config.getSlotName())
+                .withSlotOptions(config.getSlotOptions())
+                .withStartPosition(consistentPoint)
+                .withStatusInterval(10, TimeUnit.SECONDS)
+                .start();
+    }
+
+    /**
+     * Create the slot, copy every published table through <code>sink</code> and start
+     * streaming from where the copy ends.
+     */
+    public PGReplicationStream run(CopySink sink) throws Exception {
+        createSlot();
+        copy(plan(), sink);
+        return startStreaming();
+    }
+
+    public LogSequenceNumber getConsistentPoint() {
+        return consistentPoint;
+    }
+
+    public String getSnapshotName() {
+        return snapshotName;
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes.get();
+    }
+
+    public int getCopiedRanges() {
+        return copiedRanges.get();
+    }
+
+    /**
+     * Close the replication connection, which also ends a stream started on it.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (replicationConnection != null) {
+            replicationConnection.close();
+            replicationConnection = null;
+        }
+    }
+
+    static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+}
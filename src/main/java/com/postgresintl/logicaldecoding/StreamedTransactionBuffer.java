@@ -0,0 +1,176 @@
+package com.postgresintl.logicaldecoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+/**
+ * Consumer side buffer for pgoutput protocol version 2 streaming of in progress
+ * transactions.
+ *
+ * With <code>streaming</code> on, the server sends large transactions in blocks framed by
+ * STREAM START and STREAM STOP while they are still running, interleaved with other
+ * transactions, and finishes them later with STREAM COMMIT or STREAM ABORT. Every change
+ * inside a block carries the XID of the (sub)transaction that made it.
+ *
+ * {@link #accept(ByteBuffer, MessageHandler)} takes every message off the stream. Changes
+ * inside a block are copied into a {@link TransactionBuffer} per XID with the XID stripped,
+ * so memory stays bounded however large the transaction gets; a STREAM ABORT drops the
+ * whole transaction or just the aborted subtransaction. On STREAM COMMIT the
+ * buffered changes are replayed to the handler between a synthesized BEGIN and COMMIT, so
+ * anything downstream sees an ordinary protocol version 1 transaction.
+ *
+ * Not thread safe, feed it from the thread reading the stream.
+ */
+public class StreamedTransactionBuffer {
+    private static final int POOLED = 4;
+
+    private final IntObjectMap<TransactionBuffer> transactions = new IntObjectMap<>();
+    private final ArrayDeque<TransactionBuffer> pool = new ArrayDeque<>();
+    private final Supplier<TransactionBuffer> factory;
+    private final ByteBuffer scratch = ByteBuffer.allocate(32);
+    private boolean inStream;
+    private int streamXid;
+    private TransactionBuffer current;
+    private long bufferedBytes;
+    private long streamedTransactions;
+    private long abortedTransactions;
+
+    /**
+     * @param factory creates the buffer holding one streamed transaction, buffers are pooled
+     *                and reused once the transaction finished
+     */
+    public StreamedTransactionBuffer(Supplier<TransactionBuffer> factory) {
+        this.factory = factory;
+    }
+
+    public StreamedTransactionBuffer() {
+        this(TransactionBuffer::new);
+    }
+
+    /**
+     * @return true if the message belonged to the streaming protocol and has been consumed,
+     * false if the caller should decode it as usual
+     */
+    public boolean accept(ByteBuffer message, MessageHandler handler) throws Exception {
+        int start = message.position();
+        byte type = message.get(start);
+        switch (type) {
+            case PgOutputMessage.STREAM_START:
+                streamXid = message.getInt(start + 1);
+                current = transactions.get(streamXid);
+                if (current == null) {
+                    current = pool.isEmpty() ? factory.get() : pool.pop();
+                    transactions.put(streamXid, current);
+                }
+                inStream = true;
+                return true;
+
+            case PgOutputMessage.STREAM_STOP:
+                inStream = false;
+                current = null;
+                return true;
+
+            case PgOutputMessage.STREAM_COMMIT:
+                commit(message, start, handler);
+                return true;
+
+            case PgOutputMessage.STREAM_ABORT:
+                abort(message.getInt(start + 1), message.getInt(start + 5));
+                return true;
+
+            default:
+                if (!inStream) {
+                    return false;
+                }
+                int subXid = message.getInt(start + 1);
+                long before = current.bytes();
+                // keep the type byte, drop the XID
+                current.append(subXid, message, start, 4);
+                bufferedBytes += current.bytes() - before;
+                return true;
+        }
+    }
+
+    private void commit(ByteBuffer message, int start, MessageHandler handler) throws Exception {
+        int xid = message.getInt(start + 1);
+        byte flags = message.get(start + 5);
+        long commitLsn = message.getLong(start + 6);
+        long endLsn = message.getLong(start + 14);
+        long commitTime = message.getLong(start + 22);
+        TransactionBuffer buffer = transactions.remove(xid);
+
+        scratch.clear();
+        scratch.put(PgOutputMessage.BEGIN).putLong(commitLsn).putLong(commitTime).putInt(xid);
+        scratch.flip();
+        handler.onMessage(scratch);
+        if (buffer != null) {
+            bufferedBytes -= buffer.bytes();
+            try {
+                buffer.replay(handler);
+            } finally {
+                release(buffer);
+            }
+        }
+        scratch.clear();
+        scratch.put(PgOutputMessage.COMMIT).put(flags).putLong(commitLsn).putLong(endLsn).putLong(commitTime);
+        scratch.flip();
+        handler.onMessage(scratch);
+        streamedTransactions++;
+    }
+
+    private void abort(int xid, int subXid) throws IOException {
+        TransactionBuffer buffer = transactions.get(xid);
+        if (buffer == null) {
+            return;
+        }
+        if (xid == subXid) {
+            transactions.remove(xid);
+            bufferedBytes -= buffer.bytes();
+            buffer.clear();
+            release(buffer);
+            abortedTransactions++;
+        } else {
+            // the changes stay stored until the transaction finishes but are not replayed
+            buffer.discard(subXid);
+        }
+    }
+
+    private void release(TransactionBuffer buffer) throws IOException {
+        if (pool.size() < POOLED) {
+            pool.push(buffer);
+        } else {
+            buffer.close();
+        }
+    }
+
+    /**
+     * @return true between STREAM START and STREAM STOP
+     */
+    public boolean inStream() {
+        return inStream;
+    }
+
+    /**
+     * @return transactions streamed but not yet committed or aborted
+     */
+    public int openTransactions() {
+        return transactions.size();
+    }
+
+    /**
+     * @return bytes held for open transactions, including aborted subtransactions
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public long getStreamedTransactions() {
+        return streamedTransactions;
+    }
+
+    public long getAbortedTransactions() {
+        return abortedTransactions;
+    }
+}
@@ -0,0 +1,299 @@
+package com.postgresintl.logicaldecoding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.postgresintl.logicaldecoding.model.Relation;
+
+/**
+ * Which tables, and which of their columns, a consumer wants.
+ *
+ * Tables are given as <code>schema.table</code> patterns in the syntax of the wal2json
+ * <code>add-tables</code> option: <code>*</code> matches any run of characters and a
+ * backslash escapes <code>.</code>, <code>,</code>, <code>*</code> and itself. A table is
+ * wanted if it matches an include pattern, or there are none, and no exclude pattern.
+ *
+ * Decisions are made per relation OID from the {@link RelationCache} and kept until the
+ * cache sees a layout change, so the check on every row message is a single map lookup
+ * done straight after the message header. Rows of unwanted tables are then skipped without
+ * looking at their tuples, and masked columns are stepped over without being decoded. The
+ * replica identity columns are always kept so updates and deletes can still be applied.
+ *
+ * The same configuration drives the server side: {@link #slotOptions(String)} gives the
+ * slot options that make the output plugin drop unwanted tables itself, and
+ * {@link App#createPublication(String, TableFilter)} publishes only the wanted tables.
+ *
+ * Not thread safe once in use, share the configuration but not the instance between
+ * decoders.
+ */
+public class TableFilter {
+    private final List<String> includes = new ArrayList<>();
+    private final List<String> excludes = new ArrayList<>();
+    private final List<Pattern> includePatterns = new ArrayList<>();
+    private final List<Pattern> excludePatterns = new ArrayList<>();
+    private final List<Pattern> maskPatterns = new ArrayList<>();
+    private final List<Set<String>> masks = new ArrayList<>();
+    private String publication;
+
+    private final IntObjectMap<Decision> decisions = new IntObjectMap<>(64);
+    private long relationsVersion = -1;
+
+    /**
+     * Outcome for one relation.
+     */
+    static final class Decision {
+        static final Decision ALL = new Decision(true, null);
+        static final Decision NONE = new Decision(false, null);
+
+        final boolean accept;
+        /** null for every column */
+        final boolean[] mask;
+
+        Decision(boolean accept, boolean[] mask) {
+            this.accept = accept;
+            this.mask = mask;
+        }
+    }
+
+    /**
+     * Want the tables matching any of <code>patterns</code>.
+     *
+     * @return this, for chaining
+     */
+    public TableFilter include(String... patterns) {
+        for (String pattern : patterns) {
+            includePatterns.add(compile(pattern));
+            includes.add(pattern);
+        }
+        decisions.clear();
+        return this;
+    }
+
+    /**
+     * Drop the tables matching any of <code>patterns</code>, even if they are included.
+     *
+     * @return this, for chaining
+     */
+    public TableFilter exclude(String... patterns) {
+        for (String pattern : patterns) {
+            excludePatterns.add(compile(pattern));
+            excludes.add(pattern);
+        }
+        decisions.clear();
+        return this;
+    }
+
+    /**
+     * Only decode <code>columns</code> of the tables matching <code>pattern</code>, plus
+     * their replica identity. The first matching mask applies.
+     *
+     * @return this, for chaining
+     */
+    public TableFilter columns(String pattern, String... columns) {
+        maskPatterns.add(compile(pattern));
+        masks.add(new LinkedHashSet<>(Arrays.asList(columns)));
+        decisions.clear();
+        return this;
+    }
+
+    /**
+     * The publication pgoutput reads from.
+     *
+     * @return this, for chaining
+     */
+    public TableFilter publication(String publication) {
+        this.publication = publication;
+        return this;
+    }
+
+    public String getPublication() {
+        return publication;
+    }
+
+    /**
+     * @return true if rows of the relation are wanted, also when the relation is not in the
+     *         cache yet and nothing can be decided
+     */
+    public boolean accept(int relationOid, RelationCache relations) {
+        return decide(relationOid, relations).accept;
+    }
+
+    /**
+     * @return the columns to decode by position, null for all of them
+     */
+    public boolean[] columnMask(int relationOid, RelationCache relations) {
+        return decide(relationOid, relations).mask;
+    }
+
+    Decision decide(int relationOid, RelationCache relations) {
+        if (relations.version() != relationsVersion) {
+            // a layout changed somewhere, masks are by position so start over
+            decisions.clear();
+            relationsVersion = relations.version();
+        }
+        Decision decision = decisions.get(relationOid);
+        if (decision == null) {
+            Relation relation = relations.get(relationOid);
+            if (relation == null) {
+                return Decision.ALL;
+            }
+            decision = decide(relation);
+            decisions.put(relationOid, decision);
+        }
+        return decision;
+    }
+
+    private Decision decide(Relation relation) {
+        if (!matches(relation.getSchema(), relation.getName())) {
+            return Decision.NONE;
+        }
+        Set<String> columns = mask(relation.getSchema(), relation.getName());
+        if (columns == null) {
+            return Decision.ALL;
+        }
+        boolean[] mask = new boolean[relation.getAttributeCount()];
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = relation.getAttribute(i).isKey() || columns.contains(relation.getAttribute(i).getName());
+        }
+        return new Decision(true, mask);
+    }
+
+    /**
+     * @return true if the table is wanted
+     */
+    public boolean matches(String schema, String table) {
+        String name = qualified(schema, table);
+        if (!includePatterns.isEmpty() && !matchesAny(includePatterns, name)) {
+            return false;
+        }
+        return !matchesAny(excludePatterns, name);
+    }
+
+    /**
+     * @return the columns wanted of the table, null for all of them
+     */
+    public Set<String> mask(String schema, String table) {
+        String name = qualified(schema, table);
+        for (int i = 0; i < maskPatterns.size(); i++) {
+            if (maskPatterns.get(i).matcher(name).matches()) {
+                return masks.get(i);
+            }
+        }
+        return null;
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The slot options with which <code>plugin</code> filters on the server.
+     * pgoutput gets <code>publication_names</code>, wal2json <code>add-tables</code> and
+     * <code>filter-tables</code>; other plugins have nothing equivalent.
+     */
+    public Properties slotOptions(String plugin) {
+        Properties options = new Properties();
+        if ("pgoutput".equals(plugin)) {
+            if (publication != null) {
+                options.setProperty("publication_names", publication);
+            }
+        } else if ("wal2json".equals(plugin)) {
+            if (!includes.isEmpty()) {
+                options.setProperty("add-tables", String.join(",", includes));
+            }
+            if (!excludes.isEmpty()) {
+                options.setProperty("filter-tables", String.join(",", excludes));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @return a pattern matching exactly the table, with the special characters escaped
+     */
+    public static String pattern(String schema, String table) {
+        return escapePattern(schema) + '.' + escapePattern(table);
+    }
+
+    private static String escapePattern(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '.' || c == ',' || c == '*' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * schema and table joined the way patterns are matched, with the separator escaped in
+     * the names
+     */
+    private static String qualified(String schema, String table) {
+        return escape(schema) + '.' + escape(table);
+    }
+
+    private static String escape(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '.' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Turn a <code>schema.table</code> pattern into a regular expression over
+     * {@link #qualified(String, String)} names.
+     */
+    static Pattern compile(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        boolean separator = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length()) {
+                char escaped = pattern.charAt(++i);
+                if (escaped == '.' || escaped == '\\') {
+                    literal.append('\\');
+                }
+                literal.append(escaped);
+            } else if (c == '*' || (c == '.' && !separator)) {
+                regex.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+                if (c == '*') {
+                    // anything but the separator, escaped characters included
+                    regex.append("(?:\\\\.|[^.\\\\])*");
+                } else {
+                    separator = true;
+                    regex.append(Pattern.quote("."));
+                }
+            } else {
+                if (c == '.' || c == '\\') {
+                    literal.append('\\');
+                }
+                literal.append(c);
+            }
+        }
+        if (!separator) {
+            throw new IllegalArgumentException("expected schema.table, got " + pattern);
+        }
+        regex.append(Pattern.quote(literal.toString()));
+        return Pattern.compile(regex.toString());
+    }
+}
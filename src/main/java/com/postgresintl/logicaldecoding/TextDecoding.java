@@ -0,0 +1,464 @@
+package com.postgresintl.logicaldecoding;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parsers for the text output format of the common built in types, reading straight from
+ * the bytes of a column in the message buffer.
+ *
+ * Every method takes the absolute offset and length of the value, as given by
+ * {@link PgOutputTuple#offset(int)} and {@link PgOutputTuple#length(int)}, and does not move
+ * the buffer. Nothing is allocated except on the rare paths that are called out per method.
+ * Timestamps assume the ISO DateStyle the driver sets for the replication connection.
+ */
+public final class TextDecoding {
+    /** powers of ten that are exact doubles */
+    static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private static final long MICROS_PER_SECOND = 1000000L;
+    private static final long MICROS_PER_DAY = 86400L * MICROS_PER_SECOND;
+    /* days from 1970-01-01 to 2000-01-01 */
+    private static final int UNIX_TO_PG_EPOCH_DAYS = 10957;
+
+    private TextDecoding() {
+    }
+
+    public static boolean parseBoolean(ByteBuffer buffer, int offset, int length) {
+        if (length == 1) {
+            byte b = buffer.get(offset);
+            if (b == 't') {
+                return true;
+            }
+            if (b == 'f') {
+                return false;
+            }
+        }
+        throw error("boolean", buffer, offset, length);
+    }
+
+    public static int parseInt(ByteBuffer buffer, int offset, int length) {
+        long value = parseLong(buffer, offset, length);
+        if (value != (int) value) {
+            throw error("int4", buffer, offset, length);
+        }
+        return (int) value;
+    }
+
+    public static long parseLong(ByteBuffer buffer, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i++) == '-';
+        }
+        if (i == end) {
+            throw error("integer", buffer, offset, length);
+        }
+        // accumulate negatively so Long.MIN_VALUE parses
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                throw error("integer", buffer, offset, length);
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw error("integer", buffer, offset, length);
+            }
+            return -value;
+        }
+        return value;
+    }
+
+    /**
+     * Exact for up to 15 significant digits and small exponents, longer values such as the
+     * shortest round trip output of float8 fall back to {@link Double#parseDouble(String)}.
+     */
+    public static double parseDouble(ByteBuffer buffer, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i++) == '-';
+        }
+        if (i < end && !isDigit(buffer.get(i)) && buffer.get(i) != '.') {
+            return parseSpecialDouble(buffer, offset, length);
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean dot = false;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (isDigit(b)) {
+                if (mantissa != 0 || b != '0') {
+                    digits++;
+                }
+                if (digits > 15) {
+                    return slowParseDouble(buffer, offset, length);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (dot) {
+                    exponent--;
+                }
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else if (b == 'e' || b == 'E') {
+                exponent += (int) parseLong(buffer, i + 1, end - i - 1);
+                break;
+            } else {
+                throw error("float", buffer, offset, length);
+            }
+        }
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            // both operands are exact so the single rounding of the product is correct
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return slowParseDouble(buffer, offset, length);
+        }
+        return negative ? -value : value;
+    }
+
+    private static double parseSpecialDouble(ByteBuffer buffer, int offset, int length) {
+        if (equalsAscii(buffer, offset, length, "NaN")) {
+            return Double.NaN;
+        }
+        if (equalsAscii(buffer, offset, length, "Infinity")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (equalsAscii(buffer, offset, length, "-Infinity")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        throw error("float", buffer, offset, length);
+    }
+
+    private static double slowParseDouble(ByteBuffer buffer, int offset, int length) {
+        return Double.parseDouble(toString(buffer, offset, length));
+    }
+
+    /**
+     * Values with more than 18 significant digits allocate a {@link BigDecimal}.
+     *
+     * @return <code>into</code>
+     */
+    public static NumericValue parseNumeric(ByteBuffer buffer, int offset, int length, NumericValue into) {
+        int end = offset + length;
+        int i = offset;
+        if (i < end && !isDigit(buffer.get(i)) && buffer.get(i) != '-' && buffer.get(i) != '+' && buffer.get(i) != '.') {
+            if (equalsAscii(buffer, offset, length, "NaN")) {
+                into.setSpecial(NumericValue.NAN);
+                return into;
+            }
+            if (equalsAscii(buffer, offset, length, "Infinity")) {
+                into.setSpecial(NumericValue.POSITIVE_INFINITY);
+                return into;
+            }
+            throw error("numeric", buffer, offset, length);
+        }
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i++) == '-';
+            if (negative && equalsAscii(buffer, i, end - i, "Infinity")) {
+                into.setSpecial(NumericValue.NEGATIVE_INFINITY);
+                return into;
+            }
+        }
+        long unscaled = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (isDigit(b)) {
+                if (unscaled != 0 || b != '0') {
+                    digits++;
+                }
+                if (digits > 18) {
+                    into.set(new BigDecimal(toString(buffer, offset, length)));
+                    return into;
+                }
+                unscaled = unscaled * 10 + (b - '0');
+                if (dot) {
+                    scale++;
+                }
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else {
+                throw error("numeric", buffer, offset, length);
+            }
+        }
+        into.set(negative ? -unscaled : unscaled, scale);
+        return into;
+    }
+
+    /**
+     * Parse a timestamp or timestamptz in ISO format, e.g.
+     * <code>2021-03-04 05:06:07.123456+05:30</code>, including years past 9999, BC dates and
+     * the infinities.
+     *
+     * @return microseconds since 2000-01-01 UTC, or the wall clock as if it were UTC for a
+     * timestamp without time zone. <code>infinity</code> maps to {@link Long#MAX_VALUE} and
+     * <code>-infinity</code> to {@link Long#MIN_VALUE}, as in the server.
+     */
+    public static long parseTimestamp(ByteBuffer buffer, int offset, int length) {
+        if (length > 0 && !isDigit(buffer.get(offset))) {
+            if (equalsAscii(buffer, offset, length, "infinity")) {
+                return Long.MAX_VALUE;
+            }
+            if (equalsAscii(buffer, offset, length, "-infinity")) {
+                return Long.MIN_VALUE;
+            }
+            throw error("timestamp", buffer, offset, length);
+        }
+        int end = offset + length;
+        int i = offset;
+        int year = 0;
+        while (i < end && isDigit(buffer.get(i))) {
+            year = year * 10 + buffer.get(i++) - '0';
+        }
+        i = expect(buffer, i, end, '-', offset, length);
+        int month = twoDigits(buffer, i, end, offset, length);
+        i = expect(buffer, i + 2, end, '-', offset, length);
+        int day = twoDigits(buffer, i, end, offset, length);
+        i = expect(buffer, i + 2, end, ' ', offset, length);
+        int hour = twoDigits(buffer, i, end, offset, length);
+        i = expect(buffer, i + 2, end, ':', offset, length);
+        int minute = twoDigits(buffer, i, end, offset, length);
+        i = expect(buffer, i + 2, end, ':', offset, length);
+        int second = twoDigits(buffer, i, end, offset, length);
+        i += 2;
+
+        long micros = 0;
+        if (i < end && buffer.get(i) == '.') {
+            i++;
+            int scale = 0;
+            while (i < end && isDigit(buffer.get(i))) {
+                if (scale < 6) {
+                    micros = micros * 10 + buffer.get(i) - '0';
+                }
+                scale++;
+                i++;
+            }
+            for (; scale < 6; scale++) {
+                micros *= 10;
+            }
+        }
+
+        long offsetSeconds = 0;
+        if (i < end && (buffer.get(i) == '+' || buffer.get(i) == '-')) {
+            int sign = buffer.get(i++) == '-' ? -1 : 1;
+            long zone = twoDigits(buffer, i, end, offset, length) * 3600L;
+            i += 2;
+            if (i < end && buffer.get(i) == ':') {
+                zone += twoDigits(buffer, i + 1, end, offset, length) * 60L;
+                i += 3;
+                if (i < end && buffer.get(i) == ':') {
+                    zone += twoDigits(buffer, i + 1, end, offset, length);
+                    i += 3;
+                }
+            }
+            offsetSeconds = sign * zone;
+        }
+        if (i < end) {
+            if (equalsAscii(buffer, i, end - i, " BC")) {
+                year = 1 - year;
+            } else {
+                throw error("timestamp", buffer, offset, length);
+            }
+        }
+
+        long days = daysSinceUnixEpoch(year, month, day) - UNIX_TO_PG_EPOCH_DAYS;
+        long seconds = hour * 3600L + minute * 60L + second - offsetSeconds;
+        return days * MICROS_PER_DAY + seconds * MICROS_PER_SECOND + micros;
+    }
+
+    /**
+     * @return days since 2000-01-01 of a date in ISO format
+     */
+    public static int parseDate(ByteBuffer buffer, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        int year = 0;
+        while (i < end && isDigit(buffer.get(i))) {
+            year = year * 10 + buffer.get(i++) - '0';
+        }
+        i = expect(buffer, i, end, '-', offset, length);
+        int month = twoDigits(buffer, i, end, offset, length);
+        i = expect(buffer, i + 2, end, '-', offset, length);
+        int day = twoDigits(buffer, i, end, offset, length);
+        i += 2;
+        if (i < end) {
+            if (!equalsAscii(buffer, i, end - i, " BC")) {
+                throw error("date", buffer, offset, length);
+            }
+            year = 1 - year;
+        }
+        return (int) (daysSinceUnixEpoch(year, month, day) - UNIX_TO_PG_EPOCH_DAYS);
+    }
+
+    /* proleptic Gregorian calendar, as used by the server */
+    static long daysSinceUnixEpoch(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @return the first 64 bits of a uuid in its canonical text form
+     */
+    public static long parseUuidMostSignificantBits(ByteBuffer buffer, int offset, int length) {
+        checkUuid(buffer, offset, length);
+        return hex(buffer, offset, 8) << 32 | hex(buffer, offset + 9, 4) << 16 | hex(buffer, offset + 14, 4);
+    }
+
+    /**
+     * @return the last 64 bits of a uuid in its canonical text form
+     */
+    public static long parseUuidLeastSignificantBits(ByteBuffer buffer, int offset, int length) {
+        checkUuid(buffer, offset, length);
+        return hex(buffer, offset + 19, 4) << 48 | hex(buffer, offset + 24, 12);
+    }
+
+    private static void checkUuid(ByteBuffer buffer, int offset, int length) {
+        if (length != 36 || buffer.get(offset + 8) != '-' || buffer.get(offset + 13) != '-'
+                || buffer.get(offset + 18) != '-' || buffer.get(offset + 23) != '-') {
+            throw error("uuid", buffer, offset, length);
+        }
+    }
+
+    private static long hex(ByteBuffer buffer, int offset, int digits) {
+        long value = 0;
+        for (int i = 0; i < digits; i++) {
+            int nibble = hexDigit(buffer.get(offset + i));
+            if (nibble < 0) {
+                throw error("hex", buffer, offset, digits);
+            }
+            value = value << 4 | nibble;
+        }
+        return value;
+    }
+
+    private static int hexDigit(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of bytes a bytea in hex (<code>\x0a0b</code>) or escape format decodes to
+     */
+    public static int byteaLength(ByteBuffer buffer, int offset, int length) {
+        if (isHexBytea(buffer, offset, length)) {
+            return (length - 2) / 2;
+        }
+        int count = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; count++) {
+            i += buffer.get(i) == '\\' ? (buffer.get(i + 1) == '\\' ? 2 : 4) : 1;
+        }
+        return count;
+    }
+
+    /**
+     * Decode a bytea in hex or escape format into <code>dst</code>, which must have room for
+     * {@link #byteaLength(ByteBuffer, int, int)} bytes.
+     *
+     * @return the number of bytes written
+     */
+    public static int decodeBytea(ByteBuffer buffer, int offset, int length, byte[] dst, int dstOffset) {
+        int end = offset + length;
+        int out = dstOffset;
+        if (isHexBytea(buffer, offset, length)) {
+            for (int i = offset + 2; i + 1 < end; i += 2) {
+                int high = hexDigit(buffer.get(i));
+                int low = hexDigit(buffer.get(i + 1));
+                if (high < 0 || low < 0) {
+                    throw error("bytea", buffer, offset, length);
+                }
+                dst[out++] = (byte) (high << 4 | low);
+            }
+            return out - dstOffset;
+        }
+        for (int i = offset; i < end; ) {
+            byte b = buffer.get(i);
+            if (b != '\\') {
+                dst[out++] = b;
+                i++;
+            } else if (buffer.get(i + 1) == '\\') {
+                dst[out++] = '\\';
+                i += 2;
+            } else {
+                dst[out++] = (byte) ((buffer.get(i + 1) - '0') << 6 | (buffer.get(i + 2) - '0') << 3 | (buffer.get(i + 3) - '0'));
+                i += 4;
+            }
+        }
+        return out - dstOffset;
+    }
+
+    private static boolean isHexBytea(ByteBuffer buffer, int offset, int length) {
+        return length >= 2 && buffer.get(offset) == '\\' && buffer.get(offset + 1) == 'x';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int twoDigits(ByteBuffer buffer, int i, int end, int offset, int length) {
+        if (i + 1 >= end || !isDigit(buffer.get(i)) || !isDigit(buffer.get(i + 1))) {
+            throw error("timestamp", buffer, offset, length);
+        }
+        return (buffer.get(i) - '0') * 10 + buffer.get(i + 1) - '0';
+    }
+
+    private static int expect(ByteBuffer buffer, int i, int end, char expected, int offset, int length) {
+        if (i >= end || buffer.get(i) != expected) {
+            throw error("timestamp", buffer, offset, length);
+        }
+        return i + 1;
+    }
+
+    private static boolean equalsAscii(ByteBuffer buffer, int offset, int length, String expected) {
+        if (length != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String toString(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static NumberFormatException error(String type, ByteBuffer buffer, int offset, int length) {
+        return new NumberFormatException("invalid " + type + " value: " + toString(buffer, offset, length));
+    }
+}
@@ -0,0 +1,419 @@
+package com.postgresintl.logicaldecoding;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.postgresintl.logicaldecoding.metrics.ReplicationMetrics;
+
+/**
+ * Holds the messages of one transaction until it commits, with bounded memory.
+ *
+ * Messages are appended to a direct staging buffer that grows up to the memory budget.
+ * Once the budget is used up the staged messages are spilled to memory mapped segment
+ * files in the spill directory and staging starts over, so the heap never holds more than
+ * the message being appended and the off-heap use never exceeds the budget, however many
+ * rows the transaction has. {@link #replay(MessageHandler)} reads the segments and then the
+ * staging buffer back sequentially in append order.
+ *
+ * Each message is stored behind its length and a tag, the tags are used to drop the changes
+ * of aborted subtransactions at replay time.
+ *
+ * After a replay or {@link #clear()} up to <code>retainedSegments</code> segments are kept
+ * and reused by the next transactions that spill, so a stream of large transactions does
+ * not create and map new files every time. Segments beyond that, and the oversized ones
+ * made for a single large message, are unmapped and deleted right away rather than when
+ * the garbage collector gets to their buffers; disk and address space held between
+ * transactions are thus bounded by <code>retainedSegments * segmentSize</code>. Where the
+ * JVM does not allow unmapping, the file is still deleted and the mapping goes with the
+ * buffer. Not thread safe.
+ */
+public class TransactionBuffer implements AutoCloseable {
+    private static final int HEADER = 8;
+    private static final int INITIAL_STAGING = 64 * 1024;
+    private static final int RETAINED_SEGMENTS = 4;
+
+    private final int memoryBudget;
+    private final int segmentSize;
+    private final Path directory;
+    private final ReplicationMetrics metrics;
+    private final int retainedSegments;
+
+    private ByteBuffer staging;
+    private final List<Segment> segments = new ArrayList<>();
+    private int writeSegment;
+    private int[] discarded = new int[4];
+    private int discardedCount;
+    private boolean inTransaction;
+
+    private long messages;
+    private long bytes;
+    private long spills;
+    private long spilledBytes;
+    private long spillNanos;
+    private long segmentsCreated;
+
+    private static final class Segment {
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        int used;
+
+        Segment(Path path, int size) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        int capacity() {
+            return map.capacity();
+        }
+
+        void delete() throws IOException {
+            unmap(map);
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Release a mapping now instead of when the buffer is collected. Uses
+     * <code>Unsafe.invokeCleaner</code> on Java 9 and later and the buffer's cleaner on
+     * Java 8, and does nothing where neither is accessible.
+     */
+    private static void unmap(MappedByteBuffer map) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException java8) {
+                Method cleanerMethod = map.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(map);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), map);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left to the garbage collector
+        }
+    }
+
+    /**
+     * @param memoryBudget bytes of direct memory used for staging before spilling
+     * @param segmentSize  size of each spill file, larger messages get a segment of their own
+     * @param directory    where spill files are created
+     * @param metrics      receives the spill sizes and times, may be null
+     */
+    public TransactionBuffer(int memoryBudget, int segmentSize, Path directory, ReplicationMetrics metrics) {
+        this(memoryBudget, segmentSize, directory, metrics, RETAINED_SEGMENTS);
+    }
+
+    /**
+     * @param retainedSegments segments kept for reuse after a transaction, at least 1
+     */
+    public TransactionBuffer(int memoryBudget, int segmentSize, Path directory, ReplicationMetrics metrics,
+                             int retainedSegments) {
+        if (memoryBudget < HEADER) {
+            throw new IllegalArgumentException("memory budget too small: " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+        this.segmentSize = segmentSize;
+        this.directory = directory;
+        this.metrics = metrics;
+        this.retainedSegments = Math.max(1, retainedSegments);
+        this.staging = ByteBuffer.allocateDirect(Math.min(INITIAL_STAGING, memoryBudget));
+    }
+
+    /**
+     * 8 MB of staging, 64 MB segments in the temporary directory.
+     */
+    public TransactionBuffer() {
+        this(8 * 1024 * 1024, 64 * 1024 * 1024, Paths.get(System.getProperty("java.io.tmpdir")), null);
+    }
+
+    /**
+     * Collect every message from BEGIN to COMMIT and hand the whole transaction to
+     * <code>handler</code> once the COMMIT arrived.
+     *
+     * @return true if the message was consumed, false if it arrived outside a transaction
+     * and the caller should handle it directly
+     */
+    public boolean accept(ByteBuffer message, MessageHandler handler) throws Exception {
+        byte type = message.get(message.position());
+        if (type == PgOutputMessage.BEGIN) {
+            clear();
+            inTransaction = true;
+        } else if (!inTransaction) {
+            return false;
+        }
+        append(message);
+        if (type == PgOutputMessage.COMMIT) {
+            inTransaction = false;
+            replay(handler);
+        }
+        return true;
+    }
+
+    /**
+     * Store the message between <code>position()</code> and <code>limit()</code>.
+     */
+    public void append(ByteBuffer message) throws IOException {
+        append(0, message, message.position(), 0);
+    }
+
+    /**
+     * Store the type byte at <code>start</code> followed by the message from
+     * <code>start + 1 + skip</code> on, used to strip the XID of streamed changes.
+     */
+    void append(int tag, ByteBuffer message, int start, int skip) throws IOException {
+        int length = message.limit() - start - skip;
+        int record = HEADER + length;
+        if (record > staging.remaining()) {
+            makeRoom(record);
+        }
+        if (record <= staging.remaining()) {
+            write(staging, tag, message, start, skip, length);
+        } else {
+            // larger than the whole budget, goes straight to a segment of its own
+            long begin = System.nanoTime();
+            Segment segment = segmentFor(record);
+            ByteBuffer target = segment.map.duplicate();
+            target.position(segment.used);
+            write(target, tag, message, start, skip, length);
+            segment.used += record;
+            spilled(record, System.nanoTime() - begin);
+        }
+        messages++;
+        bytes += length;
+    }
+
+    private static void write(ByteBuffer target, int tag, ByteBuffer message, int start, int skip, int length) {
+        target.putInt(length);
+        target.putInt(tag);
+        target.put(message.get(start));
+        ByteBuffer source = message.duplicate();
+        source.limit(message.limit());
+        source.position(start + 1 + skip);
+        target.put(source);
+    }
+
+    private void makeRoom(int record) throws IOException {
+        if (staging.position() + record > memoryBudget) {
+            spill();
+        }
+        int wanted = staging.position() + record;
+        if (wanted > staging.capacity() && wanted <= memoryBudget) {
+            int size = staging.capacity();
+            while (size < wanted) {
+                size = (int) Math.min(memoryBudget, size * 2L);
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect(size);
+            staging.flip();
+            grown.put(staging);
+            staging = grown;
+        }
+    }
+
+    /**
+     * Move the staged messages to the segment files.
+     */
+    private void spill() throws IOException {
+        if (staging.position() == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        int spilled = staging.position();
+        staging.flip();
+        ByteBuffer source = staging.duplicate();
+        // copy whole runs of records that fit into the current segment
+        while (source.hasRemaining()) {
+            Segment segment = segmentFor(source.getInt(source.position()) + HEADER);
+            int room = segment.capacity() - segment.used;
+            int end = source.position();
+            while (end < source.limit() && end + HEADER + source.getInt(end) - source.position() <= room) {
+                end += HEADER + source.getInt(end);
+            }
+            ByteBuffer run = source.duplicate();
+            run.limit(end);
+            ByteBuffer target = segment.map.duplicate();
+            target.position(segment.used);
+            target.put(run);
+            segment.used += end - source.position();
+            source.position(end);
+        }
+        staging.clear();
+        spilled(spilled, System.nanoTime() - start);
+    }
+
+    private void spilled(int size, long nanos) {
+        spills++;
+        spilledBytes += size;
+        spillNanos += nanos;
+        if (metrics != null) {
+            metrics.spill(size, nanos);
+        }
+    }
+
+    private Segment segmentFor(int size) throws IOException {
+        while (writeSegment < segments.size()) {
+            Segment segment = segments.get(writeSegment);
+            if (segment.capacity() - segment.used >= size) {
+                return segment;
+            }
+            writeSegment++;
+        }
+        Path path = Files.createTempFile(directory, "txn-", ".spill");
+        Segment segment = new Segment(path, Math.max(segmentSize, size));
+        segments.add(segment);
+        segmentsCreated++;
+        return segment;
+    }
+
+    /**
+     * Mark the messages appended with <code>tag</code> as dropped, they are skipped by
+     * {@link #replay(MessageHandler)}.
+     */
+    void discard(int tag) {
+        if (discardedCount == discarded.length) {
+            int[] grown = new int[discarded.length * 2];
+            System.arraycopy(discarded, 0, grown, 0, discardedCount);
+            discarded = grown;
+        }
+        discarded[discardedCount++] = tag;
+    }
+
+    private boolean isDiscarded(int tag) {
+        for (int i = 0; i < discardedCount; i++) {
+            if (discarded[i] == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hand every stored message to <code>handler</code> in append order, then clear.
+     */
+    public void replay(MessageHandler handler) throws Exception {
+        try {
+            for (Segment segment : segments) {
+                replay(segment.map, segment.used, handler);
+            }
+            replay(staging, staging.position(), handler);
+        } finally {
+            clear();
+        }
+    }
+
+    private void replay(ByteBuffer source, int end, MessageHandler handler) throws Exception {
+        ByteBuffer view = source.duplicate();
+        int offset = 0;
+        while (offset < end) {
+            int length = source.getInt(offset);
+            int tag = source.getInt(offset + 4);
+            int start = offset + HEADER;
+            offset = start + length;
+            if (discardedCount > 0 && isDiscarded(tag)) {
+                continue;
+            }
+            view.limit(offset);
+            view.position(start);
+            handler.onMessage(view);
+        }
+    }
+
+    /**
+     * Drop everything stored, keeping up to <code>retainedSegments</code> segments of the
+     * regular size for reuse.
+     */
+    public void clear() throws IOException {
+        staging.clear();
+        int kept = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (kept < retainedSegments && segment.capacity() == segmentSize) {
+                segment.used = 0;
+                segments.set(kept++, segment);
+            } else {
+                segment.delete();
+            }
+        }
+        while (segments.size() > kept) {
+            segments.remove(segments.size() - 1);
+        }
+        writeSegment = 0;
+        discardedCount = 0;
+        inTransaction = false;
+        messages = 0;
+        bytes = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        clear();
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+    }
+
+    /**
+     * @return messages stored since the last replay or clear
+     */
+    public long messages() {
+        return messages;
+    }
+
+    /**
+     * @return message bytes stored since the last replay or clear
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return direct memory currently allocated for staging
+     */
+    public int stagingCapacity() {
+        return staging.capacity();
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return spill files created since the buffer was created, stays flat while retained
+     * segments are reused
+     */
+    public long getSegmentsCreated() {
+        return segmentsCreated;
+    }
+
+    public long getSpills() {
+        return spills;
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    public long getSpillNanos() {
+        return spillNanos;
+    }
+}
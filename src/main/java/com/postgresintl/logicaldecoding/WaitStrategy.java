@@ -0,0 +1,248 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.postgresql.replication.PGReplicationStream;
+
+/**
+ * Decides what the reading thread does while {@link PGReplicationStream#readPending()} has
+ * nothing for it.
+ *
+ * Busy spinning gives the lowest pickup latency at the cost of a core, parking keeps an idle
+ * consumer close to zero CPU, blocking hands the wait to the driver's socket read.
+ * Every strategy counts how often each stage was hit so the choice can be checked against
+ * the actual traffic.
+ *
+ * An instance keeps per-stream state and must only be used by one reading thread, the
+ * counters may be read from any thread.
+ */
+public abstract class WaitStrategy {
+    private volatile long messages;
+    private volatile long spins;
+    private volatile long yields;
+    private volatile long parks;
+    private volatile long parkedNanos;
+    private volatile long blockingReads;
+
+    /**
+     * Work done on the reading thread while the stream is quiet, e.g. sending feedback.
+     */
+    public interface IdleTask {
+        void run(PGReplicationStream stream) throws SQLException;
+    }
+
+    /**
+     * Wait for the next message on the stream.
+     *
+     * @return the next message, or null if the stream was closed while waiting
+     */
+    public ByteBuffer next(PGReplicationStream stream) throws SQLException, InterruptedException {
+        return next(stream, null);
+    }
+
+    /**
+     * Wait for the next message on the stream, running <code>idleTask</code> after every
+     * empty poll.
+     *
+     * @return the next message, or null if the stream was closed while waiting
+     */
+    public ByteBuffer next(PGReplicationStream stream, IdleTask idleTask) throws SQLException, InterruptedException {
+        int attempt = 0;
+        ByteBuffer buffer;
+        while ((buffer = stream.readPending()) == null) {
+            if (stream.isClosed()) {
+                return null;
+            }
+            if (idleTask != null) {
+                idleTask.run(stream);
+            }
+            idle(attempt++);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        messages++;
+        return buffer;
+    }
+
+    /**
+     * Called after <code>attempt</code> consecutive polls found nothing.
+     * Also used on its own by code that polls something other than a stream.
+     */
+    public abstract void idle(int attempt);
+
+    protected final void spin() {
+        spins++;
+    }
+
+    protected final void yieldThread() {
+        yields++;
+        Thread.yield();
+    }
+
+    protected final void park(long nanos) {
+        parks++;
+        long start = System.nanoTime();
+        LockSupport.parkNanos(nanos);
+        parkedNanos += System.nanoTime() - start;
+    }
+
+    protected final void countMessage() {
+        messages++;
+    }
+
+    protected final void countBlockingRead() {
+        blockingReads++;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getSpins() {
+        return spins;
+    }
+
+    public long getYields() {
+        return yields;
+    }
+
+    public long getParks() {
+        return parks;
+    }
+
+    public long getParkedNanos() {
+        return parkedNanos;
+    }
+
+    public long getBlockingReads() {
+        return blockingReads;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " messages: " + messages + " spins: " + spins + " yields: " + yields
+                + " parks: " + parks + " parked ms: " + TimeUnit.NANOSECONDS.toMillis(parkedNanos)
+                + " blocking reads: " + blockingReads;
+    }
+
+    /**
+     * Poll continuously, lowest latency, burns a core.
+     */
+    public static WaitStrategy busySpin() {
+        return new BusySpin();
+    }
+
+    /**
+     * Spin for <code>spins</code> polls, then yield the processor between polls.
+     */
+    public static WaitStrategy spinThenYield(int spins) {
+        return new SpinThenYield(spins);
+    }
+
+    /**
+     * Spin, then yield, then park for exponentially growing periods up to <code>maxParkNanos</code>.
+     * Parks are at least a microsecond, a shorter <code>minParkNanos</code> is raised to that.
+     */
+    public static WaitStrategy backoff(int spins, int yields, long minParkNanos, long maxParkNanos) {
+        return new Backoff(spins, yields, minParkNanos, maxParkNanos);
+    }
+
+    /**
+     * Backoff with defaults suited to a mostly idle stream: sub-millisecond pickup while
+     * messages keep coming, at most 1 ms of parking once the stream goes quiet.
+     */
+    public static WaitStrategy backoff() {
+        return backoff(100, 50, TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Let the driver block on the socket with {@link PGReplicationStream#read()}.
+     */
+    public static WaitStrategy blocking() {
+        return new Blocking();
+    }
+
+    static final class BusySpin extends WaitStrategy {
+        @Override
+        public void idle(int attempt) {
+            spin();
+        }
+    }
+
+    static final class SpinThenYield extends WaitStrategy {
+        private final int spins;
+
+        SpinThenYield(int spins) {
+            this.spins = spins;
+        }
+
+        @Override
+        public void idle(int attempt) {
+            if (attempt < spins) {
+                spin();
+            } else {
+                yieldThread();
+            }
+        }
+    }
+
+    static final class Backoff extends WaitStrategy {
+        // parkNanos(0) returns at once, which would be busy spinning with extra steps
+        static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+
+        private final int spins;
+        private final int yields;
+        private final long minParkNanos;
+        private final long maxParkNanos;
+
+        Backoff(int spins, int yields, long minParkNanos, long maxParkNanos) {
+            this.spins = spins;
+            this.yields = spins + yields;
+            this.minParkNanos = Math.max(MIN_PARK_NANOS, minParkNanos);
+            this.maxParkNanos = Math.max(this.minParkNanos, maxParkNanos);
+        }
+
+        @Override
+        public void idle(int attempt) {
+            // a caller counting attempts for long enough wraps around to negative
+            if (attempt < 0) {
+                park(maxParkNanos);
+            } else if (attempt < spins) {
+                spin();
+            } else if (attempt < yields) {
+                yieldThread();
+            } else {
+                int shift = Math.min(attempt - yields, Long.numberOfLeadingZeros(minParkNanos) - 2);
+                park(Math.min(maxParkNanos, minParkNanos << shift));
+            }
+        }
+    }
+
+    /**
+     * The idle task only runs once before every read, while blocked the driver keeps sending
+     * the last status it was given.
+     */
+    static final class Blocking extends WaitStrategy {
+        @Override
+        public ByteBuffer next(PGReplicationStream stream, IdleTask idleTask) throws SQLException {
+            if (idleTask != null) {
+                idleTask.run(stream);
+            }
+            countBlockingRead();
+            ByteBuffer buffer = stream.read();
+            if (buffer != null) {
+                countMessage();
+            }
+            return buffer;
+        }
+
+        @Override
+        public void idle(int attempt) {
+            park(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
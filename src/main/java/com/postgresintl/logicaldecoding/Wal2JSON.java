@@ -1,6 +1,7 @@
 package com.postgresintl.logicaldecoding;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class Wal2JSON {
     ByteBuffer byteBuffer;
@@ -10,10 +11,15 @@ public class Wal2JSON {
 
     @Override
     public String toString() {
-        int offset = byteBuffer.arrayOffset();
-        byte[] source = byteBuffer.array();
-        int length = source.length - offset;
-
-        return new String(source, offset, length);
+        // only the bytes between position and limit belong to the message, the driver reuses
+        // a larger array and replayed captures are direct buffers
+        int length = byteBuffer.remaining();
+        if (byteBuffer.hasArray()) {
+            return new String(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), length,
+                    StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        byteBuffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 }
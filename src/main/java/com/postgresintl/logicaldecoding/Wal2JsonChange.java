@@ -0,0 +1,376 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One change decoded from wal2json output, reused for every change.
+ *
+ * Strings and values are kept as offsets into the message buffer and only turned into Java
+ * objects by the accessors that say they allocate; numbers and booleans are parsed in place
+ * through {@link TextDecoding}. The change is only valid until the parser moves on.
+ *
+ * The kind uses the pgoutput message letters: <code>I</code>, <code>U</code>,
+ * <code>D</code>, <code>T</code> for truncate and <code>M</code> for a logical decoding
+ * message, whose prefix and content are in {@link #prefix()} and {@link #content()}.
+ * Format-version 2 also has <code>B</code> and <code>C</code> for transaction boundaries.
+ */
+public final class Wal2JsonChange {
+    public static final char INSERT = 'I';
+    public static final char UPDATE = 'U';
+    public static final char DELETE = 'D';
+    public static final char TRUNCATE = 'T';
+    public static final char MESSAGE = 'M';
+    public static final char BEGIN = 'B';
+    public static final char COMMIT = 'C';
+
+    private final Fields columns = new Fields();
+    private final Fields oldKeys = new Fields();
+    private ByteBuffer buffer;
+    private char kind;
+    private int schemaOffset;
+    private int schemaLength;
+    private int tableOffset;
+    private int tableLength;
+    private int prefixOffset;
+    private int prefixLength;
+    private int contentOffset;
+    private int contentLength;
+    private boolean contentEscaped;
+
+    void reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        kind = 0;
+        schemaLength = -1;
+        tableLength = -1;
+        prefixLength = -1;
+        contentLength = -1;
+        columns.reset(buffer);
+        oldKeys.reset(buffer);
+    }
+
+    void kind(char kind) {
+        this.kind = kind;
+    }
+
+    void schema(int offset, int length) {
+        schemaOffset = offset;
+        schemaLength = length;
+    }
+
+    void table(int offset, int length) {
+        tableOffset = offset;
+        tableLength = length;
+    }
+
+    void prefix(int offset, int length) {
+        prefixOffset = offset;
+        prefixLength = length;
+    }
+
+    void content(int offset, int length, boolean escaped) {
+        contentOffset = offset;
+        contentLength = length;
+        contentEscaped = escaped;
+    }
+
+    /**
+     * Map a wal2json kind or action to the letter used here.
+     */
+    static char kind(ByteBuffer buffer, int offset, int length) {
+        if (length == 1) {
+            return (char) buffer.get(offset);
+        }
+        if (JsonLexer.equalsAscii(buffer, offset, length, "insert")) {
+            return INSERT;
+        } else if (JsonLexer.equalsAscii(buffer, offset, length, "update")) {
+            return UPDATE;
+        } else if (JsonLexer.equalsAscii(buffer, offset, length, "delete")) {
+            return DELETE;
+        } else if (JsonLexer.equalsAscii(buffer, offset, length, "truncate")) {
+            return TRUNCATE;
+        } else if (JsonLexer.equalsAscii(buffer, offset, length, "message")) {
+            return MESSAGE;
+        }
+        throw new IllegalArgumentException("unknown wal2json kind " + TextDecoding.toString(buffer, offset, length));
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public char kind() {
+        return kind;
+    }
+
+    /**
+     * Allocates.
+     */
+    public String schema() {
+        return schemaLength < 0 ? null : TextDecoding.toString(buffer, schemaOffset, schemaLength);
+    }
+
+    /**
+     * Allocates.
+     */
+    public String table() {
+        return tableLength < 0 ? null : TextDecoding.toString(buffer, tableOffset, tableLength);
+    }
+
+    /**
+     * Compare the table without allocating, names are matched as written by wal2json.
+     */
+    public boolean isTable(String schema, String table) {
+        return JsonLexer.equalsAscii(buffer, tableOffset, tableLength, table)
+                && JsonLexer.equalsAscii(buffer, schemaOffset, schemaLength, schema);
+    }
+
+    /**
+     * Hash of the schema and table as written by wal2json, never 0, to look a relation up
+     * without allocating. Confirm a match with {@link #isTable(String, String)}.
+     */
+    int tableHash() {
+        int h = hash(1, schemaOffset, schemaLength);
+        h = hash(31 * h + '.', tableOffset, tableLength);
+        return h == 0 ? 1 : h;
+    }
+
+    private int hash(int h, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + buffer.get(offset + i);
+        }
+        return h;
+    }
+
+    /**
+     * The prefix of a message, allocates.
+     */
+    public String prefix() {
+        return prefixLength < 0 ? null : TextDecoding.toString(buffer, prefixOffset, prefixLength);
+    }
+
+    /**
+     * The content of a message, allocates.
+     */
+    public String content() {
+        return contentLength < 0 ? null : JsonLexer.unescape(buffer, contentOffset, contentLength, contentEscaped);
+    }
+
+    /**
+     * New values of an insert or update.
+     */
+    public Fields columns() {
+        return columns;
+    }
+
+    /**
+     * Replica identity of an update or delete, empty unless the table has one.
+     */
+    public Fields oldKeys() {
+        return oldKeys;
+    }
+
+    /**
+     * Names, types and values of a list of columns.
+     *
+     * The typed getters throw {@link IllegalStateException} for a null value and
+     * {@link NumberFormatException} when the value does not parse.
+     */
+    public static final class Fields {
+        private ByteBuffer buffer;
+        private final Spans names = new Spans();
+        private final Spans types = new Spans();
+        private final Spans values = new Spans();
+
+        void reset(ByteBuffer buffer) {
+            this.buffer = buffer;
+            names.count = 0;
+            types.count = 0;
+            values.count = 0;
+        }
+
+        void addName(int offset, int length, boolean escaped) {
+            names.add(JsonLexer.STRING, offset, length, escaped);
+        }
+
+        void addType(int offset, int length, boolean escaped) {
+            types.add(JsonLexer.STRING, offset, length, escaped);
+        }
+
+        /**
+         * A column whose type was not read.
+         */
+        void addNoType() {
+            types.add(JsonLexer.NULL, 0, 0, false);
+        }
+
+        void addValue(int token, int offset, int length, boolean escaped) {
+            values.add(token, offset, length, escaped);
+        }
+
+        /**
+         * Pad the types and values to the names, for columns that were read without them.
+         */
+        void fill() {
+            while (types.count < names.count) {
+                types.add(JsonLexer.NULL, 0, 0, false);
+            }
+            while (values.count < names.count) {
+                values.add(JsonLexer.NULL, 0, 0, false);
+            }
+        }
+
+        public int count() {
+            return Math.max(names.count, values.count);
+        }
+
+        /**
+         * @return the position of the column called <code>name</code>, -1 if there is none
+         */
+        public int indexOf(String name) {
+            for (int i = 0; i < names.count; i++) {
+                if (JsonLexer.equalsAscii(buffer, names.offsets[i], names.lengths[i], name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Compare the name of column <code>i</code> without allocating.
+         */
+        boolean nameEquals(int i, String name) {
+            return JsonLexer.equalsAscii(buffer, names.offsets[i], names.lengths[i], name);
+        }
+
+        /**
+         * @return true if the string value of column <code>i</code> contains escapes
+         */
+        boolean isEscaped(int i) {
+            return values.escaped[i];
+        }
+
+        /**
+         * Allocates.
+         */
+        public String name(int i) {
+            return names.string(buffer, i);
+        }
+
+        /**
+         * The type name as wal2json writes it, allocates.
+         */
+        public String type(int i) {
+            return i < types.count && types.tokens[i] == JsonLexer.STRING ? types.string(buffer, i) : null;
+        }
+
+        public boolean isNull(int i) {
+            return values.tokens[i] == JsonLexer.NULL;
+        }
+
+        /**
+         * @return the {@link JsonLexer} token of the value
+         */
+        public int token(int i) {
+            return values.tokens[i];
+        }
+
+        /**
+         * @return offset of the value in the buffer, inside the quotes of a string
+         */
+        public int offset(int i) {
+            return values.offsets[i];
+        }
+
+        public int length(int i) {
+            return values.lengths[i];
+        }
+
+        public boolean getBoolean(int i) {
+            switch (check(i)) {
+                case JsonLexer.TRUE:
+                    return true;
+                case JsonLexer.FALSE:
+                    return false;
+                default:
+                    return TextDecoding.parseBoolean(buffer, values.offsets[i], values.lengths[i]);
+            }
+        }
+
+        public int getInt(int i) {
+            check(i);
+            return TextDecoding.parseInt(buffer, values.offsets[i], values.lengths[i]);
+        }
+
+        public long getLong(int i) {
+            check(i);
+            return TextDecoding.parseLong(buffer, values.offsets[i], values.lengths[i]);
+        }
+
+        public double getDouble(int i) {
+            check(i);
+            return TextDecoding.parseDouble(buffer, values.offsets[i], values.lengths[i]);
+        }
+
+        /**
+         * @return <code>into</code>
+         */
+        public NumericValue getNumeric(int i, NumericValue into) {
+            check(i);
+            return TextDecoding.parseNumeric(buffer, values.offsets[i], values.lengths[i], into);
+        }
+
+        /**
+         * @return microseconds since 2000-01-01, see {@link TextDecoding#parseTimestamp}
+         */
+        public long getTimestampMicros(int i) {
+            check(i);
+            return TextDecoding.parseTimestamp(buffer, values.offsets[i], values.lengths[i]);
+        }
+
+        /**
+         * The value as text, unescaped, null for a null value. Allocates.
+         */
+        public String getString(int i) {
+            return isNull(i) ? null : values.string(buffer, i);
+        }
+
+        private int check(int i) {
+            int token = values.tokens[i];
+            if (token == JsonLexer.NULL) {
+                throw new IllegalStateException("column " + i + " is null");
+            }
+            return token;
+        }
+    }
+
+    /**
+     * Growable parallel arrays of token, offset, length and escape flag.
+     */
+    private static final class Spans {
+        private byte[] tokens = new byte[16];
+        private int[] offsets = new int[16];
+        private int[] lengths = new int[16];
+        private boolean[] escaped = new boolean[16];
+        private int count;
+
+        void add(int token, int offset, int length, boolean escape) {
+            if (count == tokens.length) {
+                int capacity = count * 2;
+                tokens = Arrays.copyOf(tokens, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                escaped = Arrays.copyOf(escaped, capacity);
+            }
+            tokens[count] = (byte) token;
+            offsets[count] = offset;
+            lengths[count] = length;
+            escaped[count] = escape;
+            count++;
+        }
+
+        String string(ByteBuffer buffer, int i) {
+            return JsonLexer.unescape(buffer, offsets[i], lengths[i], escaped[i]);
+        }
+    }
+}
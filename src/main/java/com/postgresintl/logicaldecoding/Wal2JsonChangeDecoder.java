@@ -0,0 +1,222 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.postgresintl.logicaldecoding.model.Attribute;
+import com.postgresintl.logicaldecoding.model.Relation;
+
+/**
+ * {@link ChangeDecoder} for wal2json, either format version. A message starting with
+ * <code>{"action"</code> is a format-version 2 row and goes through a
+ * {@link Wal2JsonRowDecoder}, anything else is fed to a {@link Wal2JsonParser}, which also
+ * takes a document written in chunks.
+ *
+ * wal2json sends names rather than a RELATION message, so a relation is built from the
+ * column names and type names of the first change to a table, with type OIDs from
+ * {@link PgType#forName(String)}, and built again when a later change has other columns.
+ * Relations are found by a hash of the schema and table bytes, without allocating.
+ * Values are copied as text: strings as they are, unless they contain escapes, numbers as
+ * written and booleans as <code>t</code> or <code>f</code>. The old keys of an update or
+ * delete are laid out like the table, the columns outside the key are NULL.
+ */
+public final class Wal2JsonChangeDecoder implements ChangeDecoder {
+    private static final String ACTION = "{\"action\"";
+
+    private final Wal2JsonParser parser = new Wal2JsonParser();
+    private final Wal2JsonRowDecoder rowDecoder = new Wal2JsonRowDecoder();
+    // by Wal2JsonChange#tableHash(), more than one relation in a list only on a collision
+    private final IntObjectMap<List<Relation>> relations = new IntObjectMap<>();
+    private int[] keyColumns = new int[16];
+    private final ChangeEventPool pool;
+    private boolean inDocument;
+    private long xid;
+    private long commitTime;
+
+    public Wal2JsonChangeDecoder(ChangeEventPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void decode(ByteBuffer message, long lsn, Sink sink) throws Exception {
+        if (!inDocument && JsonLexer.equalsAscii(message, message.position(),
+                Math.min(ACTION.length(), message.remaining()), ACTION)) {
+            Wal2JsonChange change = rowDecoder.decode(message);
+            switch (change.kind()) {
+                case Wal2JsonChange.BEGIN:
+                    xid = rowDecoder.xid();
+                    commitTime = rowDecoder.timestamp();
+                    return;
+                case Wal2JsonChange.COMMIT:
+                    if (rowDecoder.timestamp() != 0) {
+                        commitTime = rowDecoder.timestamp();
+                    }
+                    return;
+                default:
+                    long rowXid = rowDecoder.xid() != 0 ? rowDecoder.xid() : xid;
+                    emit(change, lsn, rowXid, commitTime, sink);
+                    return;
+            }
+        }
+        parser.feed(message);
+        int event;
+        while ((event = parser.next()) != Wal2JsonParser.NEED_INPUT) {
+            switch (event) {
+                case Wal2JsonParser.BEGIN:
+                    inDocument = true;
+                    break;
+                case Wal2JsonParser.CHANGE:
+                    emit(parser.change(), lsn, parser.xid(), parser.timestamp(), sink);
+                    break;
+                case Wal2JsonParser.COMMIT:
+                default:
+                    inDocument = false;
+            }
+        }
+    }
+
+    private void emit(Wal2JsonChange change, long lsn, long xid, long commitTime, Sink sink) throws Exception {
+        ChangeEvent.Operation operation;
+        switch (change.kind()) {
+            case Wal2JsonChange.INSERT:
+                operation = ChangeEvent.Operation.INSERT;
+                break;
+            case Wal2JsonChange.UPDATE:
+                operation = ChangeEvent.Operation.UPDATE;
+                break;
+            case Wal2JsonChange.DELETE:
+                operation = ChangeEvent.Operation.DELETE;
+                break;
+            default:
+                // truncate and messages are not row changes
+                return;
+        }
+        Wal2JsonChange.Fields columns = change.columns();
+        Wal2JsonChange.Fields keys = change.oldKeys();
+        Relation relation = relation(change, columns.count() > 0 ? columns : keys, columns.count() == 0);
+        ChangeEvent event = pool.acquire();
+        event.reset(operation, relation, lsn, xid, commitTime);
+        if (keys.count() > 0) {
+            int[] keyColumns = keyColumns(relation, keys);
+            event.beginTuple(true, relation.getAttributeCount());
+            for (int i = 0; i < relation.getAttributeCount(); i++) {
+                int key = keyColumns[i];
+                if (key < 0) {
+                    event.addNull();
+                } else {
+                    copy(change.buffer(), keys, key, event);
+                }
+            }
+        }
+        if (columns.count() > 0) {
+            event.beginTuple(false, columns.count());
+            for (int i = 0; i < columns.count(); i++) {
+                copy(change.buffer(), columns, i, event);
+            }
+        }
+        event.complete();
+        sink.onChange(event);
+    }
+
+    private static void copy(ByteBuffer buffer, Wal2JsonChange.Fields fields, int i, ChangeEvent event) {
+        switch (fields.token(i)) {
+            case JsonLexer.NULL:
+                event.addNull();
+                break;
+            case JsonLexer.TRUE:
+                event.data()[event.reserve(PgOutputTuple.TEXT, 1)] = 't';
+                break;
+            case JsonLexer.FALSE:
+                event.data()[event.reserve(PgOutputTuple.TEXT, 1)] = 'f';
+                break;
+            case JsonLexer.STRING:
+                if (fields.isEscaped(i)) {
+                    event.addText(fields.getString(i));
+                    break;
+                }
+                event.addValue(PgOutputTuple.TEXT, buffer, fields.offset(i), fields.length(i));
+                break;
+            default:
+                event.addValue(PgOutputTuple.TEXT, buffer, fields.offset(i), fields.length(i));
+        }
+    }
+
+    /**
+     * @return for every column of <code>relation</code> its position in <code>keys</code>,
+     *         -1 if it is not a key. One pass over the columns when the keys are in table
+     *         order, as wal2json writes them.
+     */
+    private int[] keyColumns(Relation relation, Wal2JsonChange.Fields keys) {
+        int count = relation.getAttributeCount();
+        if (keyColumns.length < count) {
+            keyColumns = new int[Math.max(count, keyColumns.length * 2)];
+        }
+        Arrays.fill(keyColumns, 0, count, -1);
+        int column = 0;
+        for (int key = 0; key < keys.count(); key++) {
+            for (int tried = 0; tried < count; tried++) {
+                int at = column;
+                column = column + 1 == count ? 0 : column + 1;
+                if (keys.nameEquals(key, relation.getAttribute(at).getName())) {
+                    keyColumns[at] = key;
+                    break;
+                }
+            }
+        }
+        return keyColumns;
+    }
+
+    /**
+     * @param fields the columns of the change, or its old keys if it has no columns
+     * @param keysOnly a relation built from <code>fields</code> only has the key columns,
+     *                 it is replaced by the first change with all of them
+     */
+    private Relation relation(Wal2JsonChange change, Wal2JsonChange.Fields fields, boolean keysOnly) {
+        int hash = change.tableHash();
+        List<Relation> candidates = relations.get(hash);
+        if (candidates == null) {
+            candidates = new ArrayList<>(1);
+            relations.put(hash, candidates);
+        }
+        int found = -1;
+        for (int i = 0; i < candidates.size(); i++) {
+            Relation relation = candidates.get(i);
+            if (change.isTable(relation.getSchema(), relation.getName())) {
+                if (keysOnly || sameColumns(relation, fields)) {
+                    return relation;
+                }
+                found = i;
+                break;
+            }
+        }
+        Relation relation = new Relation();
+        relation.setSchema(change.schema());
+        relation.setName(change.table());
+        for (int i = 0; i < fields.count(); i++) {
+            String type = fields.type(i);
+            relation.addAttribute(new Attribute(type == null ? 0 : PgType.forName(type), fields.name(i), -1,
+                    (byte) (keysOnly ? 1 : 0)));
+        }
+        if (found < 0) {
+            candidates.add(relation);
+        } else {
+            relation.setVersion(candidates.get(found).getVersion() + 1);
+            candidates.set(found, relation);
+        }
+        return relation;
+    }
+
+    private static boolean sameColumns(Relation relation, Wal2JsonChange.Fields fields) {
+        if (relation.getAttributeCount() != fields.count()) {
+            return false;
+        }
+        for (int i = 0; i < fields.count(); i++) {
+            if (!fields.nameEquals(i, relation.getAttribute(i).getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
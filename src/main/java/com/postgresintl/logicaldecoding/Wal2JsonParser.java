@@ -0,0 +1,439 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser for wal2json format-version 1, which writes a whole transaction as one
+ * document:
+ *
+ * <pre>
+ *   {"xid":1234,"nextlsn":"0/16B2A38","timestamp":"...","change":[{"kind":"insert",...},...]}
+ * </pre>
+ *
+ * Messages are handed in with {@link #feed(ByteBuffer)} and {@link #next()} pulls events out
+ * of them, one change at a time, into a reused {@link Wal2JsonChange} that points into the
+ * message. The document is never materialised, so a transaction of any size is parsed in
+ * the memory of its largest change.
+ *
+ * With <code>write-in-chunks</code> wal2json spreads the document over several messages,
+ * usually one change per message. Parsing simply continues with the next message; anything
+ * cut off at the end of a message, normally nothing, is copied into a carry buffer and
+ * completed from the next one.
+ *
+ * <pre>
+ *   parser.feed(buffer);
+ *   int event;
+ *   while ((event = parser.next()) != Wal2JsonParser.NEED_INPUT) {
+ *       if (event == Wal2JsonParser.CHANGE) { ... parser.change() ... }
+ *   }
+ * </pre>
+ *
+ * Not thread safe, use one parser per stream.
+ */
+public final class Wal2JsonParser {
+    /** everything fed has been parsed */
+    public static final int NEED_INPUT = 0;
+    /** the header of a transaction, {@link #xid()} and friends are set */
+    public static final int BEGIN = 1;
+    public static final int CHANGE = 2;
+    /** the end of a transaction */
+    public static final int COMMIT = 3;
+
+    // where the parser is in the document
+    private static final int DOCUMENT = 0;
+    private static final int KEY = 1;
+    private static final int VALUE = 2;
+    private static final int CHANGES = 3;
+
+    // keys of the document with a meaning here
+    private static final int OTHER = 0;
+    private static final int XID = 1;
+    private static final int NEXT_LSN = 2;
+    private static final int TIMESTAMP = 3;
+    private static final int CHANGE_ARRAY = 4;
+
+    private final JsonLexer lexer = new JsonLexer();
+    private final Wal2JsonChange change = new Wal2JsonChange();
+    private ByteBuffer carry = ByteBuffer.allocate(4096);
+    private boolean carrying;
+    private int state = DOCUMENT;
+    private int key;
+
+    private long xid;
+    private long nextLsn;
+    private long timestamp;
+    private long changes;
+
+    /**
+     * Continue parsing with the bytes between <code>position()</code> and
+     * <code>limit()</code> of <code>message</code>. The buffer is not moved and must stay
+     * untouched until {@link #next()} has returned {@link #NEED_INPUT}.
+     */
+    public void feed(ByteBuffer message) {
+        if (carry.position() > 0) {
+            ensureCarry(carry.position() + message.remaining());
+            carry.put(message.duplicate());
+            lexer.reset(carry, 0, carry.position());
+            carrying = true;
+        } else {
+            lexer.reset(message, message.position(), message.limit());
+            carrying = false;
+        }
+    }
+
+    /**
+     * @return {@link #BEGIN}, {@link #CHANGE}, {@link #COMMIT}, or {@link #NEED_INPUT} once
+     *         the input fed so far is used up
+     * @throws IllegalArgumentException if the input is not wal2json
+     */
+    public int next() {
+        while (true) {
+            int mark = lexer.position();
+            int token = lexer.next();
+            if (token == JsonLexer.END) {
+                return needInput(lexer.limit());
+            }
+            if (token == JsonLexer.INCOMPLETE) {
+                return needInput(mark);
+            }
+            switch (state) {
+                case DOCUMENT:
+                    expect(token, JsonLexer.BEGIN_OBJECT);
+                    xid = 0;
+                    nextLsn = 0;
+                    timestamp = 0;
+                    state = KEY;
+                    break;
+                case KEY:
+                    if (token == JsonLexer.END_OBJECT) {
+                        state = DOCUMENT;
+                        return COMMIT;
+                    }
+                    expect(token, JsonLexer.STRING);
+                    key = documentKey();
+                    state = VALUE;
+                    break;
+                case VALUE:
+                    if (key == CHANGE_ARRAY) {
+                        expect(token, JsonLexer.BEGIN_ARRAY);
+                        state = CHANGES;
+                        return BEGIN;
+                    }
+                    if (lexer.skipValue(token) == JsonLexer.INCOMPLETE) {
+                        return needInput(mark);
+                    }
+                    header(token);
+                    state = KEY;
+                    break;
+                case CHANGES:
+                    if (token == JsonLexer.END_ARRAY) {
+                        state = KEY;
+                        break;
+                    }
+                    expect(token, JsonLexer.BEGIN_OBJECT);
+                    if (!parseChange()) {
+                        return needInput(mark);
+                    }
+                    changes++;
+                    return CHANGE;
+                default:
+                    throw new IllegalStateException("state " + state);
+            }
+        }
+    }
+
+    private int documentKey() {
+        if (lexer.tokenEquals("change")) {
+            return CHANGE_ARRAY;
+        } else if (lexer.tokenEquals("xid")) {
+            return XID;
+        } else if (lexer.tokenEquals("nextlsn")) {
+            return NEXT_LSN;
+        } else if (lexer.tokenEquals("timestamp")) {
+            return TIMESTAMP;
+        }
+        return OTHER;
+    }
+
+    private void header(int token) {
+        ByteBuffer buffer = lexer.buffer();
+        int offset = lexer.tokenOffset();
+        int length = lexer.tokenLength();
+        switch (key) {
+            case XID:
+                xid = TextDecoding.parseLong(buffer, offset, length);
+                break;
+            case NEXT_LSN:
+                nextLsn = parseLsn(buffer, offset, length);
+                break;
+            case TIMESTAMP:
+                if (token == JsonLexer.STRING) {
+                    timestamp = TextDecoding.parseTimestamp(buffer, offset, length);
+                }
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Parse the rest of a change object.
+     *
+     * @return false if it is cut off by the end of the input
+     */
+    private boolean parseChange() {
+        change.reset(lexer.buffer());
+        Wal2JsonChange.Fields columns = change.columns();
+        while (true) {
+            int token = lexer.next();
+            if (token == JsonLexer.END_OBJECT) {
+                columns.fill();
+                change.oldKeys().fill();
+                return true;
+            }
+            if (token == JsonLexer.INCOMPLETE || token == JsonLexer.END) {
+                return false;
+            }
+            expect(token, JsonLexer.STRING);
+            if (lexer.tokenEquals("columnvalues")) {
+                if (!values(columns)) {
+                    return false;
+                }
+            } else if (lexer.tokenEquals("columnnames")) {
+                if (!names(columns, false)) {
+                    return false;
+                }
+            } else if (lexer.tokenEquals("columntypes")) {
+                if (!names(columns, true)) {
+                    return false;
+                }
+            } else if (lexer.tokenEquals("kind")) {
+                if (!string()) {
+                    return false;
+                }
+                change.kind(Wal2JsonChange.kind(lexer.buffer(), lexer.tokenOffset(), lexer.tokenLength()));
+            } else if (lexer.tokenEquals("schema")) {
+                if (!string()) {
+                    return false;
+                }
+                change.schema(lexer.tokenOffset(), lexer.tokenLength());
+            } else if (lexer.tokenEquals("table")) {
+                if (!string()) {
+                    return false;
+                }
+                change.table(lexer.tokenOffset(), lexer.tokenLength());
+            } else if (lexer.tokenEquals("oldkeys")) {
+                if (!oldKeys()) {
+                    return false;
+                }
+            } else if (lexer.tokenEquals("prefix")) {
+                if (!string()) {
+                    return false;
+                }
+                change.prefix(lexer.tokenOffset(), lexer.tokenLength());
+            } else if (lexer.tokenEquals("content")) {
+                if (!string()) {
+                    return false;
+                }
+                change.content(lexer.tokenOffset(), lexer.tokenLength(), lexer.escaped());
+            } else if (!skip()) {
+                return false;
+            }
+        }
+    }
+
+    private boolean oldKeys() {
+        int token = lexer.next();
+        if (token == JsonLexer.INCOMPLETE || token == JsonLexer.END) {
+            return false;
+        }
+        expect(token, JsonLexer.BEGIN_OBJECT);
+        Wal2JsonChange.Fields keys = change.oldKeys();
+        while (true) {
+            token = lexer.next();
+            if (token == JsonLexer.END_OBJECT) {
+                return true;
+            }
+            if (token == JsonLexer.INCOMPLETE || token == JsonLexer.END) {
+                return false;
+            }
+            expect(token, JsonLexer.STRING);
+            boolean ok;
+            if (lexer.tokenEquals("keyvalues")) {
+                ok = values(keys);
+            } else if (lexer.tokenEquals("keynames")) {
+                ok = names(keys, false);
+            } else if (lexer.tokenEquals("keytypes")) {
+                ok = names(keys, true);
+            } else {
+                ok = skip();
+            }
+            if (!ok) {
+                return false;
+            }
+        }
+    }
+
+    private boolean skip() {
+        int token = lexer.next();
+        return token != JsonLexer.INCOMPLETE && token != JsonLexer.END
+                && lexer.skipValue(token) != JsonLexer.INCOMPLETE;
+    }
+
+    private boolean string() {
+        int token = lexer.next();
+        if (token == JsonLexer.INCOMPLETE || token == JsonLexer.END) {
+            return false;
+        }
+        expect(token, JsonLexer.STRING);
+        return true;
+    }
+
+    private boolean names(Wal2JsonChange.Fields fields, boolean types) {
+        int token = lexer.next();
+        if (token == JsonLexer.INCOMPLETE || token == JsonLexer.END) {
+            return false;
+        }
+        expect(token, JsonLexer.BEGIN_ARRAY);
+        while (true) {
+            token = lexer.next();
+            if (token == JsonLexer.END_ARRAY) {
+                return true;
+            }
+            if (token == JsonLexer.INCOMPLETE || token == JsonLexer.END) {
+                return false;
+            }
+            expect(token, JsonLexer.STRING);
+            if (types) {
+                fields.addType(lexer.tokenOffset(), lexer.tokenLength(), lexer.escaped());
+            } else {
+                fields.addName(lexer.tokenOffset(), lexer.tokenLength(), lexer.escaped());
+            }
+        }
+    }
+
+    private boolean values(Wal2JsonChange.Fields fields) {
+        int token = lexer.next();
+        if (token == JsonLexer.INCOMPLETE || token == JsonLexer.END) {
+            return false;
+        }
+        expect(token, JsonLexer.BEGIN_ARRAY);
+        while (true) {
+            token = lexer.next();
+            if (token == JsonLexer.END_ARRAY) {
+                return true;
+            }
+            if (token == JsonLexer.INCOMPLETE || token == JsonLexer.END
+                    || lexer.skipValue(token) == JsonLexer.INCOMPLETE) {
+                return false;
+            }
+            fields.addValue(token, lexer.tokenOffset(), lexer.tokenLength(),
+                    token == JsonLexer.STRING && lexer.escaped());
+        }
+    }
+
+    private void expect(int token, int expected) {
+        if (token != expected) {
+            throw lexer.malformed(lexer.tokenOffset());
+        }
+    }
+
+    /**
+     * Keep the input from <code>mark</code> on for the next message.
+     */
+    private int needInput(int mark) {
+        int limit = lexer.limit();
+        if (carrying) {
+            carry.limit(limit);
+            carry.position(mark);
+            carry.compact();
+        } else {
+            carry.clear();
+            if (mark < limit) {
+                ensureCarry(limit - mark);
+                ByteBuffer rest = lexer.buffer().duplicate();
+                rest.limit(limit);
+                rest.position(mark);
+                carry.put(rest);
+            }
+        }
+        // nothing points into the input any more
+        lexer.reset(carry, 0, 0);
+        carrying = false;
+        return NEED_INPUT;
+    }
+
+    private void ensureCarry(int capacity) {
+        if (carry.capacity() < capacity) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, carry.capacity() * 2));
+            carry.flip();
+            larger.put(carry);
+            carry = larger;
+        }
+    }
+
+    /**
+     * Parse an LSN in the <code>16/B374D848</code> notation.
+     */
+    static long parseLsn(ByteBuffer buffer, int offset, int length) {
+        long high = 0;
+        long low = 0;
+        boolean slash = false;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = buffer.get(i);
+            int digit;
+            if (b == '/' && !slash) {
+                slash = true;
+                continue;
+            } else if (b >= '0' && b <= '9') {
+                digit = b - '0';
+            } else if (b >= 'A' && b <= 'F') {
+                digit = b - 'A' + 10;
+            } else if (b >= 'a' && b <= 'f') {
+                digit = b - 'a' + 10;
+            } else {
+                throw new NumberFormatException("invalid LSN " + TextDecoding.toString(buffer, offset, length));
+            }
+            if (slash) {
+                low = (low << 4) | digit;
+            } else {
+                high = (high << 4) | digit;
+            }
+        }
+        if (!slash) {
+            throw new NumberFormatException("invalid LSN " + TextDecoding.toString(buffer, offset, length));
+        }
+        return (high << 32) | low;
+    }
+
+    /**
+     * The change of the last {@link #CHANGE} event, valid until the next call.
+     */
+    public Wal2JsonChange change() {
+        return change;
+    }
+
+    public long xid() {
+        return xid;
+    }
+
+    /**
+     * @return the <code>nextlsn</code> of the transaction if wal2json includes it, else 0
+     */
+    public long nextLsn() {
+        return nextLsn;
+    }
+
+    /**
+     * @return commit time in microseconds since 2000-01-01 if wal2json includes it, else 0
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return changes parsed since the parser was created
+     */
+    public long getChanges() {
+        return changes;
+    }
+}
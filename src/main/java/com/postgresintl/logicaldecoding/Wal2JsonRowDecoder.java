@@ -0,0 +1,266 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoder for wal2json format-version 2, which writes one small document per row and one
+ * each for BEGIN and COMMIT:
+ *
+ * <pre>
+ *   {"action":"I","schema":"public","table":"t","columns":[{"name":"id","type":"integer","value":1}]}
+ * </pre>
+ *
+ * Every message is decoded into the same reused {@link Wal2JsonChange}. A {@link Projection}
+ * narrows what is extracted: columns outside it are passed over by scanning for the end of
+ * their object, so their values are neither tokenized nor unescaped, and types and the
+ * replica identity can be left out as a whole. Parse time then shrinks with the share of
+ * the message that is dropped.
+ *
+ * Not thread safe, use one decoder per stream.
+ */
+public final class Wal2JsonRowDecoder {
+    private final JsonLexer lexer = new JsonLexer();
+    private final Wal2JsonChange change = new Wal2JsonChange();
+    private final Projection projection;
+    private long xid;
+    private long lsn;
+    private long timestamp;
+
+    public Wal2JsonRowDecoder() {
+        this(Projection.all());
+    }
+
+    public Wal2JsonRowDecoder(Projection projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Decode the message between <code>position()</code> and <code>limit()</code>, the buffer
+     * is not moved. The returned change is overwritten by the next call.
+     *
+     * @throws IllegalArgumentException if the message is not a wal2json document
+     */
+    public Wal2JsonChange decode(ByteBuffer message) {
+        lexer.reset(message, message.position(), message.limit());
+        change.reset(message);
+        xid = 0;
+        lsn = 0;
+        timestamp = 0;
+        expect(next(), JsonLexer.BEGIN_OBJECT);
+        while (true) {
+            int token = next();
+            if (token == JsonLexer.END_OBJECT) {
+                return change;
+            }
+            expect(token, JsonLexer.STRING);
+            if (lexer.tokenEquals("columns")) {
+                columns(change.columns(), true);
+            } else if (lexer.tokenEquals("action")) {
+                expect(next(), JsonLexer.STRING);
+                change.kind(Wal2JsonChange.kind(message, lexer.tokenOffset(), lexer.tokenLength()));
+            } else if (lexer.tokenEquals("schema")) {
+                expect(next(), JsonLexer.STRING);
+                change.schema(lexer.tokenOffset(), lexer.tokenLength());
+            } else if (lexer.tokenEquals("table")) {
+                expect(next(), JsonLexer.STRING);
+                change.table(lexer.tokenOffset(), lexer.tokenLength());
+            } else if (lexer.tokenEquals("identity") && projection.identity) {
+                columns(change.oldKeys(), false);
+            } else if (lexer.tokenEquals("xid")) {
+                expect(next(), JsonLexer.NUMBER);
+                xid = TextDecoding.parseLong(message, lexer.tokenOffset(), lexer.tokenLength());
+            } else if (lexer.tokenEquals("lsn")) {
+                expect(next(), JsonLexer.STRING);
+                lsn = Wal2JsonParser.parseLsn(message, lexer.tokenOffset(), lexer.tokenLength());
+            } else if (lexer.tokenEquals("timestamp")) {
+                expect(next(), JsonLexer.STRING);
+                timestamp = TextDecoding.parseTimestamp(message, lexer.tokenOffset(), lexer.tokenLength());
+            } else if (lexer.tokenEquals("prefix")) {
+                expect(next(), JsonLexer.STRING);
+                change.prefix(lexer.tokenOffset(), lexer.tokenLength());
+            } else if (lexer.tokenEquals("content")) {
+                expect(next(), JsonLexer.STRING);
+                change.content(lexer.tokenOffset(), lexer.tokenLength(), lexer.escaped());
+            } else {
+                skip(next());
+            }
+        }
+    }
+
+    /**
+     * Read an array of column objects into <code>fields</code>.
+     */
+    private void columns(Wal2JsonChange.Fields fields, boolean project) {
+        expect(next(), JsonLexer.BEGIN_ARRAY);
+        ByteBuffer buffer = lexer.buffer();
+        while (true) {
+            int token = next();
+            if (token == JsonLexer.END_ARRAY) {
+                return;
+            }
+            expect(token, JsonLexer.BEGIN_OBJECT);
+            int nameOffset = -1;
+            int nameLength = 0;
+            boolean nameEscaped = false;
+            int typeOffset = -1;
+            int typeLength = 0;
+            int valueToken = JsonLexer.NULL;
+            int valueOffset = 0;
+            int valueLength = 0;
+            boolean valueEscaped = false;
+            boolean wanted = true;
+            while (true) {
+                token = next();
+                if (token == JsonLexer.END_OBJECT) {
+                    break;
+                }
+                expect(token, JsonLexer.STRING);
+                if (lexer.tokenEquals("name")) {
+                    expect(next(), JsonLexer.STRING);
+                    nameOffset = lexer.tokenOffset();
+                    nameLength = lexer.tokenLength();
+                    nameEscaped = lexer.escaped();
+                    if (project && !projection.wants(buffer, nameOffset, nameLength)) {
+                        // wal2json writes the name first, the rest of the column is not looked at
+                        if (lexer.skipRest() != JsonLexer.END_OBJECT) {
+                            throw lexer.malformed(lexer.position());
+                        }
+                        wanted = false;
+                        break;
+                    }
+                } else if (lexer.tokenEquals("value")) {
+                    valueToken = skip(next());
+                    valueOffset = lexer.tokenOffset();
+                    valueLength = lexer.tokenLength();
+                    valueEscaped = valueToken == JsonLexer.STRING && lexer.escaped();
+                } else if (lexer.tokenEquals("type") && projection.types) {
+                    expect(next(), JsonLexer.STRING);
+                    typeOffset = lexer.tokenOffset();
+                    typeLength = lexer.tokenLength();
+                } else {
+                    skip(next());
+                }
+            }
+            if (wanted) {
+                fields.addName(nameOffset, nameLength, nameEscaped);
+                if (typeOffset < 0) {
+                    fields.addNoType();
+                } else {
+                    fields.addType(typeOffset, typeLength, false);
+                }
+                fields.addValue(valueToken, valueOffset, valueLength, valueEscaped);
+            }
+        }
+    }
+
+    private int next() {
+        int token = lexer.next();
+        if (token == JsonLexer.END || token == JsonLexer.INCOMPLETE) {
+            throw new IllegalArgumentException("truncated wal2json message at offset " + lexer.position());
+        }
+        return token;
+    }
+
+    private int skip(int token) {
+        if (lexer.skipValue(token) == JsonLexer.INCOMPLETE) {
+            throw new IllegalArgumentException("truncated wal2json message at offset " + lexer.position());
+        }
+        return token;
+    }
+
+    private void expect(int token, int expected) {
+        if (token != expected) {
+            throw lexer.malformed(lexer.tokenOffset());
+        }
+    }
+
+    /**
+     * @return the xid of the last message if wal2json includes it, else 0
+     */
+    public long xid() {
+        return xid;
+    }
+
+    /**
+     * @return the LSN of the last message if wal2json includes it, else 0
+     */
+    public long lsn() {
+        return lsn;
+    }
+
+    /**
+     * @return the commit time of the last message in microseconds since 2000-01-01 if
+     *         wal2json includes it, else 0
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public Projection projection() {
+        return projection;
+    }
+
+    /**
+     * What a {@link Wal2JsonRowDecoder} extracts. Immutable, the <code>with</code> methods
+     * return a copy.
+     */
+    public static final class Projection {
+        private static final Projection ALL = new Projection(null, true, true);
+
+        private final byte[][] columns;
+        private final boolean types;
+        private final boolean identity;
+
+        private Projection(byte[][] columns, boolean types, boolean identity) {
+            this.columns = columns;
+            this.types = types;
+            this.identity = identity;
+        }
+
+        /**
+         * Every column with its type, and the replica identity.
+         */
+        public static Projection all() {
+            return ALL;
+        }
+
+        /**
+         * Only the named columns of the new row, in the order the message has them. The
+         * replica identity is not narrowed.
+         */
+        public Projection withColumns(String... names) {
+            byte[][] bytes = new byte[names.length][];
+            for (int i = 0; i < names.length; i++) {
+                bytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            }
+            return new Projection(bytes, types, identity);
+        }
+
+        /**
+         * Leave out column types, {@link Wal2JsonChange.Fields#type(int)} returns null.
+         */
+        public Projection withoutTypes() {
+            return new Projection(columns, false, identity);
+        }
+
+        /**
+         * Leave out the replica identity of updates and deletes.
+         */
+        public Projection withoutIdentity() {
+            return new Projection(columns, types, false);
+        }
+
+        boolean wants(ByteBuffer buffer, int offset, int length) {
+            if (columns == null) {
+                return true;
+            }
+            for (byte[] column : columns) {
+                if (JsonLexer.equalsBytes(buffer, offset, length, column)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
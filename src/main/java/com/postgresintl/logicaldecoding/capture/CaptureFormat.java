@@ -0,0 +1,61 @@
+package com.postgresintl.logicaldecoding.capture;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Layout of capture segment files.
+ *
+ * A capture is a directory of segments named <code>capture-00000001.seg</code>,
+ * <code>capture-00000002.seg</code> and so on. Each segment starts with a 16 byte header,
+ * the magic number, the format version and a reserved int, followed by records:
+ *
+ * <pre>
+ *   int32  length of the message
+ *   int64  LSN the message was received at
+ *   int64  receive time, microseconds since 2000-01-01
+ *   byte[] the raw message as returned by readPending()
+ * </pre>
+ *
+ * All values are big endian. A segment ends at the end of the file or at a record whose
+ * length is 0, which is what a preallocated but unwritten tail reads as.
+ */
+final class CaptureFormat {
+    static final long MAGIC = 0x5047434150545552L; // "PGCAPTUR"
+    static final int VERSION = 1;
+    static final int HEADER = 16;
+    static final int RECORD_HEADER = 4 + 8 + 8;
+    static final String PREFIX = "capture-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private CaptureFormat() {
+    }
+
+    static String segmentName(int sequence) {
+        return String.format("%s%08d%s", PREFIX, sequence, SEGMENT_SUFFIX);
+    }
+
+    static int sequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return the segments of the capture in <code>directory</code>, oldest first
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        Collections.sort(segments, (a, b) -> Integer.compare(sequence(a), sequence(b)));
+        return segments;
+    }
+}
@@ -0,0 +1,174 @@
+package com.postgresintl.logicaldecoding.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sparse index of a capture segment, <code>capture-00000001.idx</code> next to
+ * <code>capture-00000001.seg</code>.
+ *
+ * The capture is indexed by unit: a pgoutput transaction from BEGIN to COMMIT, or a single
+ * message that is not part of one, such as a wal2json document. The key of a transaction
+ * is its commit LSN and commit time, of any other message the LSN and time it was received
+ * at. Transactions are sent in commit order, so both keys only grow through the capture
+ * and can be binary searched; the LSNs of individual messages inside transactions can not.
+ *
+ * After a 16 byte header like the segment's, each entry is
+ *
+ * <pre>
+ *   int64  commit or receive LSN
+ *   int64  commit or receive time, microseconds since 2000-01-01
+ *   int32  sequence number of the segment the unit starts in
+ *   int32  offset of the first record of the unit in that segment
+ * </pre>
+ *
+ * An entry is written into the index of the segment the unit ends in, for the first unit
+ * ending in a segment and then whenever the capture has grown by the index interval.
+ */
+final class CaptureIndex {
+    static final long MAGIC = 0x5047434150494458L; // "PGCAPIDX"
+    static final int VERSION = 1;
+    static final int ENTRY = 24;
+    static final String SUFFIX = ".idx";
+
+    // pgoutput BEGIN is 'B' lsn time xid, COMMIT is 'C' flags lsn end_lsn time
+    private static final int BEGIN_LENGTH = 21;
+    private static final int COMMIT_LENGTH = 26;
+
+    private final ByteBuffer map;
+    private final int entries;
+
+    private CaptureIndex(ByteBuffer map) {
+        this.map = map;
+        this.entries = (map.capacity() - CaptureFormat.HEADER) / ENTRY;
+    }
+
+    static boolean isBegin(ByteBuffer message, int offset, int length) {
+        return length == BEGIN_LENGTH && message.get(offset) == 'B';
+    }
+
+    static boolean isCommit(ByteBuffer message, int offset, int length) {
+        return length == COMMIT_LENGTH && message.get(offset) == 'C';
+    }
+
+    static long commitLsn(ByteBuffer message, int offset) {
+        return message.getLong(offset + 2);
+    }
+
+    static long commitTime(ByteBuffer message, int offset) {
+        return message.getLong(offset + 18);
+    }
+
+    static Path indexFor(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - CaptureFormat.SEGMENT_SUFFIX.length()) + SUFFIX);
+    }
+
+    /**
+     * Map the index of <code>segment</code>.
+     *
+     * @return null if the segment has no index, e.g. it was written by an older version
+     */
+    static CaptureIndex open(Path segment) throws IOException {
+        Path path = indexFor(segment);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (map.capacity() < CaptureFormat.HEADER || map.getLong(0) != MAGIC || map.getInt(8) != VERSION) {
+            throw new IOException(path + " is not a capture index");
+        }
+        return new CaptureIndex(map);
+    }
+
+    int entries() {
+        return entries;
+    }
+
+    long lsn(int entry) {
+        return map.getLong(CaptureFormat.HEADER + entry * ENTRY);
+    }
+
+    long time(int entry) {
+        return map.getLong(CaptureFormat.HEADER + entry * ENTRY + 8);
+    }
+
+    long key(int entry, boolean byTime) {
+        return byTime ? time(entry) : lsn(entry);
+    }
+
+    int sequence(int entry) {
+        return map.getInt(CaptureFormat.HEADER + entry * ENTRY + 16);
+    }
+
+    int offset(int entry) {
+        return map.getInt(CaptureFormat.HEADER + entry * ENTRY + 20);
+    }
+
+    /**
+     * @return the last entry whose key is below <code>target</code>, -1 if there is none
+     */
+    int lastBefore(boolean byTime, long target) {
+        int low = 0;
+        int high = entries - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (key(mid, byTime) < target) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Appends the entries of the segment being written.
+     */
+    static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * ENTRY);
+
+        Writer(Path segment) throws IOException {
+            channel = FileChannel.open(indexFor(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            buffer.putLong(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(0);
+        }
+
+        void add(long lsn, long time, int sequence, int offset) throws IOException {
+            if (buffer.remaining() < ENTRY) {
+                flush();
+            }
+            buffer.putLong(lsn);
+            buffer.putLong(time);
+            buffer.putInt(sequence);
+            buffer.putInt(offset);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void force() throws IOException {
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.postgresintl.logicaldecoding.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends raw replication messages to segment files, see {@link CaptureFormat}.
+ *
+ * Records are gathered in a direct buffer and written to the current segment when it
+ * fills up or on {@link #flush()}, a new segment is started once the current one would grow
+ * past the segment size. Writing into an existing capture continues after its last segment.
+ * Every segment gets a sparse {@link CaptureIndex} for seeking and a {@link RelationIndex}
+ * of its pgoutput RELATION messages. Not thread safe.
+ */
+public class CaptureWriter implements AutoCloseable {
+    private final Path directory;
+    private final long segmentSize;
+    private final long indexInterval;
+    private final ByteBuffer buffer;
+    private FileChannel channel;
+    private CaptureIndex.Writer index;
+    private RelationIndex.Writer relationIndex;
+    private int sequence;
+    private long segmentBytes;
+
+    // the unit being appended, see CaptureIndex
+    private boolean inTransaction;
+    private int unitSequence;
+    private int unitOffset;
+    private long unitStart;
+    private long lastIndexed;
+    private boolean segmentIndexed;
+    private long records;
+    private long bytes;
+
+    /**
+     * @param segmentSize start a new segment once a segment reaches this many bytes
+     * @param bufferSize  bytes gathered in memory before writing to the file
+     * @param indexInterval  message bytes between index entries
+     */
+    public CaptureWriter(Path directory, long segmentSize, int bufferSize, long indexInterval) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        Files.createDirectories(directory);
+        List<Path> existing = CaptureFormat.segments(directory);
+        this.sequence = existing.isEmpty() ? 0 : CaptureFormat.sequence(existing.get(existing.size() - 1));
+    }
+
+    /**
+     * An index entry every MB.
+     */
+    public CaptureWriter(Path directory, long segmentSize, int bufferSize) throws IOException {
+        this(directory, segmentSize, bufferSize, 1 << 20);
+    }
+
+    /**
+     * 1 GB segments, 1 MB write buffer, an index entry every MB.
+     */
+    public CaptureWriter(Path directory) throws IOException {
+        this(directory, 1L << 30, 1 << 20);
+    }
+
+    /**
+     * Append the message between <code>position()</code> and <code>limit()</code>, the buffer
+     * is left as it was.
+     *
+     * @param lsn            the LSN the message was received at
+     * @param receiveMicros  receive time in microseconds since 2000-01-01
+     */
+    public void append(ByteBuffer message, long lsn, long receiveMicros) throws IOException {
+        int length = message.remaining();
+        int record = CaptureFormat.RECORD_HEADER + length;
+        if (channel == null || (segmentBytes + record > segmentSize && segmentBytes > CaptureFormat.HEADER)) {
+            roll();
+        }
+        index(message, lsn, receiveMicros);
+        if (record > buffer.remaining()) {
+            drain();
+        }
+        buffer.putInt(length);
+        buffer.putLong(lsn);
+        buffer.putLong(receiveMicros);
+        if (length <= buffer.remaining()) {
+            buffer.put(message.duplicate());
+        } else {
+            // larger than the write buffer, goes straight to the file
+            drain();
+            ByteBuffer source = message.duplicate();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+        segmentBytes += record;
+        records++;
+        bytes += length;
+    }
+
+    /**
+     * Track the unit the message belongs to and index it if it is the last message of the unit.
+     */
+    private void index(ByteBuffer message, long lsn, long receiveMicros) throws IOException {
+        int offset = message.position();
+        int length = message.remaining();
+        if (RelationIndex.isRelation(message, offset, length)) {
+            relationIndex.add(RelationIndex.oid(message, offset), (int) segmentBytes);
+        }
+        if (!inTransaction) {
+            unitSequence = sequence;
+            unitOffset = (int) segmentBytes;
+            unitStart = bytes;
+        }
+        if (inTransaction) {
+            if (CaptureIndex.isCommit(message, offset, length)) {
+                inTransaction = false;
+                add(CaptureIndex.commitLsn(message, offset), CaptureIndex.commitTime(message, offset));
+            }
+        } else if (CaptureIndex.isBegin(message, offset, length)) {
+            inTransaction = true;
+        } else {
+            add(lsn, receiveMicros);
+        }
+    }
+
+    private void add(long lsn, long time) throws IOException {
+        if (!segmentIndexed || unitStart - lastIndexed >= indexInterval) {
+            index.add(lsn, time, unitSequence, unitOffset);
+            lastIndexed = unitStart;
+            segmentIndexed = true;
+        }
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+        sequence++;
+        Path path = directory.resolve(CaptureFormat.segmentName(sequence));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        index = new CaptureIndex.Writer(path);
+        relationIndex = new RelationIndex.Writer(path);
+        segmentIndexed = false;
+        buffer.putLong(CaptureFormat.MAGIC);
+        buffer.putInt(CaptureFormat.VERSION);
+        buffer.putInt(0);
+        segmentBytes = CaptureFormat.HEADER;
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write everything appended so far to the file system.
+     */
+    public void flush() throws IOException {
+        if (channel != null) {
+            drain();
+            index.flush();
+            relationIndex.flush();
+        }
+    }
+
+    /**
+     * Write everything appended so far and force it to disk.
+     */
+    public void sync() throws IOException {
+        if (channel != null) {
+            drain();
+            index.flush();
+            relationIndex.flush();
+            channel.force(false);
+            index.force();
+            relationIndex.force();
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (channel != null) {
+            drain();
+            channel.close();
+            channel = null;
+            index.close();
+            index = null;
+            relationIndex.close();
+            relationIndex = null;
+        }
+    }
+
+    /**
+     * @return the segment being written, null before the first append
+     */
+    public Path currentSegment() {
+        return sequence == 0 ? null : directory.resolve(CaptureFormat.segmentName(sequence));
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
@@ -0,0 +1,112 @@
+package com.postgresintl.logicaldecoding.capture;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+
+import com.postgresintl.logicaldecoding.PgEpoch;
+
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+/**
+ * Passes a replication stream through unchanged while appending every message to a
+ * {@link CaptureWriter}, with the LSN it was received at and the receive time.
+ *
+ * The capture is written to the file system before a flushed LSN is passed on to the
+ * stream, so whatever the server has been told is flushed is also in the capture. That has
+ * to happen in {@link #setFlushedLSN(LogSequenceNumber)}: pgjdbc also reports the flushed
+ * LSN by itself every status interval from within <code>read</code>, without going through
+ * {@link #forceUpdateStatus()}. Closing the stream writes the rest of the capture.
+ */
+public class CapturingReplicationStream implements PGReplicationStream {
+    private final PGReplicationStream stream;
+    private final CaptureWriter writer;
+
+    public CapturingReplicationStream(PGReplicationStream stream, CaptureWriter writer) {
+        this.stream = stream;
+        this.writer = writer;
+    }
+
+    @Override
+    public ByteBuffer read() throws SQLException {
+        return capture(stream.read());
+    }
+
+    @Override
+    public ByteBuffer readPending() throws SQLException {
+        return capture(stream.readPending());
+    }
+
+    private ByteBuffer capture(ByteBuffer message) throws SQLException {
+        if (message != null) {
+            try {
+                writer.append(message, stream.getLastReceiveLSN().asLong(), PgEpoch.now());
+            } catch (IOException e) {
+                throw new SQLException("could not write the capture to " + writer.getDirectory(), e);
+            }
+        }
+        return message;
+    }
+
+    @Override
+    public LogSequenceNumber getLastReceiveLSN() {
+        return stream.getLastReceiveLSN();
+    }
+
+    @Override
+    public LogSequenceNumber getLastFlushedLSN() {
+        return stream.getLastFlushedLSN();
+    }
+
+    @Override
+    public LogSequenceNumber getLastAppliedLSN() {
+        return stream.getLastAppliedLSN();
+    }
+
+    /**
+     * @throws UncheckedIOException if the capture cannot be written, the flushed LSN is
+     *                              then left where it was
+     */
+    @Override
+    public void setFlushedLSN(LogSequenceNumber lsn) {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not flush the capture to " + writer.getDirectory(), e);
+        }
+        stream.setFlushedLSN(lsn);
+    }
+
+    @Override
+    public void setAppliedLSN(LogSequenceNumber lsn) {
+        stream.setAppliedLSN(lsn);
+    }
+
+    @Override
+    public void forceUpdateStatus() throws SQLException {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new SQLException("could not flush the capture to " + writer.getDirectory(), e);
+        }
+        stream.forceUpdateStatus();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return stream.isClosed();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new SQLException("could not close the capture in " + writer.getDirectory(), e);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.postgresintl.logicaldecoding.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where the pgoutput RELATION messages of a capture segment are,
+ * <code>capture-00000001.rel</code> next to <code>capture-00000001.seg</code>.
+ *
+ * A decoder needs the RELATION message of a table before its first change, and the server
+ * sends it only once per table and connection. A {@link ReplaySource} that seeks past it
+ * uses these files to hand out the last RELATION of every table before the new position.
+ *
+ * After a 16 byte header like the segment's, each entry is
+ *
+ * <pre>
+ *   int32  relation OID
+ *   int32  offset of the record in the segment
+ * </pre>
+ */
+final class RelationIndex {
+    static final long MAGIC = 0x504743415052454CL; // "PGCAPREL"
+    static final int VERSION = 1;
+    static final int ENTRY = 8;
+    static final String SUFFIX = ".rel";
+
+    // 'R' oid namespace\0 name\0 replica-identity columns
+    private static final int MIN_RELATION_LENGTH = 1 + 4 + 1 + 1 + 1 + 2;
+
+    private RelationIndex() {
+    }
+
+    static boolean isRelation(ByteBuffer message, int offset, int length) {
+        return length >= MIN_RELATION_LENGTH && message.get(offset) == 'R';
+    }
+
+    static int oid(ByteBuffer message, int offset) {
+        return message.getInt(offset + 1);
+    }
+
+    static Path indexFor(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - CaptureFormat.SEGMENT_SUFFIX.length()) + SUFFIX);
+    }
+
+    /**
+     * @return the record offsets of the RELATION messages in <code>segment</code>, in order,
+     *         null if the segment has no relation index, e.g. it was written by an older version
+     */
+    static int[] offsets(Path segment) throws IOException {
+        Path path = indexFor(segment);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (file.capacity() < CaptureFormat.HEADER || file.getLong(0) != MAGIC || file.getInt(8) != VERSION) {
+            throw new IOException(path + " is not a capture relation index");
+        }
+        int[] offsets = new int[(file.capacity() - CaptureFormat.HEADER) / ENTRY];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = file.getInt(CaptureFormat.HEADER + i * ENTRY + 4);
+        }
+        return offsets;
+    }
+
+    /**
+     * Appends the entries of the segment being written.
+     */
+    static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * ENTRY);
+
+        Writer(Path segment) throws IOException {
+            channel = FileChannel.open(indexFor(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            buffer.putLong(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(0);
+        }
+
+        void add(int oid, int offset) throws IOException {
+            if (buffer.remaining() < ENTRY) {
+                flush();
+            }
+            buffer.putInt(oid);
+            buffer.putInt(offset);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void force() throws IOException {
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+}
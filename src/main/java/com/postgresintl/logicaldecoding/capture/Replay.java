@@ -0,0 +1,77 @@
+package com.postgresintl.logicaldecoding.capture;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import com.postgresintl.logicaldecoding.PgOutput;
+import com.postgresintl.logicaldecoding.ProtoBuf;
+import com.postgresintl.logicaldecoding.RelationCache;
+import com.postgresintl.logicaldecoding.Wal2JSON;
+import com.postgresintl.logicaldecoding.Wal2JsonChange;
+import com.postgresintl.logicaldecoding.Wal2JsonParser;
+
+/**
+ * Runs a capture through one of the decoders and reports the throughput.
+ *
+ * <pre>
+ *   Replay &lt;directory&gt; [pgoutput|wal2json|wal2json-stream|protobuf] [fast|recorded] [print]
+ * </pre>
+ *
+ * <code>wal2json-stream</code> runs format-version 1 output through {@link Wal2JsonParser}
+ * and prints one line per change instead of the document.
+ */
+public class Replay {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: Replay <directory> [pgoutput|wal2json|wal2json-stream|protobuf] [fast|recorded] [print]");
+            System.exit(1);
+        }
+        String decoder = args.length > 1 ? args[1] : "pgoutput";
+        ReplaySource.Pacing pacing = args.length > 2 && "recorded".equals(args[2])
+                ? ReplaySource.Pacing.RECORDED : ReplaySource.Pacing.AS_FAST_AS_POSSIBLE;
+        boolean print = args.length > 3 && "print".equals(args[3]);
+
+        RelationCache relations = new RelationCache();
+        Wal2JsonParser parser = new Wal2JsonParser();
+        ReplaySource source = new ReplaySource(Paths.get(args[0]), pacing);
+        long bytes = 0;
+        long start = System.nanoTime();
+        ByteBuffer buffer;
+        while ((buffer = source.read()) != null) {
+            bytes += buffer.remaining();
+            String decoded = null;
+            switch (decoder) {
+                case "wal2json":
+                    decoded = new Wal2JSON(buffer).toString();
+                    break;
+                case "wal2json-stream":
+                    parser.feed(buffer);
+                    int event;
+                    while ((event = parser.next()) != Wal2JsonParser.NEED_INPUT) {
+                        if (event == Wal2JsonParser.CHANGE && print) {
+                            Wal2JsonChange change = parser.change();
+                            System.out.println(change.kind() + " " + change.schema() + "." + change.table()
+                                    + " " + change.columns().count() + " columns");
+                        }
+                    }
+                    break;
+                case "protobuf":
+                    decoded = new ProtoBuf(buffer).toString();
+                    break;
+                default:
+                    decoded = new PgOutput(buffer, relations).toString();
+            }
+            if (print && decoded != null) {
+                System.out.println(decoded);
+            }
+        }
+        long nanos = Math.max(1, System.nanoTime() - start);
+        System.out.println(source.getMessages() + " messages, " + bytes + " bytes in "
+                + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, "
+                + (source.getMessages() * 1000000000L / nanos) + " messages/s, "
+                + (bytes * 1000000000L / nanos / (1024 * 1024)) + " MB/s");
+        source.close();
+    }
+}
@@ -0,0 +1,468 @@
+package com.postgresintl.logicaldecoding.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+/**
+ * Plays a capture written by {@link CaptureWriter} back as a {@link PGReplicationStream}, so
+ * the same consumer loop and decoders run against it as against a live server.
+ *
+ * Segments are memory mapped read only and messages are handed out as views of the mapping,
+ * nothing is copied. With {@link Pacing#RECORDED} a message only becomes readable once as
+ * much time has passed since the first message as passed while capturing;
+ * {@link Pacing#AS_FAST_AS_POSSIBLE} returns them back to back to measure the decoders at
+ * disk speed. Once the capture is exhausted the stream reports itself closed.
+ *
+ * {@link #seek(LogSequenceNumber)} and {@link #seekToTime(long)} reposition the source at
+ * the first transaction committed at or after an LSN or a time, using the segment indexes to
+ * get close and reading forward from there. A pgoutput decoder needs the RELATION message of
+ * a table before its changes, so after a seek the last RELATION of every table from before
+ * the new position is read first, found through the {@link RelationIndex} of each segment,
+ * or by reading the segments that have none.
+ *
+ * The returned buffer is reused for the next message. Feedback is recorded but goes nowhere.
+ */
+public class ReplaySource implements PGReplicationStream {
+
+    public enum Pacing {
+        RECORDED,
+        AS_FAST_AS_POSSIBLE
+    }
+
+    private final List<Path> segments;
+    private final int[] sequences;
+    private final CaptureIndex[] indexes;
+    private final boolean[] indexLoaded;
+    private final Pacing pacing;
+    private int segment = -1;
+    private MappedByteBuffer map;
+    private ByteBuffer view;
+    private int position;
+
+    // next record, valid when hasNext
+    private boolean hasNext;
+    private int nextLength;
+    private long nextLsn;
+    private long nextReceiveMicros;
+
+    // RELATION messages from before a seek, read before the record at the position
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+    private long firstReceiveMicros = Long.MIN_VALUE;
+    private long startNanos;
+    private long lastReceiveLsn;
+    private long lastReceiveMicros;
+    private long flushedLsn;
+    private long appliedLsn;
+    private long messages;
+    private boolean closed;
+
+    public ReplaySource(Path directory, Pacing pacing) throws IOException {
+        this.segments = CaptureFormat.segments(directory);
+        this.pacing = pacing;
+        if (segments.isEmpty()) {
+            throw new IOException("no capture segments in " + directory);
+        }
+        this.sequences = new int[segments.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = CaptureFormat.sequence(segments.get(i));
+        }
+        this.indexes = new CaptureIndex[segments.size()];
+        this.indexLoaded = new boolean[segments.size()];
+        openSegment(0, CaptureFormat.HEADER);
+    }
+
+    /**
+     * Position the source at the first transaction whose commit LSN is at or after
+     * <code>lsn</code>, which is where a server would resume after being told that
+     * <code>lsn</code> was flushed. Messages outside transactions are matched by the LSN
+     * they were received at.
+     *
+     * @return false if everything in the capture is before <code>lsn</code>
+     */
+    public boolean seek(LogSequenceNumber lsn) throws IOException {
+        return seek(false, lsn.asLong());
+    }
+
+    /**
+     * Position the source at the first transaction committed at or after
+     * <code>micros</code>, microseconds since 2000-01-01. Messages outside transactions are
+     * matched by the time they were received at.
+     *
+     * @return false if everything in the capture is before <code>micros</code>
+     */
+    public boolean seekToTime(long micros) throws IOException {
+        return seek(true, micros);
+    }
+
+    private boolean seek(boolean byTime, long target) throws IOException {
+        // the first segment whose first entry is at or after the target, the entry to start
+        // from is the last one before the target in an indexed segment before it
+        int low = 0;
+        int high = segments.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (firstKeyFrom(mid, byTime) < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int startSegment = 0;
+        int startOffset = CaptureFormat.HEADER;
+        for (int i = low - 1; i >= 0; i--) {
+            CaptureIndex index = index(i);
+            if (index != null && index.entries() > 0) {
+                int entry = index.lastBefore(byTime, target);
+                int start = Arrays.binarySearch(sequences, index.sequence(entry));
+                if (start >= 0) {
+                    // otherwise the transaction starts in a segment that has been removed
+                    startSegment = start;
+                    startOffset = index.offset(entry);
+                }
+                break;
+            }
+        }
+        openSegment(startSegment, startOffset);
+        closed = false;
+        firstReceiveMicros = Long.MIN_VALUE;
+        pending.clear();
+
+        while (peek()) {
+            int unitSegment = segment;
+            int unitOffset = position;
+            if (skipUnit(byTime) >= target) {
+                relationsBefore(unitSegment, unitOffset);
+                openSegment(unitSegment, unitOffset);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queue the last RELATION message of every table before <code>offset</code> of segment
+     * <code>end</code>, in capture order.
+     */
+    private void relationsBefore(int end, int offset) throws IOException {
+        Map<Integer, Pending> relations = new LinkedHashMap<>();
+        for (int i = 0; i <= end; i++) {
+            ByteBuffer segmentMap = i == segment ? map : mapSegment(i);
+            int limit = i == end ? offset : segmentMap.capacity();
+            int[] offsets = RelationIndex.offsets(segments.get(i));
+            if (offsets == null) {
+                offsets = scanRelations(segmentMap, limit);
+            }
+            for (int record : offsets) {
+                if (record >= limit) {
+                    break;
+                }
+                int oid = RelationIndex.oid(segmentMap, record + CaptureFormat.RECORD_HEADER);
+                // moved to the end, so the map keeps capture order
+                relations.remove(oid);
+                relations.put(oid, new Pending(segmentMap, record));
+            }
+        }
+        pending.addAll(relations.values());
+    }
+
+    /**
+     * @return the offsets of the RELATION records before <code>limit</code>
+     */
+    private static int[] scanRelations(ByteBuffer segmentMap, int limit) {
+        int[] offsets = new int[16];
+        int count = 0;
+        int record = CaptureFormat.HEADER;
+        while (record + CaptureFormat.RECORD_HEADER <= limit) {
+            int length = segmentMap.getInt(record);
+            if (length <= 0 || record + CaptureFormat.RECORD_HEADER + length > segmentMap.capacity()) {
+                break;
+            }
+            if (RelationIndex.isRelation(segmentMap, record + CaptureFormat.RECORD_HEADER, length)) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = record;
+            }
+            record += CaptureFormat.RECORD_HEADER + length;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * @return the key of the first index entry in segment <code>from</code> or the first
+     *         segment after it that has one, Long.MAX_VALUE if there is none
+     */
+    private long firstKeyFrom(int from, boolean byTime) throws IOException {
+        for (int i = from; i < segments.size(); i++) {
+            CaptureIndex index = index(i);
+            if (index != null && index.entries() > 0) {
+                return index.key(0, byTime);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private CaptureIndex index(int i) throws IOException {
+        if (!indexLoaded[i]) {
+            indexes[i] = CaptureIndex.open(segments.get(i));
+            indexLoaded[i] = true;
+        }
+        return indexes[i];
+    }
+
+    /**
+     * Skip the transaction or message at the current position.
+     *
+     * @return its key, Long.MAX_VALUE if the capture ends before the transaction commits
+     */
+    private long skipUnit(boolean byTime) throws IOException {
+        int start = position + CaptureFormat.RECORD_HEADER;
+        if (!CaptureIndex.isBegin(map, start, nextLength)) {
+            long key = byTime ? nextReceiveMicros : nextLsn;
+            skip();
+            return key;
+        }
+        skip();
+        while (peek()) {
+            start = position + CaptureFormat.RECORD_HEADER;
+            if (CaptureIndex.isCommit(map, start, nextLength)) {
+                long key = byTime ? CaptureIndex.commitTime(map, start) : CaptureIndex.commitLsn(map, start);
+                skip();
+                return key;
+            }
+            skip();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private void skip() {
+        position += CaptureFormat.RECORD_HEADER + nextLength;
+        hasNext = false;
+    }
+
+    void openSegment(int index, int offset) throws IOException {
+        if (index == segment) {
+            position = offset;
+            hasNext = false;
+            return;
+        }
+        map = mapSegment(index);
+        view = map.duplicate();
+        segment = index;
+        position = offset;
+        hasNext = false;
+    }
+
+    private MappedByteBuffer mapSegment(int index) throws IOException {
+        Path path = segments.get(index);
+        MappedByteBuffer segmentMap;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            segmentMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (segmentMap.capacity() < CaptureFormat.HEADER || segmentMap.getLong(0) != CaptureFormat.MAGIC) {
+            throw new IOException(path + " is not a capture segment");
+        }
+        if (segmentMap.getInt(8) != CaptureFormat.VERSION) {
+            throw new IOException(path + " has unsupported capture version " + segmentMap.getInt(8));
+        }
+        return segmentMap;
+    }
+
+    /**
+     * Read the header of the next record, moving on to the next segment when needed.
+     *
+     * @return false once the capture is exhausted
+     */
+    private boolean peek() throws IOException {
+        if (hasNext) {
+            return true;
+        }
+        while (true) {
+            if (position + CaptureFormat.RECORD_HEADER <= map.capacity()) {
+                int length = map.getInt(position);
+                if (length > 0 && position + CaptureFormat.RECORD_HEADER + length <= map.capacity()) {
+                    nextLength = length;
+                    nextLsn = map.getLong(position + 4);
+                    nextReceiveMicros = map.getLong(position + 12);
+                    hasNext = true;
+                    return true;
+                }
+            }
+            if (segment + 1 >= segments.size()) {
+                return false;
+            }
+            openSegment(segment + 1, CaptureFormat.HEADER);
+        }
+    }
+
+    /**
+     * @return nanoseconds until the next record is due, 0 or less if it may be read now
+     */
+    private long dueInNanos() {
+        if (pacing == Pacing.AS_FAST_AS_POSSIBLE) {
+            return 0;
+        }
+        if (firstReceiveMicros == Long.MIN_VALUE) {
+            firstReceiveMicros = nextReceiveMicros;
+            startNanos = System.nanoTime();
+        }
+        long due = TimeUnit.MICROSECONDS.toNanos(nextReceiveMicros - firstReceiveMicros);
+        return due - (System.nanoTime() - startNanos);
+    }
+
+    private ByteBuffer take() {
+        int start = position + CaptureFormat.RECORD_HEADER;
+        view.limit(start + nextLength);
+        view.position(start);
+        position = start + nextLength;
+        lastReceiveLsn = nextLsn;
+        lastReceiveMicros = nextReceiveMicros;
+        hasNext = false;
+        messages++;
+        return view;
+    }
+
+    /**
+     * Hand out a queued RELATION message, not paced.
+     */
+    private ByteBuffer takePending() {
+        Pending relation = pending.pollFirst();
+        lastReceiveLsn = relation.lsn;
+        lastReceiveMicros = relation.receiveMicros;
+        messages++;
+        return relation.message;
+    }
+
+    @Override
+    public ByteBuffer read() throws SQLException {
+        if (!closed && !pending.isEmpty()) {
+            return takePending();
+        }
+        if (!next()) {
+            return null;
+        }
+        long wait;
+        while ((wait = dueInNanos()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        return take();
+    }
+
+    @Override
+    public ByteBuffer readPending() throws SQLException {
+        if (!closed && !pending.isEmpty()) {
+            return takePending();
+        }
+        if (!next() || dueInNanos() > 0) {
+            return null;
+        }
+        return take();
+    }
+
+    private boolean next() throws SQLException {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (!peek()) {
+                closed = true;
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            throw new SQLException("could not read capture segment " + segments.get(segment), e);
+        }
+    }
+
+    /**
+     * @return receive time of the last message, microseconds since 2000-01-01
+     */
+    public long getLastReceiveMicros() {
+        return lastReceiveMicros;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    @Override
+    public LogSequenceNumber getLastReceiveLSN() {
+        return LogSequenceNumber.valueOf(lastReceiveLsn);
+    }
+
+    @Override
+    public LogSequenceNumber getLastFlushedLSN() {
+        return LogSequenceNumber.valueOf(flushedLsn);
+    }
+
+    @Override
+    public LogSequenceNumber getLastAppliedLSN() {
+        return LogSequenceNumber.valueOf(appliedLsn);
+    }
+
+    @Override
+    public void setFlushedLSN(LogSequenceNumber lsn) {
+        flushedLsn = lsn.asLong();
+    }
+
+    @Override
+    public void setAppliedLSN(LogSequenceNumber lsn) {
+        appliedLsn = lsn.asLong();
+    }
+
+    @Override
+    public void forceUpdateStatus() {
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        pending.clear();
+        segment = -1;
+        map = null;
+        view = null;
+    }
+
+    /**
+     * A RELATION message copied out of its segment.
+     */
+    private static final class Pending {
+        final ByteBuffer message;
+        final long lsn;
+        final long receiveMicros;
+
+        Pending(ByteBuffer segmentMap, int record) {
+            int length = segmentMap.getInt(record);
+            lsn = segmentMap.getLong(record + 4);
+            receiveMicros = segmentMap.getLong(record + 12);
+            ByteBuffer source = segmentMap.duplicate();
+            source.limit(record + CaptureFormat.RECORD_HEADER + length);
+            source.position(record + CaptureFormat.RECORD_HEADER);
+            message = ByteBuffer.allocate(length);
+            message.put(source);
+            message.flip();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.postgresintl.logicaldecoding.metrics;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Percentiles of one histogram at the time of a snapshot.
+ */
+public final class HistogramSummary {
+    private final long count;
+    private final long min;
+    private final double mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    HistogramSummary(Histogram histogram) {
+        count = histogram.getTotalCount();
+        min = count == 0 ? 0 : histogram.getMinValue();
+        mean = count == 0 ? 0 : histogram.getMean();
+        p50 = histogram.getValueAtPercentile(50);
+        p90 = histogram.getValueAtPercentile(90);
+        p99 = histogram.getValueAtPercentile(99);
+        p999 = histogram.getValueAtPercentile(99.9);
+        max = histogram.getMaxValue();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count: %d p50: %d p90: %d p99: %d p99.9: %d max: %d", count, p50, p90, p99, p999, max);
+    }
+}
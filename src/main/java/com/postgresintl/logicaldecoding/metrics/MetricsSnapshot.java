@@ -0,0 +1,63 @@
+package com.postgresintl.logicaldecoding.metrics;
+
+/**
+ * Histograms of one {@link ReplicationMetrics} for the interval since the previous snapshot.
+ */
+public final class MetricsSnapshot {
+    private final long startMillis;
+    private final long endMillis;
+    private final HistogramSummary decodeLatencyNanos;
+    private final HistogramSummary commitLagMicros;
+    private final HistogramSummary rowsPerTransaction;
+    private final HistogramSummary messageBytes;
+
+    MetricsSnapshot(long startMillis, long endMillis, HistogramSummary decodeLatencyNanos,
+                    HistogramSummary commitLagMicros, HistogramSummary rowsPerTransaction,
+                    HistogramSummary messageBytes) {
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.decodeLatencyNanos = decodeLatencyNanos;
+        this.commitLagMicros = commitLagMicros;
+        this.rowsPerTransaction = rowsPerTransaction;
+        this.messageBytes = messageBytes;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    /**
+     * @return time from receiving BEGIN to having decoded COMMIT
+     */
+    public HistogramSummary getDecodeLatencyNanos() {
+        return decodeLatencyNanos;
+    }
+
+    /**
+     * @return time from the server's commit timestamp to receiving COMMIT, the replication lag
+     */
+    public HistogramSummary getCommitLagMicros() {
+        return commitLagMicros;
+    }
+
+    public HistogramSummary getRowsPerTransaction() {
+        return rowsPerTransaction;
+    }
+
+    public HistogramSummary getMessageBytes() {
+        return messageBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "interval ms: " + (endMillis - startMillis)
+                + "\n  decode latency ns: " + decodeLatencyNanos
+                + "\n  commit lag us: " + commitLagMicros
+                + "\n  rows per transaction: " + rowsPerTransaction
+                + "\n  message bytes: " + messageBytes;
+    }
+}
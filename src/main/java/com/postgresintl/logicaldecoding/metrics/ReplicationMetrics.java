@@ -0,0 +1,280 @@
+package com.postgresintl.logicaldecoding.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.postgresintl.logicaldecoding.PgEpoch;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latency and size histograms for one replication stream.
+ *
+ * The decoding thread reports BEGIN, rows, COMMIT and message sizes; values go into
+ * HdrHistogram {@link Recorder}s, which are wait free for the writer, so recording costs a
+ * few nanoseconds and no allocation. Readers either take interval snapshots with
+ * {@link #snapshot()}, periodically with {@link #startSnapshots(long, TimeUnit, Consumer)},
+ * or look at the totals through JMX after {@link #register(String)}.
+ *
+ * The transaction in progress is tracked in plain fields, so begin/row/commit must come
+ * from a single thread; the histograms may be read from any thread. Streams sharing one
+ * instance keep the transaction state themselves and report it with
+ * {@link #commit(long, long, long)}, which like {@link #message(int)} may be called from
+ * any number of threads.
+ */
+public class ReplicationMetrics implements ReplicationMetricsMXBean {
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Recorder decodeLatency = new Recorder(SIGNIFICANT_DIGITS);
+    private final Recorder commitLag = new Recorder(SIGNIFICANT_DIGITS);
+    private final Recorder rowsPerTransaction = new Recorder(SIGNIFICANT_DIGITS);
+    private final Recorder messageBytes = new Recorder(SIGNIFICANT_DIGITS);
+
+    // guarded by this
+    private final Accumulated decodeLatencyTotals = new Accumulated();
+    private final Accumulated commitLagTotals = new Accumulated();
+    private final Accumulated rowsTotals = new Accumulated();
+    private final Accumulated messageBytesTotals = new Accumulated();
+    private long intervalStartMillis = System.currentTimeMillis();
+
+    // decoding thread
+    private long beginNanos;
+    private long rows;
+    private boolean inTransaction;
+
+    private final LongAdder transactions = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder totalRows = new LongAdder();
+    private final LongAdder spills = new LongAdder();
+    private final LongAdder spilledBytes = new LongAdder();
+    private final LongAdder spillNanos = new LongAdder();
+
+    private ObjectName objectName;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Interval and running total of one recorder.
+     */
+    private static final class Accumulated {
+        Histogram recycle;
+        Histogram interval;
+        final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+
+        void drain(Recorder recorder) {
+            recycle = recorder.getIntervalHistogram(recycle);
+            total.add(recycle);
+            if (interval == null) {
+                interval = new Histogram(SIGNIFICANT_DIGITS);
+            }
+            interval.add(recycle);
+        }
+
+        HistogramSummary takeInterval() {
+            HistogramSummary summary = new HistogramSummary(interval);
+            interval.reset();
+            return summary;
+        }
+    }
+
+    public void begin() {
+        beginNanos = System.nanoTime();
+        rows = 0;
+        inTransaction = true;
+    }
+
+    public void row() {
+        rows++;
+    }
+
+    /**
+     * @param commitTime commit timestamp of the COMMIT message, microseconds since 2000-01-01
+     */
+    public void commit(long commitTime) {
+        if (inTransaction) {
+            decodeLatency.recordValue(System.nanoTime() - beginNanos);
+            rowsPerTransaction.recordValue(rows);
+            totalRows.add(rows);
+            inTransaction = false;
+        }
+        commitLag.recordValue(Math.max(0, PgEpoch.now() - commitTime));
+        transactions.increment();
+    }
+
+    /**
+     * Record a whole transaction whose BEGIN was seen at <code>beginNanos</code>, thread safe.
+     *
+     * @param commitTime commit timestamp of the COMMIT message, microseconds since 2000-01-01
+     */
+    public void commit(long commitTime, long beginNanos, long rows) {
+        decodeLatency.recordValue(System.nanoTime() - beginNanos);
+        rowsPerTransaction.recordValue(rows);
+        totalRows.add(rows);
+        commitLag.recordValue(Math.max(0, PgEpoch.now() - commitTime));
+        transactions.increment();
+    }
+
+    public void message(int bytes) {
+        messageBytes.recordValue(bytes);
+        messages.increment();
+    }
+
+    /**
+     * A transaction buffer moved <code>bytes</code> to disk, taking <code>nanos</code>.
+     */
+    public void spill(long bytes, long nanos) {
+        spills.increment();
+        spilledBytes.add(bytes);
+        spillNanos.add(nanos);
+    }
+
+    private void drain() {
+        decodeLatencyTotals.drain(decodeLatency);
+        commitLagTotals.drain(commitLag);
+        rowsTotals.drain(rowsPerTransaction);
+        messageBytesTotals.drain(messageBytes);
+    }
+
+    /**
+     * @return the histograms recorded since the previous snapshot
+     */
+    public synchronized MetricsSnapshot snapshot() {
+        drain();
+        long now = System.currentTimeMillis();
+        MetricsSnapshot snapshot = new MetricsSnapshot(intervalStartMillis, now,
+                decodeLatencyTotals.takeInterval(), commitLagTotals.takeInterval(),
+                rowsTotals.takeInterval(), messageBytesTotals.takeInterval());
+        intervalStartMillis = now;
+        return snapshot;
+    }
+
+    /**
+     * Hand a snapshot to <code>consumer</code> every <code>period</code>, on a daemon thread.
+     */
+    public synchronized ScheduledFuture<?> startSnapshots(long period, TimeUnit unit, Consumer<MetricsSnapshot> consumer) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "replication-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler.scheduleAtFixedRate(() -> consumer.accept(snapshot()), period, period, unit);
+    }
+
+    /**
+     * Register with the platform MBean server as
+     * <code>com.postgresintl.logicaldecoding:type=ReplicationMetrics,name=&lt;name&gt;</code>.
+     */
+    public synchronized void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName("com.postgresintl.logicaldecoding:type=ReplicationMetrics,name="
+                + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+    }
+
+    public synchronized void close() throws JMException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    private synchronized long total(Accumulated accumulated, double percentile) {
+        drain();
+        return accumulated.total.getValueAtPercentile(percentile);
+    }
+
+    @Override
+    public long getTransactions() {
+        return transactions.sum();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public long getRows() {
+        return totalRows.sum();
+    }
+
+    @Override
+    public long getSpills() {
+        return spills.sum();
+    }
+
+    @Override
+    public long getSpilledBytes() {
+        return spilledBytes.sum();
+    }
+
+    @Override
+    public long getSpillMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(spillNanos.sum());
+    }
+
+    @Override
+    public long getCommitLagP50Micros() {
+        return total(commitLagTotals, 50);
+    }
+
+    @Override
+    public long getCommitLagP99Micros() {
+        return total(commitLagTotals, 99);
+    }
+
+    @Override
+    public long getCommitLagP999Micros() {
+        return total(commitLagTotals, 99.9);
+    }
+
+    @Override
+    public long getCommitLagMaxMicros() {
+        return total(commitLagTotals, 100);
+    }
+
+    @Override
+    public long getDecodeLatencyP50Nanos() {
+        return total(decodeLatencyTotals, 50);
+    }
+
+    @Override
+    public long getDecodeLatencyP99Nanos() {
+        return total(decodeLatencyTotals, 99);
+    }
+
+    @Override
+    public long getDecodeLatencyP999Nanos() {
+        return total(decodeLatencyTotals, 99.9);
+    }
+
+    @Override
+    public long getRowsPerTransactionP99() {
+        return total(rowsTotals, 99);
+    }
+
+    @Override
+    public long getMessageBytesP99() {
+        return total(messageBytesTotals, 99);
+    }
+
+    @Override
+    public long getMessageBytesMax() {
+        return total(messageBytesTotals, 100);
+    }
+}
@@ -0,0 +1,38 @@
+package com.postgresintl.logicaldecoding.metrics;
+
+/**
+ * JMX view of {@link ReplicationMetrics}, all values are since the stream started.
+ */
+public interface ReplicationMetricsMXBean {
+    long getTransactions();
+
+    long getMessages();
+
+    long getRows();
+
+    long getSpills();
+
+    long getSpilledBytes();
+
+    long getSpillMillis();
+
+    long getCommitLagP50Micros();
+
+    long getCommitLagP99Micros();
+
+    long getCommitLagP999Micros();
+
+    long getCommitLagMaxMicros();
+
+    long getDecodeLatencyP50Nanos();
+
+    long getDecodeLatencyP99Nanos();
+
+    long getDecodeLatencyP999Nanos();
+
+    long getRowsPerTransactionP99();
+
+    long getMessageBytesP99();
+
+    long getMessageBytesMax();
+}
@@ -0,0 +1,68 @@
+package com.postgresintl.logicaldecoding.model;
+
+/**
+ * A column of a relation as sent in a pgoutput RELATION message
+ */
+public class Attribute {
+    private final int typeOid;
+    private final String name;
+    private final int typeModifier;
+    private final byte flags;
+
+    public Attribute(int typeOid, String name, int typeModifier, byte flags) {
+        this.typeOid = typeOid;
+        this.name = name;
+        this.typeModifier = typeModifier;
+        this.flags = flags;
+    }
+
+    public int getTypeOid() {
+        return typeOid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getTypeModifier() {
+        return typeModifier;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return true if the column is part of the replica identity key
+     */
+    public boolean isKey() {
+        return (flags & 1) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        Attribute that = (Attribute) o;
+        return typeOid == that.typeOid && typeModifier == that.typeModifier
+                && flags == that.flags && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = typeOid;
+        result = 31 * result + name.hashCode();
+        result = 31 * result + typeModifier;
+        result = 31 * result + flags;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return name + " type: " + typeOid + (typeModifier == -1 ? "" : "(" + typeModifier + ")") + (isKey() ? " key" : "");
+    }
+}
@@ -0,0 +1,93 @@
+package com.postgresintl.logicaldecoding.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Table layout as described by a pgoutput RELATION message
+ */
+public class Relation {
+    private int oid;
+    private String schema;
+    private String name;
+    private byte replicaIdentity;
+    private final List<Attribute> attributes = new ArrayList<>();
+    private int version;
+
+    public int getOid() {
+        return oid;
+    }
+
+    public void setOid(int oid) {
+        this.oid = oid;
+    }
+
+    public String getSchema() {
+        return schema;
+    }
+
+    public void setSchema(String schema) {
+        this.schema = schema;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public byte getReplicaIdentity() {
+        return replicaIdentity;
+    }
+
+    public void setReplicaIdentity(byte replicaIdentity) {
+        this.replicaIdentity = replicaIdentity;
+    }
+
+    public void addAttribute(Attribute attribute) {
+        attributes.add(attribute);
+    }
+
+    public List<Attribute> getAttributes() {
+        return attributes;
+    }
+
+    public Attribute getAttribute(int column) {
+        return attributes.get(column);
+    }
+
+    public int getAttributeCount() {
+        return attributes.size();
+    }
+
+    /**
+     * @return layout version of this relation, incremented every time the server sends
+     * a RELATION message with a different layout for the same OID
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * @return true if both relations have the same name and columns
+     */
+    public boolean sameLayout(Relation other) {
+        return other != null
+                && oid == other.oid
+                && replicaIdentity == other.replicaIdentity
+                && schema.equals(other.schema)
+                && name.equals(other.name)
+                && attributes.equals(other.attributes);
+    }
+
+    @Override
+    public String toString() {
+        return schema + '.' + name + " oid: " + oid + " version: " + version + " columns: " + attributes;
+    }
+}
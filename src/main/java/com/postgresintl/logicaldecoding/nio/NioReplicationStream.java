@@ -0,0 +1,615 @@
+package com.postgresintl.logicaldecoding.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.postgresql.Driver;
+import org.postgresql.PGProperty;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+import com.postgresintl.logicaldecoding.PgEpoch;
+import com.postgresintl.logicaldecoding.SlotConfig;
+
+/**
+ * Logical replication client speaking the CopyBoth sub-protocol over a {@link SocketChannel}
+ * itself instead of through pgjdbc, a drop-in {@link PGReplicationStream} for the decoders.
+ *
+ * Everything the server sends is read into one large direct buffer, as much as the socket
+ * has per read, and the payload of every XLogData message is handed out as a view of that
+ * buffer: nothing is copied and nothing is allocated per message. The view, like the buffer
+ * of {@link com.postgresintl.logicaldecoding.capture.ReplaySource}, is only valid until the
+ * next read; a consumer keeping messages longer copies them. A message larger than the
+ * buffer grows it.
+ *
+ * Keepalives are answered when the server asks, and the positions set with
+ * {@link #setFlushedLSN(LogSequenceNumber)} and {@link #setAppliedLSN(LogSequenceNumber)}
+ * are reported every status interval while reading, as pgjdbc does. Authentication supports
+ * trust, password, md5 and scram-sha-256; SSL is not supported. Not thread safe.
+ *
+ * <pre>
+ * host.withStreamOpener(NioReplicationStream::open);
+ * </pre>
+ */
+public final class NioReplicationStream implements PGReplicationStream {
+    private static final int PROTOCOL_VERSION = 3 << 16;
+    /** type, length, 'w', start, end and send time */
+    private static final int XLOG_DATA_HEADER = 1 + 4 + 1 + 8 + 8 + 8;
+
+    private final SlotConfig config;
+    private int bufferSize = 4 * 1024 * 1024;
+    private long statusIntervalNanos = TimeUnit.SECONDS.toNanos(10);
+
+    private SocketChannel channel;
+    private Selector selector;
+    /** filled up to the position, messages from readIndex on are not processed yet */
+    private ByteBuffer in;
+    private int readIndex;
+    private ByteBuffer view;
+    private final ByteBuffer status = ByteBuffer.allocateDirect(1 + 4 + 1 + 8 * 4 + 1);
+    private long lastStatusNanos;
+
+    private long lastReceiveLsn;
+    private long serverWalEnd;
+    private long flushedLsn;
+    private long appliedLsn;
+    private long messages;
+    private boolean closed;
+
+    public NioReplicationStream(SlotConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Start a stream for <code>config</code>, fits {@link com.postgresintl.logicaldecoding.ConsumerHost.StreamOpener}.
+     *
+     * @param start where to start, null for the start position of the config
+     */
+    public static PGReplicationStream open(SlotConfig config, LogSequenceNumber start) throws SQLException {
+        return new NioReplicationStream(config).start(start);
+    }
+
+    /**
+     * Initial size of the receive buffer, 4MB by default.
+     *
+     * @return this, for chaining
+     */
+    public NioReplicationStream withBufferSize(int bytes) {
+        this.bufferSize = bytes;
+        return this;
+    }
+
+    /**
+     * How often the positions are reported while reading, 0 to only report when the server
+     * asks or {@link #forceUpdateStatus()} is called. 10 seconds by default.
+     *
+     * @return this, for chaining
+     */
+    public NioReplicationStream withStatusInterval(long interval, TimeUnit unit) {
+        this.statusIntervalNanos = unit.toNanos(interval);
+        return this;
+    }
+
+    /**
+     * Connect, authenticate and start replication.
+     *
+     * @param start where to start, null for the start position of the config or else where
+     *              the slot was last confirmed
+     * @return this
+     */
+    public NioReplicationStream start(LogSequenceNumber start) throws SQLException {
+        Properties properties = Driver.parseURL(config.getUrl(), config.getConnectionProperties());
+        if (properties == null) {
+            throw new SQLException("not a PostgreSQL url: " + config.getUrl(), "08001");
+        }
+        String host = PGProperty.PG_HOST.get(properties).split(",")[0];
+        int port = Integer.parseInt(PGProperty.PG_PORT.get(properties).split(",")[0]);
+        String user = PGProperty.USER.get(properties);
+        if (user == null) {
+            user = System.getProperty("user.name");
+        }
+        if (start == null) {
+            start = config.getStartLsn() == null ? LogSequenceNumber.INVALID_LSN : config.getStartLsn();
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.socket().connect(new InetSocketAddress(host, port),
+                    (int) TimeUnit.SECONDS.toMillis(PGProperty.CONNECT_TIMEOUT.getIntNoCheck(properties)));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            in = ByteBuffer.allocateDirect(bufferSize);
+            view = in.duplicate();
+
+            startup(user, PGProperty.PG_DBNAME.get(properties), properties);
+            authenticate(user, PGProperty.PASSWORD.get(properties));
+            await('Z');
+            query(startReplication(start));
+            await('W');
+
+            // the handshake blocks, streaming does not
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            lastStatusNanos = System.nanoTime();
+            return this;
+        } catch (IOException | GeneralSecurityException e) {
+            closeChannel();
+            throw new SQLException("could not start replication of " + config + ": " + e.getMessage(), "08001", e);
+        } catch (SQLException | RuntimeException e) {
+            closeChannel();
+            throw e;
+        }
+    }
+
+    private String startReplication(LogSequenceNumber start) {
+        StringBuilder sql = new StringBuilder("START_REPLICATION SLOT ")
+                .append(quote(config.getSlotName()))
+                .append(" LOGICAL ")
+                .append(start.asString());
+        String separator = " (";
+        for (Map.Entry<Object, Object> option : config.getSlotOptions().entrySet()) {
+            sql.append(separator).append(quote(option.getKey().toString()))
+                    .append(" '").append(option.getValue().toString().replace("'", "''")).append('\'');
+            separator = ", ";
+        }
+        return separator.equals(", ") ? sql.append(')').toString() : sql.toString();
+    }
+
+    private static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    /* handshake, blocking */
+
+    private void startup(String user, String database, Properties properties) throws IOException {
+        String applicationName = PGProperty.APPLICATION_NAME.get(properties);
+        String[] parameters = {
+                "user", user,
+                "database", database,
+                "replication", "database",
+                "client_encoding", "UTF8",
+                "application_name", applicationName == null ? "LogicalDecode" : applicationName
+        };
+        int length = 4 + 4 + 1;
+        for (String parameter : parameters) {
+            length += parameter.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        ByteBuffer message = ByteBuffer.allocate(length);
+        message.putInt(length);
+        message.putInt(PROTOCOL_VERSION);
+        for (String parameter : parameters) {
+            putString(message, parameter);
+        }
+        message.put((byte) 0);
+        write(message);
+    }
+
+    private void authenticate(String user, String password) throws IOException, SQLException, GeneralSecurityException {
+        ScramSha256 scram = null;
+        while (true) {
+            int start = nextMessage();
+            byte type = in.get(start);
+            if (type == 'N') {
+                continue;
+            }
+            if (type != 'R') {
+                throw new SQLException("expected an authentication request, got " + (char) type, "08P01");
+            }
+            int request = in.getInt(start + 5);
+            switch (request) {
+                case 0: // ok
+                    return;
+                case 3: // cleartext password
+                    sendPassword(requirePassword(password).getBytes(StandardCharsets.UTF_8));
+                    break;
+                case 5: // md5, salted
+                    byte[] salt = new byte[4];
+                    for (int i = 0; i < 4; i++) {
+                        salt[i] = in.get(start + 9 + i);
+                    }
+                    sendPassword(md5(user, requirePassword(password), salt));
+                    break;
+                case 10: // SASL, the mechanisms follow
+                    if (!offersScram(start + 9)) {
+                        throw new SQLException("none of the SASL mechanisms offered is supported", "28000");
+                    }
+                    scram = new ScramSha256("", requirePassword(password));
+                    byte[] mechanism = "SCRAM-SHA-256".getBytes(StandardCharsets.US_ASCII);
+                    byte[] first = scram.clientFirst().getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer initial = message('p', mechanism.length + 1 + 4 + first.length);
+                    initial.put(mechanism).put((byte) 0).putInt(first.length).put(first);
+                    write(initial);
+                    break;
+                case 11: // SASL continue
+                    byte[] last = scram.clientFinal(string(start + 9, readIndex)).getBytes(StandardCharsets.UTF_8);
+                    write(message('p', last.length).put(last));
+                    break;
+                case 12: // SASL final
+                    scram.verify(string(start + 9, readIndex));
+                    break;
+                default:
+                    throw new SQLException("authentication request " + request + " is not supported", "28000");
+            }
+        }
+    }
+
+    private boolean offersScram(int offset) {
+        while (offset < readIndex && in.get(offset) != 0) {
+            String mechanism = string(offset, readIndex);
+            if (mechanism.equals("SCRAM-SHA-256")) {
+                return true;
+            }
+            offset += mechanism.length() + 1;
+        }
+        return false;
+    }
+
+    private String requirePassword(String password) throws SQLException {
+        if (password == null) {
+            throw new SQLException("the server requested a password but none was given", "28P01");
+        }
+        return password;
+    }
+
+    private void sendPassword(byte[] password) throws IOException {
+        write(message('p', password.length + 1).put(password).put((byte) 0));
+    }
+
+    /**
+     * @return <code>md5</code> followed by the hex of md5(md5(password + user) + salt)
+     */
+    public static byte[] md5(String user, String password, byte[] salt) throws GeneralSecurityException {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(password.getBytes(StandardCharsets.UTF_8));
+        md5.update(user.getBytes(StandardCharsets.UTF_8));
+        byte[] inner = hex(md5.digest()).getBytes(StandardCharsets.US_ASCII);
+        md5.update(inner);
+        md5.update(salt);
+        return ("md5" + hex(md5.digest())).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private void query(String sql) throws IOException {
+        byte[] bytes = sql.getBytes(StandardCharsets.UTF_8);
+        write(message('Q', bytes.length + 1).put(bytes).put((byte) 0));
+    }
+
+    /**
+     * Skip messages up to one of <code>type</code>.
+     */
+    private void await(char type) throws IOException, SQLException {
+        while (in.get(nextMessage()) != type) {
+            // parameter status, backend key data, notices
+        }
+    }
+
+    /**
+     * Read up to the next complete message and consume it.
+     *
+     * @return the position of its type byte
+     */
+    private int nextMessage() throws IOException, SQLException {
+        while (!hasMessage()) {
+            receive(true);
+        }
+        int start = readIndex;
+        readIndex = start + 1 + in.getInt(start + 1);
+        if (in.get(start) == 'E') {
+            throw error(start + 5, readIndex);
+        }
+        return start;
+    }
+
+    private SQLException error(int offset, int end) {
+        String severity = "ERROR";
+        String state = null;
+        String message = null;
+        while (offset < end && in.get(offset) != 0) {
+            byte field = in.get(offset);
+            String value = string(offset + 1, end);
+            offset += 1 + value.getBytes(StandardCharsets.UTF_8).length + 1;
+            if (field == 'S') {
+                severity = value;
+            } else if (field == 'C') {
+                state = value;
+            } else if (field == 'M') {
+                message = value;
+            }
+        }
+        return new SQLException(severity + ": " + message, state);
+    }
+
+    /**
+     * @return the NUL terminated string at <code>offset</code>
+     */
+    private String string(int offset, int end) {
+        int nul = offset;
+        while (nul < end && in.get(nul) != 0) {
+            nul++;
+        }
+        byte[] bytes = new byte[nul - offset];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = in.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer message(char type, int bodyLength) {
+        ByteBuffer message = ByteBuffer.allocate(1 + 4 + bodyLength);
+        message.put((byte) type);
+        message.putInt(4 + bodyLength);
+        return message;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        buffer.put(value.getBytes(StandardCharsets.UTF_8));
+        buffer.put((byte) 0);
+    }
+
+    private void write(ByteBuffer message) throws IOException {
+        message.flip();
+        while (message.hasRemaining()) {
+            if (channel.write(message) == 0) {
+                // socket buffer full, only possible once streaming is non blocking
+                LockSupport.parkNanos(50_000);
+            }
+        }
+    }
+
+    /* streaming */
+
+    @Override
+    public ByteBuffer read() throws SQLException {
+        return next(true);
+    }
+
+    @Override
+    public ByteBuffer readPending() throws SQLException {
+        return next(false);
+    }
+
+    private ByteBuffer next(boolean block) throws SQLException {
+        try {
+            while (!closed) {
+                if (statusIntervalNanos > 0 && System.nanoTime() - lastStatusNanos >= statusIntervalNanos) {
+                    sendStatus();
+                }
+                while (hasMessage()) {
+                    ByteBuffer data = process();
+                    if (data != null || closed) {
+                        return data;
+                    }
+                }
+                if (!receive(block) && !block) {
+                    return null;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            closed = true;
+            closeChannel();
+            throw new SQLException("replication connection of " + config + " failed: " + e.getMessage(), "08006", e);
+        }
+    }
+
+    private boolean hasMessage() {
+        int available = in.position() - readIndex;
+        return available >= 5 && available >= 1 + in.getInt(readIndex + 1);
+    }
+
+    /**
+     * Read what the socket has, waiting up to the next status update if <code>block</code>.
+     *
+     * @return true if something was read
+     */
+    private boolean receive(boolean block) throws IOException {
+        makeRoom();
+        int n = channel.read(in);
+        if (n < 0) {
+            throw new EOFException("connection closed by the server");
+        }
+        if (n == 0 && block && selector != null) {
+            long waitNanos = statusIntervalNanos == 0 ? TimeUnit.SECONDS.toNanos(1)
+                    : lastStatusNanos + statusIntervalNanos - System.nanoTime();
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+            selector.selectedKeys().clear();
+        }
+        return n > 0;
+    }
+
+    /**
+     * Make sure a read can complete the message at readIndex, moving it to the start of the
+     * buffer or growing the buffer, and keep reads large.
+     */
+    private void makeRoom() {
+        int available = in.position() - readIndex;
+        if (available == 0) {
+            in.clear();
+            readIndex = 0;
+            return;
+        }
+        int needed = available >= 5 ? 1 + in.getInt(readIndex + 1) : 5;
+        if (readIndex + needed <= in.capacity() && in.remaining() >= in.capacity() / 8) {
+            return;
+        }
+        if (readIndex > 0) {
+            in.flip();
+            in.position(readIndex);
+            in.compact();
+            readIndex = 0;
+        }
+        if (needed > in.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(needed, in.capacity() * 2));
+            in.flip();
+            larger.put(in);
+            in = larger;
+            view = in.duplicate();
+        }
+    }
+
+    /**
+     * Consume the message at readIndex.
+     *
+     * @return the WAL data if it was XLogData
+     */
+    private ByteBuffer process() throws IOException, SQLException {
+        int start = readIndex;
+        int end = start + 1 + in.getInt(start + 1);
+        readIndex = end;
+        switch (in.get(start)) {
+            case 'd':
+                byte kind = in.get(start + 5);
+                if (kind == 'w') {
+                    lastReceiveLsn = in.getLong(start + 6);
+                    serverWalEnd = in.getLong(start + 14);
+                    messages++;
+                    view.limit(end);
+                    view.position(start + XLOG_DATA_HEADER);
+                    return view;
+                }
+                if (kind == 'k') {
+                    serverWalEnd = in.getLong(start + 6);
+                    if (in.get(start + 22) != 0) {
+                        sendStatus();
+                    }
+                }
+                return null;
+            case 'c':
+                // the server ended the stream
+                closed = true;
+                write(message('c', 0));
+                return null;
+            case 'E':
+                closed = true;
+                throw error(start + 5, end);
+            default:
+                // notices, and the command complete and ready for query after CopyDone
+                return null;
+        }
+    }
+
+    private void sendStatus() throws IOException {
+        status.clear();
+        status.put((byte) 'd');
+        status.putInt(status.capacity() - 1);
+        status.put((byte) 'r');
+        status.putLong(lastReceiveLsn);
+        status.putLong(flushedLsn);
+        status.putLong(appliedLsn);
+        status.putLong(PgEpoch.now());
+        // no reply requested
+        status.put((byte) 0);
+        write(status);
+        lastStatusNanos = System.nanoTime();
+    }
+
+    @Override
+    public LogSequenceNumber getLastReceiveLSN() {
+        return LogSequenceNumber.valueOf(lastReceiveLsn);
+    }
+
+    @Override
+    public LogSequenceNumber getLastFlushedLSN() {
+        return LogSequenceNumber.valueOf(flushedLsn);
+    }
+
+    @Override
+    public LogSequenceNumber getLastAppliedLSN() {
+        return LogSequenceNumber.valueOf(appliedLsn);
+    }
+
+    @Override
+    public void setFlushedLSN(LogSequenceNumber lsn) {
+        flushedLsn = lsn.asLong();
+    }
+
+    @Override
+    public void setAppliedLSN(LogSequenceNumber lsn) {
+        appliedLsn = lsn.asLong();
+    }
+
+    @Override
+    public void forceUpdateStatus() throws SQLException {
+        if (closed) {
+            return;
+        }
+        try {
+            sendStatus();
+        } catch (IOException e) {
+            throw new SQLException("could not send the status of " + config + ": " + e.getMessage(), "08006", e);
+        }
+    }
+
+    /**
+     * @return the end of WAL on the server as of the last XLogData or keepalive
+     */
+    public LogSequenceNumber getServerWalEnd() {
+        return LogSequenceNumber.valueOf(serverWalEnd);
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the current size of the receive buffer
+     */
+    public int getBufferSize() {
+        return in == null ? bufferSize : in.capacity();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * End the stream with CopyDone and close the connection.
+     */
+    @Override
+    public void close() {
+        if (channel != null && channel.isOpen() && !closed) {
+            try {
+                write(message('c', 0));
+                write(message('X', 0));
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        closed = true;
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+}
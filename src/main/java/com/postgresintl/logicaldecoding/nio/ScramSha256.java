@@ -0,0 +1,106 @@
+package com.postgresintl.logicaldecoding.nio;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Client side of SCRAM-SHA-256 (RFC 5802, RFC 7677) without channel binding, the password
+ * authentication PostgreSQL uses by default from version 14. The password is used as given,
+ * without SASLprep, which only matters for passwords with non ASCII characters.
+ */
+final class ScramSha256 {
+    private static final String GS2_HEADER = "n,,";
+
+    private final String user;
+    private final String password;
+    private final String clientNonce;
+    private String clientFirstBare;
+    private byte[] serverSignature;
+
+    ScramSha256(String user, String password) {
+        this(user, password, nonce());
+    }
+
+    ScramSha256(String user, String password, String clientNonce) {
+        this.user = user;
+        this.password = password;
+        this.clientNonce = clientNonce;
+    }
+
+    private static String nonce() {
+        byte[] bytes = new byte[18];
+        new SecureRandom().nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    String clientFirst() {
+        clientFirstBare = "n=" + user.replace("=", "=3D").replace(",", "=2C") + ",r=" + clientNonce;
+        return GS2_HEADER + clientFirstBare;
+    }
+
+    /**
+     * @param serverFirst <code>r=nonce,s=salt,i=iterations</code>
+     */
+    String clientFinal(String serverFirst) throws GeneralSecurityException {
+        String nonce = null;
+        byte[] salt = null;
+        int iterations = 0;
+        for (String attribute : serverFirst.split(",")) {
+            String value = attribute.substring(2);
+            switch (attribute.charAt(0)) {
+                case 'r':
+                    nonce = value;
+                    break;
+                case 's':
+                    salt = Base64.getDecoder().decode(value);
+                    break;
+                case 'i':
+                    iterations = Integer.parseInt(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (nonce == null || !nonce.startsWith(clientNonce) || salt == null || iterations <= 0) {
+            throw new GeneralSecurityException("invalid SCRAM server-first-message: " + serverFirst);
+        }
+        String withoutProof = "c=" + Base64.getEncoder().encodeToString(GS2_HEADER.getBytes(StandardCharsets.US_ASCII))
+                + ",r=" + nonce;
+        byte[] authMessage = (clientFirstBare + ',' + serverFirst + ',' + withoutProof).getBytes(StandardCharsets.UTF_8);
+
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] salted = factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, iterations, 256)).getEncoded();
+        byte[] clientKey = hmac(salted, "Client Key".getBytes(StandardCharsets.US_ASCII));
+        byte[] storedKey = MessageDigest.getInstance("SHA-256").digest(clientKey);
+        byte[] proof = hmac(storedKey, authMessage);
+        for (int i = 0; i < proof.length; i++) {
+            proof[i] ^= clientKey[i];
+        }
+        serverSignature = hmac(hmac(salted, "Server Key".getBytes(StandardCharsets.US_ASCII)), authMessage);
+        return withoutProof + ",p=" + Base64.getEncoder().encodeToString(proof);
+    }
+
+    /**
+     * @param serverFinal <code>v=signature</code>, or <code>e=error</code>
+     */
+    void verify(String serverFinal) throws GeneralSecurityException {
+        if (!serverFinal.startsWith("v=")
+                || !MessageDigest.isEqual(serverSignature, Base64.getDecoder().decode(serverFinal.substring(2)))) {
+            throw new GeneralSecurityException("SCRAM server signature does not match: " + serverFinal);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+}
@@ -0,0 +1,172 @@
+package com.postgresintl.logicaldecoding.pipeline;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import com.postgresintl.logicaldecoding.AckTracker;
+
+/**
+ * A committed transaction whose rows have been decoded, possibly by several threads.
+ * The rows are in the order the server sent them.
+ *
+ * It also carries the {@link AckTracker} tickets of the messages it was built from, which
+ * are completed once the sink has taken it.
+ */
+public final class DecodedTransaction<T> {
+    private final int xid;
+    private final long finalLsn;
+    private final long beginLsn;
+    private Object[] rows = new Object[16];
+    private long[] tickets = new long[4];
+    private int ticketCount;
+    private Exception failure;
+    private int size;
+    private int pending;
+    private boolean committed;
+    private boolean aborted;
+    private long commitLsn;
+    private long endLsn;
+    private long commitTime;
+
+    DecodedTransaction(int xid, long finalLsn, long commitTime, long beginLsn) {
+        this.xid = xid;
+        this.finalLsn = finalLsn;
+        this.commitTime = commitTime;
+        this.beginLsn = beginLsn;
+    }
+
+    /* coordinator side */
+
+    synchronized int reserve() {
+        if (size == rows.length) {
+            Object[] grown = new Object[rows.length * 2];
+            System.arraycopy(rows, 0, grown, 0, size);
+            rows = grown;
+        }
+        pending++;
+        return size++;
+    }
+
+    /**
+     * Record the ticket of a message that belongs to the transaction, a message replayed as
+     * several is recorded once.
+     */
+    synchronized void addTicket(long ticket) {
+        if (ticketCount > 0 && tickets[ticketCount - 1] == ticket) {
+            return;
+        }
+        if (ticketCount == tickets.length) {
+            long[] grown = new long[tickets.length * 2];
+            System.arraycopy(tickets, 0, grown, 0, ticketCount);
+            tickets = grown;
+        }
+        tickets[ticketCount++] = ticket;
+    }
+
+    synchronized void commit(long commitLsn, long endLsn, long commitTime) {
+        this.commitLsn = commitLsn;
+        this.endLsn = endLsn;
+        this.commitTime = commitTime;
+        committed = true;
+        notifyAll();
+    }
+
+    synchronized void abort() {
+        aborted = true;
+        committed = true;
+        notifyAll();
+    }
+
+    synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    /* worker side */
+
+    synchronized void complete(int index, T row) {
+        rows[index] = row;
+        if (--pending == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * A row did not decode, the transaction must not reach the sink.
+     */
+    synchronized void fail(int index, Exception ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+        complete(index, null);
+    }
+
+    /* emitter side */
+
+    synchronized Exception getFailure() {
+        return failure;
+    }
+
+    synchronized void completeTickets(AckTracker tracker) {
+        for (int i = 0; i < ticketCount; i++) {
+            tracker.complete(tickets[i]);
+        }
+    }
+
+    synchronized void awaitDecoded() throws InterruptedException {
+        while (!committed || pending > 0) {
+            wait();
+        }
+    }
+
+    public int getXid() {
+        return xid;
+    }
+
+    public long getFinalLsn() {
+        return finalLsn;
+    }
+
+    /**
+     * @return LSN at which the BEGIN message was received
+     */
+    public long getBeginLsn() {
+        return beginLsn;
+    }
+
+    public long getCommitLsn() {
+        return commitLsn;
+    }
+
+    public long getEndLsn() {
+        return endLsn;
+    }
+
+    /**
+     * @return commit time in microseconds since 2000-01-01
+     */
+    public long getCommitTime() {
+        return commitTime;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public List<T> getRows() {
+        return new AbstractList<T>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public T get(int index) {
+                if (index >= size) {
+                    throw new IndexOutOfBoundsException(Integer.toString(index));
+                }
+                return (T) rows[index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,149 @@
+package com.postgresintl.logicaldecoding.pipeline;
+
+import java.nio.ByteBuffer;
+
+import com.postgresintl.logicaldecoding.WaitStrategy;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+/**
+ * Preallocated single producer ring of raw replication messages.
+ *
+ * The producer claims the next slot, copies the message in and publishes it. Consumers
+ * track their own {@link Sequence}; the producer never overwrites a slot until every
+ * gating consumer has moved past it, which is how back pressure reaches the reader.
+ */
+public final class MessageRing {
+    private final RingSlot[] slots;
+    private final int mask;
+    private final Sequence cursor = new Sequence();
+    private final WaitStrategy producerWait;
+    private volatile Sequence[] gating = new Sequence[0];
+
+    // producer state
+    private long next = -1;
+    private long cachedGate = -1;
+    private volatile long fullWaits;
+    private volatile Exception halted;
+
+    /**
+     * @param capacity     number of slots, rounded up to a power of two
+     * @param slotSize     initial size of every slot's buffer, slots grow on demand
+     * @param producerWait how the producer waits when the ring is full
+     */
+    public MessageRing(int capacity, int slotSize, WaitStrategy producerWait) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new RingSlot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new RingSlot(slotSize);
+        }
+        mask = size - 1;
+        this.producerWait = producerWait;
+    }
+
+    Sequence cursor() {
+        return cursor;
+    }
+
+    void setGating(Sequence[] sequences) {
+        gating = sequences;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    RingSlot slot(long sequence) {
+        return slots[(int) (sequence & mask)];
+    }
+
+    /**
+     * Stop accepting messages, a consumer failed and will not release its slots again.
+     */
+    void halt(Exception cause) {
+        halted = cause;
+    }
+
+    /**
+     * @return the failure the ring was halted for, null while it accepts messages
+     */
+    public Exception getHalted() {
+        return halted;
+    }
+
+    private void checkHalted() {
+        Exception cause = halted;
+        if (cause != null) {
+            throw new IllegalStateException("a consumer of the ring failed", cause);
+        }
+    }
+
+    /**
+     * Claim the next slot, waiting while the ring is full.
+     *
+     * @throws IllegalStateException once a consumer has failed, see {@link #getHalted()}
+     */
+    public long claim() throws InterruptedException {
+        checkHalted();
+        long sequence = next + 1;
+        long wrapPoint = sequence - slots.length;
+        if (wrapPoint > cachedGate) {
+            int attempt = 0;
+            while (wrapPoint > (cachedGate = Sequence.min(gating, next))) {
+                if (attempt == 0) {
+                    fullWaits++;
+                }
+                producerWait.idle(attempt++);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                checkHalted();
+            }
+        }
+        next = sequence;
+        return sequence;
+    }
+
+    public RingSlot get(long sequence) {
+        return slot(sequence);
+    }
+
+    public void publish(long sequence) {
+        cursor.set(sequence);
+    }
+
+    /**
+     * Copy a message into the ring and publish it, the buffer may be reused by the caller
+     * as soon as this returns.
+     */
+    public long publish(ByteBuffer buffer, LogSequenceNumber lsn, long ticket) throws InterruptedException {
+        long sequence = claim();
+        RingSlot slot = slot(sequence);
+        slot.copyFrom(buffer);
+        slot.lsn = lsn.asLong();
+        slot.ticket = ticket;
+        slot.event = null;
+        slot.failure = null;
+        publish(sequence);
+        return sequence;
+    }
+
+    /**
+     * @return messages published but not yet released by every consumer
+     */
+    public long depth() {
+        long published = cursor.get();
+        return published - Sequence.min(gating, published);
+    }
+
+    /**
+     * @return how many times the producer found the ring full
+     */
+    public long getFullWaits() {
+        return fullWaits;
+    }
+
+    public long getPublished() {
+        return cursor.get() + 1;
+    }
+}
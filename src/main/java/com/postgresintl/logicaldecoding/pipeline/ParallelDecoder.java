@@ -0,0 +1,400 @@
+package com.postgresintl.logicaldecoding.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.postgresintl.logicaldecoding.AckTracker;
+import com.postgresintl.logicaldecoding.PgOutputMessage;
+import com.postgresintl.logicaldecoding.PgOutputTuple;
+import com.postgresintl.logicaldecoding.RelationCache;
+import com.postgresintl.logicaldecoding.StreamedTransactionBuffer;
+import com.postgresintl.logicaldecoding.TableFilter;
+import com.postgresintl.logicaldecoding.model.Relation;
+
+/**
+ * Decodes pgoutput rows on several threads while keeping transactions intact.
+ *
+ * The thread calling {@link #accept(ByteBuffer, long)} frames every message with a
+ * {@link PgOutputMessage}, keeps the {@link RelationCache} up to date and copies INSERT,
+ * UPDATE and DELETE messages to one of the workers, chosen by relation OID or by a hash of
+ * the key columns. Every row keeps its position in the transaction, so the order in which
+ * workers finish does not matter: a single emitter thread hands complete transactions to the
+ * sink in the order the server committed them, after the COMMIT arrived and every row of
+ * the transaction has been decoded.
+ *
+ * The row decoder is called concurrently from all workers and must not keep state.
+ *
+ * If a row does not decode or the sink throws, that transaction and every later one are
+ * not emitted and the decoder stops: {@link #getError()} returns the exception and the next
+ * {@link #accept(ByteBuffer, long, long)} throws it wrapped in an
+ * {@link IllegalStateException}. With {@link #withAckTracker(AckTracker)} the tickets of
+ * the messages of a transaction are only completed after the sink returned, so the
+ * flushed LSN never passes a transaction that was not stored.
+ */
+public class ParallelDecoder<T> implements StageHandler, AutoCloseable {
+
+    public enum Partitioning {
+        /** all rows of a table go to the same worker */
+        RELATION,
+        /** rows are spread by the hash of their key columns, for bulk loads into one table */
+        PRIMARY_KEY
+    }
+
+    public interface RowDecoder<T> {
+        /**
+         * @param message  the row message, only valid during the call
+         * @param relation the relation as of this row, null if no RELATION message was seen
+         */
+        T decode(PgOutputMessage message, Relation relation) throws Exception;
+    }
+
+    public interface TransactionSink<T> {
+        void onTransaction(DecodedTransaction<T> transaction) throws Exception;
+    }
+
+    private static final Row STOP = new Row();
+    private static final DecodedTransaction<Object> END = new DecodedTransaction<>(0, 0, 0, 0);
+
+    private static final class Row {
+        byte[] data;
+        int length;
+        Relation relation;
+        DecodedTransaction<Object> transaction;
+        int index;
+    }
+
+    private final Partitioning partitioning;
+    private final RowDecoder<T> decoder;
+    private final TransactionSink<T> sink;
+    private final RelationCache relations = new RelationCache();
+    private final StreamedTransactionBuffer streams = new StreamedTransactionBuffer();
+    private final PgOutputMessage message = new PgOutputMessage();
+    private final List<Worker> workers;
+    private final BlockingQueue<DecodedTransaction<Object>> transactions;
+    private final Thread emitter;
+    private DecodedTransaction<Object> current;
+    private AckTracker ackTracker;
+    private long ticket = -1;
+    private boolean attached;
+    private volatile long emitted;
+    // counted by the workers and the emitter
+    private final LongAdder failures = new LongAdder();
+    private volatile Exception error;
+    private volatile boolean closed;
+
+    /**
+     * @param workers       number of decoding threads
+     * @param partitioning  how rows are assigned to workers
+     * @param queueCapacity rows queued per worker, and transactions queued for the emitter,
+     *                      before {@link #accept(ByteBuffer, long)} blocks
+     */
+    public ParallelDecoder(int workers, Partitioning partitioning, int queueCapacity,
+                           RowDecoder<T> decoder, TransactionSink<T> sink) {
+        this.partitioning = partitioning;
+        this.decoder = decoder;
+        this.sink = sink;
+        this.workers = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            this.workers.add(new Worker(i, queueCapacity));
+        }
+        this.transactions = new ArrayBlockingQueue<>(queueCapacity);
+        this.emitter = new Thread(this::emit, "parallel-decoder-emitter");
+        this.emitter.setDaemon(true);
+    }
+
+    /**
+     * Drop the rows of relations <code>filter</code> does not want on the dispatching thread,
+     * before they are copied for a worker. Must be set before {@link #start()}.
+     */
+    public void setTableFilter(TableFilter filter) {
+        message.setFilter(filter, relations);
+    }
+
+    /**
+     * Complete the ticket of every message handed to {@link #accept(ByteBuffer, long, long)}:
+     * those of a transaction after the sink has taken it, the others, such as RELATION
+     * messages between transactions, right away. Use with
+     * {@link Pipeline#withAsyncAckTracker(AckTracker)}. Must be set before {@link #start()}.
+     *
+     * @return this, for chaining
+     */
+    public ParallelDecoder<T> withAckTracker(AckTracker ackTracker) {
+        this.ackTracker = ackTracker;
+        return this;
+    }
+
+    public void start() {
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+        emitter.start();
+    }
+
+    @Override
+    public void onMessage(RingSlot slot) throws Exception {
+        accept(slot.buffer(), slot.lsnAsLong(), slot.ticket());
+    }
+
+    public void accept(ByteBuffer buffer, long lsn) throws Exception {
+        accept(buffer, lsn, -1);
+    }
+
+    /**
+     * Dispatch one message, must always be called from the same thread.
+     * Protocol version 2 stream blocks are held back until their STREAM COMMIT.
+     *
+     * @param ticket the {@link AckTracker} ticket of the message, -1 if not tracked
+     * @throws IllegalStateException once a row failed to decode or the sink failed
+     */
+    public void accept(ByteBuffer buffer, long lsn, long ticket) throws Exception {
+        checkError();
+        this.ticket = ticket;
+        attached = false;
+        if (!streams.accept(buffer, replayed -> dispatch(replayed, lsn))) {
+            dispatch(buffer, lsn);
+        }
+        if (!attached && ticket >= 0 && ackTracker != null) {
+            // not part of a transaction, nothing for the sink to store
+            ackTracker.complete(ticket);
+        }
+    }
+
+    private void checkError() {
+        Exception cause = error;
+        if (cause != null) {
+            throw new IllegalStateException("parallel decoder stopped", cause);
+        }
+    }
+
+    /**
+     * The message being dispatched belongs to <code>transaction</code>.
+     */
+    private void attach(DecodedTransaction<Object> transaction) {
+        if (ticket >= 0) {
+            transaction.addTicket(ticket);
+        }
+        attached = true;
+    }
+
+    /**
+     * Queue a transaction for the emitter, giving up once it has stopped.
+     */
+    private void enqueue(DecodedTransaction<Object> transaction) throws InterruptedException {
+        while (!transactions.offer(transaction, 10, TimeUnit.MILLISECONDS)) {
+            if (!emitter.isAlive()) {
+                checkError();
+                throw new IllegalStateException("parallel decoder emitter is not running");
+            }
+        }
+    }
+
+    private void dispatch(ByteBuffer buffer, long lsn) throws InterruptedException {
+        message.wrap(buffer);
+        if (current != null) {
+            attach(current);
+        }
+        switch (message.type()) {
+            case PgOutputMessage.RELATION:
+                relations.update(message);
+                break;
+
+            case PgOutputMessage.BEGIN:
+                current = new DecodedTransaction<>(message.xid(), message.finalLsn(), message.commitTime(), lsn);
+                attach(current);
+                enqueue(current);
+                break;
+
+            case PgOutputMessage.COMMIT:
+                if (current != null) {
+                    current.commit(message.commitLsn(), message.endLsn(), message.commitTime());
+                    current = null;
+                }
+                break;
+
+            case PgOutputMessage.INSERT:
+            case PgOutputMessage.UPDATE:
+            case PgOutputMessage.DELETE:
+                if (current == null) {
+                    throw new IllegalStateException("row outside of a transaction at " + lsn);
+                }
+                if (message.isFiltered()) {
+                    break;
+                }
+                Relation relation = relations.get(message.relationOid());
+                Worker worker = workers.get((partition(relation) & 0x7FFFFFFF) % workers.size());
+                Row row = new Row();
+                row.length = buffer.remaining();
+                row.data = new byte[row.length];
+                buffer.duplicate().get(row.data);
+                row.relation = relation;
+                row.transaction = current;
+                row.index = current.reserve();
+                worker.queue.put(row);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private int partition(Relation relation) {
+        int oid = message.relationOid();
+        if (partitioning == Partitioning.RELATION || relation == null) {
+            return oid * 0x9E3779B9;
+        }
+        PgOutputTuple tuple = message.hasNewTuple() ? message.newTuple() : message.oldTuple();
+        ByteBuffer data = tuple.buffer();
+        int hash = oid;
+        int columns = Math.min(tuple.columnCount(), relation.getAttributeCount());
+        for (int i = 0; i < columns; i++) {
+            if (relation.getAttribute(i).isKey()) {
+                int end = tuple.offset(i) + tuple.length(i);
+                for (int p = tuple.offset(i); p < end; p++) {
+                    hash = 31 * hash + data.get(p);
+                }
+            }
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private final class Worker implements Runnable {
+        final BlockingQueue<Row> queue;
+        final Thread thread;
+        final PgOutputMessage message = new PgOutputMessage();
+        volatile long decoded;
+
+        Worker(int id, int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+            thread = new Thread(this, "parallel-decoder-" + id);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Row row;
+                while ((row = queue.take()) != STOP) {
+                    try {
+                        Object value = decoder.decode(message.wrap(ByteBuffer.wrap(row.data, 0, row.length)), row.relation);
+                        row.transaction.complete(row.index, value);
+                    } catch (Exception ex) {
+                        failures.increment();
+                        row.transaction.fail(row.index, ex);
+                    }
+                    decoded++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void emit() {
+        try {
+            while (!closed || !transactions.isEmpty()) {
+                DecodedTransaction<Object> transaction = transactions.take();
+                if (transaction == END) {
+                    break;
+                }
+                transaction.awaitDecoded();
+                if (transaction.isAborted()) {
+                    continue;
+                }
+                if (transaction.getFailure() != null) {
+                    error = transaction.getFailure();
+                    return;
+                }
+                try {
+                    sink.onTransaction((DecodedTransaction<T>) transaction);
+                } catch (Exception ex) {
+                    failures.increment();
+                    error = ex;
+                    return;
+                }
+                if (ackTracker != null) {
+                    transaction.completeTickets(ackTracker);
+                }
+                emitted++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Let the workers finish the queued rows and the emitter hand over every committed
+     * transaction, then stop the threads. A transaction still open is dropped. An interrupt
+     * ends the wait for the threads and is kept for the caller.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (current != null) {
+            // never committed, let the emitter skip past it
+            current.abort();
+            current = null;
+        }
+        try {
+            for (Worker worker : workers) {
+                worker.queue.put(STOP);
+            }
+            for (Worker worker : workers) {
+                worker.thread.join();
+            }
+            while (emitter.isAlive() && !transactions.offer(END, 10, TimeUnit.MILLISECONDS)) {
+                // the emitter is still working through the queue
+            }
+            emitter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public RelationCache relations() {
+        return relations;
+    }
+
+    public long getEmitted() {
+        return emitted;
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the decode or sink exception the decoder stopped on, null while it is running
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return rows decoded by every worker, a skewed distribution means the partitioning
+     * does not spread this workload
+     */
+    public long[] getDecodedPerWorker() {
+        long[] counts = new long[workers.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = workers.get(i).decoded;
+        }
+        return counts;
+    }
+
+    /**
+     * @return rows waiting in every worker's queue
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[workers.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = workers.get(i).queue.size();
+        }
+        return depths;
+    }
+}
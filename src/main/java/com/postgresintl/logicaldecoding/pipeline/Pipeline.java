@@ -0,0 +1,241 @@
+package com.postgresintl.logicaldecoding.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+import com.postgresintl.logicaldecoding.AckTracker;
+import com.postgresintl.logicaldecoding.WaitStrategy;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+/**
+ * Reader, decoder and sink stages connected by a {@link MessageRing}.
+ *
+ * The thread reading the replication stream copies every message into the ring with
+ * {@link #publish(ByteBuffer, LogSequenceNumber)} and goes straight back to the socket.
+ * Decoder stages run one after the other on their own threads, each seeing every message
+ * after the previous decoder is done with it. Sinks run in parallel on their own threads
+ * behind the last decoder. When the slowest sink falls a full ring behind the reader
+ * blocks, which in turn makes the server hold back.
+ *
+ * A stage whose handler throws stops at that message, see {@link Stage}. Its ticket and
+ * those after it are never completed, so the durable LSN stays before it and the message is
+ * read again after a restart; the next {@link #publish(ByteBuffer, LogSequenceNumber)}
+ * throws.
+ *
+ * <pre>
+ *   Pipeline pipeline = new Pipeline(4096, 512, WaitStrategy::backoff)
+ *           .addDecoder("decode", slot -&gt; slot.setEvent(new PgOutput(slot.buffer(), relations).toString()))
+ *           .addSink("print", slot -&gt; System.out.println(slot.event()));
+ * </pre>
+ */
+public class Pipeline implements AutoCloseable {
+    private final MessageRing ring;
+    private final Supplier<WaitStrategy> waitStrategies;
+    private final List<Stage> decoders = new ArrayList<>();
+    private final List<Stage> sinks = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    // sequences of the last stages, built once in start()
+    private Sequence[] tailSequences;
+    private AckTracker ackTracker;
+    private boolean completeOnRelease;
+    private long completed = -1;
+    private boolean started;
+
+    /**
+     * @param capacity       number of messages the ring holds
+     * @param slotSize       initial size of every slot, slots grow to the largest message
+     * @param waitStrategies creates the wait strategy for the reader and every stage
+     */
+    public Pipeline(int capacity, int slotSize, Supplier<WaitStrategy> waitStrategies) {
+        this.ring = new MessageRing(capacity, slotSize, waitStrategies.get());
+        this.waitStrategies = waitStrategies;
+    }
+
+    public Pipeline addDecoder(String name, StageHandler handler) {
+        checkNotStarted();
+        if (!sinks.isEmpty()) {
+            throw new IllegalStateException("decoders must be added before sinks");
+        }
+        Sequence[] upstream = decoders.isEmpty()
+                ? new Sequence[]{ring.cursor()}
+                : new Sequence[]{decoders.get(decoders.size() - 1).sequence()};
+        decoders.add(new Stage(name, ring, handler, upstream, waitStrategies.get()));
+        return this;
+    }
+
+    public Pipeline addSink(String name, StageHandler handler) {
+        checkNotStarted();
+        Sequence[] upstream = decoders.isEmpty()
+                ? new Sequence[]{ring.cursor()}
+                : new Sequence[]{decoders.get(decoders.size() - 1).sequence()};
+        sinks.add(new Stage(name, ring, handler, upstream, waitStrategies.get()));
+        return this;
+    }
+
+    /**
+     * Complete the ticket of every message once all sinks have processed it. Only suitable
+     * for sinks that have stored the data when their handler returns, asynchronous sinks
+     * should complete the tickets themselves.
+     */
+    public Pipeline withAckTracker(AckTracker ackTracker) {
+        checkNotStarted();
+        this.ackTracker = ackTracker;
+        this.completeOnRelease = true;
+        return this;
+    }
+
+    /**
+     * Track every message in <code>ackTracker</code> and hand the ticket along in the slot,
+     * but leave completing it to the stages, for handlers that are not done with a message
+     * when they return, such as {@link ParallelDecoder#withAckTracker(AckTracker)}.
+     */
+    public Pipeline withAsyncAckTracker(AckTracker ackTracker) {
+        checkNotStarted();
+        this.ackTracker = ackTracker;
+        this.completeOnRelease = false;
+        return this;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("pipeline already started");
+        }
+    }
+
+    private List<Stage> tail() {
+        return sinks.isEmpty() ? decoders : sinks;
+    }
+
+    private Sequence[] sequences(List<Stage> stages) {
+        Sequence[] sequences = new Sequence[stages.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = stages.get(i).sequence();
+        }
+        return sequences;
+    }
+
+    public synchronized void start() {
+        checkNotStarted();
+        if (tail().isEmpty()) {
+            throw new IllegalStateException("pipeline has no stages");
+        }
+        tailSequences = sequences(tail());
+        ring.setGating(tailSequences);
+        started = true;
+        for (Stage stage : stages()) {
+            Thread thread = new Thread(stage, "pipeline-" + stage.getName());
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Copy a message into the ring, called by the thread reading the stream.
+     * Blocks while the ring is full.
+     *
+     * @throws IllegalStateException once a stage has failed, with its exception as the cause
+     */
+    public long publish(ByteBuffer buffer, LogSequenceNumber lsn) throws InterruptedException {
+        long sequence = ring.claim();
+        long ticket = -1;
+        if (ackTracker != null) {
+            completeReleased();
+            ticket = ackTracker.track(lsn);
+        }
+        RingSlot slot = ring.get(sequence);
+        slot.copyFrom(buffer);
+        slot.lsn = lsn.asLong();
+        slot.ticket = ticket;
+        slot.event = null;
+        slot.failure = null;
+        ring.publish(sequence);
+        return sequence;
+    }
+
+    /**
+     * Complete the tickets of the messages every sink is done with. Called from
+     * {@link #publish(ByteBuffer, LogSequenceNumber)} and should also be called by the
+     * reading thread while it is idle, before sending feedback.
+     */
+    public void completeReleased() {
+        if (ackTracker == null || !completeOnRelease || tailSequences == null) {
+            return;
+        }
+        long released = Sequence.min(tailSequences, Long.MAX_VALUE);
+        for (long s = completed + 1; s <= released; s++) {
+            RingSlot slot = ring.get(s);
+            if (slot.failure != null) {
+                // never acknowledged, the watermark stays before it
+                return;
+            }
+            if (slot.ticket >= 0) {
+                ackTracker.complete(slot.ticket);
+            }
+            completed = s;
+        }
+    }
+
+    /**
+     * Wait for the stages to drain what has been published, then stop them. An interrupt
+     * ends the wait for the stage threads and is kept for the caller.
+     */
+    @Override
+    public synchronized void close() {
+        if (!started) {
+            return;
+        }
+        long published = ring.getPublished() - 1;
+        WaitStrategy wait = waitStrategies.get();
+        int attempt = 0;
+        while (Sequence.min(tailSequences, Long.MAX_VALUE) < published && threadsAlive()) {
+            wait.idle(attempt++);
+        }
+        completeReleased();
+        for (Stage stage : stages()) {
+            stage.stop();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            threads.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean threadsAlive() {
+        for (Thread thread : threads) {
+            if (!thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public MessageRing ring() {
+        return ring;
+    }
+
+    public List<Stage> stages() {
+        List<Stage> stages = new ArrayList<>(decoders);
+        stages.addAll(sinks);
+        return Collections.unmodifiableList(stages);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ring depth: ").append(ring.depth()).append('/').append(ring.capacity())
+                .append(" full waits: ").append(ring.getFullWaits());
+        for (Stage stage : stages()) {
+            sb.append("\n  ").append(stage);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package com.postgresintl.logicaldecoding.pipeline;
+
+import java.nio.ByteBuffer;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+/**
+ * Preallocated entry of the {@link MessageRing}. The reader copies the raw message into
+ * {@link #data}, decoder stages leave their result in {@link #event} for the sinks.
+ * A slot is reused as soon as every sink has moved past it, nothing may hold on to it.
+ */
+public final class RingSlot {
+    byte[] data;
+    int length;
+    long lsn;
+    long ticket = -1;
+    Object event;
+    volatile Exception failure;
+    private ByteBuffer view;
+
+    RingSlot(int initialCapacity) {
+        data = new byte[initialCapacity];
+        view = ByteBuffer.wrap(data);
+    }
+
+    void copyFrom(ByteBuffer buffer) {
+        int len = buffer.remaining();
+        if (data.length < len) {
+            data = new byte[Math.max(len, data.length * 2)];
+            view = ByteBuffer.wrap(data);
+        }
+        buffer.duplicate().get(data, 0, len);
+        length = len;
+    }
+
+    /**
+     * @return the raw message, positioned at the start of the data. The same buffer is
+     * handed out every time so stages must not keep it.
+     */
+    public ByteBuffer buffer() {
+        view.clear();
+        view.limit(length);
+        return view;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public LogSequenceNumber lsn() {
+        return LogSequenceNumber.valueOf(lsn);
+    }
+
+    public long lsnAsLong() {
+        return lsn;
+    }
+
+    /**
+     * @return the {@link com.postgresintl.logicaldecoding.AckTracker} ticket, -1 if not tracked
+     */
+    public long ticket() {
+        return ticket;
+    }
+
+    /**
+     * @return the exception a stage failed on while processing this message, null if none
+     */
+    public Exception failure() {
+        return failure;
+    }
+
+    public Object event() {
+        return event;
+    }
+
+    public void setEvent(Object event) {
+        this.event = event;
+    }
+}
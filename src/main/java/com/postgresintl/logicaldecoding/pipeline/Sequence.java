@@ -0,0 +1,34 @@
+package com.postgresintl.logicaldecoding.pipeline;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Position of a producer or stage in the ring. Written by a single thread with an ordered
+ * store and read by the others, padded so neighbouring sequences do not share a cache line.
+ */
+final class Sequence {
+    private static final AtomicLongFieldUpdater<Sequence> VALUE =
+            AtomicLongFieldUpdater.newUpdater(Sequence.class, "value");
+
+    long p1, p2, p3, p4, p5, p6, p7;
+    private volatile long value = -1;
+    long p9, p10, p11, p12, p13, p14, p15;
+
+    long get() {
+        return value;
+    }
+
+    void set(long v) {
+        VALUE.lazySet(this, v);
+    }
+
+    static long min(Sequence[] sequences, long min) {
+        for (Sequence s : sequences) {
+            long v = s.get();
+            if (v < min) {
+                min = v;
+            }
+        }
+        return min;
+    }
+}
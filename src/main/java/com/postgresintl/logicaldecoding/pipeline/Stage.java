@@ -0,0 +1,131 @@
+package com.postgresintl.logicaldecoding.pipeline;
+
+import com.postgresintl.logicaldecoding.WaitStrategy;
+
+/**
+ * A consumer of the ring running on its own thread. It processes every slot its upstream
+ * sequences have released, in order, and then releases them to the stages behind it.
+ *
+ * If the handler throws, the stage stops at that message: the slot records the failure, it
+ * and everything after it are never released, so no later stage sees them and their
+ * tickets are never completed, and the ring is halted so the reader learns of it.
+ */
+public final class Stage implements Runnable {
+    private final String name;
+    private final MessageRing ring;
+    private final StageHandler handler;
+    private final Sequence[] upstream;
+    private final Sequence sequence = new Sequence();
+    private final WaitStrategy waitStrategy;
+    private volatile boolean running = true;
+
+    private volatile long processed;
+    private volatile long failures;
+    private volatile long busyNanos;
+    private volatile long startNanos;
+    private volatile Exception error;
+
+    Stage(String name, MessageRing ring, StageHandler handler, Sequence[] upstream, WaitStrategy waitStrategy) {
+        this.name = name;
+        this.ring = ring;
+        this.handler = handler;
+        this.upstream = upstream;
+        this.waitStrategy = waitStrategy;
+    }
+
+    Sequence sequence() {
+        return sequence;
+    }
+
+    @Override
+    public void run() {
+        startNanos = System.nanoTime();
+        long next = sequence.get() + 1;
+        int attempt = 0;
+        while (running) {
+            long available = Sequence.min(upstream, Long.MAX_VALUE);
+            if (available < next) {
+                waitStrategy.idle(attempt++);
+                continue;
+            }
+            attempt = 0;
+            long start = System.nanoTime();
+            for (; next <= available; next++) {
+                RingSlot slot = ring.slot(next);
+                try {
+                    handler.onMessage(slot);
+                } catch (Exception ex) {
+                    slot.failure = ex;
+                    failures++;
+                    error = ex;
+                    running = false;
+                    // release what succeeded, the failed slot stays held
+                    sequence.set(next - 1);
+                    ring.halt(ex);
+                    busyNanos += System.nanoTime() - start;
+                    return;
+                }
+                processed++;
+            }
+            sequence.set(available);
+            busyNanos += System.nanoTime() - start;
+        }
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the exception the stage stopped on, null while it is running
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return messages released by the upstream stages but not yet processed here
+     */
+    public long getQueueDepth() {
+        return Sequence.min(upstream, Long.MAX_VALUE) - sequence.get();
+    }
+
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * @return fraction of the time since start spent processing messages, a stage
+     * close to 1.0 is the bottleneck
+     */
+    public double getOccupancy() {
+        long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long elapsed = System.nanoTime() - start;
+        return elapsed == 0 ? 0 : (double) busyNanos / elapsed;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s processed: %d depth: %d occupancy: %.2f failures: %d",
+                name, processed, getQueueDepth(), getOccupancy(), failures);
+    }
+}
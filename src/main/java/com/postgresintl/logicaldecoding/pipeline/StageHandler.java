@@ -0,0 +1,9 @@
+package com.postgresintl.logicaldecoding.pipeline;
+
+/**
+ * Work done by a pipeline stage for every message, always called from the stage's own thread
+ * and in ring order.
+ */
+public interface StageHandler {
+    void onMessage(RingSlot slot) throws Exception;
+}
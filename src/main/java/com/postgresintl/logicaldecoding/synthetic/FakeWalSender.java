@@ -0,0 +1,782 @@
+package com.postgresintl.logicaldecoding.synthetic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+import com.postgresintl.logicaldecoding.PgEpoch;
+import com.postgresintl.logicaldecoding.capture.ReplaySource;
+import com.postgresintl.logicaldecoding.nio.NioReplicationStream;
+
+/**
+ * An in-process walsender, so the consumers can be run and measured end to end without a
+ * PostgreSQL server.
+ *
+ * It accepts one replication connection at a time from pgjdbc or
+ * {@link NioReplicationStream}, answers <code>IDENTIFY_SYSTEM</code> and
+ * <code>START_REPLICATION</code> over the simple query protocol and streams every message of
+ * <code>source</code> as XLogData: a {@link SyntheticStream} for a generated workload of a
+ * given shape and rate, or a {@link ReplaySource} to serve a capture. The slot name and
+ * options are accepted as given, the messages are whatever the source holds.
+ *
+ * Standby status updates are honoured as a walsender would: the flushed position is the
+ * slot's confirmed position and a reconnecting client is sent everything after it again.
+ * Messages sent but not flushed yet are kept for that and sent first on the next
+ * connection; a {@link ReplaySource} is not kept in memory but sought back to the confirmed
+ * position instead. Sending is held back while more than
+ * {@link #withMaxUnflushed(long) 64 MB} are kept, so a client that never flushes does not
+ * fill the heap. A client that sends no feedback for
+ * {@link #withTimeout(long, TimeUnit) the timeout} is disconnected after a keepalive asking
+ * for a reply at half of it. {@link #withMaxLag(long)} additionally holds back messages while
+ * the client is that far behind in flushing, which keeps a consumer slower than the source
+ * from buffering without bound. Once a finite source is exhausted the stream
+ * stays open and idle, as a walsender without new WAL does, unless
+ * {@link #withEndWhenFlushed()} asked for it to be ended.
+ */
+public class FakeWalSender implements AutoCloseable {
+    public enum Auth {
+        TRUST,
+        CLEARTEXT,
+        MD5
+    }
+
+    private static final int PROTOCOL_VERSION = 3 << 16;
+    private static final int SSL_REQUEST = 80877103;
+    private static final int GSSENC_REQUEST = 80877104;
+    private static final int CANCEL_REQUEST = 80877102;
+    private static final byte[] SALT = {1, 2, 3, 4};
+    private static final long SYSTEM_ID = 7000000000000000000L;
+    private static final int TEXT = 25;
+    private static final int INT4 = 23;
+    private static final long LAG_REQUEST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long DEFAULT_MAX_UNFLUSHED = 64L * 1024 * 1024;
+
+    private final ServerSocket server;
+    private final PGReplicationStream source;
+    private Auth auth = Auth.TRUST;
+    private String password = "";
+    private int keepaliveEvery;
+    private long timeoutNanos = TimeUnit.SECONDS.toNanos(60);
+    private long maxLag;
+    private long maxUnflushed = DEFAULT_MAX_UNFLUSHED;
+    private boolean endWhenFlushed;
+    private Thread thread;
+
+    // per connection, only touched by the server thread
+    private volatile Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private final ByteBuffer header = ByteBuffer.allocate(1 + 4 + 25);
+    private byte[] copyBuffer = new byte[8192];
+    private long lastFeedbackNanos;
+    private boolean replyRequested;
+
+    // sent but not flushed, sent again after a reconnect, only touched by the server thread
+    private final ArrayDeque<Unflushed> unflushed = new ArrayDeque<>();
+    private final ArrayDeque<Unflushed> spare = new ArrayDeque<>();
+    private long unflushedBytes;
+    private boolean streamed;
+
+    private final Map<String, String> parameters = Collections.synchronizedMap(new HashMap<>());
+    private final List<String> queries = Collections.synchronizedList(new ArrayList<>());
+    private volatile long sentLsn;
+    private volatile long writeLsn;
+    private volatile long flushLsn;
+    private volatile long applyLsn;
+    private volatile long statusUpdates;
+    private volatile long messages;
+    private volatile long bytes;
+    private volatile long connections;
+    private volatile Exception lastError;
+
+    /**
+     * Listen on an ephemeral port of the loopback interface.
+     */
+    public FakeWalSender(PGReplicationStream source) throws IOException {
+        this(source, 0);
+    }
+
+    /**
+     * @param port port to listen on, on the loopback interface
+     */
+    public FakeWalSender(PGReplicationStream source, int port) throws IOException {
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.source = source;
+    }
+
+    /**
+     * Ask clients for a password, trust everyone by default.
+     *
+     * @return this, for chaining
+     */
+    public FakeWalSender withAuth(Auth auth, String password) {
+        this.auth = auth;
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * @param messages also send a keepalive asking for a reply after that many messages, 0 never
+     * @return this, for chaining
+     */
+    public FakeWalSender withKeepaliveEvery(int messages) {
+        this.keepaliveEvery = messages;
+        return this;
+    }
+
+    /**
+     * The equivalent of <code>wal_sender_timeout</code>, 60 seconds by default.
+     *
+     * @param timeout disconnect a client silent for that long, 0 never
+     * @return this, for chaining
+     */
+    public FakeWalSender withTimeout(long timeout, TimeUnit unit) {
+        this.timeoutNanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * @param bytes stop sending while the client's flushed position is more than that far behind
+     *              the last message sent, 0 never
+     * @return this, for chaining
+     */
+    public FakeWalSender withMaxLag(long bytes) {
+        this.maxLag = bytes;
+        return this;
+    }
+
+    /**
+     * Messages sent but not flushed are kept to be sent again after a reconnect, this bounds
+     * them for a client that does not flush. A {@link ReplaySource} is sought back instead and
+     * keeps nothing.
+     *
+     * @param bytes stop sending while that much is kept, 64 MB by default
+     * @return this, for chaining
+     */
+    public FakeWalSender withMaxUnflushed(long bytes) {
+        this.maxUnflushed = bytes;
+        return this;
+    }
+
+    /**
+     * Once a finite source is exhausted, ask for feedback, wait until everything sent was
+     * flushed and end the copy. {@link NioReplicationStream} reports that as the end of the
+     * stream; pgjdbc does not expect the server to end it and fails.
+     *
+     * @return this, for chaining
+     */
+    public FakeWalSender withEndWhenFlushed() {
+        this.endWhenFlushed = true;
+        return this;
+    }
+
+    /**
+     * Accept connections on a daemon thread until {@link #close()}.
+     *
+     * @return this, for chaining
+     */
+    public FakeWalSender start() {
+        thread = new Thread(this::serve, "fake-walsender-" + server.getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * @return a JDBC url reaching this server, the database name is not checked
+     */
+    public String url() {
+        return "jdbc:postgresql://127.0.0.1:" + server.getLocalPort() + "/test";
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return the startup parameters of the latest connection
+     */
+    public Map<String, String> getParameters() {
+        synchronized (parameters) {
+            return new HashMap<>(parameters);
+        }
+    }
+
+    /**
+     * @return every query received, in order
+     */
+    public List<String> getQueries() {
+        synchronized (queries) {
+            return new ArrayList<>(queries);
+        }
+    }
+
+    /**
+     * @return start LSN of the last message sent
+     */
+    public LogSequenceNumber getSentLsn() {
+        return LogSequenceNumber.valueOf(sentLsn);
+    }
+
+    public LogSequenceNumber getWriteLsn() {
+        return LogSequenceNumber.valueOf(writeLsn);
+    }
+
+    /**
+     * @return the flushed position of the latest status update, the slot's confirmed position
+     */
+    public LogSequenceNumber getFlushLsn() {
+        return LogSequenceNumber.valueOf(flushLsn);
+    }
+
+    public LogSequenceNumber getApplyLsn() {
+        return LogSequenceNumber.valueOf(applyLsn);
+    }
+
+    public long getStatusUpdates() {
+        return statusUpdates;
+    }
+
+    /**
+     * @return XLogData messages sent
+     */
+    public long getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return payload bytes sent, without the protocol headers
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return what ended the server thread or the last connection other than the client
+     * going away, null if nothing did
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            try (Socket accepted = server.accept()) {
+                connections++;
+                accepted.setTcpNoDelay(true);
+                socket = accepted;
+                in = new DataInputStream(new BufferedInputStream(accepted.getInputStream(), 64 * 1024));
+                out = new DataOutputStream(new BufferedOutputStream(accepted.getOutputStream(), 64 * 1024));
+                if (startup()) {
+                    queries();
+                }
+            } catch (IOException e) {
+                // the client went away, or the server was closed
+                continue;
+            } catch (Exception e) {
+                lastError = e;
+            }
+        }
+    }
+
+    /**
+     * @return false if the connection is to be closed
+     */
+    private boolean startup() throws IOException, GeneralSecurityException {
+        while (true) {
+            byte[] packet = new byte[in.readInt() - 4];
+            in.readFully(packet);
+            int code = ByteBuffer.wrap(packet).getInt();
+            if (code == SSL_REQUEST || code == GSSENC_REQUEST) {
+                out.writeByte('N');
+                out.flush();
+                continue;
+            }
+            if (code != PROTOCOL_VERSION) {
+                // cancel requests have nothing to cancel
+                if (code != CANCEL_REQUEST) {
+                    error("0A000", "unsupported frontend protocol " + (code >>> 16) + '.' + (code & 0xffff));
+                }
+                return false;
+            }
+            String[] fields = new String(packet, 4, packet.length - 4, StandardCharsets.UTF_8).split("\0");
+            synchronized (parameters) {
+                parameters.clear();
+                for (int i = 0; i + 1 < fields.length; i += 2) {
+                    parameters.put(fields[i], fields[i + 1]);
+                }
+            }
+            break;
+        }
+        if (!authenticate()) {
+            return false;
+        }
+        send('R', ByteBuffer.allocate(4).putInt(0));
+        parameterStatus("server_version", "14.0");
+        parameterStatus("server_encoding", "UTF8");
+        parameterStatus("client_encoding", "UTF8");
+        parameterStatus("DateStyle", "ISO, MDY");
+        parameterStatus("TimeZone", "UTC");
+        parameterStatus("integer_datetimes", "on");
+        parameterStatus("standard_conforming_strings", "on");
+        send('K', ByteBuffer.allocate(8).putInt(1).putInt(0));
+        readyForQuery();
+        return true;
+    }
+
+    private boolean authenticate() throws IOException, GeneralSecurityException {
+        byte[] expected;
+        String user = parameters.get("user");
+        switch (auth) {
+            case CLEARTEXT:
+                send('R', ByteBuffer.allocate(4).putInt(3));
+                expected = password.getBytes(StandardCharsets.UTF_8);
+                break;
+            case MD5:
+                send('R', ByteBuffer.allocate(8).putInt(5).put(SALT));
+                expected = NioReplicationStream.md5(user, password, SALT);
+                break;
+            default:
+                return true;
+        }
+        out.flush();
+        int type = in.read();
+        byte[] body = body();
+        if (type != 'p' || !Arrays.equals(expected, Arrays.copyOf(body, Math.max(0, body.length - 1)))) {
+            error("28P01", "password authentication failed for user \"" + user + '"');
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Answer simple queries until the client terminates.
+     */
+    private void queries() throws IOException {
+        boolean extended = false;
+        int type;
+        while ((type = in.read()) >= 0) {
+            byte[] body = body();
+            switch (type) {
+                case 'Q':
+                    query(new String(body, 0, body.length - 1, StandardCharsets.UTF_8).trim());
+                    break;
+                case 'X':
+                    return;
+                case 'S':
+                    if (extended) {
+                        error("0A000", "the extended query protocol is not supported", "ERROR");
+                        extended = false;
+                    }
+                    readyForQuery();
+                    break;
+                case 'c':
+                case 'd':
+                    // CopyDone after the server ended the copy
+                    break;
+                default:
+                    // Parse, Bind and friends, answered at the Sync
+                    extended = true;
+            }
+        }
+    }
+
+    private void query(String sql) throws IOException {
+        queries.add(sql);
+        String command = sql.endsWith(";") ? sql.substring(0, sql.length() - 1).trim() : sql;
+        String keyword = command.split("\\s+", 2)[0].toUpperCase(Locale.ROOT);
+        switch (keyword) {
+            case "":
+                send('I', ByteBuffer.allocate(0));
+                break;
+            case "IDENTIFY_SYSTEM":
+                identifySystem();
+                break;
+            case "START_REPLICATION":
+                startReplication(command);
+                break;
+            case "SET":
+                commandComplete("SET");
+                break;
+            default:
+                error("0A000", "not supported by the fake walsender: " + command, "ERROR");
+        }
+        readyForQuery();
+    }
+
+    private void identifySystem() throws IOException {
+        String[] names = {"systemid", "timeline", "xlogpos", "dbname"};
+        int[] types = {TEXT, INT4, TEXT, TEXT};
+        String[] values = {Long.toString(SYSTEM_ID), "1", LogSequenceNumber.valueOf(Math.max(sentLsn, flushLsn)).asString(),
+                parameters.get("database")};
+        ByteBuffer description = ByteBuffer.allocate(256);
+        description.putShort((short) names.length);
+        for (int i = 0; i < names.length; i++) {
+            description.put(names[i].getBytes(StandardCharsets.UTF_8)).put((byte) 0);
+            description.putInt(0).putShort((short) 0).putInt(types[i]).putShort((short) (types[i] == INT4 ? 4 : -1))
+                    .putInt(-1).putShort((short) 0);
+        }
+        send('T', description);
+        ByteBuffer row = ByteBuffer.allocate(256);
+        row.putShort((short) values.length);
+        for (String value : values) {
+            if (value == null) {
+                row.putInt(-1);
+            } else {
+                byte[] b = value.getBytes(StandardCharsets.UTF_8);
+                row.putInt(b.length).put(b);
+            }
+        }
+        send('D', row);
+        commandComplete("IDENTIFY_SYSTEM");
+    }
+
+    /**
+     * <code>START_REPLICATION SLOT name LOGICAL X/X [(options)]</code>
+     */
+    private void startReplication(String command) throws IOException {
+        String[] words = command.split("\\s+");
+        long requested;
+        try {
+            if (words.length < 5 || !"LOGICAL".equalsIgnoreCase(words[3])) {
+                throw new IllegalArgumentException();
+            }
+            requested = LogSequenceNumber.valueOf(words[4]).asLong();
+        } catch (IllegalArgumentException e) {
+            error("42601", "syntax error in " + command, "ERROR");
+            return;
+        }
+        send('W', ByteBuffer.allocate(3));
+        out.flush();
+        // the flushed position itself has been flushed
+        if (stream(flushLsn > 0 ? Math.max(requested, flushLsn + 1) : requested)) {
+            send('c', ByteBuffer.allocate(0));
+        }
+        commandComplete("COPY 0");
+    }
+
+    /**
+     * Send the source from <code>start</code> until the client ends the copy, or until it is
+     * exhausted and flushed with {@link #withEndWhenFlushed()}.
+     *
+     * @return true if the server ends the copy, false if the client did
+     */
+    private boolean stream(long start) throws IOException {
+        lastFeedbackNanos = System.nanoTime();
+        long lastLagRequest = 0;
+        long sent = 0;
+        // lag counts from the first message of the connection until something is flushed
+        long first = -1;
+        boolean replay = source instanceof ReplaySource;
+        if (replay && (streamed || start > 0)) {
+            ((ReplaySource) source).seek(LogSequenceNumber.valueOf(start));
+            // whole transactions from there on
+            start = 0;
+        }
+        streamed = true;
+        trim(start);
+        for (Unflushed message : unflushed) {
+            xlogData(message.lsn, ByteBuffer.wrap(message.data, 0, message.length));
+            if (first < 0) {
+                first = message.lsn;
+            }
+        }
+        ByteBuffer data;
+        while (true) {
+            while (in.available() > 0) {
+                if (!clientMessage(in.read())) {
+                    return false;
+                }
+            }
+            checkTimeout();
+            if (maxLag > 0 && first >= 0 && sentLsn - Math.max(flushLsn, first) > maxLag
+                    || unflushedBytes > maxUnflushed) {
+                if (System.nanoTime() - lastLagRequest > LAG_REQUEST_NANOS) {
+                    keepalive(true);
+                    lastLagRequest = System.nanoTime();
+                }
+                out.flush();
+                if (!waitForClient(10)) {
+                    return false;
+                }
+                continue;
+            }
+            try {
+                data = source.readPending();
+            } catch (SQLException e) {
+                throw new IOException("could not read the source", e);
+            }
+            if (data == null) {
+                boolean exhausted = source.isClosed();
+                if (exhausted && endWhenFlushed) {
+                    break;
+                }
+                out.flush();
+                if (!waitForClient(exhausted ? 100 : 1)) {
+                    return false;
+                }
+                continue;
+            }
+            long lsn = source.getLastReceiveLSN().asLong();
+            if (lsn < start) {
+                continue;
+            }
+            xlogData(lsn, data);
+            if (!replay) {
+                keep(lsn, data);
+            }
+            if (first < 0) {
+                first = lsn;
+            }
+            if (keepaliveEvery > 0 && ++sent % keepaliveEvery == 0) {
+                keepalive(true);
+            }
+        }
+        // exhausted, end once everything sent is flushed
+        keepalive(true);
+        out.flush();
+        while (flushLsn < sentLsn) {
+            if (!waitForClient(100)) {
+                return false;
+            }
+            checkTimeout();
+        }
+        return true;
+    }
+
+    private void xlogData(long lsn, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        header.clear();
+        header.put((byte) 'd').putInt(4 + 25 + length).put((byte) 'w').putLong(lsn).putLong(lsn + length).putLong(PgEpoch.now());
+        out.write(header.array(), 0, header.position());
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), length);
+        } else {
+            if (copyBuffer.length < length) {
+                copyBuffer = new byte[Math.max(length, copyBuffer.length * 2)];
+            }
+            data.duplicate().get(copyBuffer, 0, length);
+            out.write(copyBuffer, 0, length);
+        }
+        sentLsn = lsn;
+        messages++;
+        bytes += length;
+    }
+
+    /**
+     * Keep a copy of a message until it is flushed, the source may reuse its buffer.
+     */
+    private void keep(long lsn, ByteBuffer data) {
+        Unflushed message = spare.isEmpty() ? new Unflushed() : spare.pollFirst();
+        int length = data.remaining();
+        if (message.data.length < length) {
+            message.data = new byte[Math.max(length, 64)];
+        }
+        data.duplicate().get(message.data, 0, length);
+        message.lsn = lsn;
+        message.length = length;
+        unflushed.addLast(message);
+        unflushedBytes += length;
+    }
+
+    /**
+     * Drop the kept messages before <code>lsn</code>.
+     */
+    private void trim(long lsn) {
+        while (!unflushed.isEmpty() && unflushed.peekFirst().lsn < lsn) {
+            Unflushed message = unflushed.pollFirst();
+            unflushedBytes -= message.length;
+            spare.addLast(message);
+        }
+    }
+
+    private void keepalive(boolean reply) throws IOException {
+        send('d', ByteBuffer.allocate(18).put((byte) 'k').putLong(sentLsn).putLong(PgEpoch.now()).put((byte) (reply ? 1 : 0)));
+        replyRequested |= reply;
+    }
+
+    /**
+     * Ask for a reply at half the timeout, drop the connection at the timeout.
+     */
+    private void checkTimeout() throws IOException {
+        if (timeoutNanos <= 0) {
+            return;
+        }
+        long silent = System.nanoTime() - lastFeedbackNanos;
+        if (silent > timeoutNanos) {
+            throw new SocketTimeoutException("terminating walsender process due to replication timeout");
+        }
+        if (silent > timeoutNanos / 2 && !replyRequested) {
+            keepalive(true);
+            out.flush();
+        }
+    }
+
+    /**
+     * Wait up to <code>millis</code> for a message from the client and process it.
+     *
+     * @return false if the client ended the copy
+     */
+    private boolean waitForClient(int millis) throws IOException {
+        int type;
+        socket.setSoTimeout(millis);
+        try {
+            type = in.read();
+        } catch (SocketTimeoutException e) {
+            return true;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        return clientMessage(type);
+    }
+
+    /**
+     * @return false if the client ended the copy
+     */
+    private boolean clientMessage(int type) throws IOException {
+        if (type < 0) {
+            throw new EOFException();
+        }
+        byte[] body = body();
+        switch (type) {
+            case 'd':
+                if (body.length == 34 && body[0] == 'r') {
+                    ByteBuffer status = ByteBuffer.wrap(body);
+                    writeLsn = status.getLong(1);
+                    flushLsn = Math.max(flushLsn, status.getLong(9));
+                    trim(flushLsn + 1);
+                    applyLsn = status.getLong(17);
+                    statusUpdates++;
+                    if (body[33] != 0) {
+                        keepalive(false);
+                    }
+                }
+                // hot standby feedback and status updates alike show the client is alive
+                lastFeedbackNanos = System.nanoTime();
+                replyRequested = false;
+                return true;
+            case 'c':
+                send('c', ByteBuffer.allocate(0));
+                return false;
+            case 'X':
+                throw new EOFException();
+            default:
+                throw new IOException("unexpected message " + (char) type + " during COPY");
+        }
+    }
+
+    private byte[] body() throws IOException {
+        byte[] body = new byte[in.readInt() - 4];
+        in.readFully(body);
+        return body;
+    }
+
+    private void parameterStatus(String name, String value) throws IOException {
+        send('S', ByteBuffer.wrap(cstrings(name, value)));
+    }
+
+    private void commandComplete(String tag) throws IOException {
+        send('C', ByteBuffer.wrap(cstrings(tag)));
+    }
+
+    private void readyForQuery() throws IOException {
+        send('Z', ByteBuffer.allocate(1).put((byte) 'I'));
+        out.flush();
+    }
+
+    private void error(String state, String text) throws IOException {
+        error(state, text, "FATAL");
+        out.flush();
+    }
+
+    private void error(String state, String text, String severity) throws IOException {
+        send('E', ByteBuffer.wrap(cstrings("S" + severity, "V" + severity, "C" + state, "M" + text, "")));
+    }
+
+    private static byte[] cstrings(String... values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            sb.append(value).append('\0');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param body written from the start up to its position, or its limit if the position is 0
+     */
+    private void send(char type, ByteBuffer body) throws IOException {
+        int length = body.position() > 0 ? body.position() : body.limit();
+        out.writeByte(type);
+        out.writeInt(4 + length);
+        out.write(body.array(), body.arrayOffset(), length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+        if (thread != null) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Serve a generated workload to consumers elsewhere:
+     * <code>FakeWalSender port [pgoutput|wal2json|decoderbufs] [shape] [transactions per second] [rows per transaction]</code>
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5433;
+        SyntheticStream source = new SyntheticStream(SyntheticStream.Plugin.named(args.length > 1 ? args[1] : "pgoutput"),
+                RowShape.named(args.length > 2 ? args[2] : "narrow"))
+                .withRate(args.length > 3 ? Double.parseDouble(args[3]) : 0)
+                .withRowsPerTransaction(args.length > 4 ? Integer.parseInt(args[4]) : 1);
+        try (FakeWalSender walSender = new FakeWalSender(source, port).withMaxLag(64L * 1024 * 1024).start()) {
+            System.out.println("serving " + source.getPlugin() + " on " + walSender.url());
+            while (true) {
+                TimeUnit.MINUTES.sleep(1);
+                System.out.println(walSender.getMessages() + " messages, " + walSender.getBytes() + " bytes, flushed "
+                        + walSender.getFlushLsn().asString());
+            }
+        }
+    }
+
+    private static final class Unflushed {
+        long lsn;
+        byte[] data = new byte[0];
+        int length;
+    }
+}
@@ -0,0 +1,460 @@
+package com.postgresintl.logicaldecoding.synthetic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import com.postgresintl.logicaldecoding.PgEpoch;
+import com.postgresintl.logicaldecoding.proto.PgProto;
+
+/**
+ * Produces synthetic pgoutput, wal2json and decoderbufs messages so the decoders can be
+ * measured and exercised without a server.
+ *
+ * Every generated table has an int4 key column <code>id</code> followed by columns cycling
+ * through text, int8, float8, bool, timestamptz and numeric. The values are random but
+ * repeatable for a given {@link RowShape#getSeed()}.
+ */
+public class MessageGenerator {
+    public static final int INT4 = 23;
+    public static final int TEXT = 25;
+    public static final int INT8 = 20;
+    public static final int FLOAT8 = 701;
+    public static final int BOOL = 16;
+    public static final int TIMESTAMPTZ = 1184;
+    public static final int NUMERIC = 1700;
+
+    private static final int[] COLUMN_TYPES = {TEXT, INT8, FLOAT8, BOOL, TIMESTAMPTZ, NUMERIC};
+    private static final String[] WAL2JSON_TYPES = {"text", "bigint", "double precision", "boolean",
+            "timestamp with time zone", "numeric"};
+
+    /* 2021-01-01 00:00:00 UTC in microseconds since 2000-01-01 */
+    private static final long BASE_COMMIT_TIME = 662688000000000L;
+
+    private final RowShape shape;
+    private final Random random;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final StringBuilder json = new StringBuilder(1024);
+    private final char[] text;
+    private int nextId = 1;
+    private int xid = 1000;
+    private long lsn = 0x16B3748L;
+    private long commitTime = BASE_COMMIT_TIME;
+    private boolean wallClock;
+
+    public MessageGenerator(RowShape shape) {
+        this.shape = shape;
+        this.random = new Random(shape.getSeed());
+        this.text = new char[shape.getTextLength()];
+    }
+
+    /**
+     * Stamp transactions with the current time instead of made up times from 2021, so the
+     * commit lag a consumer measures is the time from generating a message to decoding it.
+     *
+     * @return this, for chaining
+     */
+    public MessageGenerator withWallClock() {
+        this.wallClock = true;
+        return this;
+    }
+
+    public RowShape getShape() {
+        return shape;
+    }
+
+    public static int columnType(int column) {
+        return column == 0 ? INT4 : COLUMN_TYPES[(column - 1) % COLUMN_TYPES.length];
+    }
+
+    public static String columnName(int column) {
+        return column == 0 ? "id" : "c" + column;
+    }
+
+    /**
+     * @return the LSN the next message would be sent at, advanced by the size of every
+     * generated message
+     */
+    public long currentLsn() {
+        return lsn;
+    }
+
+    public long nextLsn(int messageSize) {
+        long current = lsn;
+        lsn += messageSize;
+        return current;
+    }
+
+    /**
+     * @return commit time of the current transaction in microseconds since 2000-01-01
+     */
+    public long currentCommitTime() {
+        return commitTime;
+    }
+
+    /* pgoutput */
+
+    public ByteBuffer pgoutputRelation(int oid, String schema, String table) {
+        try {
+            bytes.reset();
+            out.writeByte('R');
+            out.writeInt(oid);
+            writeCString(schema);
+            writeCString(table);
+            out.writeByte('d');
+            out.writeShort(shape.getColumns());
+            for (int i = 0; i < shape.getColumns(); i++) {
+                out.writeByte(i == 0 ? 1 : 0);
+                writeCString(columnName(i));
+                out.writeInt(columnType(i));
+                out.writeInt(-1);
+            }
+            return result();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public ByteBuffer pgoutputBegin() {
+        try {
+            xid++;
+            long step = 1000 + random.nextInt(1000);
+            commitTime = wallClock ? Math.max(commitTime + 1, PgEpoch.now()) : commitTime + step;
+            bytes.reset();
+            out.writeByte('B');
+            out.writeLong(lsn + 4096);
+            out.writeLong(commitTime);
+            out.writeInt(xid);
+            return result();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public ByteBuffer pgoutputCommit() {
+        try {
+            bytes.reset();
+            out.writeByte('C');
+            out.writeByte(0);
+            out.writeLong(lsn);
+            out.writeLong(lsn + 48);
+            out.writeLong(commitTime);
+            return result();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public ByteBuffer pgoutputInsert(int oid) {
+        try {
+            bytes.reset();
+            out.writeByte('I');
+            out.writeInt(oid);
+            out.writeByte('N');
+            writeTuple(nextId++, false, false);
+            return result();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * An INSERT as sent with the <code>binary</code> option, every column in its binary send
+     * format.
+     */
+    public ByteBuffer pgoutputInsertBinary(int oid) {
+        try {
+            bytes.reset();
+            out.writeByte('I');
+            out.writeInt(oid);
+            out.writeByte('N');
+            out.writeShort(shape.getColumns());
+            for (int i = 0; i < shape.getColumns(); i++) {
+                if (i == 0) {
+                    out.writeByte('b');
+                    out.writeInt(4);
+                    out.writeInt(nextId++);
+                } else if (isNull()) {
+                    out.writeByte('n');
+                } else {
+                    writeBinary(columnType(i));
+                }
+            }
+            return result();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * An UPDATE without old tuple, text columns may be sent as unchanged TOAST.
+     */
+    public ByteBuffer pgoutputUpdate(int oid) {
+        try {
+            bytes.reset();
+            out.writeByte('U');
+            out.writeInt(oid);
+            out.writeByte('N');
+            writeTuple(randomId(), true, false);
+            return result();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public ByteBuffer pgoutputDelete(int oid) {
+        try {
+            bytes.reset();
+            out.writeByte('D');
+            out.writeInt(oid);
+            out.writeByte('K');
+            writeTuple(randomId(), false, true);
+            return result();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int randomId() {
+        return 1 + random.nextInt(Math.max(1, nextId - 1));
+    }
+
+    private void writeTuple(int id, boolean allowUnchanged, boolean keyOnly) throws IOException {
+        out.writeShort(shape.getColumns());
+        for (int i = 0; i < shape.getColumns(); i++) {
+            if (i == 0) {
+                writeText(Integer.toString(id));
+            } else if (keyOnly || isNull()) {
+                out.writeByte('n');
+            } else if (allowUnchanged && columnType(i) == TEXT && random.nextDouble() < shape.getUnchangedToastFraction()) {
+                out.writeByte('u');
+            } else {
+                writeText(textValue(columnType(i)));
+            }
+        }
+    }
+
+    private void writeBinary(int type) throws IOException {
+        out.writeByte('b');
+        switch (type) {
+            case INT8:
+                out.writeInt(8);
+                out.writeLong(random.nextLong());
+                break;
+            case FLOAT8:
+                out.writeInt(8);
+                out.writeDouble(random.nextDouble() * 1e6);
+                break;
+            case BOOL:
+                out.writeInt(1);
+                out.writeByte(random.nextBoolean() ? 1 : 0);
+                break;
+            case TIMESTAMPTZ:
+                out.writeInt(8);
+                out.writeLong(BASE_COMMIT_TIME + (long) (random.nextDouble() * 365 * 86400000000L));
+                break;
+            case NUMERIC:
+                // up to 999999.9999 with a display scale of 4, as base 10000 digits
+                int integral = random.nextInt(1000000);
+                int fraction = random.nextInt(10000);
+                int high = integral / 10000;
+                int low = integral % 10000;
+                int ndigits = high > 0 ? 3 : low > 0 ? 2 : 1;
+                out.writeInt(8 + 2 * ndigits);
+                out.writeShort(ndigits);
+                out.writeShort(ndigits - 2);
+                out.writeShort(0);
+                out.writeShort(4);
+                if (high > 0) {
+                    out.writeShort(high);
+                }
+                if (ndigits >= 2) {
+                    out.writeShort(low);
+                }
+                out.writeShort(fraction);
+                break;
+            case TEXT:
+            default:
+                byte[] b = textValue(TEXT).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+        }
+    }
+
+    private void writeText(String value) throws IOException {
+        byte[] b = value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte('t');
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private void writeCString(String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+        out.writeByte(0);
+    }
+
+    private ByteBuffer result() {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        nextLsn(buffer.remaining());
+        return buffer;
+    }
+
+    private boolean isNull() {
+        return shape.getNullFraction() > 0 && random.nextDouble() < shape.getNullFraction();
+    }
+
+    /**
+     * @return a value in the server's text output format for the type
+     */
+    public String textValue(int type) {
+        switch (type) {
+            case INT4:
+                return Integer.toString(random.nextInt());
+            case INT8:
+                return Long.toString(random.nextLong());
+            case FLOAT8:
+                return Double.toString(random.nextDouble() * 1e6);
+            case BOOL:
+                return random.nextBoolean() ? "t" : "f";
+            case TIMESTAMPTZ:
+                return String.format("2021-%02d-%02d %02d:%02d:%02d.%06d+00", 1 + random.nextInt(12), 1 + random.nextInt(28),
+                        random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000000));
+            case NUMERIC:
+                return random.nextInt(1000000) + "." + String.format("%04d", random.nextInt(10000));
+            case TEXT:
+            default:
+                for (int i = 0; i < text.length; i++) {
+                    text[i] = (char) ('a' + random.nextInt(26));
+                }
+                return new String(text);
+        }
+    }
+
+    /* wal2json */
+
+    /**
+     * A wal2json format-version 1 document for a transaction of <code>changes</code> inserts.
+     */
+    public ByteBuffer wal2json(String schema, String table, int changes) {
+        json.setLength(0);
+        xid++;
+        json.append("{\"xid\":").append(xid).append(",\"change\":[");
+        for (int c = 0; c < changes; c++) {
+            if (c > 0) {
+                json.append(',');
+            }
+            appendWal2JsonInsert(schema, table);
+        }
+        json.append("]}");
+        return jsonResult();
+    }
+
+    private void appendWal2JsonInsert(String schema, String table) {
+        json.append("{\"kind\":\"insert\",\"schema\":\"").append(schema)
+                .append("\",\"table\":\"").append(table).append("\",\"columnnames\":[");
+        for (int i = 0; i < shape.getColumns(); i++) {
+            json.append(i == 0 ? "" : ",").append('"').append(columnName(i)).append('"');
+        }
+        json.append("],\"columntypes\":[");
+        for (int i = 0; i < shape.getColumns(); i++) {
+            json.append(i == 0 ? "" : ",").append('"')
+                    .append(i == 0 ? "integer" : WAL2JSON_TYPES[(i - 1) % WAL2JSON_TYPES.length]).append('"');
+        }
+        json.append("],\"columnvalues\":[");
+        for (int i = 0; i < shape.getColumns(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendJsonValue(i == 0 ? Integer.toString(nextId++) : isNull() ? null : textValue(columnType(i)), columnType(i));
+        }
+        json.append("]}");
+    }
+
+    /**
+     * A wal2json format-version 2 message for one insert.
+     */
+    public ByteBuffer wal2jsonV2Insert(String schema, String table) {
+        json.setLength(0);
+        json.append("{\"action\":\"I\",\"schema\":\"").append(schema)
+                .append("\",\"table\":\"").append(table).append("\",\"columns\":[");
+        for (int i = 0; i < shape.getColumns(); i++) {
+            json.append(i == 0 ? "" : ",").append("{\"name\":\"").append(columnName(i)).append("\",\"type\":\"")
+                    .append(i == 0 ? "integer" : WAL2JSON_TYPES[(i - 1) % WAL2JSON_TYPES.length]).append("\",\"value\":");
+            appendJsonValue(i == 0 ? Integer.toString(nextId++) : isNull() ? null : textValue(columnType(i)), columnType(i));
+            json.append('}');
+        }
+        json.append("]}");
+        return jsonResult();
+    }
+
+    private void appendJsonValue(String value, int type) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        switch (type) {
+            case INT4:
+            case INT8:
+            case FLOAT8:
+            case NUMERIC:
+                json.append(value);
+                break;
+            case BOOL:
+                json.append("t".equals(value) ? "true" : "false");
+                break;
+            default:
+                json.append('"').append(value).append('"');
+        }
+    }
+
+    private ByteBuffer jsonResult() {
+        ByteBuffer buffer = ByteBuffer.wrap(json.toString().getBytes(StandardCharsets.UTF_8));
+        nextLsn(buffer.remaining());
+        return buffer;
+    }
+
+    /* decoderbufs */
+
+    /**
+     * A decoderbufs INSERT RowMessage, whose commit time counts from 1970 like decoderbufs'.
+     */
+    public ByteBuffer protobufInsert(String table) {
+        PgProto.RowMessage.Builder row = PgProto.RowMessage.newBuilder()
+                .setTransactionId(++xid)
+                .setCommitTime(PgEpoch.toUnixMicros(commitTime))
+                .setTable(table)
+                .setOp(PgProto.Op.INSERT);
+        for (int i = 0; i < shape.getColumns(); i++) {
+            int type = columnType(i);
+            PgProto.DatumMessage.Builder datum = PgProto.DatumMessage.newBuilder()
+                    .setColumnName(columnName(i))
+                    .setColumnType(type);
+            if (i == 0) {
+                datum.setDatumInt32(nextId++);
+            } else if (!isNull()) {
+                switch (type) {
+                    case INT8:
+                        datum.setDatumInt64(random.nextLong());
+                        break;
+                    case FLOAT8:
+                        datum.setDatumDouble(random.nextDouble() * 1e6);
+                        break;
+                    case BOOL:
+                        datum.setDatumBool(random.nextBoolean());
+                        break;
+                    default:
+                        datum.setDatumString(textValue(type));
+                }
+            }
+            row.addNewTuple(datum);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(row.build().toByteArray());
+        nextLsn(buffer.remaining());
+        return buffer;
+    }
+}
@@ -0,0 +1,109 @@
+package com.postgresintl.logicaldecoding.synthetic;
+
+/**
+ * Describes the rows a {@link MessageGenerator} produces.
+ */
+public class RowShape {
+    private int columns = 4;
+    private int textLength = 16;
+    private double nullFraction;
+    private double unchangedToastFraction;
+    private long seed = 42;
+
+    public static RowShape narrow() {
+        return new RowShape();
+    }
+
+    public static RowShape wide() {
+        return new RowShape().withColumns(100);
+    }
+
+    public static RowShape longText() {
+        return new RowShape().withTextLength(2000);
+    }
+
+    public static RowShape manyNulls() {
+        return new RowShape().withColumns(20).withNullFraction(0.5);
+    }
+
+    public static RowShape unchangedToast() {
+        return new RowShape().withColumns(20).withTextLength(2000).withUnchangedToastFraction(0.5);
+    }
+
+    /**
+     * @param name one of narrow, wide, longText, manyNulls, unchangedToast
+     */
+    public static RowShape named(String name) {
+        switch (name) {
+            case "narrow":
+                return narrow();
+            case "wide":
+                return wide();
+            case "longText":
+                return longText();
+            case "manyNulls":
+                return manyNulls();
+            case "unchangedToast":
+                return unchangedToast();
+            default:
+                throw new IllegalArgumentException("unknown row shape " + name);
+        }
+    }
+
+    public RowShape withColumns(int columns) {
+        this.columns = columns;
+        return this;
+    }
+
+    public RowShape withTextLength(int textLength) {
+        this.textLength = textLength;
+        return this;
+    }
+
+    /**
+     * @param nullFraction share of the non key columns that are NULL
+     */
+    public RowShape withNullFraction(double nullFraction) {
+        this.nullFraction = nullFraction;
+        return this;
+    }
+
+    /**
+     * @param unchangedToastFraction share of the text columns sent as unchanged TOAST in updates
+     */
+    public RowShape withUnchangedToastFraction(double unchangedToastFraction) {
+        this.unchangedToastFraction = unchangedToastFraction;
+        return this;
+    }
+
+    public RowShape withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getTextLength() {
+        return textLength;
+    }
+
+    public double getNullFraction() {
+        return nullFraction;
+    }
+
+    public double getUnchangedToastFraction() {
+        return unchangedToastFraction;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public String toString() {
+        return "columns: " + columns + " text length: " + textLength + " nulls: " + nullFraction
+                + " unchanged toast: " + unchangedToastFraction;
+    }
+}
@@ -0,0 +1,250 @@
+package com.postgresintl.logicaldecoding.synthetic;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+/**
+ * A replication stream of generated transactions, the workload a {@link FakeWalSender}
+ * serves when no capture is at hand.
+ *
+ * Every transaction inserts {@link #withRowsPerTransaction(int) rows} into one table. With
+ * pgoutput it is sent as BEGIN, the INSERTs and COMMIT after a RELATION message at the start
+ * of the stream; with wal2json as one format-version 1 document; with decoderbufs as one
+ * RowMessage per row. Commit times are the wall clock. {@link #withRate(double)} spaces the
+ * transactions out, the default sends them as fast as they are read.
+ *
+ * Generating a wide row takes far longer than decoding it, so only the first
+ * 1024 rows, or wal2json documents, are generated; after that they are sent again
+ * in turn under new LSNs, and a benchmark measures the consumer rather than the generator.
+ *
+ * The returned buffer is only valid until the next read. Feedback is recorded but goes
+ * nowhere. Not thread safe.
+ */
+public class SyntheticStream implements PGReplicationStream {
+
+    public enum Plugin {
+        PGOUTPUT,
+        WAL2JSON,
+        DECODERBUFS;
+
+        /**
+         * @param name pgoutput, wal2json or decoderbufs
+         */
+        public static Plugin named(String name) {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    public static final int OID = 16384;
+    public static final String SCHEMA = "public";
+    public static final String TABLE = "synthetic";
+    private static final int POOL = 1024;
+
+    private final Plugin plugin;
+    private final MessageGenerator generator;
+    private final ByteBuffer[] pool = new ByteBuffer[POOL];
+    private long payloads;
+    private int rowsPerTransaction = 1;
+    private long transactions;
+    private long intervalNanos;
+
+    private long startNanos;
+    private long started;
+    // next message of the current transaction, 0 for none started
+    private int step;
+    private boolean relationSent;
+    private long lastReceiveLsn;
+    private long flushedLsn;
+    private long appliedLsn;
+    private long messages;
+    private boolean closed;
+
+    public SyntheticStream(Plugin plugin, RowShape shape) {
+        this.plugin = plugin;
+        this.generator = new MessageGenerator(shape).withWallClock();
+    }
+
+    /**
+     * @return this, for chaining
+     */
+    public SyntheticStream withRowsPerTransaction(int rowsPerTransaction) {
+        this.rowsPerTransaction = rowsPerTransaction;
+        return this;
+    }
+
+    /**
+     * @param transactions close the stream after that many transactions, 0 never
+     * @return this, for chaining
+     */
+    public SyntheticStream withTransactions(long transactions) {
+        this.transactions = transactions;
+        return this;
+    }
+
+    /**
+     * @param transactionsPerSecond start a transaction that often, 0 as fast as possible
+     * @return this, for chaining
+     */
+    public SyntheticStream withRate(double transactionsPerSecond) {
+        this.intervalNanos = transactionsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / transactionsPerSecond) : 0;
+        return this;
+    }
+
+    public Plugin getPlugin() {
+        return plugin;
+    }
+
+    /**
+     * @return the LSN the next message will be sent at
+     */
+    public long currentLsn() {
+        return generator.currentLsn();
+    }
+
+    /**
+     * @return transactions started so far
+     */
+    public long getTransactions() {
+        return started;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return nanoseconds until the next message is due, 0 or less if it may be read now
+     */
+    private long dueInNanos() {
+        if (step > 0 || intervalNanos == 0) {
+            return 0;
+        }
+        if (started == 0) {
+            startNanos = System.nanoTime();
+        }
+        return startNanos + started * intervalNanos - System.nanoTime();
+    }
+
+    private boolean exhausted() {
+        if (!closed && step == 0 && transactions > 0 && started >= transactions) {
+            closed = true;
+        }
+        return closed;
+    }
+
+    private ByteBuffer take() {
+        lastReceiveLsn = generator.currentLsn();
+        messages++;
+        if (plugin == Plugin.PGOUTPUT && !relationSent) {
+            relationSent = true;
+            return generator.pgoutputRelation(OID, SCHEMA, TABLE);
+        }
+        if (step == 0) {
+            started++;
+        }
+        switch (plugin) {
+            case WAL2JSON:
+                return payload();
+            case DECODERBUFS:
+                step = step + 1 < rowsPerTransaction ? step + 1 : 0;
+                return payload();
+            case PGOUTPUT:
+            default:
+                int current = step;
+                step = current <= rowsPerTransaction ? current + 1 : 0;
+                if (current == 0) {
+                    return generator.pgoutputBegin();
+                }
+                return current <= rowsPerTransaction ? payload() : generator.pgoutputCommit();
+        }
+    }
+
+    /**
+     * @return the next row, or wal2json transaction, from the pool once it is full
+     */
+    private ByteBuffer payload() {
+        int slot = (int) (payloads++ % POOL);
+        ByteBuffer message = pool[slot];
+        if (message == null) {
+            switch (plugin) {
+                case WAL2JSON:
+                    message = generator.wal2json(SCHEMA, TABLE, rowsPerTransaction);
+                    break;
+                case DECODERBUFS:
+                    message = generator.protobufInsert(SCHEMA + '.' + TABLE);
+                    break;
+                case PGOUTPUT:
+                default:
+                    message = generator.pgoutputInsert(OID);
+            }
+            pool[slot] = message;
+            return message;
+        }
+        message.rewind();
+        generator.nextLsn(message.remaining());
+        return message;
+    }
+
+    @Override
+    public ByteBuffer read() {
+        if (exhausted()) {
+            return null;
+        }
+        long wait;
+        while ((wait = dueInNanos()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        return take();
+    }
+
+    @Override
+    public ByteBuffer readPending() {
+        if (exhausted() || dueInNanos() > 0) {
+            return null;
+        }
+        return take();
+    }
+
+    @Override
+    public LogSequenceNumber getLastReceiveLSN() {
+        return LogSequenceNumber.valueOf(lastReceiveLsn);
+    }
+
+    @Override
+    public LogSequenceNumber getLastFlushedLSN() {
+        return LogSequenceNumber.valueOf(flushedLsn);
+    }
+
+    @Override
+    public LogSequenceNumber getLastAppliedLSN() {
+        return LogSequenceNumber.valueOf(appliedLsn);
+    }
+
+    @Override
+    public void setFlushedLSN(LogSequenceNumber lsn) {
+        flushedLsn = lsn.asLong();
+    }
+
+    @Override
+    public void setAppliedLSN(LogSequenceNumber lsn) {
+        appliedLsn = lsn.asLong();
+    }
+
+    @Override
+    public void forceUpdateStatus() {
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
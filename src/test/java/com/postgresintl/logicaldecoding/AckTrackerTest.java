@@ -0,0 +1,67 @@
+package com.postgresintl.logicaldecoding;
+
+import java.util.concurrent.TimeUnit;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+import junit.framework.TestCase;
+
+public class AckTrackerTest extends TestCase
+{
+    public void testOutOfOrderCompletion() throws Exception
+    {
+        AckTracker tracker = new AckTracker(1, TimeUnit.HOURS, 100);
+        long t1 = tracker.track(LogSequenceNumber.valueOf(10));
+        long t2 = tracker.track(LogSequenceNumber.valueOf(20));
+        long t3 = tracker.track(LogSequenceNumber.valueOf(30));
+
+        tracker.complete(t3);
+        tracker.complete(t2);
+        assertEquals(0L, tracker.durableLsn().asLong());
+        assertEquals(3, tracker.inFlight());
+
+        tracker.complete(t1);
+        assertEquals(30L, tracker.durableLsn().asLong());
+        assertEquals(0, tracker.inFlight());
+    }
+
+    public void testFeedbackThreshold() throws Exception
+    {
+        FakeReplicationStream stream = new FakeReplicationStream();
+        AckTracker tracker = new AckTracker(1, TimeUnit.HOURS, 100);
+        tracker.complete(tracker.track(LogSequenceNumber.valueOf(50)));
+        assertFalse(tracker.maybeSendFeedback(stream));
+        assertEquals(0, stream.statusUpdates);
+
+        tracker.complete(tracker.track(LogSequenceNumber.valueOf(150)));
+        assertTrue(tracker.maybeSendFeedback(stream));
+        assertEquals(1, stream.statusUpdates);
+        assertEquals(150L, stream.flushed.asLong());
+        assertEquals(150L, stream.applied.asLong());
+        assertFalse(tracker.maybeSendFeedback(stream));
+    }
+
+    public void testFeedbackInterval() throws Exception
+    {
+        FakeReplicationStream stream = new FakeReplicationStream();
+        AckTracker tracker = new AckTracker(0, TimeUnit.MILLISECONDS, Long.MAX_VALUE);
+        tracker.complete(tracker.track(LogSequenceNumber.valueOf(5)));
+        assertTrue(tracker.maybeSendFeedback(stream));
+        assertEquals(5L, tracker.sentLsn().asLong());
+    }
+
+    public void testManyInFlight()
+    {
+        AckTracker tracker = new AckTracker();
+        long[] tickets = new long[5000];
+        for (int i = 0; i < tickets.length; i++) {
+            tickets[i] = tracker.track(LogSequenceNumber.valueOf(i + 1));
+        }
+        for (int i = tickets.length - 1; i > 0; i--) {
+            tracker.complete(tickets[i]);
+        }
+        assertEquals(0L, tracker.durableLsn().asLong());
+        tracker.complete(tickets[0]);
+        assertEquals(5000L, tracker.durableLsn().asLong());
+    }
+}
@@ -0,0 +1,138 @@
+package com.postgresintl.logicaldecoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.postgresintl.logicaldecoding.model.Relation;
+
+import junit.framework.TestCase;
+
+public class BinaryCopyParserTest extends TestCase {
+
+    private final RelationCache relations = new RelationCache();
+    private final RowView row = new RowView();
+    private final List<String> rows = new ArrayList<>();
+    private Relation relation;
+
+    @Override
+    protected void setUp() {
+        relation = relations.update(new PgOutputMessage().wrap(PgOutputMessages.relation(16384, "public", "orders",
+                new String[]{"id", "paid", "note"}, new int[]{PgType.INT8, PgType.BOOL, PgType.TEXT})));
+    }
+
+    private static byte[] copy(Object[]... rows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(new byte[]{'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0});
+        out.writeInt(0);
+        // a header extension, skipped
+        out.writeInt(3);
+        out.write(new byte[3]);
+        for (Object[] values : rows) {
+            out.writeShort(values.length);
+            for (Object value : values) {
+                if (value == null) {
+                    out.writeInt(-1);
+                } else if (value instanceof Long) {
+                    out.writeInt(8);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Boolean) {
+                    out.writeInt(1);
+                    out.writeBoolean((Boolean) value);
+                } else {
+                    byte[] text = ((String) value).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(text.length);
+                    out.write(text);
+                }
+            }
+        }
+        out.writeShort(-1);
+        return bytes.toByteArray();
+    }
+
+    private String read(Relation relation, PgOutputMessage insert) {
+        assertEquals(PgOutputMessage.INSERT, insert.type());
+        assertEquals(16384, insert.relationOid());
+        row.wrap(insert.newTuple(), relation);
+        return row.getLong(0) + " " + row.getBoolean(1) + " " + (row.isNull(2) ? null : row.getString(2));
+    }
+
+    public void testRowsReadLikeStreamedInserts() throws Exception {
+        PgOutputMessage streamed = new PgOutputMessage().wrap(PgOutputMessages.message('I').putInt(16384).put('N')
+                .putBinary(ByteBuffer.allocate(8).putLong(1).array(), new byte[]{1},
+                        "first".getBytes(StandardCharsets.UTF_8)).build());
+        String expected = read(relation, streamed);
+
+        byte[] data = copy(new Object[]{1L, true, "first"}, new Object[]{2L, false, null});
+        BinaryCopyParser parser = new BinaryCopyParser(relation, (r, insert) -> {
+            rows.add(read(r, insert));
+            // sliced out of the array, not copied
+            assertSame(data, insert.newTuple().buffer().array());
+        });
+        parser.feed(data);
+
+        assertTrue(parser.isFinished());
+        assertEquals(2, parser.getRows());
+        assertEquals(expected, rows.get(0));
+        assertEquals("2 false null", rows.get(1));
+        assertEquals(PgOutput.insert(relation, streamed.newTuple()),
+                "INSERT: public.orders id=1, paid=t, note=first, ");
+    }
+
+    public void testRowsSplitAcrossMessages() throws Exception {
+        byte[] data = copy(new Object[]{1L, true, "first"}, new Object[]{2L, false, null});
+        for (int size = 1; size < data.length; size++) {
+            rows.clear();
+            BinaryCopyParser parser = new BinaryCopyParser(relation, (r, insert) -> rows.add(read(r, insert)));
+            for (int offset = 0; offset < data.length; offset += size) {
+                parser.feed(data, offset, Math.min(size, data.length - offset));
+            }
+            assertTrue("pieces of " + size, parser.isFinished());
+            assertEquals("1 true first", rows.get(0));
+            assertEquals("2 false null", rows.get(1));
+        }
+    }
+
+    public void testFilterMasksColumns() throws Exception {
+        TableFilter filter = new TableFilter().columns("public.orders", "id", "paid");
+        PgOutputMessage message = new PgOutputMessage().setFilter(filter, relations);
+        BinaryCopyParser parser = new BinaryCopyParser(relation, message, (r, insert) -> {
+            assertTrue(insert.newTuple().isFiltered(2));
+            rows.add(r.getName());
+        });
+        parser.feed(copy(new Object[]{1L, true, "first"}));
+        assertEquals(1, rows.size());
+
+        parser = new BinaryCopyParser(relation, new PgOutputMessage().setFilter(new TableFilter().exclude("public.*"), relations),
+                (r, insert) -> fail("excluded"));
+        parser.feed(copy(new Object[]{1L, true, "first"}));
+        assertEquals(1, parser.getRows());
+    }
+
+    public void testRejectsOtherLayouts() throws Exception {
+        BinaryCopyParser parser = new BinaryCopyParser(relation, (r, insert) -> fail());
+        try {
+            parser.feed(copy(new Object[]{1L, true}));
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            new BinaryCopyParser(null, (r, insert) -> fail()).feed("1\tt\tfirst\n2\tf\tsecond\n".getBytes(StandardCharsets.UTF_8));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testColumnListInSql() {
+        SnapshotBootstrap.CopyRange range = SnapshotBootstrap.wholeTable("public", "orders", 0).get(0).withRelation(relation);
+        assertEquals("COPY \"public\".\"orders\" (\"id\", \"paid\", \"note\") TO STDOUT (FORMAT binary)", range.sql());
+        range = SnapshotBootstrap.keyRanges("public", "orders", "id", 1, 10, 2, 0).get(0).withRelation(relation);
+        assertEquals("COPY (SELECT \"id\", \"paid\", \"note\" FROM \"public\".\"orders\" WHERE \"id\" < 6)"
+                + " TO STDOUT (FORMAT binary)", range.sql());
+    }
+}
@@ -0,0 +1,62 @@
+package com.postgresintl.logicaldecoding;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class BinaryDecodingTest extends TestCase {
+
+    /* numeric in its send format behind two bytes of padding */
+    private static NumericValue numeric(int weight, int sign, int dscale, int... digits) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + 8 + 2 * digits.length);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) digits.length).putShort((short) weight).putShort((short) sign).putShort((short) dscale);
+        for (int digit : digits) {
+            buffer.putShort((short) digit);
+        }
+        return BinaryDecoding.readNumeric(buffer, 2, buffer.capacity() - 2, new NumericValue());
+    }
+
+    public void testNumeric() {
+        // 123456.7890
+        NumericValue value = numeric(1, 0x0000, 4, 12, 3456, 7890);
+        assertTrue(value.fitsInLong());
+        assertEquals(1234567890, value.unscaledValue());
+        assertEquals(4, value.scale());
+
+        // -0.05, the last group is padded to 0500
+        value = numeric(-1, 0x4000, 2, 500);
+        assertEquals(new BigDecimal("-0.05"), value.toBigDecimal());
+
+        // 20000 with no trailing zero group sent
+        assertEquals(new BigDecimal("20000"), numeric(1, 0x0000, 0, 2).toBigDecimal());
+        assertEquals(new BigDecimal("0"), numeric(0, 0x0000, 0).toBigDecimal());
+
+        // 1e24 + 0.5 does not fit in a long
+        value = numeric(6, 0x0000, 1, 1, 0, 0, 0, 0, 0, 0, 5000);
+        assertFalse(value.fitsInLong());
+        assertEquals(new BigDecimal("1000000000000000000000000.5"), value.toBigDecimal());
+
+        assertEquals(NumericValue.NAN, numeric(0, 0xC000, 0).special());
+    }
+
+    public void testFixedWidth() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(0, -5L);
+        assertEquals(-5L, BinaryDecoding.readLong(buffer, 0, 8));
+        buffer.putInt(0, -1);
+        assertEquals(-1L, BinaryDecoding.readLong(buffer, 0, 4));
+        assertEquals(0xFFFFFFFFL, BinaryDecoding.readLong(buffer, 0, 4, PgType.OID));
+        buffer.putDouble(0, 2.5);
+        assertEquals(2.5, BinaryDecoding.readDouble(buffer, 0, 8), 0.0);
+        buffer.putFloat(0, 1.5f);
+        assertEquals(1.5, BinaryDecoding.readDouble(buffer, 0, 4), 0.0);
+        try {
+            BinaryDecoding.readTimestamp(buffer, 0, 4);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // wrong length
+        }
+    }
+}
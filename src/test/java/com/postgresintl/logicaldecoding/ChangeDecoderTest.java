@@ -0,0 +1,168 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.postgresintl.logicaldecoding.proto.PgProto;
+
+import junit.framework.TestCase;
+
+public class ChangeDecoderTest extends TestCase {
+
+    // 2000-01-01 00:00:02 UTC
+    private static final long COMMIT_TIME = 2000000L;
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class Collector implements ChangeDecoder.Sink {
+        final List<String> changes = new ArrayList<>();
+        final List<ChangeEvent> events = new ArrayList<>();
+
+        @Override
+        public void onChange(ChangeEvent event) {
+            RowView row = event.newRow();
+            changes.add(event.operation() + " " + event.relation().getSchema() + "." + event.relation().getName()
+                    + " xid=" + event.xid() + " time=" + event.commitTime()
+                    + " " + row.columnName(0) + "=" + row.getInt(0) + " type=" + row.typeOid(0)
+                    + " " + row.columnName(1) + "=" + row.getString(1)
+                    + " null=" + row.isNull(2));
+            events.add(event);
+        }
+    }
+
+    public void testSameEventFromEveryPlugin() throws Exception {
+        String expected = "INSERT public.t xid=7 time=2000000 id=42 type=23 name=a\"b null=true";
+
+        Collector pgoutput = new Collector();
+        ChangeDecoder decoder = ChangeDecoder.forPlugin("pgoutput", new ChangeEventPool());
+        decoder.decode(PgOutputMessages.relation(16384, "public", "t", new String[]{"id", "name", "note"},
+                new int[]{PgType.INT4, PgType.TEXT, PgType.TEXT}), 1, pgoutput);
+        decoder.decode(PgOutputMessages.begin(100, COMMIT_TIME, 7), 2, pgoutput);
+        decoder.decode(PgOutputMessages.insert(16384, "42", "a\"b", null), 3, pgoutput);
+        assertEquals(1, pgoutput.changes.size());
+        assertEquals(expected, pgoutput.changes.get(0));
+        assertEquals(3, pgoutput.events.get(0).lsn());
+
+        Collector wal2json = new Collector();
+        decoder = ChangeDecoder.forPlugin("wal2json", new ChangeEventPool());
+        decoder.decode(bytes("{\"xid\":7,\"timestamp\":\"2000-01-01 00:00:02+00\",\"change\":["
+                + "{\"kind\":\"insert\",\"schema\":\"public\",\"table\":\"t\","
+                + "\"columnnames\":[\"id\",\"name\",\"note\"],\"columntypes\":[\"integer\",\"text\",\"character varying(20)\"],"
+                + "\"columnvalues\":[42,\"a\\\"b\",null]}]}"), 3, wal2json);
+        assertEquals(expected, wal2json.changes.get(0));
+        assertEquals(PgType.VARCHAR, wal2json.events.get(0).newRow().typeOid(2));
+
+        // format-version 2 finds the xid and commit time in BEGIN
+        decoder.decode(bytes("{\"action\":\"B\",\"xid\":7,\"timestamp\":\"2000-01-01 00:00:02+00\"}"), 4, wal2json);
+        decoder.decode(bytes("{\"action\":\"I\",\"schema\":\"public\",\"table\":\"t\",\"columns\":["
+                + "{\"name\":\"id\",\"type\":\"integer\",\"value\":42},"
+                + "{\"name\":\"name\",\"type\":\"text\",\"value\":\"a\\\"b\"},"
+                + "{\"name\":\"note\",\"type\":\"character varying(20)\",\"value\":null}]}"), 5, wal2json);
+        decoder.decode(bytes("{\"action\":\"C\"}"), 6, wal2json);
+        assertEquals(2, wal2json.changes.size());
+        assertEquals(expected, wal2json.changes.get(1));
+        // the relation of the first document is kept
+        assertSame(wal2json.events.get(0).relation(), wal2json.events.get(1).relation());
+
+        Collector decoderbufs = new Collector();
+        decoder = ChangeDecoder.forPlugin("decoderbufs", new ChangeEventPool());
+        PgProto.RowMessage row = PgProto.RowMessage.newBuilder()
+                .setTransactionId(7)
+                .setCommitTime(PgEpoch.toUnixMicros(COMMIT_TIME))
+                .setTable("public.t")
+                .setOp(PgProto.Op.INSERT)
+                .addNewTuple(PgProto.DatumMessage.newBuilder().setColumnName("id").setColumnType(PgType.INT4).setDatumInt32(42))
+                .addNewTuple(PgProto.DatumMessage.newBuilder().setColumnName("name").setColumnType(PgType.TEXT).setDatumString("a\"b"))
+                .addNewTuple(PgProto.DatumMessage.newBuilder().setColumnName("note").setColumnType(PgType.VARCHAR))
+                .build();
+        decoder.decode(ByteBuffer.wrap(row.toByteArray()), 3, decoderbufs);
+        assertEquals(expected, decoderbufs.changes.get(0));
+    }
+
+    public void testOldKeys() throws Exception {
+        List<ChangeEvent> events = new ArrayList<>();
+        ChangeDecoder decoder = new Wal2JsonChangeDecoder(new ChangeEventPool());
+        decoder.decode(bytes("{\"action\":\"U\",\"schema\":\"public\",\"table\":\"t\",\"columns\":["
+                + "{\"name\":\"id\",\"type\":\"integer\",\"value\":42},"
+                + "{\"name\":\"ok\",\"type\":\"boolean\",\"value\":true}],"
+                + "\"identity\":[{\"name\":\"id\",\"type\":\"integer\",\"value\":41}]}"), 1, events::add);
+        decoder.decode(bytes("{\"change\":[{\"kind\":\"delete\",\"schema\":\"public\",\"table\":\"t\","
+                + "\"oldkeys\":{\"keynames\":[\"id\"],\"keytypes\":[\"integer\"],\"keyvalues\":[42]}}]}"), 2, events::add);
+
+        ChangeEvent update = events.get(0);
+        assertEquals(ChangeEvent.Operation.UPDATE, update.operation());
+        assertTrue(update.newRow().getBoolean(1));
+        assertEquals(41, update.oldRow().getInt(0));
+        assertTrue(update.oldRow().isNull(1));
+
+        ChangeEvent delete = events.get(1);
+        assertEquals(ChangeEvent.Operation.DELETE, delete.operation());
+        assertNull(delete.newRow());
+        // laid out like the table from the update
+        assertEquals(2, delete.oldRow().columnCount());
+        assertEquals(42L, delete.oldRow().getLong(0));
+        assertEquals("ok", delete.oldRow().columnName(1));
+    }
+
+    public void testWal2JsonRelationsByTable() throws Exception {
+        List<ChangeEvent> events = new ArrayList<>();
+        ChangeDecoder decoder = new Wal2JsonChangeDecoder(new ChangeEventPool());
+        for (int i = 0; i < 3; i++) {
+            for (String table : new String[]{"a", "b", "c"}) {
+                decoder.decode(bytes("{\"action\":\"I\",\"schema\":\"public\",\"table\":\"" + table + "\",\"columns\":["
+                        + "{\"name\":\"x\",\"type\":\"integer\",\"value\":1},"
+                        + "{\"name\":\"y\",\"type\":\"integer\",\"value\":2},"
+                        + "{\"name\":\"z\",\"type\":\"integer\",\"value\":3}]}"), i, events::add);
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals("abc".substring(i, i + 1), events.get(i).relation().getName());
+            assertSame(events.get(i).relation(), events.get(i + 3).relation());
+            assertSame(events.get(i).relation(), events.get(i + 6).relation());
+        }
+
+        // keys out of table order are still matched to their columns
+        decoder.decode(bytes("{\"action\":\"D\",\"schema\":\"public\",\"table\":\"b\",\"identity\":["
+                + "{\"name\":\"z\",\"type\":\"integer\",\"value\":30},"
+                + "{\"name\":\"x\",\"type\":\"integer\",\"value\":10}]}"), 9, events::add);
+        ChangeEvent delete = events.get(9);
+        assertSame(events.get(1).relation(), delete.relation());
+        assertEquals(10, delete.oldRow().getInt(0));
+        assertTrue(delete.oldRow().isNull(1));
+        assertEquals(30, delete.oldRow().getInt(2));
+    }
+
+    public void testEventsAreRecycled() throws Exception {
+        ChangeEventPool pool = new ChangeEventPool();
+        ChangeDecoder decoder = new PgOutputChangeDecoder(new RelationCache(), pool);
+        decoder.decode(PgOutputMessages.relation(16384, "public", "t", new String[]{"id", "name"},
+                new int[]{PgType.INT4, PgType.TEXT}), 1, event -> fail());
+        long[] sum = new long[1];
+        for (int i = 0; i < 1000; i++) {
+            decoder.decode(PgOutputMessages.insert(16384, Integer.toString(i), "name" + i), i, event -> {
+                sum[0] += event.newRow().getInt(0);
+                event.recycle();
+            });
+        }
+        assertEquals(499500, sum[0]);
+        assertEquals(1, pool.getCreated());
+
+        // a kept event owns its values, the message can be reused
+        ByteBuffer message = PgOutputMessages.insert(16384, "7", "seven");
+        List<ChangeEvent> kept = new ArrayList<>();
+        decoder.decode(message, 2000, kept::add);
+        decoder.decode(PgOutputMessages.insert(16384, "8", "eight"), 2001, kept::add);
+        message.put(message.limit() - 1, (byte) '!');
+        assertEquals(2, pool.getCreated());
+        assertNotSame(kept.get(0), kept.get(1));
+        assertEquals("seven", kept.get(0).newRow().getString(1));
+        assertEquals(8, kept.get(1).newRow().getInt(0));
+        kept.get(0).recycle();
+        kept.get(1).recycle();
+        assertEquals(2, pool.size());
+    }
+}
@@ -0,0 +1,126 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+import junit.framework.TestCase;
+
+public class ConsumerHostTest extends TestCase
+{
+    private static FakeReplicationStream transaction(int oid)
+    {
+        return new FakeReplicationStream()
+                .add(PgOutputMessages.begin(100, PgEpoch.now(), 1))
+                .addEmptyPolls(2)
+                .add(PgOutputMessages.insert(oid, "1", "x"))
+                .add(PgOutputMessages.commit(100, 200, PgEpoch.now()));
+    }
+
+    private static void awaitStopped(ConsumerHost.Slot slot) throws InterruptedException
+    {
+        for (int i = 0; i < 1000 && slot.isRunning(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(slot + " still running", slot.isRunning());
+    }
+
+    public void testSlotsShareHandlerAndMetrics() throws Exception
+    {
+        Map<String, AtomicInteger> seen = new ConcurrentHashMap<>();
+        ConsumerHost host = new ConsumerHost((slot, message, ticket) -> {
+            seen.computeIfAbsent(slot.name(), k -> new AtomicInteger()).incrementAndGet();
+            ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+            copy.put(message.duplicate()).flip();
+            slot.message().wrap(copy);
+        }, 2);
+        AtomicInteger oids = new AtomicInteger();
+        host.withStreamOpener((config, start) -> transaction(oids.incrementAndGet()));
+        List<ConsumerHost.Slot> slots = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            slots.add(host.add(new SlotConfig("slot" + i, "jdbc:postgresql://db" + i + "/test")));
+        }
+        try {
+            host.add(new SlotConfig("slot0", "jdbc:postgresql://other/test"));
+            fail("a slot is only consumed once");
+        } catch (IllegalStateException expected) {
+        }
+        for (ConsumerHost.Slot slot : slots) {
+            awaitStopped(slot);
+            assertEquals(3, seen.get(slot.name()).get());
+            assertEquals(3, slot.getMessages());
+            assertEquals(0, slot.getFailures());
+            assertNull(slot.getLastError());
+        }
+        assertEquals(3, host.metrics().getTransactions());
+        assertEquals(3, host.metrics().getRows());
+        assertEquals(9, host.metrics().getMessages());
+        host.close();
+        assertTrue(host.slots().isEmpty());
+    }
+
+    public void testSinkPoolCompletesTickets() throws Exception
+    {
+        ConsumerHost[] holder = new ConsumerHost[1];
+        List<String> stored = Collections.synchronizedList(new ArrayList<>());
+        ConsumerHost host = new ConsumerHost((slot, message, ticket) -> {
+            String text = String.valueOf((char) message.get(message.position()));
+            holder[0].submit(slot, ticket, () -> stored.add(text));
+        }, 1);
+        holder[0] = host;
+        FakeReplicationStream stream = transaction(1);
+        host.withStreamOpener((config, start) -> stream);
+        ConsumerHost.Slot slot = host.add(new SlotConfig("async", "jdbc:postgresql://localhost/test"));
+        awaitStopped(slot);
+        host.close();
+        assertEquals(3, stored.size());
+        // every sink ran before close returned
+        assertEquals(slot.receivedLsn(), slot.durableLsn());
+    }
+
+    public void testReopensFromDurableLsn() throws Exception
+    {
+        List<LogSequenceNumber> starts = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger inserts = new AtomicInteger();
+        ConsumerHost host = new ConsumerHost((slot, message, ticket) -> {
+            if (message.get(message.position()) == 'I' && inserts.incrementAndGet() == 1) {
+                throw new IllegalStateException("sink down");
+            }
+            slot.complete(ticket);
+        }, 1);
+        host.withStreamOpener((config, start) -> {
+            starts.add(start);
+            return transaction(1);
+        });
+        ConsumerHost.Slot slot = host.add(new SlotConfig("flaky", "jdbc:postgresql://localhost/test")
+                .startFrom(LogSequenceNumber.valueOf(500)));
+        awaitStopped(slot);
+        host.close();
+
+        assertEquals(1, slot.getRestarts());
+        assertEquals(1, slot.getFailures());
+        assertEquals("sink down", slot.getLastError().getMessage());
+        assertEquals(2, starts.size());
+        assertEquals(500L, starts.get(0).asLong());
+        // the BEGIN was stored before the failure, the fake stream numbers it 1000
+        assertEquals(1000L, starts.get(1).asLong());
+        assertEquals(2, inserts.get());
+    }
+
+    public void testSlotOptions()
+    {
+        SlotConfig config = new SlotConfig("s", "jdbc:postgresql://localhost/test")
+                .tableFilter(new TableFilter().publication("pub_s"))
+                .option("binary", true);
+        assertEquals("1", config.getSlotOptions().getProperty("proto_version"));
+        assertEquals("pub_s", config.getSlotOptions().getProperty("publication_names"));
+        assertEquals("true", config.getSlotOptions().getProperty("binary"));
+        assertNull(config.plugin("wal2json").getSlotOptions().getProperty("proto_version"));
+    }
+}
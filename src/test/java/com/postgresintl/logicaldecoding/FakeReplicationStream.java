@@ -0,0 +1,107 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+/**
+ * In memory replication stream for the tests, readPending returns null for every
+ * queued <code>null</code> entry.
+ */
+class FakeReplicationStream implements PGReplicationStream {
+    private final Deque<ByteBuffer> messages = new ArrayDeque<>();
+    private final Deque<Boolean> empty = new ArrayDeque<>();
+    private long nextLsn = 1000;
+    LogSequenceNumber received = LogSequenceNumber.INVALID_LSN;
+    LogSequenceNumber flushed = LogSequenceNumber.INVALID_LSN;
+    LogSequenceNumber applied = LogSequenceNumber.INVALID_LSN;
+    int statusUpdates;
+    int polls;
+    boolean closed;
+
+    FakeReplicationStream add(ByteBuffer message) {
+        empty.add(message == null);
+        if (message != null) {
+            messages.add(message);
+        }
+        return this;
+    }
+
+    FakeReplicationStream addEmptyPolls(int n) {
+        for (int i = 0; i < n; i++) {
+            add(null);
+        }
+        return this;
+    }
+
+    @Override
+    public ByteBuffer read() {
+        ByteBuffer buffer;
+        while ((buffer = readPending()) == null && !closed) {
+            if (empty.isEmpty()) {
+                return null;
+            }
+        }
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer readPending() {
+        polls++;
+        Boolean isEmpty = empty.poll();
+        if (isEmpty == null) {
+            closed = true;
+            return null;
+        }
+        if (isEmpty) {
+            return null;
+        }
+        ByteBuffer buffer = messages.poll();
+        received = LogSequenceNumber.valueOf(nextLsn);
+        nextLsn += buffer.remaining();
+        return buffer;
+    }
+
+    @Override
+    public LogSequenceNumber getLastReceiveLSN() {
+        return received;
+    }
+
+    @Override
+    public LogSequenceNumber getLastFlushedLSN() {
+        return flushed;
+    }
+
+    @Override
+    public LogSequenceNumber getLastAppliedLSN() {
+        return applied;
+    }
+
+    @Override
+    public void setFlushedLSN(LogSequenceNumber lsn) {
+        flushed = lsn;
+    }
+
+    @Override
+    public void setAppliedLSN(LogSequenceNumber lsn) {
+        applied = lsn;
+    }
+
+    @Override
+    public void forceUpdateStatus() {
+        statusUpdates++;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
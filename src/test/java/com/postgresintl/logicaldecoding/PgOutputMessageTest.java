@@ -0,0 +1,83 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class PgOutputMessageTest extends TestCase
+{
+    private final PgOutputMessage message = new PgOutputMessage();
+
+    public void testBeginAndCommit()
+    {
+        message.wrap(PgOutputMessages.begin(0x16B3748L, 12345L, 42));
+        assertEquals(PgOutputMessage.BEGIN, message.type());
+        assertEquals(0x16B3748L, message.finalLsn());
+        assertEquals(12345L, message.commitTime());
+        assertEquals(42, message.xid());
+
+        message.wrap(PgOutputMessages.commit(100L, 200L, 300L));
+        assertEquals(PgOutputMessage.COMMIT, message.type());
+        assertEquals(100L, message.commitLsn());
+        assertEquals(200L, message.endLsn());
+        assertEquals(300L, message.commitTime());
+    }
+
+    public void testRelation()
+    {
+        message.wrap(PgOutputMessages.relation(16384, "public", "t", new String[]{"id", "name"}, new int[]{23, 25}));
+        assertEquals(PgOutputMessage.RELATION, message.type());
+        assertEquals(16384, message.relationOid());
+        assertEquals("public", message.schema());
+        assertEquals("t", message.name());
+        assertEquals(2, message.attributeCount());
+        assertEquals("id", message.attributeName(0));
+        assertEquals(1, message.attributeFlags(0));
+        assertEquals(23, message.attributeTypeOid(0));
+        assertEquals("name", message.attributeName(1));
+        assertEquals(25, message.attributeTypeOid(1));
+        assertEquals(-1, message.attributeTypeModifier(1));
+    }
+
+    public void testInsert()
+    {
+        ByteBuffer buffer = PgOutputMessages.insert(16384, "1", null, "hello");
+        int position = buffer.position();
+        message.wrap(buffer);
+        assertEquals(position, buffer.position());
+        assertEquals(16384, message.relationOid());
+        assertFalse(message.hasOldTuple());
+        PgOutputTuple tuple = message.newTuple();
+        assertEquals(3, tuple.columnCount());
+        assertEquals("1", tuple.getString(0));
+        assertTrue(tuple.isNull(1));
+        assertEquals(5, tuple.length(2));
+        assertEquals('h', buffer.get(tuple.offset(2)));
+    }
+
+    public void testUpdateWithOldTuple()
+    {
+        ByteBuffer buffer = PgOutputMessages.message('U').putInt(7)
+                .put('O').putTuple("1", "old")
+                .put('N').putTuple("1", "new").build();
+        message.wrap(buffer);
+        assertEquals(PgOutputMessage.OLD, message.oldTupleKind());
+        assertEquals("old", message.oldTuple().getString(1));
+        assertEquals("new", message.newTuple().getString(1));
+
+        buffer = PgOutputMessages.message('U').putInt(7).put('N').putTuple("2").build();
+        message.wrap(buffer);
+        assertFalse(message.hasOldTuple());
+        assertEquals("2", message.newTuple().getString(0));
+    }
+
+    public void testDelete()
+    {
+        ByteBuffer buffer = PgOutputMessages.message('D').putInt(7).put('K').putTuple("9", null).build();
+        message.wrap(buffer);
+        assertEquals(PgOutputMessage.KEY, message.oldTupleKind());
+        assertFalse(message.hasNewTuple());
+        assertEquals("9", message.oldTuple().getString(0));
+        assertTrue(message.oldTuple().isNull(1));
+    }
+}
@@ -0,0 +1,92 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds raw pgoutput protocol messages for the tests.
+ */
+class PgOutputMessages {
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    static PgOutputMessages message(char type) {
+        PgOutputMessages m = new PgOutputMessages();
+        m.buffer.put((byte) type);
+        return m;
+    }
+
+    static ByteBuffer begin(long finalLsn, long commitTime, int xid) {
+        return message('B').putLong(finalLsn).putLong(commitTime).putInt(xid).build();
+    }
+
+    static ByteBuffer commit(long commitLsn, long endLsn, long commitTime) {
+        return message('C').put('\0').putLong(commitLsn).putLong(endLsn).putLong(commitTime).build();
+    }
+
+    static ByteBuffer relation(int oid, String schema, String name, String[] columns, int[] typeOids) {
+        PgOutputMessages m = message('R').putInt(oid).putString(schema).putString(name).put('d');
+        m.putShort(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            m.put(i == 0 ? '\1' : '\0').putString(columns[i]).putInt(typeOids[i]).putInt(-1);
+        }
+        return m.build();
+    }
+
+    static ByteBuffer insert(int oid, String... values) {
+        return message('I').putInt(oid).put('N').putTuple(values).build();
+    }
+
+    PgOutputMessages put(char c) {
+        buffer.put((byte) c);
+        return this;
+    }
+
+    PgOutputMessages putShort(int s) {
+        buffer.putShort((short) s);
+        return this;
+    }
+
+    PgOutputMessages putInt(int i) {
+        buffer.putInt(i);
+        return this;
+    }
+
+    PgOutputMessages putLong(long l) {
+        buffer.putLong(l);
+        return this;
+    }
+
+    PgOutputMessages putString(String s) {
+        buffer.put(s.getBytes(StandardCharsets.UTF_8)).put((byte) 0);
+        return this;
+    }
+
+    /**
+     * null values are sent as 'n'
+     */
+    PgOutputMessages putTuple(String... values) {
+        buffer.putShort((short) values.length);
+        for (String value : values) {
+            if (value == null) {
+                buffer.put((byte) 'n');
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                buffer.put((byte) 't').putInt(bytes.length).put(bytes);
+            }
+        }
+        return this;
+    }
+
+    PgOutputMessages putBinary(byte[]... values) {
+        buffer.putShort((short) values.length);
+        for (byte[] value : values) {
+            buffer.put((byte) 'b').putInt(value.length).put(value);
+        }
+        return this;
+    }
+
+    ByteBuffer build() {
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,63 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+import com.postgresintl.logicaldecoding.proto.PgProto;
+import com.postgresintl.logicaldecoding.synthetic.MessageGenerator;
+import com.postgresintl.logicaldecoding.synthetic.RowShape;
+
+import junit.framework.TestCase;
+
+public class ProtoBufDecoderTest extends TestCase
+{
+    private final MessageGenerator generator = new MessageGenerator(RowShape.wide());
+
+    public void testDecodesOnlyTheRemainingRegion() throws Exception
+    {
+        ByteBuffer message = generator.protobufInsert("public.t");
+        PgProto.RowMessage expected = PgProto.RowMessage.parseFrom(message.duplicate());
+
+        // message in the middle of a larger array, surrounded by garbage
+        byte[] padded = new byte[message.remaining() + 20];
+        message.duplicate().get(padded, 7, message.remaining());
+        ByteBuffer buffer = ByteBuffer.wrap(padded, 7, message.remaining());
+
+        ProtoBufDecoder decoder = new ProtoBufDecoder();
+        assertEquals(expected, decoder.decodeMessage(buffer));
+        assertEquals(7, buffer.position());
+        assertEquals(expected.toString(), new ProtoBuf(buffer).toString());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(message.remaining());
+        direct.put(message.duplicate());
+        direct.flip();
+        assertEquals(expected, decoder.decodeMessage(direct));
+    }
+
+    public void testBuilderIsReused() throws Exception
+    {
+        ProtoBufDecoder decoder = new ProtoBufDecoder();
+        PgProto.RowMessageOrBuilder first = decoder.decode(generator.protobufInsert("public.a"));
+        assertEquals("public.a", first.getTable());
+        PgProto.RowMessageOrBuilder second = decoder.decode(generator.protobufInsert("public.b"));
+        assertSame(first, second);
+        assertEquals("public.b", second.getTable());
+        assertEquals(100, second.getNewTupleCount());
+    }
+
+    public void testAliasedBytes() throws Exception
+    {
+        byte[] payload = {1, 2, 3, 4};
+        byte[] encoded = PgProto.RowMessage.newBuilder()
+                .setTable("public.b")
+                .addNewTuple(PgProto.DatumMessage.newBuilder().setColumnName("data").setDatumBytes(ByteString.copyFrom(payload)))
+                .build().toByteArray();
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        PgProto.RowMessageOrBuilder row = new ProtoBufDecoder(true).decode(buffer);
+        ByteString bytes = row.getNewTuple(0).getDatumBytes();
+        assertEquals(ByteString.copyFrom(payload), bytes);
+        // aliased, so changing the buffer shows through
+        encoded[encoded.length - 1] = 9;
+        assertEquals(9, bytes.byteAt(3));
+    }
+}
@@ -0,0 +1,60 @@
+package com.postgresintl.logicaldecoding;
+
+import com.postgresintl.logicaldecoding.model.Relation;
+
+import junit.framework.TestCase;
+
+public class RelationCacheTest extends TestCase
+{
+    private final RelationCache cache = new RelationCache();
+    private final PgOutputMessage message = new PgOutputMessage();
+
+    public void testLookup()
+    {
+        cache.update(message.wrap(PgOutputMessages.relation(16384, "public", "t", new String[]{"id", "name"}, new int[]{23, 25})));
+        assertEquals(1, cache.size());
+        assertEquals("name", cache.columnName(16384, 1));
+        assertEquals(23, cache.columnType(16384, 0));
+        assertTrue(cache.get(16384).getAttribute(0).isKey());
+        assertNull(cache.get(16385));
+        assertEquals(0, cache.columnType(16385, 0));
+    }
+
+    public void testVersionOnlyChangesWithLayout()
+    {
+        Relation first = cache.update(message.wrap(PgOutputMessages.relation(1, "public", "t", new String[]{"id"}, new int[]{23})));
+        long version = cache.version();
+        Relation same = cache.update(message.wrap(PgOutputMessages.relation(1, "public", "t", new String[]{"id"}, new int[]{23})));
+        assertSame(first, same);
+        assertEquals(version, cache.version());
+        assertEquals(0, same.getVersion());
+
+        Relation altered = cache.update(message.wrap(PgOutputMessages.relation(1, "public", "t", new String[]{"id", "extra"}, new int[]{23, 16})));
+        assertEquals(1, altered.getVersion());
+        assertEquals(version + 1, cache.version());
+        assertEquals("extra", cache.columnName(1, 1));
+    }
+
+    public void testPgOutputUsesCache()
+    {
+        new PgOutput(PgOutputMessages.relation(7, "public", "t", new String[]{"id", "name"}, new int[]{23, 25}), cache).toString();
+        String row = new PgOutput(PgOutputMessages.insert(7, "1", "x"), cache).toString();
+        assertEquals("INSERT: public.t id=1, name=x, ", row);
+    }
+
+    public void testIntObjectMap()
+    {
+        IntObjectMap<String> map = new IntObjectMap<>(2);
+        for (int i = 1; i <= 1000; i++) {
+            map.put(i * 31, Integer.toString(i));
+        }
+        assertEquals(1000, map.size());
+        for (int i = 1; i <= 1000; i += 2) {
+            assertEquals(Integer.toString(i), map.remove(i * 31));
+        }
+        assertEquals(500, map.size());
+        for (int i = 1; i <= 1000; i++) {
+            assertEquals(i % 2 == 0 ? Integer.toString(i) : null, map.get(i * 31));
+        }
+    }
+}
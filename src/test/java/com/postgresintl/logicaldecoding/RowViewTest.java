@@ -0,0 +1,72 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class RowViewTest extends TestCase {
+
+    private final RelationCache relations = new RelationCache();
+    private final PgOutputMessage message = new PgOutputMessage();
+    private final RowView row = new RowView();
+
+    @Override
+    protected void setUp() {
+        relations.update(message.wrap(PgOutputMessages.relation(16384, "public", "orders",
+                new String[]{"id", "amount", "paid", "created", "note"},
+                new int[]{PgType.INT8, PgType.NUMERIC, PgType.BOOL, PgType.TIMESTAMPTZ, PgType.TEXT})));
+    }
+
+    public void testTypedAccess() {
+        message.wrap(PgOutputMessages.insert(16384, "42", "19.99", "t", "2000-01-01 00:00:01+00", null));
+        row.wrap(message.newTuple(), relations.get(message.relationOid()));
+
+        assertEquals(PgType.NUMERIC, row.typeOid(1));
+        assertEquals("amount", row.columnName(1));
+        assertEquals(42, row.getLong(0));
+        NumericValue amount = row.getNumeric(1, new NumericValue());
+        assertEquals(1999, amount.unscaledValue());
+        assertEquals(2, amount.scale());
+        assertEquals(19.99, row.getDouble(1), 0.0);
+        assertTrue(row.getBoolean(2));
+        assertEquals(1000000, row.getTimestampMicros(3));
+        assertTrue(row.isNull(4));
+    }
+
+    public void testBinaryColumns() {
+        ByteBuffer numeric = ByteBuffer.allocate(10).putShort((short) 1).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 19);
+        message.wrap(PgOutputMessages.message('I').putInt(16384).put('N').putBinary(
+                ByteBuffer.allocate(8).putLong(42).array(),
+                numeric.array(),
+                new byte[]{1},
+                ByteBuffer.allocate(8).putLong(1000000).array(),
+                "note".getBytes(StandardCharsets.UTF_8)).build());
+        row.wrap(message.newTuple(), relations.get(message.relationOid()));
+
+        assertEquals(42, row.getLong(0));
+        assertEquals(19.0, row.getDouble(1), 0.0);
+        assertTrue(row.getBoolean(2));
+        assertEquals(1000000, row.getTimestampMicros(3));
+        assertEquals("note", row.getString(4));
+    }
+
+    public void testTypeMismatch() {
+        message.wrap(PgOutputMessages.insert(16384, "42", "19.99", "t", "2000-01-01 00:00:01+00", null));
+        row.wrap(message.newTuple(), relations.get(message.relationOid()));
+        try {
+            row.getBoolean(0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // int8 is not a boolean
+        }
+        try {
+            row.getString(4);
+            row.getLong(4);
+            fail();
+        } catch (IllegalStateException expected) {
+            // NULL
+        }
+    }
+}
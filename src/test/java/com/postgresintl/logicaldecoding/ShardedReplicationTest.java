@@ -0,0 +1,115 @@
+package com.postgresintl.logicaldecoding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.postgresintl.logicaldecoding.model.Relation;
+
+import junit.framework.TestCase;
+
+public class ShardedReplicationTest extends TestCase
+{
+    private static List<ShardedReplication.Table> tables(long... sizes)
+    {
+        List<ShardedReplication.Table> tables = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++) {
+            tables.add(new ShardedReplication.Table("public", "t" + i, sizes[i]));
+        }
+        return tables;
+    }
+
+    public void testSizeKeepsLargeTablesApart()
+    {
+        ShardedReplication sharded = new ShardedReplication(new App(), "orders", 3, ShardedReplication.Assignment.SIZE);
+        List<ShardedReplication.Shard> shards = sharded.assign(tables(100, 90, 80, 10, 10, 5, 1));
+        assertEquals(3, shards.size());
+        assertEquals(Arrays.asList("public.t0"), shards.get(0).tables());
+        assertEquals(Arrays.asList("public.t1", "public.t4"), shards.get(1).tables());
+        assertEquals(Arrays.asList("public.t2", "public.t3", "public.t5", "public.t6"), shards.get(2).tables());
+        assertEquals(100, shards.get(0).bytes());
+        assertEquals(96, shards.get(2).bytes());
+        assertEquals("orders_pub_2", shards.get(2).publication());
+        assertEquals("orders_slot_2", shards.get(2).slotName());
+    }
+
+    public void testHashIsStableAndSkipsEmptyShards()
+    {
+        ShardedReplication sharded = new ShardedReplication(new App(), "s", 8, ShardedReplication.Assignment.HASH);
+        List<ShardedReplication.Shard> first = sharded.assign(tables(1, 1));
+        assertTrue(first.size() <= 2);
+        List<ShardedReplication.Table> more = tables(1, 1, 1, 1, 1, 1);
+        Collections.reverse(more);
+        List<ShardedReplication.Shard> second = sharded.assign(more);
+        for (ShardedReplication.Shard shard : first) {
+            // the same tables land on the same shard whatever else is there
+            for (ShardedReplication.Shard other : second) {
+                if (other.index() == shard.index()) {
+                    assertTrue(other.tables().containsAll(shard.tables()));
+                }
+            }
+        }
+        int total = 0;
+        for (ShardedReplication.Shard shard : second) {
+            assertFalse(shard.tables().isEmpty());
+            total += shard.tables().size();
+        }
+        assertEquals(6, total);
+    }
+
+    public void testShardsFeedOneSink() throws Exception
+    {
+        App app = new App();
+        ShardedReplication sharded = new ShardedReplication(app, "s", 2, ShardedReplication.Assignment.SIZE);
+        List<ShardedReplication.Shard> shards = sharded.assign(tables(10, 5));
+        List<String> changes = Collections.synchronizedList(new ArrayList<>());
+        ConsumerHost host = new ConsumerHost(sharded.handler(new ShardedReplication.ChangeSink() {
+            @Override
+            public void onChange(ShardedReplication.Shard shard, Relation relation, PgOutputMessage message)
+            {
+                changes.add(shard.index() + ":" + relation.getName() + ":" + message.newTuple().getString(0));
+            }
+
+            @Override
+            public void onCommit(ShardedReplication.Shard shard, long commitLsn, long commitTime)
+            {
+                changes.add(shard.index() + ":commit:" + commitLsn);
+            }
+        }), 1);
+        host.withStreamOpener((config, start) -> {
+            int shard = config.getSlotName().endsWith("0") ? 0 : 1;
+            assertEquals("s_pub_" + shard, config.getSlotOptions().getProperty("publication_names"));
+            return new FakeReplicationStream()
+                    .add(PgOutputMessages.relation(100 + shard, "public", "t" + shard, new String[]{"id"}, new int[]{23}))
+                    .add(PgOutputMessages.begin(shard, 0, 1))
+                    .add(PgOutputMessages.insert(100 + shard, "1"))
+                    .add(PgOutputMessages.insert(100 + shard, "2"))
+                    .add(PgOutputMessages.commit(shard, shard, 0));
+        });
+        sharded.start(host);
+        for (ShardedReplication.Shard shard : shards) {
+            for (int i = 0; i < 1000 && shard.slot().isRunning(); i++) {
+                Thread.sleep(10);
+            }
+        }
+        host.close();
+
+        List<String> shard0 = new ArrayList<>();
+        List<String> shard1 = new ArrayList<>();
+        for (String change : changes) {
+            (change.startsWith("0") ? shard0 : shard1).add(change);
+        }
+        assertEquals(Arrays.asList("0:t0:1", "0:t0:2", "0:commit:0"), shard0);
+        assertEquals(Arrays.asList("1:t1:1", "1:t1:2", "1:commit:1"), shard1);
+        assertEquals(-1, shards.get(0).lagBytes());
+    }
+
+    public void testPatternEscapesNames()
+    {
+        TableFilter filter = new TableFilter().include(TableFilter.pattern("odd.schema", "a*,b"));
+        assertTrue(filter.matches("odd.schema", "a*,b"));
+        assertFalse(filter.matches("odd.schema", "aX,b"));
+        assertEquals("odd\\.schema.a\\*\\,b", filter.slotOptions("wal2json").getProperty("add-tables"));
+    }
+}
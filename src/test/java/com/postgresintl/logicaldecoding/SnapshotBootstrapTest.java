@@ -0,0 +1,54 @@
+package com.postgresintl.logicaldecoding;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SnapshotBootstrapTest extends TestCase
+{
+    public void testCtidRanges()
+    {
+        List<SnapshotBootstrap.CopyRange> ranges = SnapshotBootstrap.ctidRanges("public", "t", 250, 100, 8192);
+        assertEquals(3, ranges.size());
+        assertEquals("ctid >= '(0,0)'::tid AND ctid < '(100,0)'::tid", ranges.get(0).condition());
+        assertEquals("ctid >= '(100,0)'::tid AND ctid < '(200,0)'::tid", ranges.get(1).condition());
+        // the last range also takes blocks added after the size was read
+        assertEquals("ctid >= '(200,0)'::tid", ranges.get(2).condition());
+        assertEquals(100 * 8192, ranges.get(0).estimatedBytes());
+        assertEquals(50 * 8192, ranges.get(2).estimatedBytes());
+
+        assertEquals(1, SnapshotBootstrap.ctidRanges("public", "t", 0, 100, 8192).size());
+    }
+
+    public void testKeyRanges()
+    {
+        List<SnapshotBootstrap.CopyRange> ranges = SnapshotBootstrap.keyRanges("public", "t", "id", 1, 1000, 4, 4000);
+        assertEquals(4, ranges.size());
+        assertEquals("\"id\" < 251", ranges.get(0).condition());
+        assertEquals("\"id\" >= 251 AND \"id\" < 501", ranges.get(1).condition());
+        assertEquals("\"id\" >= 751", ranges.get(3).condition());
+        assertEquals(1000, ranges.get(0).estimatedBytes());
+
+        ranges = SnapshotBootstrap.keyRanges("public", "t", "id", 5, 5, 4, 4000);
+        assertEquals(1, ranges.size());
+        assertNull(ranges.get(0).condition());
+
+        // the whole range of a bigint
+        ranges = SnapshotBootstrap.keyRanges("public", "t", "id", Long.MIN_VALUE, Long.MAX_VALUE, 4, 4000);
+        assertEquals(4, ranges.size());
+        assertEquals("\"id\" < " + (Long.MIN_VALUE + (1L << 62)), ranges.get(0).condition());
+        assertEquals("\"id\" >= " + (1L << 62), ranges.get(3).condition());
+
+        ranges = SnapshotBootstrap.keyRanges("public", "t", "id", Long.MIN_VALUE, Long.MAX_VALUE, 1, 4000);
+        assertEquals(1, ranges.size());
+        assertNull(ranges.get(0).condition());
+    }
+
+    public void testSql()
+    {
+        SnapshotBootstrap.CopyRange whole = SnapshotBootstrap.wholeTable("my schema", "t\"x", 0).get(0);
+        assertEquals("COPY \"my schema\".\"t\"\"x\" TO STDOUT (FORMAT binary)", whole.sql());
+        SnapshotBootstrap.CopyRange range = SnapshotBootstrap.ctidRanges("public", "t", 10, 100, 8192).get(0);
+        assertEquals("COPY (SELECT * FROM \"public\".\"t\" WHERE ctid >= '(0,0)'::tid) TO STDOUT (FORMAT binary)", range.sql());
+    }
+}
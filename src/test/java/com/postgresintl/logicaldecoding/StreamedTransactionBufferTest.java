@@ -0,0 +1,98 @@
+package com.postgresintl.logicaldecoding;
+
+import static com.postgresintl.logicaldecoding.PgOutputMessages.message;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class StreamedTransactionBufferTest extends TestCase {
+
+    private final StreamedTransactionBuffer streams = new StreamedTransactionBuffer();
+    private final PgOutputMessage message = new PgOutputMessage();
+    private final List<String> replayed = new ArrayList<>();
+
+    private final MessageHandler handler = buffer -> {
+        message.wrap(buffer);
+        switch (message.type()) {
+            case PgOutputMessage.BEGIN:
+                replayed.add("B" + message.xid());
+                break;
+            case PgOutputMessage.COMMIT:
+                replayed.add("C" + message.commitLsn());
+                break;
+            case PgOutputMessage.INSERT:
+                replayed.add("I" + message.newTuple().getString(0));
+                break;
+            default:
+                replayed.add(String.valueOf((char) message.type()));
+        }
+    };
+
+    private static ByteBuffer streamStart(int xid, boolean first) {
+        return message('S').putInt(xid).put(first ? '\1' : '\0').build();
+    }
+
+    private static ByteBuffer streamStop() {
+        return message('E').build();
+    }
+
+    private static ByteBuffer streamInsert(int xid, String value) {
+        return message('I').putInt(xid).putInt(16384).put('N').putTuple(value).build();
+    }
+
+    private static ByteBuffer streamCommit(int xid, long commitLsn) {
+        return message('c').putInt(xid).put('\0').putLong(commitLsn).putLong(commitLsn + 8).putLong(1000).build();
+    }
+
+    private static ByteBuffer streamAbort(int xid, int subXid) {
+        return message('A').putInt(xid).putInt(subXid).build();
+    }
+
+    public void testReplaysOnCommit() throws Exception {
+        assertTrue(streams.accept(streamStart(700, true), handler));
+        assertTrue(streams.accept(streamInsert(700, "a"), handler));
+        assertTrue(streams.accept(streamStop(), handler));
+
+        // an ordinary transaction between the blocks goes straight through
+        assertFalse(streams.accept(PgOutputMessages.insert(16384, "x"), handler));
+
+        streams.accept(streamStart(700, false), handler);
+        streams.accept(streamInsert(701, "b"), handler);
+        streams.accept(streamStop(), handler);
+        assertTrue(replayed.isEmpty());
+        assertEquals(1, streams.openTransactions());
+        assertTrue(streams.getBufferedBytes() > 0);
+
+        assertTrue(streams.accept(streamCommit(700, 5000), handler));
+        assertEquals("[B700, Ia, Ib, C5000]", replayed.toString());
+        assertEquals(0, streams.openTransactions());
+        assertEquals(0, streams.getBufferedBytes());
+        assertEquals(1, streams.getStreamedTransactions());
+    }
+
+    public void testSubtransactionAbort() throws Exception {
+        streams.accept(streamStart(700, true), handler);
+        streams.accept(streamInsert(700, "a"), handler);
+        streams.accept(streamInsert(701, "b"), handler);
+        streams.accept(streamInsert(702, "c"), handler);
+        streams.accept(streamStop(), handler);
+        streams.accept(streamAbort(700, 701), handler);
+        streams.accept(streamCommit(700, 5000), handler);
+        assertEquals("[B700, Ia, Ic, C5000]", replayed.toString());
+        assertEquals(0, streams.getAbortedTransactions());
+    }
+
+    public void testTransactionAbort() throws Exception {
+        streams.accept(streamStart(700, true), handler);
+        streams.accept(streamInsert(700, "a"), handler);
+        streams.accept(streamStop(), handler);
+        streams.accept(streamAbort(700, 700), handler);
+        assertTrue(replayed.isEmpty());
+        assertEquals(0, streams.openTransactions());
+        assertEquals(0, streams.getBufferedBytes());
+        assertEquals(1, streams.getAbortedTransactions());
+    }
+}
@@ -0,0 +1,119 @@
+package com.postgresintl.logicaldecoding;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class TableFilterTest extends TestCase
+{
+    private final RelationCache relations = new RelationCache();
+    private final PgOutputMessage message = new PgOutputMessage();
+
+    private void relation(int oid, String schema, String name, String... columns)
+    {
+        int[] types = new int[columns.length];
+        Arrays.fill(types, 25);
+        relations.update(message.wrap(PgOutputMessages.relation(oid, schema, name, columns, types)));
+    }
+
+    public void testPatterns()
+    {
+        TableFilter filter = new TableFilter().include("public.*", "sales.orders").exclude("public.audit*");
+        assertTrue(filter.matches("public", "t"));
+        assertTrue(filter.matches("sales", "orders"));
+        assertFalse(filter.matches("sales", "orders_archive"));
+        assertFalse(filter.matches("public", "audit_log"));
+        assertFalse(filter.matches("other", "t"));
+
+        // everything is wanted without include patterns
+        assertTrue(new TableFilter().exclude("*.tmp").matches("x", "y"));
+        assertFalse(new TableFilter().exclude("*.tmp").matches("x", "tmp"));
+    }
+
+    public void testEscapes()
+    {
+        TableFilter filter = new TableFilter().include("my\\.schema.t\\*");
+        assertTrue(filter.matches("my.schema", "t*"));
+        assertFalse(filter.matches("my", "schema.t*"));
+        assertFalse(filter.matches("my.schema", "tx"));
+
+        // a wildcard does not reach across the separator
+        assertFalse(new TableFilter().include("*.orders").matches("x", "y.orders"));
+        assertTrue(new TableFilter().include("*.orders").matches("x.y", "orders"));
+
+        try {
+            new TableFilter().include("orders");
+            fail("a pattern without a schema is rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testDecisionsFollowTheCache()
+    {
+        TableFilter filter = new TableFilter().include("public.*").columns("public.wide", "b");
+        // unknown relations are let through
+        assertTrue(filter.accept(1, relations));
+
+        relation(1, "public", "wide", "id", "a", "b", "c");
+        relation(2, "other", "t", "id");
+        assertTrue(filter.accept(1, relations));
+        assertFalse(filter.accept(2, relations));
+        boolean[] mask = filter.columnMask(1, relations);
+        // the key column is always kept
+        assertTrue(mask[0]);
+        assertFalse(mask[1]);
+        assertTrue(mask[2]);
+        assertFalse(mask[3]);
+
+        relation(1, "public", "wide", "id", "b", "a");
+        mask = filter.columnMask(1, relations);
+        assertEquals(3, mask.length);
+        assertTrue(mask[1]);
+        assertFalse(mask[2]);
+    }
+
+    public void testSlotOptions()
+    {
+        TableFilter filter = new TableFilter().include("public.*", "s.t").exclude("public.log").publication("pub_filtered");
+        Properties pgoutput = filter.slotOptions("pgoutput");
+        assertEquals("pub_filtered", pgoutput.getProperty("publication_names"));
+        assertEquals(1, pgoutput.size());
+        Properties wal2json = filter.slotOptions("wal2json");
+        assertEquals("public.*,s.t", wal2json.getProperty("add-tables"));
+        assertEquals("public.log", wal2json.getProperty("filter-tables"));
+        assertTrue(filter.slotOptions("test_decoding").isEmpty());
+    }
+
+    public void testMessageSkipsUnwantedRows()
+    {
+        TableFilter filter = new TableFilter().exclude("public.skip").columns("public.keep", "b");
+        relation(1, "public", "keep", "id", "a", "b");
+        relation(2, "public", "skip", "id", "a");
+        PgOutputMessage filtered = new PgOutputMessage().setFilter(filter, relations);
+
+        filtered.wrap(PgOutputMessages.insert(2, "1", "x"));
+        assertTrue(filtered.isFiltered());
+        assertEquals(2, filtered.relationOid());
+        assertFalse(filtered.hasNewTuple());
+
+        filtered.wrap(PgOutputMessages.insert(1, "1", "unwanted", "wanted"));
+        assertFalse(filtered.isFiltered());
+        PgOutputTuple tuple = filtered.newTuple();
+        assertEquals(3, tuple.columnCount());
+        assertEquals("1", tuple.getString(0));
+        assertTrue(tuple.isFiltered(1));
+        assertNull(tuple.getString(1));
+        assertEquals("wanted", tuple.getString(2));
+    }
+
+    public void testPgOutputSkipsUnwantedRows()
+    {
+        TableFilter filter = new TableFilter().include("public.keep").columns("public.keep", "b");
+        assertEquals("", new PgOutput(PgOutputMessages.relation(2, "public", "skip", new String[]{"id"}, new int[]{23}), relations, null, filter).toString());
+        new PgOutput(PgOutputMessages.relation(1, "public", "keep", new String[]{"id", "a", "b"}, new int[]{23, 25, 25}), relations, null, filter).toString();
+
+        assertEquals("", new PgOutput(PgOutputMessages.insert(2, "1"), relations, null, filter).toString());
+        assertEquals("INSERT: public.keep id=1, b=y, ", new PgOutput(PgOutputMessages.insert(1, "1", "x", "y"), relations, null, filter).toString());
+    }
+}
@@ -0,0 +1,110 @@
+package com.postgresintl.logicaldecoding;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+
+import junit.framework.TestCase;
+
+public class TextDecodingTest extends TestCase {
+
+    private static final OffsetDateTime PG_EPOCH = OffsetDateTime.of(2000, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    /* the value sits behind some padding to make sure offsets are honoured */
+    private static ByteBuffer buffer(String value) {
+        return ByteBuffer.wrap(("xx" + value + "yy").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int length(String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static long parseLong(String value) {
+        return TextDecoding.parseLong(buffer(value), 2, length(value));
+    }
+
+    private static double parseDouble(String value) {
+        return TextDecoding.parseDouble(buffer(value), 2, length(value));
+    }
+
+    private static long parseTimestamp(String value) {
+        return TextDecoding.parseTimestamp(buffer(value), 2, length(value));
+    }
+
+    private static NumericValue parseNumeric(String value) {
+        return TextDecoding.parseNumeric(buffer(value), 2, length(value), new NumericValue());
+    }
+
+    public void testIntegers() {
+        assertEquals(0, parseLong("0"));
+        assertEquals(-42, parseLong("-42"));
+        assertEquals(Long.MAX_VALUE, parseLong("9223372036854775807"));
+        assertEquals(Long.MIN_VALUE, parseLong("-9223372036854775808"));
+        assertEquals(-32768, TextDecoding.parseInt(buffer("-32768"), 2, 6));
+        for (String bad : new String[]{"", "-", "12a", "9223372036854775808"}) {
+            try {
+                parseLong(bad);
+                fail("parsed " + bad);
+            } catch (NumberFormatException expected) {
+                // ok
+            }
+        }
+    }
+
+    public void testDoubles() {
+        for (String value : new String[]{"0", "-0.5", "3.14159", "1e+100", "1.5e-07", "123456.789",
+                "870124.3928133452", "-1.7976931348623157e+308", "4.9e-324"}) {
+            assertEquals(value, Double.parseDouble(value), parseDouble(value), 0.0);
+        }
+        assertTrue(Double.isNaN(parseDouble("NaN")));
+        assertEquals(Double.NEGATIVE_INFINITY, parseDouble("-Infinity"));
+    }
+
+    public void testNumeric() {
+        NumericValue value = parseNumeric("-12345.6700");
+        assertTrue(value.fitsInLong());
+        assertEquals(-123456700, value.unscaledValue());
+        assertEquals(4, value.scale());
+        assertEquals(new BigDecimal("-12345.6700"), value.toBigDecimal());
+
+        value = parseNumeric("123456789012345678901234.5");
+        assertFalse(value.fitsInLong());
+        assertEquals(new BigDecimal("123456789012345678901234.5"), value.toBigDecimal());
+
+        assertEquals(NumericValue.NAN, parseNumeric("NaN").special());
+        assertEquals(NumericValue.NEGATIVE_INFINITY, parseNumeric("-Infinity").special());
+    }
+
+    public void testTimestamps() {
+        assertEquals(0, parseTimestamp("2000-01-01 00:00:00"));
+        OffsetDateTime time = OffsetDateTime.of(2021, 3, 4, 5, 6, 7, 123456000, ZoneOffset.ofHoursMinutes(5, 30));
+        assertEquals(ChronoUnit.MICROS.between(PG_EPOCH, time), parseTimestamp("2021-03-04 05:06:07.123456+05:30"));
+        time = OffsetDateTime.of(1969, 12, 31, 23, 59, 59, 500000000, ZoneOffset.ofHours(-8));
+        assertEquals(ChronoUnit.MICROS.between(PG_EPOCH, time), parseTimestamp("1969-12-31 23:59:59.5-08"));
+        time = OffsetDateTime.of(-43, 3, 15, 12, 0, 0, 0, ZoneOffset.UTC);
+        assertEquals(ChronoUnit.MICROS.between(PG_EPOCH, time), parseTimestamp("0044-03-15 12:00:00+00 BC"));
+        assertEquals(Long.MAX_VALUE, parseTimestamp("infinity"));
+        assertEquals(-1, TextDecoding.parseDate(buffer("1999-12-31"), 2, 10));
+    }
+
+    public void testUuidAndBytea() {
+        String uuid = "a0eebc99-9c0b-4ef8-bb6d-6bb9bd380a11";
+        java.util.UUID expected = java.util.UUID.fromString(uuid);
+        assertEquals(expected.getMostSignificantBits(), TextDecoding.parseUuidMostSignificantBits(buffer(uuid), 2, 36));
+        assertEquals(expected.getLeastSignificantBits(), TextDecoding.parseUuidLeastSignificantBits(buffer(uuid), 2, 36));
+
+        byte[] dst = new byte[4];
+        String hex = "\\xdeadbeef";
+        assertEquals(4, TextDecoding.byteaLength(buffer(hex), 2, hex.length()));
+        assertEquals(4, TextDecoding.decodeBytea(buffer(hex), 2, hex.length(), dst, 0));
+        assertEquals(0xdeadbeef, ByteBuffer.wrap(dst).getInt());
+
+        String escape = "a\\\\\\001b";
+        assertEquals(4, TextDecoding.byteaLength(buffer(escape), 2, escape.length()));
+        TextDecoding.decodeBytea(buffer(escape), 2, escape.length(), dst, 0);
+        assertEquals("[97, 92, 1, 98]", java.util.Arrays.toString(dst));
+    }
+}
@@ -0,0 +1,116 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TransactionBufferTest extends TestCase {
+
+    private Path directory;
+    private final List<String> replayed = new ArrayList<>();
+    private final PgOutputMessage message = new PgOutputMessage();
+    private final MessageHandler handler = buffer -> {
+        message.wrap(buffer);
+        if (message.type() == PgOutputMessage.INSERT) {
+            replayed.add(message.newTuple().getString(0));
+        } else {
+            replayed.add(String.valueOf((char) message.type()));
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("txn-buffer-test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.list(directory).forEach(path -> path.toFile().delete());
+        Files.delete(directory);
+    }
+
+    private static String value(int i, int length) {
+        StringBuilder sb = new StringBuilder().append(i).append(':');
+        while (sb.length() < length) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    public void testSpillsAndReplaysInOrder() throws Exception {
+        try (TransactionBuffer buffer = new TransactionBuffer(1024, 4096, directory, null)) {
+            List<String> expected = new ArrayList<>();
+            buffer.accept(PgOutputMessages.begin(100, 0, 700), handler);
+            expected.add("B");
+            for (int i = 0; i < 500; i++) {
+                String value = value(i, 20 + i % 50);
+                buffer.accept(PgOutputMessages.insert(16384, value), handler);
+                expected.add(value);
+            }
+            // a message larger than the whole budget
+            String large = value(500, 3000);
+            buffer.accept(PgOutputMessages.insert(16384, large), handler);
+            expected.add(large);
+            assertTrue(replayed.isEmpty());
+            assertEquals(1024, buffer.stagingCapacity());
+            assertTrue(buffer.segmentCount() > 1);
+            assertTrue(buffer.getSpilledBytes() > 0);
+
+            buffer.accept(PgOutputMessages.commit(200, 208, 0), handler);
+            expected.add("C");
+            assertEquals(expected, replayed);
+            assertTrue(buffer.segmentCount() <= 4);
+            assertEquals(0, buffer.bytes());
+        }
+        assertEquals(0, Files.list(directory).count());
+    }
+
+    public void testPassesThroughOutsideTransaction() throws Exception {
+        try (TransactionBuffer buffer = new TransactionBuffer(1024, 4096, directory, null)) {
+            assertFalse(buffer.accept(PgOutputMessages.insert(16384, "a"), handler));
+            assertTrue(replayed.isEmpty());
+        }
+    }
+
+    public void testDiscardedTagsAreSkipped() throws Exception {
+        try (TransactionBuffer buffer = new TransactionBuffer(64, 4096, directory, null)) {
+            for (int i = 0; i < 10; i++) {
+                ByteBuffer insert = PgOutputMessages.insert(16384, "v" + i);
+                buffer.append(i % 2 == 0 ? 700 : 701, insert, insert.position(), 0);
+            }
+            buffer.discard(701);
+            buffer.replay(handler);
+            assertEquals("[v0, v2, v4, v6, v8]", replayed.toString());
+        }
+    }
+
+    public void testSegmentsAreReusedUpToTheLimit() throws Exception {
+        try (TransactionBuffer buffer = new TransactionBuffer(256, 1024, directory, null, 2)) {
+            long[] created = new long[20];
+            for (int transaction = 0; transaction < 20; transaction++) {
+                replayed.clear();
+                buffer.accept(PgOutputMessages.begin(100, 0, 700 + transaction), handler);
+                for (int i = 0; i < 100; i++) {
+                    buffer.accept(PgOutputMessages.insert(16384, value(i, 40)), handler);
+                }
+                // larger than a segment, gets one of its own that is not kept
+                buffer.accept(PgOutputMessages.insert(16384, value(100, 2000)), handler);
+                assertTrue(buffer.segmentCount() > 2);
+                buffer.accept(PgOutputMessages.commit(200, 208, 0), handler);
+                assertEquals(103, replayed.size());
+                assertEquals(2, buffer.segmentCount());
+                assertEquals(2, Files.list(directory).count());
+                created[transaction] = buffer.getSegmentsCreated();
+            }
+            // later transactions reuse the two kept segments and only create the rest
+            long later = created[1] - created[0];
+            assertTrue(later <= created[0] - 2);
+            assertEquals(created[0] + 19 * later, created[19]);
+        }
+        assertEquals(0, Files.list(directory).count());
+    }
+}
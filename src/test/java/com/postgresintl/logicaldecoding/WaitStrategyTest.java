@@ -0,0 +1,64 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class WaitStrategyTest extends TestCase
+{
+    private static ByteBuffer message()
+    {
+        return ByteBuffer.wrap(new byte[]{'B'});
+    }
+
+    public void testBackoffStages() throws Exception
+    {
+        WaitStrategy strategy = WaitStrategy.backoff(3, 2, 1000, TimeUnit.MICROSECONDS.toNanos(50));
+        FakeReplicationStream stream = new FakeReplicationStream().addEmptyPolls(8).add(message());
+        assertNotNull(strategy.next(stream));
+        assertEquals(1, strategy.getMessages());
+        assertEquals(3, strategy.getSpins());
+        assertEquals(2, strategy.getYields());
+        assertEquals(3, strategy.getParks());
+        // stream runs dry and reports closed
+        assertNull(strategy.next(stream));
+    }
+
+    public void testBackoffAlwaysParks()
+    {
+        // a zero minimum would not wait at all
+        WaitStrategy strategy = WaitStrategy.backoff(0, 0, 0, 0);
+        strategy.idle(0);
+        strategy.idle(Integer.MAX_VALUE);
+        assertEquals(2, strategy.getParks());
+        assertTrue(strategy.getParkedNanos() >= 2 * WaitStrategy.Backoff.MIN_PARK_NANOS);
+
+        // an attempt counter that wrapped around parks for the longest period, not spins
+        strategy = WaitStrategy.backoff(3, 2, 1000, TimeUnit.MICROSECONDS.toNanos(50));
+        strategy.idle(Integer.MIN_VALUE);
+        assertEquals(0, strategy.getSpins());
+        assertEquals(1, strategy.getParks());
+    }
+
+    public void testBusySpinAndYield() throws Exception
+    {
+        WaitStrategy spin = WaitStrategy.busySpin();
+        assertNotNull(spin.next(new FakeReplicationStream().addEmptyPolls(5).add(message())));
+        assertEquals(5, spin.getSpins());
+
+        WaitStrategy yield = WaitStrategy.spinThenYield(2);
+        assertNotNull(yield.next(new FakeReplicationStream().addEmptyPolls(5).add(message())));
+        assertEquals(2, yield.getSpins());
+        assertEquals(3, yield.getYields());
+    }
+
+    public void testBlocking() throws Exception
+    {
+        WaitStrategy strategy = WaitStrategy.blocking();
+        assertNotNull(strategy.next(new FakeReplicationStream().addEmptyPolls(5).add(message())));
+        assertEquals(1, strategy.getBlockingReads());
+        assertEquals(1, strategy.getMessages());
+        assertEquals(0, strategy.getSpins());
+    }
+}
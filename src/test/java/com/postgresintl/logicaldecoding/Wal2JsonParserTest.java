@@ -0,0 +1,140 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class Wal2JsonParserTest extends TestCase {
+
+    private static final String HEADER = "{\"xid\":571,\"nextlsn\":\"0/16B2A38\","
+            + "\"timestamp\":\"2000-01-01 00:00:01.5+00\",\"change\":[";
+    private static final String INSERT = "{\"kind\":\"insert\",\"schema\":\"public\",\"table\":\"t\","
+            + "\"columnnames\":[\"id\",\"name\",\"price\",\"ok\",\"gone\"],"
+            + "\"columntypes\":[\"integer\",\"text\",\"numeric(10,2)\",\"boolean\",\"text\"],"
+            + "\"columnvalues\":[42,\"say \\\"hi\\\"\\n\\u00e9\",12.50,true,null]}";
+    private static final String DELETE = "{\"kind\":\"delete\",\"schema\":\"public\",\"table\":\"t\","
+            + "\"oldkeys\":{\"keynames\":[\"id\"],\"keytypes\":[\"integer\"],\"keyvalues\":[7]}}";
+    private static final String MESSAGE = "{\"kind\":\"message\",\"transactional\":true,"
+            + "\"prefix\":\"p\",\"content\":\"a\\tb\"}";
+    private static final String FOOTER = "]}";
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Feed the messages and check the events of the document.
+     */
+    private void check(Wal2JsonParser parser, ByteBuffer... messages) {
+        StringBuilder events = new StringBuilder();
+        for (ByteBuffer message : messages) {
+            parser.feed(message);
+            int event;
+            while ((event = parser.next()) != Wal2JsonParser.NEED_INPUT) {
+                events.append(event);
+                if (event == Wal2JsonParser.BEGIN) {
+                    assertEquals(571, parser.xid());
+                    assertEquals(0x16B2A38L, parser.nextLsn());
+                    assertEquals(1500000L, parser.timestamp());
+                } else if (event == Wal2JsonParser.CHANGE) {
+                    checkChange(parser.change());
+                }
+            }
+        }
+        assertEquals("12223", events.toString());
+    }
+
+    private void checkChange(Wal2JsonChange change) {
+        switch (change.kind()) {
+            case Wal2JsonChange.INSERT:
+                assertTrue(change.isTable("public", "t"));
+                Wal2JsonChange.Fields columns = change.columns();
+                assertEquals(5, columns.count());
+                assertEquals(42, columns.getInt(0));
+                assertEquals("say \"hi\"\n\u00e9", columns.getString(1));
+                assertEquals("numeric(10,2)", columns.type(2));
+                assertEquals("12.50", columns.getNumeric(2, new NumericValue()).toString());
+                assertTrue(columns.getBoolean(3));
+                assertEquals(4, columns.indexOf("gone"));
+                assertTrue(columns.isNull(4));
+                assertEquals(0, change.oldKeys().count());
+                break;
+            case Wal2JsonChange.DELETE:
+                assertEquals("t", change.table());
+                assertEquals(0, change.columns().count());
+                assertEquals("id", change.oldKeys().name(0));
+                assertEquals(7L, change.oldKeys().getLong(0));
+                break;
+            case Wal2JsonChange.MESSAGE:
+                assertEquals("p", change.prefix());
+                assertEquals("a\tb", change.content());
+                break;
+            default:
+                fail("kind " + change.kind());
+        }
+    }
+
+    public void testWholeDocument() {
+        Wal2JsonParser parser = new Wal2JsonParser();
+        check(parser, bytes(HEADER + INSERT + "," + DELETE + "," + MESSAGE + FOOTER));
+        // the parser is ready for the next transaction
+        check(parser, bytes(HEADER + INSERT + "," + DELETE + "," + MESSAGE + FOOTER));
+        assertEquals(6, parser.getChanges());
+    }
+
+    public void testWriteInChunks() {
+        check(new Wal2JsonParser(), bytes(HEADER), bytes(INSERT), bytes("," + DELETE), bytes("," + MESSAGE),
+                bytes(FOOTER));
+    }
+
+    public void testSplitAnywhere() {
+        String document = HEADER + INSERT + "," + DELETE + "," + MESSAGE + FOOTER;
+        byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+        Wal2JsonParser parser = new Wal2JsonParser();
+        for (int split = 1; split < bytes.length; split++) {
+            ByteBuffer first = ByteBuffer.allocate(bytes.length + 10);
+            first.position(10);
+            first.put(bytes, 0, split);
+            first.flip();
+            first.position(10);
+            check(parser, first, ByteBuffer.wrap(bytes, split, bytes.length - split));
+        }
+    }
+
+    public void testConstantMemoryForLargeTransactions() {
+        Wal2JsonParser parser = new Wal2JsonParser();
+        parser.feed(bytes(HEADER));
+        assertEquals(Wal2JsonParser.BEGIN, parser.next());
+        assertEquals(Wal2JsonParser.NEED_INPUT, parser.next());
+        ByteBuffer chunk = bytes("," + INSERT);
+        parser.feed(bytes(INSERT));
+        assertEquals(Wal2JsonParser.CHANGE, parser.next());
+        assertEquals(Wal2JsonParser.NEED_INPUT, parser.next());
+        for (int i = 0; i < 100000; i++) {
+            chunk.rewind();
+            parser.feed(chunk);
+            assertEquals(Wal2JsonParser.CHANGE, parser.next());
+            assertEquals(42, parser.change().columns().getInt(0));
+            assertEquals(Wal2JsonParser.NEED_INPUT, parser.next());
+        }
+        parser.feed(bytes(FOOTER));
+        assertEquals(Wal2JsonParser.COMMIT, parser.next());
+        assertEquals(100001, parser.getChanges());
+    }
+
+    public void testMalformed() {
+        Wal2JsonParser parser = new Wal2JsonParser();
+        parser.feed(bytes("[1]"));
+        try {
+            parser.next();
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testParseLsn() {
+        ByteBuffer lsn = bytes("16/B374D848");
+        assertEquals((0x16L << 32) | 0xB374D848L, Wal2JsonParser.parseLsn(lsn, 0, lsn.remaining()));
+    }
+}
@@ -0,0 +1,81 @@
+package com.postgresintl.logicaldecoding;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class Wal2JsonRowDecoderTest extends TestCase {
+
+    private static final String UPDATE = "{\"action\":\"U\",\"xid\":571,\"lsn\":\"0/16B2A38\","
+            + "\"timestamp\":\"2000-01-01 00:00:02+00\",\"schema\":\"public\",\"table\":\"t\","
+            + "\"columns\":[{\"name\":\"id\",\"type\":\"integer\",\"value\":42},"
+            + "{\"name\":\"doc\",\"type\":\"jsonb\",\"value\":\"{\\\"a\\\": [1, \\\"]}\\\"]}\"},"
+            + "{\"name\":\"price\",\"type\":\"numeric(10,2)\",\"value\":12.50},"
+            + "{\"name\":\"gone\",\"type\":\"text\",\"value\":null}],"
+            + "\"identity\":[{\"name\":\"id\",\"type\":\"integer\",\"value\":41}]}";
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void testDecodesEverything() {
+        Wal2JsonRowDecoder decoder = new Wal2JsonRowDecoder();
+        Wal2JsonChange change = decoder.decode(bytes(UPDATE));
+        assertEquals(Wal2JsonChange.UPDATE, change.kind());
+        assertTrue(change.isTable("public", "t"));
+        assertEquals(571, decoder.xid());
+        assertEquals(0x16B2A38L, decoder.lsn());
+        assertEquals(2000000L, decoder.timestamp());
+
+        Wal2JsonChange.Fields columns = change.columns();
+        assertEquals(4, columns.count());
+        assertEquals(42L, columns.getLong(0));
+        assertEquals("jsonb", columns.type(1));
+        assertEquals("{\"a\": [1, \"]}\"]}", columns.getString(1));
+        assertEquals(12.5, columns.getDouble(2));
+        assertEquals("gone", columns.name(3));
+        assertTrue(columns.isNull(3));
+        assertEquals(41, change.oldKeys().getInt(0));
+    }
+
+    public void testProjection() {
+        Wal2JsonRowDecoder decoder = new Wal2JsonRowDecoder(
+                Wal2JsonRowDecoder.Projection.all().withColumns("price", "id").withoutTypes().withoutIdentity());
+        Wal2JsonChange change = decoder.decode(bytes(UPDATE));
+        Wal2JsonChange.Fields columns = change.columns();
+        assertEquals(2, columns.count());
+        // in message order
+        assertEquals("id", columns.name(0));
+        assertEquals(42, columns.getInt(0));
+        assertNull(columns.type(0));
+        assertEquals(1, columns.indexOf("price"));
+        assertEquals("12.50", columns.getNumeric(1, new NumericValue()).toString());
+        assertEquals(-1, columns.indexOf("doc"));
+        assertEquals(0, change.oldKeys().count());
+        assertEquals("t", change.table());
+    }
+
+    public void testReusedForEveryMessage() {
+        Wal2JsonRowDecoder decoder = new Wal2JsonRowDecoder();
+        decoder.decode(bytes(UPDATE));
+        Wal2JsonChange change = decoder.decode(bytes("{\"action\":\"B\",\"xid\":572}"));
+        assertEquals(Wal2JsonChange.BEGIN, change.kind());
+        assertEquals(572, decoder.xid());
+        assertEquals(0, change.columns().count());
+        assertNull(change.table());
+
+        change = decoder.decode(bytes("{\"action\":\"M\",\"transactional\":false,\"prefix\":\"p\",\"content\":\"x\"}"));
+        assertEquals(Wal2JsonChange.MESSAGE, change.kind());
+        assertEquals("x", change.content());
+        assertEquals(0, decoder.xid());
+    }
+
+    public void testTruncated() {
+        try {
+            new Wal2JsonRowDecoder().decode(bytes(UPDATE.substring(0, 120)));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.postgresintl.logicaldecoding.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.postgresintl.logicaldecoding.ChangeDecoder;
+import com.postgresintl.logicaldecoding.ChangeEvent;
+import com.postgresintl.logicaldecoding.ChangeEventPool;
+import com.postgresintl.logicaldecoding.synthetic.RowShape;
+import com.postgresintl.logicaldecoding.synthetic.SyntheticStream;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+import junit.framework.TestCase;
+
+public class CaptureTest extends TestCase {
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("capture-test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> path.toFile().delete());
+        }
+        Files.delete(directory);
+    }
+
+    private static ByteBuffer message(int i) {
+        StringBuilder sb = new StringBuilder("message ").append(i);
+        for (int j = 0; j < i % 7; j++) {
+            sb.append(" padding");
+        }
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void write(int count, long microsApart) throws IOException {
+        // small segments and buffer so rolling and the direct write path are exercised
+        try (CaptureWriter writer = new CaptureWriter(directory, 512, 64)) {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer message = message(i);
+                writer.append(message, 1000 + i * 100, i * microsApart);
+                assertEquals(0, message.position());
+            }
+            assertEquals(count, writer.getRecords());
+        }
+    }
+
+    public void testReplaysEverythingInOrder() throws Exception {
+        write(200, 0);
+        assertTrue(CaptureFormat.segments(directory).size() > 10);
+
+        ReplaySource source = new ReplaySource(directory, ReplaySource.Pacing.AS_FAST_AS_POSSIBLE);
+        for (int i = 0; i < 200; i++) {
+            ByteBuffer buffer = source.readPending();
+            assertEquals(message(i), buffer);
+            assertEquals(1000 + i * 100, source.getLastReceiveLSN().asLong());
+        }
+        assertNull(source.readPending());
+        assertTrue(source.isClosed());
+        assertEquals(200, source.getMessages());
+    }
+
+    public void testAppendsToExistingCapture() throws Exception {
+        write(10, 0);
+        int segments = CaptureFormat.segments(directory).size();
+        write(10, 0);
+        assertTrue(CaptureFormat.segments(directory).size() > segments);
+
+        ReplaySource source = new ReplaySource(directory, ReplaySource.Pacing.AS_FAST_AS_POSSIBLE);
+        int count = 0;
+        while (source.read() != null) {
+            count++;
+        }
+        assertEquals(20, count);
+    }
+
+    private static ByteBuffer begin(int t) {
+        ByteBuffer buffer = ByteBuffer.allocate(21);
+        buffer.put((byte) 'B').putLong(500 + t * 100).putLong(t * 1000L).putInt(t);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer commit(int t) {
+        ByteBuffer buffer = ByteBuffer.allocate(26);
+        buffer.put((byte) 'C').put((byte) 0).putLong(1000 + t * 100).putLong(1008 + t * 100).putLong(t * 1000L);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void writeTransactions(int count) throws IOException {
+        try (CaptureWriter writer = new CaptureWriter(directory, 512, 64, 256)) {
+            for (int t = 0; t < count; t++) {
+                writer.append(begin(t), 500 + t * 100, t * 1000L + 1);
+                for (int i = 0; i < t % 5; i++) {
+                    writer.append(message(i), 500 + t * 100 + i, t * 1000L + 2);
+                }
+                writer.append(commit(t), 1008 + t * 100, t * 1000L + 3);
+            }
+        }
+    }
+
+    private static int transaction(ReplaySource source) throws Exception {
+        ByteBuffer buffer = source.read();
+        assertEquals('B', buffer.get(buffer.position()));
+        return buffer.getInt(buffer.position() + 17);
+    }
+
+    public void testCaptureIsWrittenBeforeTheFlushedLsnIsPassedOn() throws Exception {
+        SyntheticStream upstream = new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.narrow());
+        // the buffer holds every message, nothing is written until a flush
+        CapturingReplicationStream stream = new CapturingReplicationStream(upstream,
+                new CaptureWriter(directory, 1 << 20, 1 << 16));
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(stream.read());
+        }
+        LogSequenceNumber lsn = stream.getLastReceiveLSN();
+        stream.setFlushedLSN(lsn);
+        assertEquals(lsn, upstream.getLastFlushedLSN());
+
+        ReplaySource source = new ReplaySource(directory, ReplaySource.Pacing.AS_FAST_AS_POSSIBLE);
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(source.readPending());
+        }
+        assertEquals(lsn, source.getLastReceiveLSN());
+        assertNull(source.readPending());
+        source.close();
+
+        // closing writes whatever came after the last flushed LSN
+        stream.read();
+        stream.close();
+        source = new ReplaySource(directory, ReplaySource.Pacing.AS_FAST_AS_POSSIBLE);
+        for (int i = 0; i < 21; i++) {
+            assertNotNull(source.readPending());
+        }
+        source.close();
+    }
+
+    public void testSeek() throws Exception {
+        writeTransactions(300);
+        ReplaySource source = new ReplaySource(directory, ReplaySource.Pacing.AS_FAST_AS_POSSIBLE);
+
+        assertTrue(source.seek(LogSequenceNumber.valueOf(1000 + 150 * 100)));
+        assertEquals(150, transaction(source));
+        // flushing the end of a commit resumes after that transaction
+        assertTrue(source.seek(LogSequenceNumber.valueOf(1008 + 150 * 100)));
+        assertEquals(151, transaction(source));
+        assertTrue(source.seek(LogSequenceNumber.valueOf(0)));
+        assertEquals(0, transaction(source));
+        assertTrue(source.seekToTime(299 * 1000L));
+        assertEquals(299, transaction(source));
+        assertTrue(source.seekToTime(42 * 1000L - 1));
+        assertEquals(42, transaction(source));
+
+        while (source.read() != null) {
+        }
+        assertTrue(source.isClosed());
+        assertFalse(source.seek(LogSequenceNumber.valueOf(1008 + 299 * 100)));
+        assertNull(source.read());
+        // seeking backwards after the end reopens the source
+        assertTrue(source.seekToTime(42 * 1000L));
+        assertEquals(42, transaction(source));
+    }
+
+    public void testSeekHandsOutRelationsFirst() throws Exception {
+        SyntheticStream generated = new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.narrow())
+                .withRowsPerTransaction(2)
+                .withTransactions(20);
+        long[] commits = new long[20];
+        int transaction = 0;
+        try (CapturingReplicationStream capturing = new CapturingReplicationStream(generated,
+                new CaptureWriter(directory, 1024, 256, 0))) {
+            ByteBuffer message;
+            while ((message = capturing.read()) != null) {
+                if (message.get(message.position()) == 'C') {
+                    commits[transaction++] = message.getLong(message.position() + 2);
+                }
+            }
+        }
+        assertTrue(CaptureFormat.segments(directory).size() > 2);
+
+        assertRelationThenTransaction(commits[15]);
+        // a capture written before the relation index existed is read instead
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> path.toString().endsWith(RelationIndex.SUFFIX)).forEach(path -> path.toFile().delete());
+        }
+        assertRelationThenTransaction(commits[15]);
+    }
+
+    private void assertRelationThenTransaction(long commitLsn) throws Exception {
+        ReplaySource source = new ReplaySource(directory, ReplaySource.Pacing.AS_FAST_AS_POSSIBLE);
+        assertTrue(source.seek(LogSequenceNumber.valueOf(commitLsn)));
+        List<ChangeEvent> changes = new ArrayList<>();
+        ChangeDecoder decoder = ChangeDecoder.forPlugin("pgoutput", new ChangeEventPool());
+        ByteBuffer message = source.read();
+        assertEquals('R', message.get(message.position()));
+        decoder.decode(message, source.getLastReceiveLSN().asLong(), changes::add);
+        message = source.read();
+        assertEquals('B', message.get(message.position()));
+        while (message.get(message.position()) != 'C') {
+            decoder.decode(message, source.getLastReceiveLSN().asLong(), changes::add);
+            message = source.read();
+        }
+        assertEquals(commitLsn, message.getLong(message.position() + 2));
+        assertEquals(2, changes.size());
+        assertEquals(SyntheticStream.TABLE, changes.get(0).relation().getName());
+        source.close();
+    }
+
+    public void testSeekWithoutIndex() throws Exception {
+        writeTransactions(100);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> path.toString().endsWith(CaptureIndex.SUFFIX)).forEach(path -> path.toFile().delete());
+        }
+        ReplaySource source = new ReplaySource(directory, ReplaySource.Pacing.AS_FAST_AS_POSSIBLE);
+        assertTrue(source.seek(LogSequenceNumber.valueOf(1000 + 77 * 100)));
+        assertEquals(77, transaction(source));
+    }
+
+    public void testIndexIsSparse() throws Exception {
+        writeTransactions(300);
+        int entries = 0;
+        for (Path segment : CaptureFormat.segments(directory)) {
+            CaptureIndex index = CaptureIndex.open(segment);
+            for (int i = 1; i < index.entries(); i++) {
+                assertTrue(index.lsn(i) > index.lsn(i - 1));
+            }
+            entries += index.entries();
+        }
+        assertTrue(entries > 10);
+        assertTrue(entries < 300);
+    }
+
+    public void testRecordedPacing() throws Exception {
+        write(3, 50000);
+        ReplaySource source = new ReplaySource(directory, ReplaySource.Pacing.RECORDED);
+        long start = System.nanoTime();
+        assertEquals(message(0), source.readPending());
+        // the second message was received 50 ms after the first
+        assertNull(source.readPending());
+        assertFalse(source.isClosed());
+        assertEquals(message(1), source.read());
+        assertEquals(message(2), source.read());
+        assertTrue(System.nanoTime() - start >= 100000000L);
+    }
+}
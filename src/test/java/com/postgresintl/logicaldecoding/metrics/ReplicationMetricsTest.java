@@ -0,0 +1,58 @@
+package com.postgresintl.logicaldecoding.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.postgresintl.logicaldecoding.PgEpoch;
+
+import junit.framework.TestCase;
+
+public class ReplicationMetricsTest extends TestCase
+{
+    public void testSnapshotCoversInterval()
+    {
+        ReplicationMetrics metrics = new ReplicationMetrics();
+        for (int t = 0; t < 10; t++) {
+            metrics.message(21);
+            metrics.begin();
+            for (int r = 0; r < 5; r++) {
+                metrics.message(100);
+                metrics.row();
+            }
+            metrics.message(26);
+            // committed a second ago
+            metrics.commit(PgEpoch.now() - 1000000L);
+        }
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(10, snapshot.getRowsPerTransaction().getCount());
+        assertEquals(5, snapshot.getRowsPerTransaction().getP99());
+        assertEquals(70, snapshot.getMessageBytes().getCount());
+        assertTrue(snapshot.getCommitLagMicros().getP50() >= 999000);
+        assertEquals(10, snapshot.getDecodeLatencyNanos().getCount());
+
+        // the next interval starts empty, the totals keep counting
+        assertEquals(0, metrics.snapshot().getMessageBytes().getCount());
+        assertEquals(10, metrics.getTransactions());
+        assertEquals(50, metrics.getRows());
+        assertEquals(100, metrics.getMessageBytesMax());
+    }
+
+    public void testJmx() throws Exception
+    {
+        ReplicationMetrics metrics = new ReplicationMetrics();
+        metrics.register("test");
+        try {
+            metrics.begin();
+            metrics.row();
+            metrics.commit(PgEpoch.now());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.postgresintl.logicaldecoding:type=ReplicationMetrics,name=\"test\"");
+            assertEquals(1L, server.getAttribute(name, "Transactions"));
+            assertEquals(1L, server.getAttribute(name, "RowsPerTransactionP99"));
+        } finally {
+            metrics.close();
+        }
+    }
+}
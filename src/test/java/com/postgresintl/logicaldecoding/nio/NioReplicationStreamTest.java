@@ -0,0 +1,137 @@
+package com.postgresintl.logicaldecoding.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+import com.postgresintl.logicaldecoding.PgOutputMessage;
+import com.postgresintl.logicaldecoding.SlotConfig;
+import com.postgresintl.logicaldecoding.capture.CaptureWriter;
+import com.postgresintl.logicaldecoding.capture.ReplaySource;
+import com.postgresintl.logicaldecoding.synthetic.FakeWalSender;
+import com.postgresintl.logicaldecoding.synthetic.MessageGenerator;
+import com.postgresintl.logicaldecoding.synthetic.RowShape;
+
+import junit.framework.TestCase;
+
+public class NioReplicationStreamTest extends TestCase {
+
+    private Path directory;
+    private final List<ByteBuffer> messages = new ArrayList<>();
+    private final List<Long> lsns = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("nio-test");
+        // transactions of narrow rows and wide ones, several larger than the receive buffer
+        MessageGenerator narrow = new MessageGenerator(RowShape.narrow());
+        MessageGenerator wide = new MessageGenerator(RowShape.wide().withTextLength(400));
+        try (CaptureWriter writer = new CaptureWriter(directory, 64 * 1024, 4096)) {
+            long lsn = 1000;
+            for (int i = 0; i < 50; i++) {
+                MessageGenerator generator = i % 5 == 0 ? wide : narrow;
+                for (ByteBuffer message : new ByteBuffer[]{generator.pgoutputBegin(),
+                        generator.pgoutputInsert(16384), generator.pgoutputCommit()})
+                {
+                    ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+                    copy.put(message.duplicate());
+                    copy.flip();
+                    messages.add(copy);
+                    lsns.add(lsn);
+                    writer.append(copy, lsn, 0);
+                    lsn += copy.remaining();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> path.toFile().delete());
+        }
+        Files.delete(directory);
+    }
+
+    private FakeWalSender walSender(FakeWalSender.Auth auth) throws Exception {
+        return new FakeWalSender(new ReplaySource(directory, ReplaySource.Pacing.AS_FAST_AS_POSSIBLE))
+                .withAuth(auth, "secret")
+                .withKeepaliveEvery(7)
+                .withEndWhenFlushed()
+                .start();
+    }
+
+    public void testStreamsCaptureThroughSmallBuffer() throws Exception {
+        try (FakeWalSender walSender = walSender(FakeWalSender.Auth.MD5)) {
+            NioReplicationStream stream = new NioReplicationStream(new SlotConfig("slot", walSender.url())
+                    .user("davec").password("secret").option("publication_names", "pub1"))
+                    .withBufferSize(256)
+                    .withStatusInterval(0, TimeUnit.SECONDS)
+                    .start(LogSequenceNumber.valueOf(1000));
+
+            PgOutputMessage message = new PgOutputMessage();
+            for (int i = 0; i < messages.size(); i++) {
+                ByteBuffer buffer = stream.read();
+                assertTrue(buffer.isDirect());
+                assertEquals("message " + i, messages.get(i), buffer);
+                assertEquals(lsns.get(i).longValue(), stream.getLastReceiveLSN().asLong());
+                assertEquals("BIC".charAt(i % 3), (char) message.wrap(buffer).type());
+            }
+            assertTrue(stream.getBufferSize() > 256);
+            assertNull(stream.readPending());
+
+            stream.setFlushedLSN(stream.getLastReceiveLSN());
+            stream.forceUpdateStatus();
+            // the server ends the stream once everything is flushed
+            assertNull(stream.read());
+            assertTrue(stream.isClosed());
+            stream.close();
+
+            assertEquals("davec", walSender.getParameters().get("user"));
+            assertEquals("database", walSender.getParameters().get("replication"));
+            String query = walSender.getQueries().get(0);
+            assertTrue(query, query.startsWith("START_REPLICATION SLOT \"slot\" LOGICAL 0/3E8 ("));
+            assertTrue(query, query.contains("\"publication_names\" 'pub1'"));
+            assertTrue(query, query.contains("\"proto_version\" '1'"));
+            // keepalives were answered along the way
+            assertTrue(walSender.getStatusUpdates() > 1);
+            assertEquals(lsns.get(lsns.size() - 1).longValue(), walSender.getWriteLsn().asLong());
+            assertEquals(lsns.get(lsns.size() - 1).longValue(), walSender.getFlushLsn().asLong());
+            assertNull(walSender.getLastError());
+        }
+    }
+
+    public void testPasswordRejected() throws Exception {
+        try (FakeWalSender walSender = walSender(FakeWalSender.Auth.CLEARTEXT)) {
+            new NioReplicationStream(new SlotConfig("slot", walSender.url()).user("davec").password("wrong"))
+                    .start(null);
+            fail();
+        } catch (SQLException e) {
+            assertEquals("28P01", e.getSQLState());
+            assertEquals("FATAL: password authentication failed for user \"davec\"", e.getMessage());
+        }
+    }
+
+    public void testScramRfc7677() throws Exception {
+        ScramSha256 scram = new ScramSha256("user", "pencil", "rOprNGfwEbeRWgbNEkqO");
+        assertEquals("n,,n=user,r=rOprNGfwEbeRWgbNEkqO", scram.clientFirst());
+        assertEquals("c=biws,r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,"
+                        + "p=dHzbZapWIk4jUhN+Ute9ytag9zjfMHgsqmmiz7AndVQ=",
+                scram.clientFinal("r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,"
+                        + "s=W22ZaJ0SNY7soEsUEjb6gQ==,i=4096"));
+        scram.verify("v=6rriTRBi23WpRR/wtup+mMhUZUn/dB5nLTJRsjl95G4=");
+        try {
+            scram.verify("v=AAAATRBi23WpRR/wtup+mMhUZUn/dB5nLTJRsjl95G4=");
+            fail();
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+}
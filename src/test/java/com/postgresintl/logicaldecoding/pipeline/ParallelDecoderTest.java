@@ -0,0 +1,175 @@
+package com.postgresintl.logicaldecoding.pipeline;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.postgresintl.logicaldecoding.AckTracker;
+import com.postgresintl.logicaldecoding.WaitStrategy;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+import junit.framework.TestCase;
+
+public class ParallelDecoderTest extends TestCase
+{
+    private static ByteBuffer begin(int xid)
+    {
+        ByteBuffer b = ByteBuffer.allocate(21);
+        b.put((byte) 'B').putLong(0).putLong(0).putInt(xid);
+        b.flip();
+        return b;
+    }
+
+    private static ByteBuffer commit(long lsn)
+    {
+        ByteBuffer b = ByteBuffer.allocate(26);
+        b.put((byte) 'C').put((byte) 0).putLong(lsn).putLong(lsn + 1).putLong(0);
+        b.flip();
+        return b;
+    }
+
+    private static ByteBuffer insert(int oid, String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(1 + 4 + 1 + 2 + 1 + 4 + bytes.length);
+        b.put((byte) 'I').putInt(oid).put((byte) 'N').putShort((short) 1).put((byte) 't').putInt(bytes.length).put(bytes);
+        b.flip();
+        return b;
+    }
+
+    public void testTransactionsKeepRowAndCommitOrder() throws Exception
+    {
+        final List<DecodedTransaction<String>> received = Collections.synchronizedList(new ArrayList<>());
+        ParallelDecoder<String> decoder = new ParallelDecoder<>(4, ParallelDecoder.Partitioning.PRIMARY_KEY, 64,
+                (message, relation) -> message.newTuple().getString(0),
+                received::add);
+        decoder.start();
+        long lsn = 0;
+        for (int xid = 1; xid <= 50; xid++) {
+            decoder.accept(begin(xid), lsn++);
+            for (int row = 0; row < 100; row++) {
+                decoder.accept(insert(16384 + row % 3, xid + ":" + row), lsn++);
+            }
+            decoder.accept(commit(lsn), lsn++);
+        }
+        // left open, must not be emitted
+        decoder.accept(begin(51), lsn++);
+        decoder.accept(insert(16384, "51:0"), lsn);
+        decoder.close();
+
+        assertEquals(50, received.size());
+        assertEquals(50, decoder.getEmitted());
+        for (int xid = 1; xid <= 50; xid++) {
+            DecodedTransaction<String> transaction = received.get(xid - 1);
+            assertEquals(xid, transaction.getXid());
+            assertEquals(100, transaction.getRows().size());
+            for (int row = 0; row < 100; row++) {
+                assertEquals(xid + ":" + row, transaction.getRows().get(row));
+            }
+        }
+        long total = 0;
+        for (long count : decoder.getDecodedPerWorker()) {
+            total += count;
+        }
+        assertEquals(5001, total);
+    }
+
+    public void testDecodeFailureStopsBeforeTheTransaction() throws Exception
+    {
+        final List<DecodedTransaction<String>> received = Collections.synchronizedList(new ArrayList<>());
+        ParallelDecoder<String> decoder = new ParallelDecoder<>(2, ParallelDecoder.Partitioning.RELATION, 16,
+                (message, relation) -> {
+                    String value = message.newTuple().getString(0);
+                    if (value.equals("bad")) {
+                        throw new IllegalArgumentException("cannot decode " + value);
+                    }
+                    return value;
+                },
+                received::add);
+        decoder.start();
+        long lsn = 0;
+        try {
+            // the failure may already stop the fourth transaction
+            for (int xid = 1; xid <= 4; xid++) {
+                decoder.accept(begin(xid), lsn++);
+                decoder.accept(insert(16384, xid == 3 ? "bad" : "good"), lsn++);
+                decoder.accept(commit(lsn), lsn++);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (decoder.getError() == null && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            decoder.accept(begin(5), lsn);
+            fail("accepted a message after a failure");
+        } catch (IllegalStateException expected) {
+            assertEquals("cannot decode bad", expected.getCause().getMessage());
+        }
+        decoder.close();
+
+        // neither the failed transaction nor the one after it, nor a null row
+        assertEquals(2, received.size());
+        assertEquals(2, decoder.getEmitted());
+        assertEquals(1, decoder.getFailures());
+    }
+
+    public void testTicketsCompleteAfterTheSinkReturns() throws Exception
+    {
+        AckTracker tracker = new AckTracker(1, TimeUnit.HOURS, Long.MAX_VALUE);
+        final CountDownLatch stored = new CountDownLatch(1);
+        ParallelDecoder<String> decoder = new ParallelDecoder<String>(2, ParallelDecoder.Partitioning.RELATION, 16,
+                (message, relation) -> message.newTuple().getString(0),
+                transaction -> {
+                    if (transaction.getXid() == 2) {
+                        throw new IllegalStateException("sink down");
+                    }
+                    stored.await();
+                }).withAckTracker(tracker);
+        decoder.start();
+        Pipeline pipeline = new Pipeline(16, 64, WaitStrategy::backoff)
+                .addDecoder("decode", decoder)
+                .withAsyncAckTracker(tracker);
+        pipeline.start();
+
+        pipeline.publish(begin(1), LogSequenceNumber.valueOf(1));
+        pipeline.publish(insert(16384, "a"), LogSequenceNumber.valueOf(2));
+        pipeline.publish(commit(3), LogSequenceNumber.valueOf(3));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pipeline.ring().depth() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        // the stage is done with the messages but the sink has not stored them
+        pipeline.completeReleased();
+        assertEquals(0, tracker.durableLsn().asLong());
+
+        stored.countDown();
+        while (tracker.durableLsn().asLong() < 3 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        assertEquals(3, tracker.durableLsn().asLong());
+
+        // the sink fails on the second transaction, its messages stay unacknowledged
+        pipeline.publish(begin(2), LogSequenceNumber.valueOf(4));
+        pipeline.publish(insert(16384, "b"), LogSequenceNumber.valueOf(5));
+        pipeline.publish(commit(6), LogSequenceNumber.valueOf(6));
+        while (decoder.getError() == null && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        assertEquals("sink down", decoder.getError().getMessage());
+        try {
+            for (int i = 0; i < 32; i++) {
+                pipeline.publish(begin(3), LogSequenceNumber.valueOf(7 + i));
+            }
+            fail("published after the sink failed");
+        } catch (IllegalStateException expected) {
+            // the stage stopped on the decoder's exception
+        }
+        pipeline.close();
+        decoder.close();
+        assertEquals(3, tracker.durableLsn().asLong());
+    }
+}
@@ -0,0 +1,102 @@
+package com.postgresintl.logicaldecoding.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.postgresintl.logicaldecoding.AckTracker;
+import com.postgresintl.logicaldecoding.WaitStrategy;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+import junit.framework.TestCase;
+
+public class PipelineTest extends TestCase
+{
+    public void testMessagesFlowInOrderThroughAllStages() throws Exception
+    {
+        final int count = 20000;
+        final AtomicLong sum = new AtomicLong();
+        final long[] lastSeen = {-1, -1};
+        final boolean[] outOfOrder = {false};
+        AckTracker tracker = new AckTracker(1, TimeUnit.HOURS, Long.MAX_VALUE);
+
+        Pipeline pipeline = new Pipeline(8, 16, WaitStrategy::backoff)
+                .addDecoder("decode", slot -> slot.setEvent(slot.buffer().getInt()))
+                .addSink("sum", slot -> sum.addAndGet((Integer) slot.event()))
+                .addSink("order", slot -> {
+                    int value = (Integer) slot.event();
+                    if (value != lastSeen[1] + 1) {
+                        outOfOrder[0] = true;
+                    }
+                    lastSeen[1] = value;
+                })
+                .withAckTracker(tracker);
+        pipeline.start();
+
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        for (int i = 0; i < count; i++) {
+            buffer.clear();
+            buffer.putInt(0, i);
+            pipeline.publish(buffer, LogSequenceNumber.valueOf(i + 1));
+        }
+        pipeline.close();
+
+        assertEquals((long) count * (count - 1) / 2, sum.get());
+        assertFalse(outOfOrder[0]);
+        assertEquals(count, pipeline.stages().get(1).getProcessed());
+        assertEquals(0, pipeline.ring().depth());
+        assertEquals(count, tracker.durableLsn().asLong());
+        assertEquals(0, tracker.inFlight());
+    }
+
+    public void testSlotGrowsForLargeMessages() throws Exception
+    {
+        final AtomicLong bytes = new AtomicLong();
+        Pipeline pipeline = new Pipeline(4, 2, WaitStrategy::backoff)
+                .addSink("count", slot -> bytes.addAndGet(slot.buffer().remaining()));
+        pipeline.start();
+        pipeline.publish(ByteBuffer.allocate(1000), LogSequenceNumber.valueOf(1));
+        pipeline.publish(ByteBuffer.allocate(10), LogSequenceNumber.valueOf(2));
+        pipeline.close();
+        assertEquals(1010, bytes.get());
+    }
+
+    public void testFailedSinkIsNeverAcknowledged() throws Exception
+    {
+        AckTracker tracker = new AckTracker(1, TimeUnit.HOURS, Long.MAX_VALUE);
+        final AtomicLong stored = new AtomicLong();
+        Pipeline pipeline = new Pipeline(8, 16, WaitStrategy::backoff)
+                .addSink("store", slot -> {
+                    if (slot.buffer().getInt() == 50) {
+                        throw new IOException("disk full");
+                    }
+                    stored.incrementAndGet();
+                })
+                .addSink("other", slot -> { })
+                .withAckTracker(tracker);
+        pipeline.start();
+
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        IllegalStateException failure = null;
+        for (int i = 0; i < 200 && failure == null; i++) {
+            buffer.clear();
+            buffer.putInt(0, i);
+            try {
+                pipeline.publish(buffer, LogSequenceNumber.valueOf(i + 1));
+            } catch (IllegalStateException ex) {
+                failure = ex;
+            }
+        }
+        pipeline.close();
+
+        assertNotNull(failure);
+        assertEquals("disk full", failure.getCause().getMessage());
+        assertEquals(50, stored.get());
+        assertEquals(50, pipeline.stages().get(0).getProcessed());
+        assertSame(failure.getCause(), pipeline.stages().get(0).getError());
+        // messages 0 to 49 at LSN 1 to 50 are durable, the failed one at 51 is not
+        assertEquals(50, tracker.durableLsn().asLong());
+    }
+}
@@ -0,0 +1,260 @@
+package com.postgresintl.logicaldecoding.synthetic;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGProperty;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+import com.postgresintl.logicaldecoding.PgOutputMessage;
+import com.postgresintl.logicaldecoding.ProtoBuf;
+import com.postgresintl.logicaldecoding.SlotConfig;
+import com.postgresintl.logicaldecoding.Wal2JSON;
+import com.postgresintl.logicaldecoding.capture.CaptureWriter;
+import com.postgresintl.logicaldecoding.capture.CapturingReplicationStream;
+import com.postgresintl.logicaldecoding.capture.ReplaySource;
+import com.postgresintl.logicaldecoding.nio.NioReplicationStream;
+
+import junit.framework.TestCase;
+
+public class FakeWalSenderTest extends TestCase {
+
+    private static Properties replicationProperties() {
+        Properties properties = new Properties();
+        PGProperty.USER.set(properties, "davec");
+        PGProperty.ASSUME_MIN_SERVER_VERSION.set(properties, "9.4");
+        PGProperty.REPLICATION.set(properties, "database");
+        PGProperty.PREFER_QUERY_MODE.set(properties, "simple");
+        return properties;
+    }
+
+    public void testPgjdbcReadsGeneratedTransactions() throws Exception {
+        SyntheticStream source = new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.narrow())
+                .withRowsPerTransaction(3)
+                .withTransactions(20);
+        try (FakeWalSender walSender = new FakeWalSender(source).start();
+             Connection connection = DriverManager.getConnection(walSender.url(), replicationProperties())) {
+            try (Statement st = connection.createStatement();
+                 ResultSet rs = st.executeQuery("IDENTIFY_SYSTEM")) {
+                assertTrue(rs.next());
+                assertEquals(1, rs.getInt("timeline"));
+                assertEquals("test", rs.getString("dbname"));
+            }
+            PGReplicationStream stream = connection.unwrap(PGConnection.class)
+                    .getReplicationAPI()
+                    .replicationStream()
+                    .logical()
+                    .withSlotName("slot")
+                    .withSlotOption("proto_version", 1)
+                    .withSlotOption("publication_names", "pub1")
+                    .withStatusInterval(1, TimeUnit.SECONDS)
+                    .start();
+
+            PgOutputMessage message = new PgOutputMessage();
+            StringBuilder types = new StringBuilder();
+            StringBuilder expected = new StringBuilder("R");
+            types.append((char) message.wrap(stream.read()).type());
+            for (int i = 0; i < 20; i++) {
+                expected.append("BIIIC");
+                for (int m = 0; m < 5; m++) {
+                    types.append((char) message.wrap(stream.read()).type());
+                }
+            }
+            assertEquals(expected.toString(), types.toString());
+            assertNull(stream.readPending());
+            assertEquals(101, walSender.getMessages());
+
+            stream.setFlushedLSN(stream.getLastReceiveLSN());
+            stream.forceUpdateStatus();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!walSender.getSentLsn().equals(walSender.getFlushLsn()) && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertEquals(walSender.getSentLsn(), walSender.getFlushLsn());
+            stream.close();
+            assertTrue(walSender.getQueries().contains("IDENTIFY_SYSTEM"));
+            assertNull(walSender.getLastError());
+        }
+    }
+
+    public void testHoldsBackUntilFlushed() throws Exception {
+        SyntheticStream source = new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.narrow());
+        try (FakeWalSender walSender = new FakeWalSender(source).withMaxLag(2048).start()) {
+            NioReplicationStream stream = new NioReplicationStream(new SlotConfig("slot", walSender.url()).user("davec"))
+                    .withStatusInterval(0, TimeUnit.SECONDS)
+                    .start(null);
+            assertNotNull(stream.read());
+            long first = stream.getLastReceiveLSN().asLong();
+            TimeUnit.MILLISECONDS.sleep(200);
+            // one message beyond the window at most
+            long held = walSender.getSentLsn().asLong();
+            assertTrue(held - first > 1024);
+            assertTrue(held - first < 2048 + 512);
+            TimeUnit.MILLISECONDS.sleep(100);
+            assertEquals(held, walSender.getSentLsn().asLong());
+
+            // read everything sent and confirm it, the server moves on
+            while (stream.getLastReceiveLSN().asLong() < held) {
+                stream.read();
+            }
+            stream.setFlushedLSN(stream.getLastReceiveLSN());
+            stream.forceUpdateStatus();
+            stream.read();
+            assertTrue(stream.getLastReceiveLSN().asLong() > held);
+            assertEquals(held, walSender.getFlushLsn().asLong());
+            stream.close();
+        }
+    }
+
+    public void testBoundsUnflushedMessages() throws Exception {
+        SyntheticStream source = new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.narrow());
+        try (FakeWalSender walSender = new FakeWalSender(source).withMaxUnflushed(4096).start()) {
+            NioReplicationStream stream = new NioReplicationStream(new SlotConfig("slot", walSender.url()).user("davec"))
+                    .withStatusInterval(0, TimeUnit.SECONDS)
+                    .start(null);
+            assertNotNull(stream.read());
+            TimeUnit.MILLISECONDS.sleep(200);
+            // nothing flushed, sending stops once the kept messages are over the bound
+            long held = walSender.getSentLsn().asLong();
+            assertTrue(walSender.getBytes() > 4096);
+            assertTrue(walSender.getBytes() < 4096 + 512);
+            TimeUnit.MILLISECONDS.sleep(100);
+            assertEquals(held, walSender.getSentLsn().asLong());
+            stream.close();
+        }
+    }
+
+    public void testReconnectResumesAfterConfirmedPosition() throws Exception {
+        SyntheticStream source = new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.narrow()).withTransactions(10);
+        try (FakeWalSender walSender = new FakeWalSender(source).withMaxLag(1).start()) {
+            SlotConfig config = new SlotConfig("slot", walSender.url()).user("davec");
+            NioReplicationStream stream = new NioReplicationStream(config).withStatusInterval(0, TimeUnit.SECONDS).start(null);
+            stream.read();
+            LogSequenceNumber confirmed = stream.getLastReceiveLSN();
+            stream.setFlushedLSN(confirmed);
+            stream.forceUpdateStatus();
+            stream.close();
+
+            // asking for an earlier position still starts after the confirmed one
+            stream = new NioReplicationStream(config).withStatusInterval(0, TimeUnit.SECONDS)
+                    .start(LogSequenceNumber.valueOf(1));
+            assertNotNull(stream.read());
+            assertTrue(stream.getLastReceiveLSN().asLong() > confirmed.asLong());
+            assertEquals(confirmed, walSender.getFlushLsn());
+            assertEquals(2, walSender.getConnections());
+            stream.close();
+        }
+    }
+
+    public void testReconnectSendsUnflushedMessagesAgain() throws Exception {
+        SyntheticStream source = new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.narrow())
+                .withRowsPerTransaction(2)
+                .withTransactions(10);
+        try (FakeWalSender walSender = new FakeWalSender(source).start()) {
+            SlotConfig config = new SlotConfig("slot", walSender.url()).user("davec");
+            NioReplicationStream stream = new NioReplicationStream(config).withStatusInterval(0, TimeUnit.SECONDS).start(null);
+            PgOutputMessage message = new PgOutputMessage();
+            long[] lsns = new long[5];
+            StringBuilder types = new StringBuilder();
+            for (int i = 0; i < lsns.length; i++) {
+                types.append((char) message.wrap(stream.read()).type());
+                lsns[i] = stream.getLastReceiveLSN().asLong();
+            }
+            assertEquals("RBIIC", types.toString());
+            // the first row is stored, the rest of the transaction was received and lost
+            stream.setFlushedLSN(LogSequenceNumber.valueOf(lsns[2]));
+            stream.forceUpdateStatus();
+            stream.close();
+
+            stream = new NioReplicationStream(config).withStatusInterval(0, TimeUnit.SECONDS).start(null);
+            for (int i = 3; i < lsns.length; i++) {
+                assertEquals(types.charAt(i), (char) message.wrap(stream.read()).type());
+                assertEquals(lsns[i], stream.getLastReceiveLSN().asLong());
+            }
+            assertEquals(lsns[2], walSender.getFlushLsn().asLong());
+            assertEquals(2, walSender.getConnections());
+            stream.close();
+        }
+    }
+
+    public void testReconnectReplaysCaptureFromConfirmedPosition() throws Exception {
+        Path directory = Files.createTempDirectory("fake-walsender-test");
+        try {
+            SyntheticStream generated = new SyntheticStream(SyntheticStream.Plugin.PGOUTPUT, RowShape.narrow())
+                    .withRowsPerTransaction(2)
+                    .withTransactions(3);
+            try (CapturingReplicationStream capturing = new CapturingReplicationStream(generated, new CaptureWriter(directory))) {
+                while (capturing.read() != null) {
+                    // capture everything
+                }
+            }
+            ReplaySource capture = new ReplaySource(directory, ReplaySource.Pacing.AS_FAST_AS_POSSIBLE);
+            try (FakeWalSender walSender = new FakeWalSender(capture).start()) {
+                SlotConfig config = new SlotConfig("slot", walSender.url()).user("davec");
+                NioReplicationStream stream = new NioReplicationStream(config).withStatusInterval(0, TimeUnit.SECONDS).start(null);
+                PgOutputMessage message = new PgOutputMessage();
+                // relation and the first transaction, stored
+                for (int i = 0; i < 4; i++) {
+                    stream.read();
+                }
+                assertEquals(PgOutputMessage.COMMIT, message.wrap(stream.read()).type());
+                LogSequenceNumber confirmed = stream.getLastReceiveLSN();
+                // the second transaction, lost
+                assertEquals(PgOutputMessage.BEGIN, message.wrap(stream.read()).type());
+                long second = stream.getLastReceiveLSN().asLong();
+                stream.read();
+                stream.setFlushedLSN(confirmed);
+                stream.forceUpdateStatus();
+                stream.close();
+
+                stream = new NioReplicationStream(config).withStatusInterval(0, TimeUnit.SECONDS).start(null);
+                // the table's RELATION first, as the new connection has not seen it
+                assertEquals(PgOutputMessage.RELATION, message.wrap(stream.read()).type());
+                assertEquals(PgOutputMessage.BEGIN, message.wrap(stream.read()).type());
+                assertEquals(second, stream.getLastReceiveLSN().asLong());
+                stream.close();
+            }
+            capture.close();
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.forEach(path -> path.toFile().delete());
+            }
+            Files.delete(directory);
+        }
+    }
+
+    public void testOtherPlugins() throws Exception {
+        SyntheticStream wal2json = new SyntheticStream(SyntheticStream.Plugin.WAL2JSON, RowShape.narrow())
+                .withRowsPerTransaction(2)
+                .withTransactions(1);
+        String document = new Wal2JSON(wal2json.read()).toString();
+        assertTrue(document, document.contains("\"table\":\"synthetic\""));
+        assertNull(wal2json.read());
+        assertTrue(wal2json.isClosed());
+
+        SyntheticStream decoderbufs = new SyntheticStream(SyntheticStream.Plugin.named("decoderbufs"), RowShape.narrow())
+                .withRowsPerTransaction(2)
+                .withTransactions(2)
+                .withRate(100);
+        long start = System.nanoTime();
+        int rows = 0;
+        ByteBuffer buffer;
+        while ((buffer = decoderbufs.read()) != null) {
+            assertTrue(new ProtoBuf(buffer).toString().contains("public.synthetic"));
+            rows++;
+        }
+        assertEquals(4, rows);
+        // the second transaction waited 10ms for its turn
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(9));
+    }
+}